@@ -0,0 +1,336 @@
+/* Copyright 2008
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mortbay.http.HttpException;
+import org.mortbay.http.HttpRequest;
+import org.mortbay.http.HttpResponse;
+import org.mortbay.http.handler.AbstractHttpHandler;
+import org.testng.Reporter;
+
+/**
+ * Jetty handler which proxies requests to the real site under test,
+ * keeping copies of its static assets (scripts, stylesheets, images) on
+ * disk.
+ * <ul>
+ *   <li><b>record</b> - every request is passed to the site, and the
+ *   assets it returns are saved</li>
+ *   <li><b>replay</b> - saved assets are served from memory-mapped
+ *   files without contacting the site; only other requests, and assets
+ *   which were never recorded, are passed on. With a complete
+ *   recording, pages whose content is static can be tested offline.</li>
+ * </ul>
+ */
+public class AssetCacheHandler extends AbstractHttpHandler {
+	public enum Mode { RECORD, REPLAY }
+	
+	/** File extensions of requests treated as static assets */
+	private static final Set<String> ASSET_EXTENSIONS = new HashSet<String>(Arrays.asList(new String[] {
+		"js", "css", "png", "gif", "jpg", "jpeg", "ico", "svg", "swf", "woff", "ttf"
+	}));
+	
+	/** Headers which apply to a single connection, and so are not passed through */
+	private static final Set<String> HOP_BY_HOP = new HashSet<String>(Arrays.asList(new String[] {
+		"connection", "keep-alive", "proxy-authenticate", "proxy-authorization", "te", "trailers",
+		"transfer-encoding", "upgrade", "host", "content-length", "accept-encoding"
+	}));
+	
+	private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+	
+	/** A saved asset, mapped into memory */
+	private static class Asset {
+		final String contentType;
+		final ByteBuffer body;
+		
+		Asset(String contentType, ByteBuffer body) {
+			this.contentType = contentType;
+			this.body = body;
+		}
+	}
+	
+	private final String origin;
+	private final File cacheDir;
+	private final Mode mode;
+	
+	/** Assets mapped so far in replay mode, by request path and query */
+	private final ConcurrentMap<String, Asset> mapped = new ConcurrentHashMap<String, Asset>();
+	
+	private final AtomicInteger hits = new AtomicInteger();
+	private final AtomicInteger forwarded = new AtomicInteger();
+	private final AtomicInteger recorded = new AtomicInteger();
+	
+	/**
+	 * @param origin Root URL of the real site, to which requests are passed
+	 * @param cacheDir Directory in which assets are saved
+	 * @param mode Whether to record or replay assets
+	 */
+	public AssetCacheHandler(String origin, File cacheDir, Mode mode) {
+		this.origin = origin.endsWith("/") ? origin.substring(0, origin.length() - 1) : origin;
+		this.cacheDir = cacheDir;
+		this.mode = mode;
+		if(mode == Mode.RECORD && !cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+			throw new RuntimeException("Unable to create asset cache directory " + cacheDir);
+		}
+	}
+	
+	public void handle(String pathInContext, String pathParams, HttpRequest request, HttpResponse response)
+			throws HttpException, IOException {
+		String key = request.getPath() + (request.getQuery() == null ? "" : "?" + request.getQuery());
+		boolean get = request.getMethod().equals("GET");
+		boolean asset = isAsset(request.getPath()) && (get || request.getMethod().equals("HEAD"));
+		
+		if(asset && mode == Mode.REPLAY) {
+			Asset saved = lookup(key);
+			if(saved != null) {
+				hits.incrementAndGet();
+				serve(saved, request, response);
+				request.setHandled(true);
+				return;
+			}
+		}
+		
+		// A HEAD response has no body, so only GETs are recorded
+		forward(key, request, response, asset && get && mode == Mode.RECORD);
+		request.setHandled(true);
+	}
+	
+	private static boolean isAsset(String path) {
+		int dot = path.lastIndexOf('.');
+		return dot > path.lastIndexOf('/') && ASSET_EXTENSIONS.contains(path.substring(dot + 1).toLowerCase());
+	}
+	
+	/**
+	 * Writes a saved asset to the response. The mapped file is shared by
+	 * all requests; each writes from its own view of the buffer.
+	 */
+	private void serve(Asset saved, HttpRequest request, HttpResponse response) throws IOException {
+		ByteBuffer body = saved.body.duplicate();
+		response.setStatus(HttpResponse.__200_OK);
+		response.setContentType(saved.contentType);
+		response.setContentLength(body.remaining());
+		if(request.getMethod().equals("HEAD")) {
+			return;
+		}
+		WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+		while(body.hasRemaining()) {
+			out.write(body);
+		}
+	}
+	
+	/**
+	 * Finds a saved asset, mapping its file on first use
+	 * @return The asset, or null if it was not recorded
+	 */
+	private Asset lookup(String key) throws IOException {
+		Asset saved = mapped.get(key);
+		if(saved != null) {
+			return saved;
+		}
+		
+		File file = fileFor(key);
+		if(!file.isFile()) {
+			return null;
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			
+			// The content type is stored on the first line, followed by the body
+			StringBuilder contentType = new StringBuilder();
+			while(buffer.hasRemaining()) {
+				char c = (char) buffer.get();
+				if(c == '\n') {
+					break;
+				}
+				contentType.append(c);
+			}
+			saved = new Asset(contentType.toString(), buffer.slice());
+		} finally {
+			// The mapping remains valid after the file is closed
+			raf.close();
+		}
+		
+		Asset existing = mapped.putIfAbsent(key, saved);
+		return existing != null ? existing : saved;
+	}
+	
+	/**
+	 * Passes a request to the site and copies its response back,
+	 * optionally saving the body
+	 */
+	private void forward(String key, HttpRequest request, HttpResponse response, boolean record) throws IOException {
+		forwarded.incrementAndGet();
+		HttpURLConnection connection = (HttpURLConnection) new URL(origin + key).openConnection();
+		connection.setInstanceFollowRedirects(false);
+		connection.setRequestMethod(request.getMethod());
+		for(Enumeration<?> names = request.getFieldNames(); names.hasMoreElements();) {
+			String name = (String) names.nextElement();
+			if(!HOP_BY_HOP.contains(name.toLowerCase())) {
+				connection.setRequestProperty(name, request.getField(name));
+			}
+		}
+		
+		int status;
+		try {
+			if(request.getMethod().equals("POST") || request.getMethod().equals("PUT")) {
+				connection.setDoOutput(true);
+				OutputStream body = connection.getOutputStream();
+				try {
+					copy(request.getInputStream(), body);
+				} finally {
+					body.close();
+				}
+			}
+			status = connection.getResponseCode();
+		} catch(IOException e) {
+			response.sendError(HttpResponse.__502_Bad_Gateway, "Site under test could not be reached: " + e.getMessage());
+			return;
+		}
+		
+		response.setStatus(status);
+		for(Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+			if(header.getKey() != null && !HOP_BY_HOP.contains(header.getKey().toLowerCase())) {
+				for(String value : header.getValue()) {
+					response.addField(header.getKey(), value);
+				}
+			}
+		}
+		
+		InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+		if(in == null) {
+			return;
+		}
+		try {
+			if(record && status == HttpURLConnection.HTTP_OK) {
+				ByteArrayOutputStream body = new ByteArrayOutputStream();
+				copy(in, body);
+				response.setContentLength(body.size());
+				body.writeTo(response.getOutputStream());
+				try {
+					save(key, connection.getContentType(), body);
+				} catch(IOException e) {
+					// The browser already has the asset; it is recorded next time it is requested
+					Reporter.log("Unable to record asset " + key + ": " + e.getMessage());
+				}
+			} else {
+				copy(in, response.getOutputStream());
+			}
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Writes an asset to a temporary file and renames it into place, so
+	 * that a partly-written asset is never replayed. Each write has its
+	 * own temporary file, so requests recording the same asset at once
+	 * do not overwrite each other's data; the last one renamed is kept.
+	 */
+	private void save(String key, String contentType, ByteArrayOutputStream body) throws IOException {
+		File file = fileFor(key);
+		File temp = File.createTempFile(file.getName(), ".tmp", cacheDir);
+		try {
+			OutputStream out = new FileOutputStream(temp);
+			try {
+				out.write(((contentType == null ? DEFAULT_CONTENT_TYPE : contentType) + "\n").getBytes("UTF-8"));
+				body.writeTo(out);
+			} finally {
+				out.close();
+			}
+			// Some platforms will not rename over an existing file
+			if(!temp.renameTo(file) && !(file.delete() && temp.renameTo(file)) && !file.isFile()) {
+				throw new IOException("Unable to save asset " + key + " to " + file);
+			}
+		} finally {
+			temp.delete();
+		}
+		recorded.incrementAndGet();
+	}
+	
+	private File fileFor(String key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+			StringBuilder name = new StringBuilder();
+			for(byte b : digest) {
+				name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return new File(cacheDir, name.append(".asset").toString());
+		} catch(NoSuchAlgorithmException e) {
+			throw new RuntimeException("SHA-1 is not available", e);
+		} catch(IOException e) {
+			throw new RuntimeException("UTF-8 is not available", e);
+		}
+	}
+	
+	private static void copy(InputStream in, OutputStream out) throws IOException {
+		byte[] buffer = new byte[8192];
+		int read;
+		while((read = in.read(buffer)) > 0) {
+			out.write(buffer, 0, read);
+		}
+	}
+	
+	/**
+	 * Gets the number of assets served from the cache
+	 */
+	public int getHits() {
+		return hits.get();
+	}
+	
+	/**
+	 * Gets the number of requests passed to the site
+	 */
+	public int getForwarded() {
+		return forwarded.get();
+	}
+	
+	/**
+	 * Gets the number of assets saved
+	 */
+	public int getRecorded() {
+		return recorded.get();
+	}
+	
+	public Mode getMode() {
+		return mode;
+	}
+}
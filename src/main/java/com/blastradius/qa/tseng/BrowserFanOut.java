@@ -0,0 +1,201 @@
+/* Copyright 2008
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.ITestContext;
+import org.testng.ITestListener;
+import org.testng.ITestResult;
+import org.testng.TestNG;
+import org.testng.xml.Parser;
+import org.testng.xml.XmlClass;
+import org.testng.xml.XmlSuite;
+import org.testng.xml.XmlTest;
+
+/**
+ * Runs a suite against several browsers at once.
+ * 
+ * Each &lt;test&gt; of the suite is copied once per browser, named with
+ * the browser in brackets (e.g. "Core Functionality [*firefox]") so that
+ * results are reported per browser, and the copies run in parallel.
+ * The &lt;test&gt; which initializes {@link Globals} is kept as it is, and
+ * starts a pool of sessions for each browser, large enough for every
+ * copy of that browser to have a session at once. Each copy's commands
+ * through {@link Globals#s} go to its own browser, so the run takes
+ * about as long as the slowest browser rather than all of them in turn.
+ * 
+ * Run from the command line with:
+ * <pre>
+ * java com.blastradius.qa.tseng.BrowserFanOut test.xml *firefox,*iexplore [output directory]
+ * </pre>
+ */
+public class BrowserFanOut implements ITestListener {
+	/**
+	 * Expands a suite to run each of its tests against every browser
+	 * 
+	 * @param suite Suite to expand in place
+	 * @param browsers Selenium browser strings
+	 * @return The suite
+	 */
+	public static XmlSuite expand(XmlSuite suite, List<String> browsers) {
+		if(browsers.isEmpty()) {
+			throw new IllegalArgumentException("At least one browser is needed");
+		}
+		
+		List<XmlTest> original = new ArrayList<XmlTest>(suite.getTests());
+		suite.getTests().clear();
+		int copies = 0;
+		for(XmlTest test : original) {
+			if(initializesGlobals(test)) {
+				suite.getTests().add(test);
+				continue;
+			}
+			copies++;
+			for(String browser : browsers) {
+				// Cloning adds the copy to the suite, but does not copy the classes
+				XmlTest copy = (XmlTest) test.clone();
+				copy.setName(test.getName() + " [" + browser + "]");
+				copy.setXmlClasses(new ArrayList<XmlClass>(test.getXmlClasses()));
+				Map<String, String> parameters = new HashMap<String, String>(test.getParameters());
+				parameters.put("selenium.browser", browser);
+				copy.setParameters(parameters);
+			}
+		}
+		
+		StringBuilder list = new StringBuilder();
+		for(String browser : browsers) {
+			if(list.length() > 0) {
+				list.append(',');
+			}
+			list.append(browser);
+		}
+		Map<String, String> parameters = new HashMap<String, String>(suite.getParameters());
+		parameters.put("selenium.browsers", list.toString());
+		// Every copy for a browser runs at once, each holding one of its sessions
+		int poolSize = 1;
+		if(parameters.containsKey("selenium.pool.size")) {
+			try {
+				poolSize = Integer.parseInt(parameters.get("selenium.pool.size"), 10);
+			} catch(NumberFormatException e) {
+				// Reported by Globals when the suite is run
+				copies = 0;
+			}
+		}
+		if(copies > poolSize) {
+			parameters.put("selenium.pool.size", Integer.toString(copies));
+		}
+		suite.setParameters(parameters);
+		
+		suite.setParallel(XmlSuite.PARALLEL_TESTS);
+		suite.setThreadCount(suite.getTests().size());
+		
+		List<String> listeners = new ArrayList<String>();
+		if(suite.getListeners() != null) {
+			listeners.addAll(suite.getListeners());
+		}
+		if(!listeners.contains(BrowserFanOut.class.getName())) {
+			listeners.add(BrowserFanOut.class.getName());
+		}
+		suite.setListeners(listeners);
+		return suite;
+	}
+	
+	private static boolean initializesGlobals(XmlTest test) {
+		for(XmlClass c : test.getXmlClasses()) {
+			try {
+				if(Globals.class.isAssignableFrom(Class.forName(c.getName()))) {
+					return true;
+				}
+			} catch(ClassNotFoundException e) {
+				// Reported by TestNG when the suite is run
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Gets the browser a test was copied for
+	 * @param testName Name of a &lt;test&gt; produced by {@link #expand(XmlSuite, List)}
+	 * @return The browser string, or null if the test is not a copy
+	 */
+	public static String browserOf(String testName) {
+		if(testName == null || !testName.endsWith("]")) {
+			return null;
+		}
+		int open = testName.lastIndexOf(" [");
+		return open < 0 ? null : testName.substring(open + 2, testName.length() - 1);
+	}
+	
+	/**
+	 * Directs the thread running each copied test to its browser
+	 */
+	public void onStart(ITestContext context) {
+		String browser = browserOf(context.getName());
+		if(browser != null && Globals.browserSessions.containsKey(browser)) {
+			Globals.useBrowser(browser);
+		}
+	}
+	
+	/**
+	 * Hands the copy's session back to its browser's pool
+	 */
+	public void onFinish(ITestContext context) {
+		String browser = browserOf(context.getName());
+		if(browser != null && Globals.browserSessions.containsKey(browser)) {
+			Globals.browserSessions.get(browser).release();
+		}
+	}
+	
+	public void onTestStart(ITestResult result) {
+	}
+	
+	public void onTestSuccess(ITestResult result) {
+	}
+	
+	public void onTestFailure(ITestResult result) {
+	}
+	
+	public void onTestSkipped(ITestResult result) {
+	}
+	
+	public void onTestFailedButWithinSuccessPercentage(ITestResult result) {
+	}
+	
+	public static void main(String[] args) throws Exception {
+		if(args.length < 2) {
+			System.err.println("Usage: BrowserFanOut <suite.xml> <browser>[,<browser>...] [output directory]");
+			System.exit(2);
+		}
+		
+		List<String> browsers = Arrays.asList(args[1].split(","));
+		List<XmlSuite> suites = new Parser(args[0]).parseToList();
+		for(XmlSuite suite : suites) {
+			expand(suite, browsers);
+		}
+		
+		TestNG testng = new TestNG();
+		testng.setXmlSuites(suites);
+		if(args.length > 2) {
+			testng.setOutputDirectory(args[2]);
+		}
+		testng.run();
+		System.exit(testng.getStatus());
+	}
+}
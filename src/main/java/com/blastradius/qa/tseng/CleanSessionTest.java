@@ -0,0 +1,48 @@
+/* Copyright 2008
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Optional;
+import org.testng.annotations.Parameters;
+
+/**
+ * Base for test classes that need a clean browser before they run.
+ *
+ * The way the browser is cleaned is chosen by the selenium.session.reset
+ * parameter, which may be set per &lt;test&gt; in the suite file:
+ * <ul>
+ *   <li><b>reset</b> (default) - reuse the running browser, clearing
+ *   cookies and window state and reopening the site root</li>
+ *   <li><b>relaunch</b> - stop the browser and start a new one</li>
+ * </ul>
+ */
+public abstract class CleanSessionTest {
+	public static final String RESET = "reset";
+	public static final String RELAUNCH = "relaunch";
+
+	@Parameters("selenium.session.reset")
+	@BeforeClass(groups="selenium.connection",
+			description="Provide a clean browser session for this test class")
+	public void cleanSession(@Optional(value=RESET) String mode) {
+		if(RELAUNCH.equalsIgnoreCase(mode)) {
+			Globals.pool().recycle(true);
+		} else if(RESET.equalsIgnoreCase(mode)) {
+			Globals.pool().recycle(false);
+		} else {
+			throw new RuntimeException("Session reset mode must be '" + RESET + "' or '" + RELAUNCH + "'");
+		}
+	}
+}
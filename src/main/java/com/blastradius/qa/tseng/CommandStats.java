@@ -0,0 +1,252 @@
+/* Copyright 2008
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.blastradius.qa.tseng.ui.UIObject;
+import com.blastradius.qa.tseng.ui.UISelection;
+import com.thoughtworks.selenium.Selenium;
+
+/**
+ * Records how long each Selenium command takes. Durations are kept in a
+ * {@link LatencyHistogram} per command, and additionally per test method
+ * and per UI Object when those are known.
+ * 
+ * The test is set by {@link CommandStatsReporter} as each test starts.
+ * The UI Object is the one most recently looked up through the
+ * {@link com.blastradius.qa.tseng.ui.UIMap} on the calling thread, as
+ * tracked by {@link UISelection}, and is used when the command's first
+ * argument is that object's locator.
+ */
+public class CommandStats {
+	/** Names of Selenium commands, in the order used to index histograms */
+	private static final String[] COMMANDS;
+	
+	/** Index of each method's command. Overloads share an index. */
+	private static final Map<Method, Integer> INDEX = new HashMap<Method, Integer>();
+	static {
+		TreeSet<String> names = new TreeSet<String>();
+		for(Method m : Selenium.class.getMethods()) {
+			names.add(m.getName());
+		}
+		COMMANDS = names.toArray(new String[names.size()]);
+		for(Method m : Selenium.class.getMethods()) {
+			INDEX.put(m, Arrays.binarySearch(COMMANDS, m.getName()));
+		}
+	}
+	
+	/** Histograms for one test or UI Object, created as commands are first seen */
+	private static final class Scope {
+		final String name;
+		final AtomicReferenceArray<LatencyHistogram> histograms =
+			new AtomicReferenceArray<LatencyHistogram>(COMMANDS.length);
+		
+		Scope(String name) {
+			this.name = name;
+		}
+		
+		void record(int command, long nanos) {
+			LatencyHistogram h = histograms.get(command);
+			if(h == null) {
+				histograms.compareAndSet(command, null, new LatencyHistogram());
+				h = histograms.get(command);
+			}
+			h.record(nanos);
+		}
+	}
+	
+	private final Scope overall = new Scope("");
+	private final ConcurrentMap<String, Scope> tests = new ConcurrentHashMap<String, Scope>();
+	private final ConcurrentMap<UIObject, Scope> elements = new ConcurrentHashMap<UIObject, Scope>();
+	private final ThreadLocal<Scope> currentTest = new ThreadLocal<Scope>();
+	
+	/**
+	 * Wraps a Selenium so that every command is timed
+	 * 
+	 * @param target Selenium to which commands are passed
+	 * @return Selenium which records commands in these statistics
+	 */
+	public Selenium instrument(final Selenium target) {
+		return (Selenium) Proxy.newProxyInstance(Selenium.class.getClassLoader(),
+				new Class[] { Selenium.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						Integer command = INDEX.get(method);
+						if(command == null) {
+							return method.invoke(target, args);
+						}
+						long start = System.nanoTime();
+						try {
+							return method.invoke(target, args);
+						} catch(InvocationTargetException e) {
+							throw e.getCause();
+						} finally {
+							record(command.intValue(), args, System.nanoTime() - start);
+						}
+					}
+				});
+	}
+	
+	/**
+	 * Gets the index of a command's histograms
+	 * @return Index, or a negative number if there is no such command
+	 */
+	static int command(String name) {
+		return Arrays.binarySearch(COMMANDS, name);
+	}
+	
+	void record(int command, Object[] args, long nanos) {
+		overall.record(command, nanos);
+		
+		Scope test = currentTest.get();
+		if(test != null) {
+			test.record(command, nanos);
+		}
+		
+		// The locators compared are cached by the UI Object, so nothing is allocated here
+		UIObject target = UISelection.object();
+		if(target != null && args != null && args.length > 0 && args[0] instanceof String
+				&& (args[0].equals(target.getLocator()) || args[0].equals(target.getEffectiveLocator())
+						|| args[0].equals(target.getCachedLocator()))) {
+			Scope element = elements.get(target);
+			if(element == null) {
+				elements.putIfAbsent(target, new Scope(UISelection.name()));
+				element = elements.get(target);
+			}
+			element.record(command, nanos);
+		}
+	}
+	
+	/**
+	 * Attributes commands on this thread to a test until {@link #endTest()}
+	 * @param name Name of the test
+	 */
+	public void startTest(String name) {
+		Scope test = tests.get(name);
+		if(test == null) {
+			tests.putIfAbsent(name, new Scope(name));
+			test = tests.get(name);
+		}
+		currentTest.set(test);
+	}
+	
+	/**
+	 * Stops attributing commands on this thread to a test
+	 */
+	public void endTest() {
+		currentTest.remove();
+	}
+	
+	/**
+	 * Gets the histogram of all calls to a command
+	 * @param command Name of the Selenium method
+	 * @return Histogram covering all overloads of the command, or null if it was never called
+	 */
+	public LatencyHistogram getHistogram(String command) {
+		return find(overall, command);
+	}
+	
+	/**
+	 * Gets the histogram of calls to a command made during a test
+	 * @return The histogram, or null if the test did not call the command
+	 */
+	public LatencyHistogram getTestHistogram(String test, String command) {
+		Scope scope = tests.get(test);
+		return scope == null ? null : find(scope, command);
+	}
+	
+	/**
+	 * Gets the histogram of calls to a command against a UI Object
+	 * @return The histogram, or null if the command was not called against the object
+	 */
+	public LatencyHistogram getElementHistogram(UIObject element, String command) {
+		Scope scope = elements.get(element);
+		return scope == null ? null : find(scope, command);
+	}
+	
+	private static LatencyHistogram find(Scope scope, String command) {
+		int i = Arrays.binarySearch(COMMANDS, command);
+		return i < 0 ? null : scope.histograms.get(i);
+	}
+	
+	/**
+	 * Writes the statistics as CSV, with one line per command for the
+	 * whole run, then per test, then per UI Object. Times are in milliseconds.
+	 * 
+	 * @param out Destination of the report
+	 * @throws IOException if the report could not be written
+	 */
+	public void writeCsv(Writer out) throws IOException {
+		out.write("scope,name,command,count,mean,p50,p95,p99,max\n");
+		write(out, "all", overall);
+		for(Scope test : new TreeMap<String, Scope>(tests).values()) {
+			write(out, "test", test);
+		}
+		// UI Objects may share a name, for instance after a map is reloaded, so each keeps its own lines
+		List<Scope> byName = new ArrayList<Scope>(elements.values());
+		Collections.sort(byName, new Comparator<Scope>() {
+			public int compare(Scope a, Scope b) {
+				return a.name.compareTo(b.name);
+			}
+		});
+		for(Scope element : byName) {
+			write(out, "element", element);
+		}
+		out.flush();
+	}
+	
+	private static void write(Writer out, String kind, Scope scope) throws IOException {
+		for(int i = 0; i < COMMANDS.length; i++) {
+			LatencyHistogram h = scope.histograms.get(i);
+			if(h == null) {
+				continue;
+			}
+			out.write(kind + "," + csv(scope.name) + "," + COMMANDS[i] + "," + h.getCount()
+					+ "," + format(h.getMean()) + "," + format(h.getPercentile(50))
+					+ "," + format(h.getPercentile(95)) + "," + format(h.getPercentile(99))
+					+ "," + format(h.getMax()) + "\n");
+		}
+	}
+	
+	private static String format(double millis) {
+		return String.format(Locale.US, "%.3f", millis);
+	}
+	
+	private static String csv(String value) {
+		if(value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+			return value;
+		}
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+}
@@ -0,0 +1,120 @@
+/* Copyright 2008
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+
+import org.testng.IReporter;
+import org.testng.ISuite;
+import org.testng.ITestContext;
+import org.testng.ITestListener;
+import org.testng.ITestResult;
+import org.testng.xml.XmlSuite;
+
+import com.blastradius.qa.tseng.ui.UIWait;
+
+/**
+ * TestNG listener which attributes Selenium commands to the test that
+ * made them, and writes {@link Globals#commandStats} to command-stats.csv
+ * in the output directory when the suite finishes, along with the time
+ * spent in {@link UIWait} waits to wait-times.csv. Add it to a suite with:
+ * <pre>
+ * &lt;listeners&gt;
+ *   &lt;listener class-name="com.blastradius.qa.tseng.CommandStatsReporter" /&gt;
+ * &lt;/listeners&gt;
+ * </pre>
+ */
+public class CommandStatsReporter implements ITestListener, IReporter {
+	/** Name of the report written to the output directory */
+	public static final String REPORT_FILE = "command-stats.csv";
+	
+	/** Name of the report of time spent waiting on each UI Object */
+	public static final String WAIT_REPORT_FILE = "wait-times.csv";
+	
+	public void onTestStart(ITestResult result) {
+		CommandStats stats = Globals.commandStats;
+		if(stats != null) {
+			String name = result.getTestClass().getName() + "." + result.getMethod().getMethodName();
+			if(Globals.browsers.size() > 1) {
+				name = "[" + Globals.currentBrowser() + "] " + name;
+			}
+			stats.startTest(name);
+		}
+	}
+	
+	public void onTestSuccess(ITestResult result) {
+		endTest();
+	}
+	
+	public void onTestFailure(ITestResult result) {
+		endTest();
+	}
+	
+	public void onTestSkipped(ITestResult result) {
+		endTest();
+	}
+	
+	public void onTestFailedButWithinSuccessPercentage(ITestResult result) {
+		endTest();
+	}
+	
+	public void onStart(ITestContext context) {
+	}
+	
+	public void onFinish(ITestContext context) {
+	}
+	
+	private void endTest() {
+		CommandStats stats = Globals.commandStats;
+		if(stats != null) {
+			stats.endTest();
+		}
+	}
+	
+	public void generateReport(List<XmlSuite> xmlSuites, List<ISuite> suites, String outputDirectory) {
+		File dir = new File(outputDirectory);
+		dir.mkdirs();
+		try {
+			CommandStats stats = Globals.commandStats;
+			if(stats != null) {
+				Writer out = new OutputStreamWriter(new FileOutputStream(new File(dir, REPORT_FILE)), "UTF-8");
+				try {
+					stats.writeCsv(out);
+				} finally {
+					out.close();
+				}
+			}
+			
+			File waits = new File(dir, WAIT_REPORT_FILE);
+			Writer out = new OutputStreamWriter(new FileOutputStream(waits), "UTF-8");
+			boolean written;
+			try {
+				written = UIWait.writeCsv(out);
+			} finally {
+				out.close();
+			}
+			if(!written) {
+				waits.delete();
+			}
+		} catch(IOException e) {
+			throw new RuntimeException("Failed to write Selenium command statistics", e);
+		}
+	}
+}
@@ -0,0 +1,414 @@
+/* Copyright 2008
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.testng.IMethodInstance;
+import org.testng.IMethodInterceptor;
+import org.testng.ITestContext;
+import org.testng.ITestListener;
+import org.testng.ITestNGMethod;
+import org.testng.ITestResult;
+import org.testng.Reporter;
+import org.testng.xml.XmlSuite;
+
+/**
+ * Orders test methods so that a parallel run finishes as early as
+ * possible. The time taken by every test method is kept in a history
+ * file, and on later runs the methods are started longest first, so
+ * that a long test is not left to run alone at the end. Methods are
+ * never moved ahead of the methods or groups they depend on.
+ * 
+ * After each &lt;test&gt; the predicted and actual makespan (time from
+ * the first method starting to the last one finishing) are printed.
+ * 
+ * The history is kept in test-durations.properties in the working
+ * directory, or the file named by the suite's test.durations parameter.
+ * Add the scheduler to a suite with:
+ * <pre>
+ * &lt;listeners&gt;
+ *   &lt;listener class-name="com.blastradius.qa.tseng.DurationScheduler" /&gt;
+ * &lt;/listeners&gt;
+ * </pre>
+ */
+public class DurationScheduler implements IMethodInterceptor, ITestListener {
+	public static final String HISTORY_PARAMETER = "test.durations";
+	public static final String DEFAULT_HISTORY_FILE = "test-durations.properties";
+	
+	/** Weight given to the latest run when updating the history */
+	private static final double SMOOTHING = 0.5;
+	
+	private Properties history;
+	private File historyFile;
+	
+	/** Total milliseconds taken by each method in this run */
+	private final ConcurrentMap<String, Long> measured = new ConcurrentHashMap<String, Long>();
+	
+	/** Predicted makespan of each &lt;test&gt;, by name */
+	private final ConcurrentMap<String, Long> predicted = new ConcurrentHashMap<String, Long>();
+	
+	/**
+	 * Identifies a method in the history
+	 */
+	static String key(ITestNGMethod m) {
+		return m.getRealClass().getName() + "." + m.getMethodName();
+	}
+	
+	public List<IMethodInstance> intercept(List<IMethodInstance> methods, ITestContext context) {
+		Map<String, Long> durations = load(context);
+		List<IMethodInstance> ordered = order(methods, durations);
+		
+		// Methods with dependencies are run one chain at a time, before the free methods
+		List<Long> units = new ArrayList<Long>();
+		for(Collection<ITestNGMethod> chain : chains(context.getAllTestMethods(), methods)) {
+			long total = 0;
+			for(ITestNGMethod m : chain) {
+				total += estimate(durations, key(m));
+			}
+			units.add(total);
+		}
+		for(IMethodInstance m : ordered) {
+			units.add(estimate(durations, key(m.getMethod())));
+		}
+		predicted.put(context.getName(), makespan(units, workers(context)));
+		
+		return ordered;
+	}
+	
+	/**
+	 * Orders methods so that each comes after those it depends on, and
+	 * otherwise by the length of the longest chain of work it begins.
+	 */
+	static List<IMethodInstance> order(List<IMethodInstance> methods, Map<String, Long> durations) {
+		int n = methods.size();
+		
+		// dependencies.get(i) holds the indices of methods which must run before method i
+		List<Set<Integer>> dependencies = new ArrayList<Set<Integer>>(n);
+		List<Set<Integer>> dependents = new ArrayList<Set<Integer>>(n);
+		for(int i = 0; i < n; i++) {
+			dependencies.add(new HashSet<Integer>());
+			dependents.add(new HashSet<Integer>());
+		}
+		for(int i = 0; i < n; i++) {
+			ITestNGMethod m = methods.get(i).getMethod();
+			for(int j = 0; j < n; j++) {
+				if(i != j && dependsOn(m, methods.get(j).getMethod())) {
+					dependencies.get(i).add(j);
+					dependents.get(j).add(i);
+				}
+			}
+		}
+		
+		long[] own = new long[n];
+		for(int i = 0; i < n; i++) {
+			own[i] = estimate(durations, key(methods.get(i).getMethod()));
+		}
+		long[] priority = new long[n];
+		Arrays.fill(priority, -1);
+		for(int i = 0; i < n; i++) {
+			priority(i, own, dependents, priority, new boolean[n]);
+		}
+		
+		// Repeatedly take the ready method with the longest chain, keeping the original order on ties
+		List<IMethodInstance> out = new ArrayList<IMethodInstance>(n);
+		boolean[] done = new boolean[n];
+		for(int emitted = 0; emitted < n; emitted++) {
+			int best = -1;
+			for(int i = 0; i < n; i++) {
+				if(!done[i] && isReady(dependencies.get(i), done) && (best < 0 || priority[i] > priority[best])) {
+					best = i;
+				}
+			}
+			if(best < 0) {
+				// A dependency cycle; TestNG reports these itself, so keep the remaining order
+				for(int i = 0; i < n; i++) {
+					if(!done[i]) {
+						out.add(methods.get(i));
+					}
+				}
+				break;
+			}
+			done[best] = true;
+			out.add(methods.get(best));
+		}
+		return out;
+	}
+	
+	private static boolean isReady(Set<Integer> dependencies, boolean[] done) {
+		for(int d : dependencies) {
+			if(!done[d]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Computes the time from starting a method to finishing everything
+	 * that depends on it
+	 */
+	private static long priority(int i, long[] own, List<Set<Integer>> dependents, long[] priority, boolean[] visiting) {
+		if(priority[i] >= 0) {
+			return priority[i];
+		}
+		if(visiting[i]) {
+			return 0;
+		}
+		visiting[i] = true;
+		long longest = 0;
+		for(int d : dependents.get(i)) {
+			longest = Math.max(longest, priority(d, own, dependents, priority, visiting));
+		}
+		visiting[i] = false;
+		priority[i] = own[i] + longest;
+		return priority[i];
+	}
+	
+	private static boolean dependsOn(ITestNGMethod m, ITestNGMethod other) {
+		String otherKey = key(other);
+		for(String method : m.getMethodsDependedUpon()) {
+			if(method.equals(otherKey)) {
+				return true;
+			}
+		}
+		for(String group : m.getGroupsDependedUpon()) {
+			for(String otherGroup : other.getGroups()) {
+				if(group.equals(otherGroup)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Groups the methods not given to the interceptor into chains of
+	 * methods connected by dependencies
+	 */
+	private static Collection<Collection<ITestNGMethod>> chains(ITestNGMethod[] all, List<IMethodInstance> free) {
+		Set<String> freeKeys = new HashSet<String>();
+		for(IMethodInstance m : free) {
+			freeKeys.add(key(m.getMethod()));
+		}
+		List<ITestNGMethod> rest = new ArrayList<ITestNGMethod>();
+		for(ITestNGMethod m : all) {
+			if(!freeKeys.contains(key(m))) {
+				rest.add(m);
+			}
+		}
+		
+		// Union-find over the remaining methods
+		int[] parent = new int[rest.size()];
+		for(int i = 0; i < parent.length; i++) {
+			parent[i] = i;
+		}
+		for(int i = 0; i < rest.size(); i++) {
+			for(int j = 0; j < rest.size(); j++) {
+				if(i != j && dependsOn(rest.get(i), rest.get(j))) {
+					parent[find(parent, i)] = find(parent, j);
+				}
+			}
+		}
+		
+		Map<Integer, Collection<ITestNGMethod>> chains = new HashMap<Integer, Collection<ITestNGMethod>>();
+		for(int i = 0; i < rest.size(); i++) {
+			int root = find(parent, i);
+			Collection<ITestNGMethod> chain = chains.get(root);
+			if(chain == null) {
+				chain = new ArrayList<ITestNGMethod>();
+				chains.put(root, chain);
+			}
+			chain.add(rest.get(i));
+		}
+		return chains.values();
+	}
+	
+	private static int find(int[] parent, int i) {
+		while(parent[i] != i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+	
+	/**
+	 * Predicts when the last of a list of jobs finishes if each is
+	 * started, in order, on whichever worker becomes free first
+	 */
+	static long makespan(List<Long> jobs, int workers) {
+		long[] free = new long[Math.max(1, workers)];
+		long end = 0;
+		for(long job : jobs) {
+			int earliest = 0;
+			for(int w = 1; w < free.length; w++) {
+				if(free[w] < free[earliest]) {
+					earliest = w;
+				}
+			}
+			free[earliest] += job;
+			end = Math.max(end, free[earliest]);
+		}
+		return end;
+	}
+	
+	private static int workers(ITestContext context) {
+		XmlSuite suite = context.getSuite().getXmlSuite();
+		return XmlSuite.PARALLEL_METHODS.equals(suite.getParallel()) ? suite.getThreadCount() : 1;
+	}
+	
+	/**
+	 * Estimates a method's duration from the history. Methods with no
+	 * history are assumed to take the average of those with one.
+	 */
+	private static long estimate(Map<String, Long> durations, String key) {
+		Long known = durations.get(key);
+		if(known != null) {
+			return known;
+		}
+		Long average = durations.get(null);
+		return average == null ? 0 : average;
+	}
+	
+	/**
+	 * Reads the history on first use
+	 * @return Milliseconds by method, with the average under the null key
+	 */
+	private synchronized Map<String, Long> load(ITestContext context) {
+		if(history == null) {
+			String name = context.getSuite().getParameter(HISTORY_PARAMETER);
+			historyFile = new File(name == null ? DEFAULT_HISTORY_FILE : name);
+			history = new Properties();
+			if(historyFile.isFile()) {
+				try {
+					InputStream in = new FileInputStream(historyFile);
+					try {
+						history.load(in);
+					} finally {
+						in.close();
+					}
+				} catch(IOException e) {
+					throw new RuntimeException("Failed to read test duration history " + historyFile, e);
+				}
+			}
+		}
+		
+		Map<String, Long> durations = new HashMap<String, Long>();
+		long total = 0;
+		for(Object key : history.keySet()) {
+			try {
+				long duration = Long.parseLong(history.getProperty((String) key));
+				durations.put((String) key, duration);
+				total += duration;
+			} catch(NumberFormatException e) {
+				// Ignore entries which have been damaged
+			}
+		}
+		if(!durations.isEmpty()) {
+			durations.put(null, total / durations.size());
+		}
+		return durations;
+	}
+	
+	/**
+	 * Merges this run's durations into the history and saves it
+	 */
+	private synchronized void save() {
+		for(Map.Entry<String, Long> entry : measured.entrySet()) {
+			String previous = history.getProperty(entry.getKey());
+			long duration = entry.getValue();
+			if(previous != null) {
+				try {
+					duration = Math.round(SMOOTHING * duration + (1 - SMOOTHING) * Long.parseLong(previous));
+				} catch(NumberFormatException e) {
+					// Replace the damaged entry
+				}
+			}
+			history.setProperty(entry.getKey(), Long.toString(duration));
+		}
+		measured.clear();
+		
+		try {
+			OutputStream out = new FileOutputStream(historyFile);
+			try {
+				history.store(out, "Milliseconds taken by each test method");
+			} finally {
+				out.close();
+			}
+		} catch(IOException e) {
+			throw new RuntimeException("Failed to write test duration history " + historyFile, e);
+		}
+	}
+	
+	private void record(ITestResult result) {
+		String key = key(result.getMethod());
+		long duration = result.getEndMillis() - result.getStartMillis();
+		// Methods invoked several times (by data providers) are summed
+		while(true) {
+			Long previous = measured.putIfAbsent(key, duration);
+			if(previous == null || measured.replace(key, previous, previous + duration)) {
+				break;
+			}
+		}
+	}
+	
+	public void onTestSuccess(ITestResult result) {
+		record(result);
+	}
+	
+	public void onTestFailure(ITestResult result) {
+		record(result);
+	}
+	
+	public void onTestFailedButWithinSuccessPercentage(ITestResult result) {
+		record(result);
+	}
+	
+	public void onTestSkipped(ITestResult result) {
+	}
+	
+	public void onTestStart(ITestResult result) {
+	}
+	
+	public void onStart(ITestContext context) {
+	}
+	
+	public void onFinish(ITestContext context) {
+		Long prediction = predicted.remove(context.getName());
+		if(prediction != null && context.getStartDate() != null && context.getEndDate() != null) {
+			long actual = context.getEndDate().getTime() - context.getStartDate().getTime();
+			Reporter.log("Test '" + context.getName() + "': predicted makespan " + prediction
+					+ "ms, actual " + actual + "ms");
+		}
+		load(context);
+		save();
+	}
+}
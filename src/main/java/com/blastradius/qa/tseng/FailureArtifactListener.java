@@ -0,0 +1,74 @@
+/* Copyright 2008
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng;
+
+import org.testng.ITestContext;
+import org.testng.ITestListener;
+import org.testng.ITestResult;
+
+import com.blastradius.qa.tseng.ui.UISelection;
+import com.thoughtworks.selenium.Selenium;
+
+/**
+ * TestNG listener which saves the browser's state when a test fails,
+ * through {@link Globals#failureArtifacts}. Does nothing unless the
+ * selenium.failure.artifacts parameter is set. Add it to a suite with:
+ * <pre>
+ * &lt;listeners&gt;
+ *   &lt;listener class-name="com.blastradius.qa.tseng.FailureArtifactListener" /&gt;
+ * &lt;/listeners&gt;
+ * </pre>
+ */
+public class FailureArtifactListener implements ITestListener {
+	public void onTestFailure(ITestResult result) {
+		FailureArtifacts artifacts = Globals.failureArtifacts;
+		if(artifacts == null) {
+			return;
+		}
+		
+		String name = result.getTestClass().getName() + "." + result.getMethod().getMethodName();
+		Selenium session = null;
+		if(!Globals.browserSessions.isEmpty()) {
+			if(Globals.browsers.size() > 1) {
+				name = "[" + Globals.currentBrowser() + "] " + name;
+			}
+			// Only a browser the test was already using; never start one for the capture
+			session = Globals.pool().current();
+		}
+		artifacts.capture(name, result.getThrowable(), session);
+	}
+	
+	public void onTestStart(ITestResult result) {
+		if(Globals.failureArtifacts != null) {
+			// So that a failure is only blamed on a UI Object its own test looked up
+			UISelection.clear();
+		}
+	}
+	
+	public void onTestSuccess(ITestResult result) {
+	}
+	
+	public void onTestSkipped(ITestResult result) {
+	}
+	
+	public void onTestFailedButWithinSuccessPercentage(ITestResult result) {
+	}
+	
+	public void onStart(ITestContext context) {
+	}
+	
+	public void onFinish(ITestContext context) {
+	}
+}
@@ -0,0 +1,344 @@
+/* Copyright 2008
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import org.testng.Reporter;
+
+import com.blastradius.qa.tseng.ui.UIObject;
+import com.blastradius.qa.tseng.ui.UISelection;
+import com.thoughtworks.selenium.Selenium;
+
+/**
+ * Saves what the browser was showing when a test failed: a screenshot,
+ * the page's HTML source, and the UI Object the test last looked up.
+ *
+ * Only reading the raw data from the browser happens on the failing
+ * test's thread. Decoding the screenshot, compressing the source and
+ * writing files are handed to a small pool of writer threads, so that a
+ * run with many failures is not slowed down by disk writes. The writers'
+ * queue is bounded: once it is full, the failing thread writes its own
+ * artifacts, which holds back further failures until the writers catch
+ * up rather than letting captured pages pile up in memory.
+ *
+ * Each failure is written to its own directory, named after the test,
+ * holding failure.txt, and page.html.gz and screenshot.png where they
+ * could be captured. Created by {@link Globals} when the
+ * selenium.failure.artifacts parameter names a directory, and fed by
+ * {@link FailureArtifactListener}.
+ */
+public class FailureArtifacts {
+	/** Longest time {@link #flush()} waits for writes to finish */
+	private static final long FLUSH_TIMEOUT = 60000;
+
+	private final File dir;
+	private final ThreadPoolExecutor writers;
+
+	private final AtomicInteger sequence = new AtomicInteger();
+	private final AtomicInteger captured = new AtomicInteger();
+	private final AtomicInteger written = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private final AtomicInteger writtenByCaller = new AtomicInteger();
+
+	/**
+	 * @param dir Directory to write artifacts into, created if necessary
+	 * @param threads Number of writer threads
+	 * @param queue Number of captures which may wait for a writer before
+	 *        failing threads write their own
+	 */
+	public FailureArtifacts(File dir, int threads, int queue) {
+		this.dir = dir;
+		this.writers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queue),
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "failure-artifacts-" + count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				},
+				new RejectedExecutionHandler() {
+					public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+						// Queue is full, or the writers have been flushed: write on this thread
+						writtenByCaller.incrementAndGet();
+						r.run();
+					}
+				});
+	}
+
+	/**
+	 * Raw data read from the browser, waiting to be written
+	 */
+	private static class Capture {
+		final String test;
+		final int number;
+		final Date time = new Date();
+		final Throwable failure;
+		final Map<String, String> details = new LinkedHashMap<String, String>();
+		String screenshot;
+		String source;
+
+		Capture(String test, int number, Throwable failure) {
+			this.test = test;
+			this.number = number;
+			this.failure = failure;
+		}
+	}
+
+	/**
+	 * Reads the state of a failed test's browser and queues it to be
+	 * written. Anything which cannot be read is noted in failure.txt
+	 * instead.
+	 *
+	 * @param test Name of the failed test
+	 * @param failure Reason for the failure, or null
+	 * @param session The test's browser, or null if it did not have one
+	 */
+	public void capture(String test, Throwable failure, Selenium session) {
+		final Capture c = new Capture(test, sequence.incrementAndGet(), failure);
+
+		String name = UISelection.name();
+		UIObject object = UISelection.object();
+		if(name != null && object != null) {
+			c.details.put("UI Object", name);
+			StringBuilder path = new StringBuilder();
+			for(String locator : object.getLocatorPath()) {
+				path.append(path.length() == 0 ? "" : " -> ").append(locator);
+			}
+			c.details.put("Locator path", path.toString());
+		}
+
+		if(session == null) {
+			c.details.put("Browser", "No session was bound to the test's thread");
+		} else {
+			try {
+				c.details.put("Location", session.getLocation());
+				c.details.put("Title", session.getTitle());
+			} catch(RuntimeException e) {
+				c.details.put("Location", "Unavailable: " + e.getMessage());
+			}
+			try {
+				c.source = session.getHtmlSource();
+			} catch(RuntimeException e) {
+				c.details.put("Source", "Unavailable: " + e.getMessage());
+			}
+			c.screenshot = screenshot(session, c.details);
+		}
+
+		captured.incrementAndGet();
+		writers.execute(new Runnable() {
+			public void run() {
+				write(c);
+			}
+		});
+	}
+
+	/**
+	 * Takes a screenshot of the whole page if the browser supports it,
+	 * otherwise of the screen
+	 * @return Base64-encoded PNG, or null
+	 */
+	private static String screenshot(Selenium session, Map<String, String> details) {
+		try {
+			return session.captureEntirePageScreenshotToString("");
+		} catch(RuntimeException pageFailure) {
+			try {
+				return session.captureScreenshotToString();
+			} catch(RuntimeException e) {
+				details.put("Screenshot", "Unavailable: " + e.getMessage());
+				return null;
+			}
+		}
+	}
+
+	private void write(Capture c) {
+		File out = new File(dir, safeName(c.test) + "-" + c.number);
+		try {
+			if(!out.mkdirs() && !out.isDirectory()) {
+				throw new IOException("Could not create " + out.getPath());
+			}
+
+			if(c.screenshot != null) {
+				OutputStream png = new FileOutputStream(new File(out, "screenshot.png"));
+				try {
+					png.write(decodeBase64(c.screenshot));
+				} finally {
+					png.close();
+				}
+			}
+
+			if(c.source != null) {
+				Writer html = new OutputStreamWriter(new GZIPOutputStream(
+						new FileOutputStream(new File(out, "page.html.gz"))), "UTF-8");
+				try {
+					html.write(c.source);
+				} finally {
+					html.close();
+				}
+			}
+
+			PrintWriter text = new PrintWriter(new OutputStreamWriter(
+					new FileOutputStream(new File(out, "failure.txt")), "UTF-8"));
+			try {
+				text.println("Test: " + c.test);
+				text.println("Time: " + c.time);
+				for(Map.Entry<String, String> detail : c.details.entrySet()) {
+					text.println(detail.getKey() + ": " + detail.getValue());
+				}
+				if(c.failure != null) {
+					text.println();
+					c.failure.printStackTrace(text);
+				}
+			} finally {
+				text.close();
+			}
+			written.incrementAndGet();
+		} catch(IOException e) {
+			failed.incrementAndGet();
+			StringWriter trace = new StringWriter();
+			e.printStackTrace(new PrintWriter(trace));
+			Reporter.log("Failed to save artifacts of " + c.test + " to " + out.getPath() + ": " + trace);
+		}
+	}
+
+	/**
+	 * Turns a test name into something usable as a file name
+	 */
+	private static String safeName(String test) {
+		String name = test.replaceAll("[^A-Za-z0-9._-]+", "_");
+		return name.length() > 100 ? name.substring(name.length() - 100) : name;
+	}
+
+	/**
+	 * Waits for every capture to be written, then stops the writer
+	 * threads. Captures made afterwards are written by the failing thread.
+	 *
+	 * @return true if everything was written within the time allowed
+	 */
+	public boolean flush() {
+		writers.shutdown();
+		try {
+			return writers.awaitTermination(FLUSH_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	public File getDirectory() {
+		return dir;
+	}
+
+	/**
+	 * Gets the number of failures whose browser state has been read
+	 */
+	public int getCaptured() {
+		return captured.get();
+	}
+
+	/**
+	 * Gets the number of failures whose artifacts have been written
+	 */
+	public int getWritten() {
+		return written.get();
+	}
+
+	/**
+	 * Gets the number of failures whose artifacts could not be written
+	 */
+	public int getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * Gets the number of failures written by the failing thread because the
+	 * writers' queue was full
+	 */
+	public int getWrittenByCaller() {
+		return writtenByCaller.get();
+	}
+
+	public String toString() {
+		return written.get() + " of " + captured.get() + " failures saved to " + dir.getPath()
+			+ (failed.get() > 0 ? ", " + failed.get() + " could not be written" : "")
+			+ (writtenByCaller.get() > 0 ? ", " + writtenByCaller.get() + " written by the failing thread" : "");
+	}
+
+	/**
+	 * Decodes Base64, ignoring white space and anything else outside its alphabet
+	 */
+	static byte[] decodeBase64(String s) {
+		byte[] out = new byte[s.length() * 3 / 4 + 3];
+		int length = 0;
+		int bits = 0;
+		int count = 0;
+		for(int i = 0; i < s.length(); i++) {
+			char ch = s.charAt(i);
+			int v;
+			if(ch >= 'A' && ch <= 'Z') {
+				v = ch - 'A';
+			} else if(ch >= 'a' && ch <= 'z') {
+				v = ch - 'a' + 26;
+			} else if(ch >= '0' && ch <= '9') {
+				v = ch - '0' + 52;
+			} else if(ch == '+') {
+				v = 62;
+			} else if(ch == '/') {
+				v = 63;
+			} else if(ch == '=') {
+				break;
+			} else {
+				continue;
+			}
+			bits = (bits << 6) | v;
+			if(++count == 4) {
+				out[length++] = (byte) (bits >> 16);
+				out[length++] = (byte) (bits >> 8);
+				out[length++] = (byte) bits;
+				bits = 0;
+				count = 0;
+			}
+		}
+		if(count == 3) {
+			out[length++] = (byte) (bits >> 10);
+			out[length++] = (byte) (bits >> 2);
+		} else if(count == 2) {
+			out[length++] = (byte) (bits >> 4);
+		}
+		byte[] result = new byte[length];
+		System.arraycopy(out, 0, result, 0, length);
+		return result;
+	}
+}
@@ -16,12 +16,24 @@ package com.blastradius.qa.tseng;
 
 import static org.testng.Assert.assertTrue;
 
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import org.mortbay.jetty.Server;
 import org.openqa.selenium.server.RemoteControlConfiguration;
 import org.openqa.selenium.server.SeleniumServer;
+import org.testng.Reporter;
 import org.testng.annotations.*;
 
-import com.thoughtworks.selenium.DefaultSelenium;
+import com.blastradius.qa.tseng.ui.ElementCache;
+import com.blastradius.qa.tseng.ui.UISelection;
 import com.thoughtworks.selenium.Selenium;
 
 /**
@@ -32,9 +44,21 @@ public class Globals {
 	/** In-process Selenium Server (preferred), used unless external server is specified */
 	public static SeleniumServer internalServer;
 	
-	/** Selenium Driver responsible for controlling the browser */
+	/** Milliseconds taken by the in-process Selenium Server to accept connections, or -1 if not started */
+	public static long seleniumServerStartupTime = -1;
+	
+	/** Selenium Driver responsible for controlling the browser. Routes each call to the calling thread's session. */
 	public static Selenium s;
 	
+	/** Pool of browser sessions, one per worker thread, for the default browser */
+	public static SeleniumPool sessions;
+	
+	/** Pools of sessions for each browser being tested, in the order given */
+	public static Map<String, SeleniumPool> browserSessions = Collections.emptyMap();
+	
+	/** Browser used by each thread when several are tested at once. Inherited by worker threads. */
+	private static final InheritableThreadLocal<String> threadBrowser = new InheritableThreadLocal<String>();
+	
 	/** Hostname of Selenium Server (selenium.server.hostname) */
 	private static final String DEFAULT_SELENIUM_SERVER_HOST = "localhost";
 	public static String seleniumServerHost = DEFAULT_SELENIUM_SERVER_HOST;
@@ -44,6 +68,10 @@ public class Globals {
 	private static final String DEFAULT_SELENIUM_SERVER_PORT_STRING = "4444";
 	public static int seleniumServerPort = DEFAULT_SELENIUM_SERVER_PORT;
 
+	/** Selenium Servers to spread sessions over (selenium.servers), or null to use the single server above */
+	private static final String DEFAULT_SELENIUM_SERVERS = "";
+	public static ServerFarm serverFarm;
+
 	/** The path to the Root of the Site being tested (selenium.site) */
 	private static final String DEFAULT_SITE_UNDER_TEST = "http://localhost";
 	public static String siteUnderTest = DEFAULT_SITE_UNDER_TEST;
@@ -52,6 +80,38 @@ public class Globals {
 	private static final String DEFAULT_BROWSER_STRING="*chrome";
 	public static String browserString = DEFAULT_BROWSER_STRING;
 	
+	/** Maximum number of concurrent browser sessions (selenium.pool.size) */
+	private static final String DEFAULT_POOL_SIZE_STRING = "1";
+	public static int poolSize = 1;
+	
+	/** Time taken by each Selenium command, or null if not recorded (selenium.stats) */
+	private static final String DEFAULT_STATS_STRING = "true";
+	public static CommandStats commandStats;
+	
+	/** Browser strings to test concurrently (selenium.browsers), or just the browser string if not set */
+	private static final String DEFAULT_BROWSERS_STRING = "";
+	public static List<String> browsers = Collections.singletonList(DEFAULT_BROWSER_STRING);
+	
+	/** Whether UI Objects are resolved through the browser-side element cache (selenium.element.cache) */
+	private static final String DEFAULT_ELEMENT_CACHE_STRING = "false";
+	public static boolean elementCache = false;
+	
+	/** Where commands are carried out (selenium.backend): "browser", or "stub" for {@link StubSelenium} */
+	private static final String DEFAULT_BACKEND = "browser";
+	public static String backend = DEFAULT_BACKEND;
+	
+	/** Fixture directories served by the stub backend, as a list of /path=directory (selenium.stub.fixtures) */
+	private static final String DEFAULT_STUB_FIXTURES = "/=src/test/resources";
+	public static Map<String, File> stubFixtures = StubSelenium.parseFixtures(DEFAULT_STUB_FIXTURES);
+	
+	/** Where the browser's state is saved when a test fails (selenium.failure.artifacts), or null if it is not saved */
+	private static final String DEFAULT_FAILURE_ARTIFACTS = "";
+	public static FailureArtifacts failureArtifacts;
+	
+	/** Threads writing failure artifacts, and captures which may wait for them */
+	private static final int FAILURE_ARTIFACT_WRITERS = 2;
+	private static final int FAILURE_ARTIFACT_QUEUE = 16;
+	
 	// --- Parameter Initialization --- //
 	@Parameters("selenium.server.hostname")
 	@BeforeSuite(groups="selenium.variables",
@@ -76,6 +136,13 @@ public class Globals {
 		}
 	}
 	
+	@Parameters("selenium.servers")
+	@BeforeSuite(groups="selenium.variables",
+			description="Identify farm of Selenium servers, given as a list of host:port")
+	public void initServers(@Optional(value=DEFAULT_SELENIUM_SERVERS) String servers) {
+		serverFarm = servers.trim().length() == 0 ? null : ServerFarm.parse(servers);
+	}
+	
 	@Parameters("selenium.site")
 	@BeforeSuite(groups="selenium.variables",
 			description="Identify site under test")
@@ -90,30 +157,155 @@ public class Globals {
 		browserString = browser;
 	}
 	
+	@Parameters("selenium.pool.size")
+	@BeforeSuite(groups="selenium.variables",
+			description="Identify maximum number of concurrent browser sessions")
+	public void initPoolSize(@Optional(value=DEFAULT_POOL_SIZE_STRING) String size) {
+		try {
+			int input = Integer.parseInt(size, 10);
+			if(input <= 0) {
+				throw new RuntimeException("Pool size must be greater than zero");
+			} else {
+				poolSize = input;
+			}
+		} catch(NumberFormatException nfe) {
+			throw new RuntimeException("Pool size must be an integer greater than zero", nfe);
+		}
+	}
+	
+	@Parameters("selenium.browsers")
+	@BeforeSuite(groups="selenium.variables",
+			dependsOnMethods="initBrowser",
+			description="Identify browsers to test concurrently")
+	public void initBrowsers(@Optional(value=DEFAULT_BROWSERS_STRING) String list) {
+		List<String> out = new ArrayList<String>();
+		for(String browser : list.split(",")) {
+			browser = browser.trim();
+			if(browser.length() > 0 && !out.contains(browser)) {
+				out.add(browser);
+			}
+		}
+		if(out.isEmpty()) {
+			out.add(browserString);
+		}
+		browsers = Collections.unmodifiableList(out);
+	}
+	
+	@Parameters("selenium.stats")
+	@BeforeSuite(groups="selenium.variables",
+			description="Identify whether to record the time taken by Selenium commands")
+	public void initStats(@Optional(value=DEFAULT_STATS_STRING) String enabled) {
+		commandStats = Boolean.valueOf(enabled).booleanValue() ? new CommandStats() : null;
+	}
+	
+	@Parameters("selenium.element.cache")
+	@BeforeSuite(groups="selenium.variables",
+			description="Identify whether to cache the elements UI Objects resolve to in the browser")
+	public void initElementCache(@Optional(value=DEFAULT_ELEMENT_CACHE_STRING) String enabled) {
+		elementCache = Boolean.valueOf(enabled).booleanValue();
+	}
+	
+	@Parameters("selenium.backend")
+	@BeforeSuite(groups="selenium.variables",
+			description="Identify whether to drive real browsers or the in-process stub")
+	public void initBackend(@Optional(value=DEFAULT_BACKEND) String name) {
+		name = name.trim().toLowerCase();
+		if(!name.equals("browser") && !name.equals("stub")) {
+			throw new RuntimeException("Selenium backend must be 'browser' or 'stub', not '" + name + "'");
+		}
+		backend = name;
+	}
+	
+	@Parameters("selenium.stub.fixtures")
+	@BeforeSuite(groups="selenium.variables",
+			description="Identify the fixture directories served by the stub backend")
+	public void initStubFixtures(@Optional(value=DEFAULT_STUB_FIXTURES) String fixtures) {
+		stubFixtures = StubSelenium.parseFixtures(fixtures);
+	}
+	
+	@Parameters("selenium.failure.artifacts")
+	@BeforeSuite(groups="selenium.variables",
+			description="Identify the directory to save the browser's state to when a test fails")
+	public void initFailureArtifacts(@Optional(value=DEFAULT_FAILURE_ARTIFACTS) String dir) {
+		failureArtifacts = dir.trim().length() == 0 ? null
+				: new FailureArtifacts(new File(dir.trim()), FAILURE_ARTIFACT_WRITERS, FAILURE_ARTIFACT_QUEUE);
+	}
+	
+	/**
+	 * Whether commands are carried out by {@link StubSelenium} rather than
+	 * a browser, in which case no Selenium Server is started
+	 */
+	public static boolean isStubbed() {
+		return backend.equals("stub");
+	}
+	
+	/**
+	 * Gets the Selenium session owned by the calling thread, starting
+	 * one if necessary. Equivalent to calling methods on {@link #s},
+	 * except that commands are not recorded in {@link #commandStats}.
+	 * 
+	 * @return Selenium session for the current thread
+	 */
+	public static Selenium session() {
+		return pool().get();
+	}
+	
+	/**
+	 * Chooses the browser for Selenium commands made on the calling
+	 * thread, and threads it goes on to create
+	 * 
+	 * @param browser One of {@link #browsers}
+	 */
+	public static void useBrowser(String browser) {
+		if(!browserSessions.containsKey(browser)) {
+			throw new RuntimeException("Browser " + browser + " is not one of the browsers under test " + browsers);
+		}
+		threadBrowser.set(browser);
+	}
+	
+	/**
+	 * Gets the browser used for Selenium commands on the calling thread
+	 */
+	public static String currentBrowser() {
+		String browser = threadBrowser.get();
+		return browser != null ? browser : browsers.get(0);
+	}
+	
+	/**
+	 * Gets the pool of sessions for the calling thread's browser
+	 */
+	public static SeleniumPool pool() {
+		return browserSessions.get(currentBrowser());
+	}
+	
 	// --- Selenium Server and Client setup --- //
 	@BeforeSuite(groups="selenium.connection",
 			dependsOnGroups="selenium.variables",
 			description="Set up the local Selenium server if a remote is not specified")
 	public void initServer() {
-		if(seleniumServerHost == null || seleniumServerHost.equals("") || seleniumServerHost.equalsIgnoreCase(DEFAULT_SELENIUM_SERVER_HOST)) {
+		if(isStubbed()) {
+			Reporter.log("Using the stub Selenium backend with fixtures " + stubFixtures);
+			return;
+		}
+		if(serverFarm == null && (seleniumServerHost == null || seleniumServerHost.equals("") || seleniumServerHost.equalsIgnoreCase(DEFAULT_SELENIUM_SERVER_HOST))) {
 			try {
+				final long start = System.currentTimeMillis();
+				final long timeout = 60000; // 60 seconds
+				
 				RemoteControlConfiguration config = new RemoteControlConfiguration();
 				config.setPort(seleniumServerPort);
 
 				internalServer = new SeleniumServer(config);
 				internalServer.start();
 				
-				final long start = System.currentTimeMillis();
-				final long timeout = 60000; // 30 seconds
-				final long deadline = start + timeout;
+				long remaining = Math.max(0, start + timeout - System.currentTimeMillis());
+				boolean accepting = ServerProbe.awaitPort(DEFAULT_SELENIUM_SERVER_HOST, seleniumServerPort, remaining) >= 0;
 				
 				Server jetty = internalServer.getServer();
-				while(System.currentTimeMillis() < deadline && !jetty.isStarted()) {
-					try {
-						Thread.sleep(timeout);
-					} catch(InterruptedException e) { /* Swallowed */ }
-				}
-				assertTrue(jetty.isStarted(), "Private instance of Selenium Server must start within " + timeout + "ms");
+				assertTrue(accepting && jetty.isStarted(), "Private instance of Selenium Server must start within " + timeout + "ms");
+				
+				seleniumServerStartupTime = System.currentTimeMillis() - start;
+				Reporter.log("Selenium Server accepted connections after " + seleniumServerStartupTime + "ms");
 			} catch (Exception e) {
 				throw new RuntimeException("Failed to start Selenium Server", e);
 			}
@@ -124,18 +316,91 @@ public class Globals {
 			dependsOnMethods="initServer",
 			description="Start a new Selenium client and open the site root")
 	public void initClient() {
-		s = new DefaultSelenium(seleniumServerHost, seleniumServerPort, browserString, siteUnderTest);
-		s.start();
-		s.open("");
+		ServerFarm farm = serverFarm;
+		if(farm == null || isStubbed()) {
+			farm = new ServerFarm(seleniumServerHost, seleniumServerPort);
+		} else {
+			int live = farm.checkHealth();
+			assertTrue(live > 0, "At least one of the Selenium servers " + farm + " must be accepting connections");
+			Reporter.log(live + " of " + farm.getEndpoints().size() + " Selenium servers are accepting connections");
+		}
+		
+		Map<String, SeleniumPool> pools = new LinkedHashMap<String, SeleniumPool>();
+		if(elementCache && isStubbed()) {
+			// The cache is a browser extension, and the stub runs no scripts
+			Reporter.log("Element cache is not available with the stub backend");
+			elementCache = false;
+		}
+		for(String browser : browsers) {
+			SeleniumPool pool = isStubbed()
+					? StubSelenium.pool(siteUnderTest, stubFixtures, browser, poolSize)
+					: new SeleniumPool(farm, browser, siteUnderTest, poolSize);
+			if(elementCache) {
+				pool.setExtensionJs(ElementCache.extension());
+			}
+			pools.put(browser, pool);
+		}
+		ElementCache.setEnabled(elementCache);
+		UISelection.setTracking(commandStats != null || failureArtifacts != null || elementCache);
+		browserSessions = Collections.unmodifiableMap(pools);
+		sessions = pools.get(browsers.get(0));
+		s = browsers.size() == 1 ? sessions.proxy() : routeByBrowser();
+		if(elementCache) {
+			s = ElementCache.route(s);
+		}
+		if(commandStats != null) {
+			s = commandStats.instrument(s);
+		}
+		
+		// Start the first browser of each kind now so that launch failures are
+		// reported here, then hand it back so that any worker thread may pick it up
+		for(SeleniumPool pool : pools.values()) {
+			pool.get();
+			pool.release();
+		}
+	}
+	
+	/**
+	 * Creates a Selenium which passes each call to the session of the
+	 * calling thread's browser
+	 */
+	private static Selenium routeByBrowser() {
+		return (Selenium) Proxy.newProxyInstance(Selenium.class.getClassLoader(),
+				new Class[] { Selenium.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if(method.getDeclaringClass() == Object.class) {
+							return method.invoke(browserSessions, args);
+						}
+						return pool().execute(method, args);
+					}
+				});
 	}
 	
 	// --- Teardown methods --- //
 	@AfterSuite(groups="selenium.connection",
-			description="Disconnect the Selenium driver")
+			description="Disconnect all Selenium sessions")
 	public void teardownClient() {
-		if(s != null) {
-			s.close();
-			s.stop();
+		for(Map.Entry<String, SeleniumPool> pool : browserSessions.entrySet()) {
+			Reporter.log("Session resets avoided " + pool.getValue().getResets() + " " + pool.getKey()
+					+ " relaunches (" + pool.getValue().getRelaunches() + " relaunches performed)");
+			pool.getValue().shutdown();
+		}
+		browserSessions = Collections.emptyMap();
+		sessions = null;
+		UISelection.setTracking(false);
+		if(elementCache) {
+			Reporter.log("Element cache: " + ElementCache.getTotals());
+			ElementCache.setEnabled(false);
+		}
+	}
+	
+	@AfterSuite(groups="selenium.connection",
+			description="Finish writing the artifacts of failed tests")
+	public void flushFailureArtifacts() {
+		if(failureArtifacts != null) {
+			boolean finished = failureArtifacts.flush();
+			Reporter.log("Failure artifacts: " + failureArtifacts + (finished ? "" : " (gave up waiting for the rest)"));
 		}
 	}
 	
@@ -0,0 +1,138 @@
+/* Copyright 2008
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations with a fixed set of logarithmic buckets, safe
+ * for concurrent use. Each power of two of microseconds is split into
+ * four buckets, so percentiles are reported to within 25%. Recording a
+ * sample does not allocate or lock.
+ */
+public final class LatencyHistogram {
+	/** Durations of 2^40 microseconds (about 12 days) or more share the last bucket */
+	private static final int MAX_EXPONENT = 40;
+	private static final int BUCKETS = MAX_EXPONENT * 4;
+	
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong totalMicros = new AtomicLong();
+	private final AtomicLong maxMicros = new AtomicLong();
+	
+	/**
+	 * Records one sample
+	 * @param nanos Duration in nanoseconds
+	 */
+	public void record(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		counts.incrementAndGet(bucket(micros));
+		count.incrementAndGet();
+		totalMicros.addAndGet(micros);
+		
+		long max;
+		while(micros > (max = maxMicros.get())) {
+			if(maxMicros.compareAndSet(max, micros)) {
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Values below 4 have a bucket each. Above that, the bucket is chosen
+	 * by the position of the highest set bit and the two bits below it.
+	 */
+	static int bucket(long micros) {
+		if(micros < 4) {
+			return (int) micros;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		if(exponent > MAX_EXPONENT) {
+			return BUCKETS - 1;
+		}
+		int sub = (int) (micros >> (exponent - 2)) & 3;
+		return (exponent - 1) * 4 + sub;
+	}
+	
+	/**
+	 * Gets the largest duration which falls in a bucket
+	 */
+	static long upperBound(int bucket) {
+		if(bucket < 4) {
+			return bucket;
+		}
+		int exponent = bucket / 4 + 1;
+		long lower = (4L + bucket % 4) << (exponent - 2);
+		return lower + (1L << (exponent - 2)) - 1;
+	}
+	
+	/**
+	 * Gets the number of samples recorded
+	 */
+	public long getCount() {
+		return count.get();
+	}
+	
+	/**
+	 * Gets the sum of all durations recorded
+	 * @return Total in milliseconds
+	 */
+	public double getTotal() {
+		return totalMicros.get() / 1000.0;
+	}
+	
+	/**
+	 * Gets the mean duration
+	 * @return Mean in milliseconds, or 0 if no samples were recorded
+	 */
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : totalMicros.get() / 1000.0 / n;
+	}
+	
+	/**
+	 * Gets the longest duration recorded
+	 * @return Maximum in milliseconds
+	 */
+	public double getMax() {
+		return maxMicros.get() / 1000.0;
+	}
+	
+	/**
+	 * Estimates a percentile of the recorded durations
+	 * @param percentile Percentile between 0 and 100
+	 * @return Upper bound of the bucket containing the percentile, in milliseconds,
+	 * or 0 if no samples were recorded
+	 */
+	public double getPercentile(double percentile) {
+		if(percentile < 0 || percentile > 100) {
+			throw new IllegalArgumentException("Percentile must be between 0 and 100");
+		}
+		long n = count.get();
+		if(n == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(n * percentile / 100));
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if(seen >= rank) {
+				return Math.min(upperBound(i), maxMicros.get()) / 1000.0;
+			}
+		}
+		return getMax();
+	}
+}
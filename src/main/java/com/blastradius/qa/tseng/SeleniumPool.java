@@ -0,0 +1,491 @@
+/* Copyright 2008
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.blastradius.qa.tseng.ui.ElementCache;
+import com.thoughtworks.selenium.DefaultSelenium;
+import com.thoughtworks.selenium.Selenium;
+
+/**
+ * Hands out one Selenium session per worker thread, allowing a suite
+ * to be run with TestNG's parallel modes. Sessions are started lazily,
+ * the first time a thread needs one, up to a fixed maximum. Once the
+ * maximum is reached, threads wait for another thread to release its
+ * session, which {@link SessionReleaseListener} does as each test ends.
+ *
+ * Sessions are spread over the servers of a {@link ServerFarm}. When a
+ * command fails because its server can no longer be reached, the
+ * session is abandoned and the calling thread is given a new one on
+ * another server the next time it needs one.
+ */
+public class SeleniumPool {
+	private final ServerFarm farm;
+	private final String browser;
+	private final String site;
+	private final int size;
+
+	/** Sessions that have been started and are not bound to a thread */
+	private final LinkedList<Selenium> idle = new LinkedList<Selenium>();
+
+	/** Every session started by this pool, used for shutdown */
+	private final List<Selenium> sessions = new ArrayList<Selenium>();
+
+	/** Server each session was started on */
+	private final Map<Selenium, ServerFarm.Endpoint> placement = new IdentityHashMap<Selenium, ServerFarm.Endpoint>();
+
+	/** Number of sessions currently being started outside the lock */
+	private int starting = 0;
+	private boolean closed = false;
+
+	private final ThreadLocal<Selenium> bound = new ThreadLocal<Selenium>();
+
+	/** Session each thread last released, which it is given again if it is still idle */
+	private final ThreadLocal<Selenium> previous = new ThreadLocal<Selenium>();
+
+	/** Number of times a session was reset in place of a relaunch */
+	private final AtomicInteger resets = new AtomicInteger();
+	private final AtomicInteger relaunches = new AtomicInteger();
+
+	/** User extension script installed in each new session, or null */
+	private volatile String extensionJs;
+
+	/**
+	 * Script run against the application window to discard client-side
+	 * state which survives cookie deletion.
+	 */
+	private static final String CLEAR_WINDOW_STATE =
+		"var w = selenium.browserbot.getCurrentWindow();" +
+		"try { w.name = ''; } catch(e) {}" +
+		"try { if(w.sessionStorage) { w.sessionStorage.clear(); } } catch(e) {}" +
+		"try { if(w.localStorage) { w.localStorage.clear(); } } catch(e) {}" +
+		"'cleared';";
+
+	/**
+	 * @param host Hostname of the Selenium Server
+	 * @param port Port the Selenium Server is listening on
+	 * @param browser Browser string used to launch each session
+	 * @param site Root of the site under test
+	 * @param size Maximum number of concurrent sessions. Must be at least 1.
+	 */
+	public SeleniumPool(String host, int port, String browser, String site, int size) {
+		this(new ServerFarm(host, port), browser, site, size);
+	}
+
+	/**
+	 * @param farm Selenium Servers on which to start sessions
+	 * @param browser Browser string used to launch each session
+	 * @param site Root of the site under test
+	 * @param size Maximum number of concurrent sessions. Must be at least 1.
+	 */
+	public SeleniumPool(ServerFarm farm, String browser, String site, int size) {
+		if(size < 1) {
+			throw new IllegalArgumentException("Pool size must be at least 1");
+		}
+		this.farm = farm;
+		this.browser = browser;
+		this.site = site;
+		this.size = size;
+	}
+
+	/**
+	 * Gets the session bound to the calling thread, starting or
+	 * acquiring one if the thread does not have one yet.
+	 *
+	 * @return Selenium session owned by the current thread
+	 */
+	public Selenium get() {
+		Selenium session = bound.get();
+		if(session == null) {
+			session = acquire();
+			bound.set(session);
+		}
+		return session;
+	}
+
+	/**
+	 * Gets the session bound to the calling thread, without starting or
+	 * acquiring one
+	 *
+	 * @return Selenium session owned by the current thread, or null if it has none
+	 */
+	public Selenium current() {
+		return bound.get();
+	}
+
+	/**
+	 * Returns the calling thread's session to the pool so that another
+	 * thread may use it. Does nothing if the thread holds no session.
+	 */
+	public void release() {
+		Selenium session = bound.get();
+		if(session != null) {
+			bound.remove();
+			previous.set(session);
+			synchronized(this) {
+				if(closed) {
+					return;
+				}
+				idle.addLast(session);
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Gives the calling thread a clean browser. When relaunching, the
+	 * thread's session is stopped and a new one is started in its place.
+	 * Otherwise, the existing browser is reused and its state is reset,
+	 * which avoids the cost of launching a new browser.
+	 * 
+	 * @param relaunch true to start a new browser, false to reset the current one
+	 * @return Clean Selenium session owned by the current thread
+	 */
+	public Selenium recycle(boolean relaunch) {
+		Selenium session = bound.get();
+		if(session == null) {
+			// A newly-acquired session may have been used by another thread
+			session = get();
+		}
+
+		if(relaunch) {
+			bound.remove();
+			synchronized(this) {
+				sessions.remove(session);
+			}
+			stopping(session);
+			try {
+				session.stop();
+			} catch(RuntimeException e) { /* Swallowed - browser is being discarded */ }
+			ended(session);
+			relaunches.incrementAndGet();
+
+			session = acquire();
+			bound.set(session);
+		} else {
+			resetSession(session);
+			resets.incrementAndGet();
+		}
+		return session;
+	}
+
+	/**
+	 * Gets the number of browser relaunches that were avoided by
+	 * resetting a session instead.
+	 * 
+	 * @return Number of in-place resets performed
+	 */
+	public int getResets() {
+		return resets.get();
+	}
+
+	/**
+	 * Gets the number of times a browser was relaunched to provide a
+	 * clean session.
+	 * 
+	 * @return Number of relaunches performed
+	 */
+	public int getRelaunches() {
+		return relaunches.get();
+	}
+
+	/**
+	 * Gets the maximum number of sessions this pool will start
+	 * @return Pool size
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Sets a user extension script to be installed in sessions started
+	 * from now on
+	 * @param script JavaScript for {@link Selenium#setExtensionJs(String)}, or null for none
+	 */
+	public void setExtensionJs(String script) {
+		extensionJs = script;
+	}
+
+	/**
+	 * Gets the servers on which this pool starts sessions
+	 */
+	public ServerFarm getFarm() {
+		return farm;
+	}
+
+	/**
+	 * Gets the number of sessions that have been started so far
+	 * @return Number of live sessions
+	 */
+	public synchronized int getStarted() {
+		return sessions.size();
+	}
+
+	/**
+	 * Creates a Selenium object that forwards every call to the session
+	 * bound to the calling thread. This allows a single shared reference
+	 * (such as {@link Globals#s}) to be used safely from many threads.
+	 *
+	 * @return Thread-routing Selenium instance
+	 */
+	public Selenium proxy() {
+		return (Selenium) Proxy.newProxyInstance(Selenium.class.getClassLoader(),
+				new Class[] { Selenium.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if(method.getDeclaringClass() == Object.class) {
+							return method.invoke(SeleniumPool.this, args);
+						}
+						return execute(method, args);
+					}
+				});
+	}
+
+	/**
+	 * Calls a method on the calling thread's session. If the session's
+	 * server cannot be reached, the session is abandoned before the
+	 * failure is passed on.
+	 */
+	Object execute(Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(get(), args);
+		} catch(InvocationTargetException e) {
+			if(ServerFarm.isConnectionFailure(e.getCause())) {
+				abandon();
+			}
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Drops the calling thread's session after its server could not be
+	 * reached. If the server no longer accepts connections it is taken
+	 * out of use, so that new sessions are started elsewhere. Otherwise
+	 * the session is stopped before its place on the server is freed, so
+	 * that its browser is not left running untracked.
+	 */
+	private void abandon() {
+		Selenium session = bound.get();
+		if(session == null) {
+			return;
+		}
+		bound.remove();
+
+		ServerFarm.Endpoint endpoint;
+		synchronized(this) {
+			sessions.remove(session);
+			endpoint = placement.remove(session);
+			notifyAll();
+		}
+		if(endpoint == null || ServerProbe.isAccepting(endpoint.getHost(), endpoint.getPort(), 1000)) {
+			try {
+				session.stop();
+			} catch(RuntimeException e) { /* Swallowed - the session is being dropped anyway */ }
+		} else {
+			farm.markDead(endpoint);
+		}
+		if(endpoint != null) {
+			farm.release(endpoint);
+		}
+	}
+
+	/**
+	 * Collects the element cache counters of a session about to be stopped
+	 */
+	private void stopping(Selenium session) {
+		if(extensionJs == null || !ElementCache.isEnabled()) {
+			return;
+		}
+		try {
+			ElementCache.collect(session);
+		} catch(RuntimeException e) { /* Swallowed - counters are lost with the browser */ }
+	}
+
+	/**
+	 * Notes that a session has been stopped, freeing its place on its server
+	 */
+	private void ended(Selenium session) {
+		ServerFarm.Endpoint endpoint;
+		synchronized(this) {
+			endpoint = placement.remove(session);
+		}
+		if(endpoint != null) {
+			farm.release(endpoint);
+		}
+	}
+
+	/**
+	 * Stops every session started by this pool. Sessions requested after
+	 * shutdown will cause an exception to be raised.
+	 */
+	public void shutdown() {
+		List<Selenium> toStop;
+		synchronized(this) {
+			closed = true;
+			toStop = new ArrayList<Selenium>(sessions);
+			sessions.clear();
+			idle.clear();
+			notifyAll();
+		}
+		bound.remove();
+
+		RuntimeException failure = null;
+		for(Selenium session : toStop) {
+			try {
+				stopping(session);
+				session.close();
+				session.stop();
+			} catch(RuntimeException e) {
+				// Keep stopping the remaining browsers before reporting
+				failure = e;
+			} finally {
+				ended(session);
+			}
+		}
+		if(failure != null) {
+			throw new RuntimeException("Failed to stop one or more Selenium sessions", failure);
+		}
+	}
+
+	/**
+	 * Starts a new session on the least-loaded server of the farm.
+	 * Servers which cannot be reached are taken out of use and the
+	 * session is started on another. Called without holding the pool's
+	 * lock, so that several browsers may be launched at the same time.
+	 *
+	 * @return Newly-started session
+	 */
+	protected Selenium createSession() {
+		RuntimeException failure = null;
+		while(true) {
+			ServerFarm.Endpoint endpoint;
+			try {
+				endpoint = farm.acquire();
+			} catch(IllegalStateException e) {
+				if(failure != null) {
+					e.initCause(failure);
+				}
+				throw e;
+			}
+
+			try {
+				Selenium session = startSession(endpoint.getHost(), endpoint.getPort());
+				synchronized(this) {
+					placement.put(session, endpoint);
+				}
+				return session;
+			} catch(RuntimeException e) {
+				farm.release(endpoint);
+				if(!ServerFarm.isConnectionFailure(e)) {
+					throw e;
+				}
+				farm.markDead(endpoint);
+				failure = e;
+			}
+		}
+	}
+
+	/**
+	 * Starts a session on a particular server and opens the root of the
+	 * site under test.
+	 *
+	 * @param host Hostname of the Selenium Server
+	 * @param port Port the Selenium Server is listening on
+	 * @return Newly-started session
+	 */
+	protected Selenium startSession(String host, int port) {
+		Selenium session = new DefaultSelenium(host, port, browser, site);
+		if(extensionJs != null) {
+			session.setExtensionJs(extensionJs);
+		}
+		session.start();
+		session.open("");
+		return session;
+	}
+
+	/**
+	 * Returns a session to the state of a newly-started browser: the main
+	 * window is selected, cookies and window storage are cleared, and the
+	 * root of the site under test is opened.
+	 * 
+	 * @param session Session to reset
+	 */
+	protected void resetSession(Selenium session) {
+		session.selectWindow("null");
+
+		// Clear whatever the previous test left behind, then again for the site itself
+		session.deleteAllVisibleCookies();
+		session.getEval(CLEAR_WINDOW_STATE);
+		session.open("");
+		session.deleteAllVisibleCookies();
+		session.getEval(CLEAR_WINDOW_STATE);
+		session.open("");
+	}
+
+	/**
+	 * Takes an idle session, or starts a new one if the pool has not
+	 * reached its maximum size. Otherwise, waits until a session is
+	 * released.
+	 */
+	private Selenium acquire() {
+		synchronized(this) {
+			while(true) {
+				if(closed) {
+					throw new IllegalStateException("Selenium session pool has been shut down");
+				}
+				if(!idle.isEmpty()) {
+					// Keep a thread on the browser it was using if no one else has taken it
+					Selenium last = previous.get();
+					previous.remove();
+					return last != null && idle.remove(last) ? last : idle.removeFirst();
+				}
+				if(sessions.size() + starting < size) {
+					starting++;
+					break;
+				}
+				try {
+					wait();
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException("Interrupted while waiting for a Selenium session", e);
+				}
+			}
+		}
+
+		Selenium session = null;
+		try {
+			session = createSession();
+			return session;
+		} finally {
+			synchronized(this) {
+				starting--;
+				if(session != null) {
+					sessions.add(session);
+				}
+				notifyAll();
+			}
+		}
+	}
+}
@@ -0,0 +1,213 @@
+/* Copyright 2008
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng;
+
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A set of Selenium Servers over which browser sessions are spread.
+ * Each new session goes to the live server with the fewest sessions
+ * from this farm. Servers found not to be accepting connections are
+ * taken out of use, and their sessions are started on the others.
+ */
+public class ServerFarm {
+	/** Milliseconds to wait for a server to accept a connection when checking its health */
+	private static final int HEALTH_CHECK_TIMEOUT = 1000;
+	
+	/**
+	 * A Selenium Server in the farm
+	 */
+	public static class Endpoint {
+		private final String host;
+		private final int port;
+		private int sessions = 0;
+		private boolean alive = true;
+		
+		public Endpoint(String host, int port) {
+			this.host = host;
+			this.port = port;
+		}
+		
+		public String getHost() {
+			return host;
+		}
+		
+		public int getPort() {
+			return port;
+		}
+		
+		public String toString() {
+			return host + ":" + port;
+		}
+	}
+	
+	private final List<Endpoint> endpoints;
+	
+	/**
+	 * @param endpoints Servers in the farm, all assumed to be alive
+	 */
+	public ServerFarm(List<Endpoint> endpoints) {
+		if(endpoints.isEmpty()) {
+			throw new IllegalArgumentException("A server farm needs at least one server");
+		}
+		this.endpoints = Collections.unmodifiableList(new ArrayList<Endpoint>(endpoints));
+	}
+	
+	/**
+	 * Creates a farm of a single server
+	 */
+	public ServerFarm(String host, int port) {
+		this(Collections.singletonList(new Endpoint(host, port)));
+	}
+	
+	/**
+	 * Creates a farm from a list of servers
+	 * @param servers Comma-separated list of host:port pairs
+	 * @return Farm of the listed servers
+	 */
+	public static ServerFarm parse(String servers) {
+		List<Endpoint> endpoints = new ArrayList<Endpoint>();
+		for(String server : servers.split(",")) {
+			server = server.trim();
+			if(server.length() == 0) {
+				continue;
+			}
+			int colon = server.lastIndexOf(':');
+			if(colon <= 0) {
+				throw new RuntimeException("Selenium Server '" + server + "' must be given as host:port");
+			}
+			try {
+				int port = Integer.parseInt(server.substring(colon + 1), 10);
+				if(port <= 0 || port >= 65536) {
+					throw new RuntimeException("Selenium Server '" + server + "' must have a valid TCP port number");
+				}
+				endpoints.add(new Endpoint(server.substring(0, colon), port));
+			} catch(NumberFormatException nfe) {
+				throw new RuntimeException("Selenium Server '" + server + "' must have an integer port", nfe);
+			}
+		}
+		return new ServerFarm(endpoints);
+	}
+	
+	/**
+	 * Checks which servers are accepting connections. Servers which were
+	 * taken out of use are brought back if they have recovered.
+	 * 
+	 * @return Number of live servers
+	 */
+	public int checkHealth() {
+		int live = 0;
+		for(Endpoint e : endpoints) {
+			// Probe outside the lock, as unreachable hosts may take a while to time out
+			boolean accepting = ServerProbe.isAccepting(e.host, e.port, HEALTH_CHECK_TIMEOUT);
+			synchronized(this) {
+				e.alive = accepting;
+			}
+			if(accepting) {
+				live++;
+			}
+		}
+		return live;
+	}
+	
+	/**
+	 * Chooses the server for a new session: the live server with the
+	 * fewest sessions, or the first listed if several are equal. The
+	 * session is counted against the server until it is released.
+	 * 
+	 * @return Server on which to start the session
+	 * @throws IllegalStateException if no server is alive
+	 */
+	public synchronized Endpoint acquire() {
+		Endpoint best = null;
+		for(Endpoint e : endpoints) {
+			if(e.alive && (best == null || e.sessions < best.sessions)) {
+				best = e;
+			}
+		}
+		if(best == null) {
+			throw new IllegalStateException("None of the Selenium Servers " + endpoints + " are available");
+		}
+		best.sessions++;
+		return best;
+	}
+	
+	/**
+	 * Notes that a session started on a server has ended
+	 */
+	public synchronized void release(Endpoint e) {
+		if(e.sessions > 0) {
+			e.sessions--;
+		}
+	}
+	
+	/**
+	 * Takes a server out of use
+	 */
+	public synchronized void markDead(Endpoint e) {
+		e.alive = false;
+	}
+	
+	/**
+	 * Whether a server is in use
+	 */
+	public synchronized boolean isAlive(Endpoint e) {
+		return e.alive;
+	}
+	
+	/**
+	 * Gets the number of sessions currently on a server
+	 */
+	public synchronized int getSessions(Endpoint e) {
+		return e.sessions;
+	}
+	
+	/**
+	 * Gets the servers in the farm
+	 * @return Unmodifiable list of servers, in the order given
+	 */
+	public List<Endpoint> getEndpoints() {
+		return endpoints;
+	}
+	
+	/**
+	 * Whether a failure was caused by being unable to connect to a server,
+	 * as opposed to a command failing or timing out on a server which
+	 * could be reached. Read timeouts and HTTP errors are not counted,
+	 * since the server may well still be running the session's browser.
+	 */
+	public static boolean isConnectionFailure(Throwable t) {
+		for(Throwable cause = t; cause != null; cause = cause.getCause()) {
+			if(cause instanceof ConnectException || cause instanceof NoRouteToHostException) {
+				return true;
+			}
+			// Connect and read timeouts are only told apart by their message
+			if(cause instanceof SocketTimeoutException && cause.getMessage() != null
+					&& cause.getMessage().toLowerCase().startsWith("connect")) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	public String toString() {
+		return endpoints.toString();
+	}
+}
@@ -0,0 +1,89 @@
+/* Copyright 2008
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Determines when a server is ready by checking whether it accepts
+ * TCP connections. Probes start a few milliseconds apart and back off
+ * gradually, so a server that comes up quickly is detected quickly.
+ */
+public class ServerProbe {
+	private static final long INITIAL_INTERVAL = 5;
+	private static final long MAX_INTERVAL = 100;
+	private static final int MAX_CONNECT_TIMEOUT = 1000;
+
+	/**
+	 * Checks once whether a server is accepting connections.
+	 *
+	 * @param host Hostname of the server
+	 * @param port TCP port of the server
+	 * @param connectTimeout Milliseconds to wait for the connection
+	 * @return true if a connection was established
+	 */
+	public static boolean isAccepting(String host, int port, int connectTimeout) {
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(host, port), connectTimeout);
+			return true;
+		} catch(IOException e) {
+			return false;
+		} finally {
+			try {
+				socket.close();
+			} catch(IOException e) { /* Swallowed */ }
+		}
+	}
+
+	/**
+	 * Waits until a server accepts connections or the timeout expires.
+	 *
+	 * @param host Hostname of the server
+	 * @param port TCP port of the server
+	 * @param timeout Maximum number of milliseconds to wait
+	 * @return Milliseconds elapsed before the server accepted a
+	 * connection, or -1 if it did not do so within the timeout
+	 */
+	public static long awaitPort(String host, int port, long timeout) {
+		final long start = System.currentTimeMillis();
+		final long deadline = start + timeout;
+		long interval = INITIAL_INTERVAL;
+
+		while(true) {
+			long remaining = deadline - System.currentTimeMillis();
+			if(remaining <= 0) {
+				return -1;
+			}
+			if(isAccepting(host, port, (int) Math.max(1, Math.min(remaining, MAX_CONNECT_TIMEOUT)))) {
+				return System.currentTimeMillis() - start;
+			}
+
+			remaining = deadline - System.currentTimeMillis();
+			if(remaining <= 0) {
+				return -1;
+			}
+			try {
+				Thread.sleep(Math.min(interval, remaining));
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return -1;
+			}
+			interval = Math.min(interval * 2, MAX_INTERVAL);
+		}
+	}
+}
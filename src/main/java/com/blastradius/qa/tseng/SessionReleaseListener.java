@@ -0,0 +1,116 @@
+/* Copyright 2008
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng;
+
+import java.util.Collection;
+
+import org.testng.ITestContext;
+import org.testng.ITestResult;
+import org.testng.internal.IResultListener;
+
+/**
+ * TestNG listener which hands each worker thread's Selenium session back
+ * to its pool once the thread is done with it, so that suites run with
+ * parallel="methods" or parallel="tests" do not run out of sessions.
+ *
+ * A session is released when a test method finishes (after its
+ * AfterMethod configuration), after class, test, group and suite
+ * configuration methods, and when each &lt;test&gt; finishes. It is kept
+ * from a BeforeMethod configuration to the test method that follows it.
+ * A thread which releases a session is given the same one again the
+ * next time if no other thread has taken it.
+ *
+ * List it after listeners which use the test's session when it ends,
+ * such as {@link FailureArtifactListener}, since TestNG calls listeners
+ * in the order they are given:
+ * <pre>
+ * &lt;listeners&gt;
+ *   &lt;listener class-name="com.blastradius.qa.tseng.FailureArtifactListener" /&gt;
+ *   &lt;listener class-name="com.blastradius.qa.tseng.SessionReleaseListener" /&gt;
+ * &lt;/listeners&gt;
+ * </pre>
+ */
+public class SessionReleaseListener implements IResultListener {
+	/** Pools to release sessions to, or null for those of {@link Globals#browserSessions} */
+	private final Collection<SeleniumPool> pools;
+
+	public SessionReleaseListener() {
+		this(null);
+	}
+
+	/**
+	 * @param pools Pools to release sessions to, in place of those of {@link Globals}
+	 */
+	SessionReleaseListener(Collection<SeleniumPool> pools) {
+		this.pools = pools;
+	}
+
+	/**
+	 * Returns the calling thread's sessions to their pools
+	 */
+	private void release() {
+		for(SeleniumPool pool : pools != null ? pools : Globals.browserSessions.values()) {
+			pool.release();
+		}
+	}
+
+	/**
+	 * Releases after every configuration method except those which prepare
+	 * the browser for the next test method
+	 */
+	private void configured(ITestResult result) {
+		if(!result.getMethod().isBeforeMethodConfiguration()) {
+			release();
+		}
+	}
+
+	public void onTestSuccess(ITestResult result) {
+		release();
+	}
+
+	public void onTestFailure(ITestResult result) {
+		release();
+	}
+
+	public void onTestSkipped(ITestResult result) {
+		release();
+	}
+
+	public void onTestFailedButWithinSuccessPercentage(ITestResult result) {
+		release();
+	}
+
+	public void onFinish(ITestContext context) {
+		release();
+	}
+
+	public void onConfigurationSuccess(ITestResult result) {
+		configured(result);
+	}
+
+	public void onConfigurationFailure(ITestResult result) {
+		configured(result);
+	}
+
+	public void onConfigurationSkip(ITestResult result) {
+		configured(result);
+	}
+
+	public void onTestStart(ITestResult result) {
+	}
+
+	public void onStart(ITestContext context) {
+	}
+}
@@ -0,0 +1,707 @@
+/* Copyright 2008
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+
+import org.w3c.dom.DOMException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import com.thoughtworks.selenium.SeleniumException;
+
+/**
+ * A page of static HTML held as a DOM, for {@link StubSelenium}.
+ *
+ * The HTML is parsed leniently, as a browser would: tag and attribute
+ * names are lower-cased, void elements need no end tag, elements such
+ * as li and p are closed by the next of their kind, and stray end tags
+ * are ignored. Locators are resolved with the JDK's XPath engine; CSS,
+ * id, name, identifier and link locators are translated to it.
+ */
+final class StubDocument {
+	private static final Set<String> VOID = new HashSet<String>(Arrays.asList(
+			"area", "base", "br", "col", "embed", "hr", "img", "input", "link", "meta", "param", "source", "wbr"));
+
+	/** Elements whose content is text up to their end tag. Only the first two hold script, not markup. */
+	private static final Set<String> RAW_TEXT = new HashSet<String>(Arrays.asList(
+			"script", "style", "textarea", "title"));
+
+	/** Open elements closed implicitly when each element starts */
+	private static final Map<String, Set<String>> CLOSES = new HashMap<String, Set<String>>();
+	static {
+		Set<String> paragraph = new HashSet<String>(Arrays.asList("p"));
+		for(String block : new String[] { "p", "div", "ul", "ol", "dl", "table", "form", "pre", "blockquote",
+				"h1", "h2", "h3", "h4", "h5", "h6" }) {
+			CLOSES.put(block, paragraph);
+		}
+		CLOSES.put("li", new HashSet<String>(Arrays.asList("li", "p")));
+		CLOSES.put("dt", new HashSet<String>(Arrays.asList("dt", "dd", "p")));
+		CLOSES.put("dd", new HashSet<String>(Arrays.asList("dt", "dd", "p")));
+		CLOSES.put("option", new HashSet<String>(Arrays.asList("option")));
+		CLOSES.put("tr", new HashSet<String>(Arrays.asList("tr", "td", "th")));
+		CLOSES.put("td", new HashSet<String>(Arrays.asList("td", "th")));
+		CLOSES.put("th", new HashSet<String>(Arrays.asList("td", "th")));
+	}
+
+	private static final Map<String, String> ENTITIES = new HashMap<String, String>();
+	static {
+		String[] pairs = { "amp", "&", "lt", "<", "gt", ">", "quot", "\"", "apos", "'", "nbsp", "\u00a0",
+				"copy", "\u00a9", "reg", "\u00ae", "hellip", "\u2026", "mdash", "\u2014", "ndash", "\u2013" };
+		for(int i = 0; i < pairs.length; i += 2) {
+			ENTITIES.put(pairs[i], pairs[i + 1]);
+		}
+	}
+
+	private final String url;
+	private final String source;
+	private final Document document;
+
+	private StubDocument(String url, String source, Document document) {
+		this.url = url;
+		this.source = source;
+		this.document = document;
+	}
+
+	/**
+	 * Parses a page
+	 * @param url Address the page was loaded from
+	 * @param html Source of the page
+	 * @return Parsed page
+	 */
+	static StubDocument parse(String url, String html) {
+		try {
+			Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+			new Parser(doc, html).run();
+			return new StubDocument(url, html, doc);
+		} catch(ParserConfigurationException e) {
+			throw new RuntimeException("No DOM implementation available", e);
+		}
+	}
+
+	String getUrl() {
+		return url;
+	}
+
+	String getSource() {
+		return source;
+	}
+
+	Document getDocument() {
+		return document;
+	}
+
+	/**
+	 * Gets the text of the page's title element
+	 * @return Title, or an empty string if there is none
+	 */
+	String getTitle() {
+		NodeList titles = document.getElementsByTagName("title");
+		return titles.getLength() == 0 ? "" : text(titles.item(0));
+	}
+
+	/**
+	 * Gets the text of the page's body, or of the whole page if it has no body
+	 */
+	String getBodyText() {
+		NodeList bodies = document.getElementsByTagName("body");
+		return text(bodies.getLength() == 0 ? document.getDocumentElement() : bodies.item(0));
+	}
+
+	/**
+	 * Finds the first element matching a Selenium locator
+	 * @return Element, or null if nothing matches
+	 * @throws SeleniumException if the locator strategy is not supported
+	 */
+	Element find(String locator) {
+		List<Element> all = findAll(locator);
+		return all.isEmpty() ? null : all.get(0);
+	}
+
+	/**
+	 * Finds the element matching a Selenium locator, failing as Selenium
+	 * does if there is none
+	 */
+	Element require(String locator) {
+		Element el = find(locator);
+		if(el == null) {
+			throw new SeleniumException("ERROR: Element " + locator + " not found");
+		}
+		return el;
+	}
+
+	/**
+	 * Finds every element matching a Selenium locator, in document order
+	 * @throws SeleniumException if the locator strategy is not supported
+	 */
+	List<Element> findAll(String locator) {
+		String strategy = "identifier";
+		String value = locator;
+		int eq = locator.indexOf('=');
+		if(locator.startsWith("//") || locator.startsWith("(")) {
+			strategy = "xpath";
+		} else if(locator.startsWith("document.")) {
+			strategy = "dom";
+		} else if(eq > 0 && locator.substring(0, eq).matches("[a-zA-Z]+")) {
+			strategy = locator.substring(0, eq);
+			value = locator.substring(eq + 1);
+		}
+
+		if(strategy.equals("xpath")) {
+			return elements(evaluate(value));
+		} else if(strategy.equals("css")) {
+			return elements(evaluate(cssToXPath(value)));
+		} else if(strategy.equals("id")) {
+			return elements(evaluate("//*[@id=" + literal(value) + "]"));
+		} else if(strategy.equals("name")) {
+			return elements(evaluate("//*[@name=" + literal(value) + "]"));
+		} else if(strategy.equals("identifier")) {
+			List<Element> byId = elements(evaluate("//*[@id=" + literal(value) + "]"));
+			return byId.isEmpty() ? elements(evaluate("//*[@name=" + literal(value) + "]")) : byId;
+		} else if(strategy.equals("link")) {
+			List<Element> links = new ArrayList<Element>();
+			for(Element a : elements(document.getElementsByTagName("a"))) {
+				if(matches(value, text(a), true)) {
+					links.add(a);
+				}
+			}
+			return links;
+		}
+		throw new SeleniumException("Locator strategy '" + strategy + "' of " + locator
+				+ " is not supported by the stub Selenium backend");
+	}
+
+	/**
+	 * Counts the nodes matched by an XPath expression
+	 */
+	int count(String xpath) {
+		return evaluate(xpath).getLength();
+	}
+
+	private NodeList evaluate(String xpath) {
+		try {
+			// XPath objects are not thread-safe, so one is made for each query
+			return (NodeList) XPathFactory.newInstance().newXPath().evaluate(xpath, document, XPathConstants.NODESET);
+		} catch(XPathExpressionException e) {
+			throw new SeleniumException("Invalid xpath: " + xpath, e);
+		}
+	}
+
+	private static List<Element> elements(NodeList nodes) {
+		List<Element> out = new ArrayList<Element>(nodes.getLength());
+		for(int i = 0; i < nodes.getLength(); i++) {
+			if(nodes.item(i).getNodeType() == Node.ELEMENT_NODE) {
+				out.add((Element) nodes.item(i));
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Gets the text of a node as a browser would render it: scripts and
+	 * styles are left out and runs of white space become a single space
+	 */
+	static String text(Node node) {
+		StringBuilder out = new StringBuilder();
+		appendText(node, out);
+		return out.toString().replace('\u00a0', ' ').replaceAll("\\s+", " ").trim();
+	}
+
+	private static void appendText(Node node, StringBuilder out) {
+		if(node.getNodeType() == Node.TEXT_NODE) {
+			out.append(node.getNodeValue());
+			return;
+		}
+		String name = node.getNodeName();
+		if(name.equals("script") || name.equals("style")) {
+			return;
+		}
+		if(name.equals("br")) {
+			out.append(' ');
+		}
+		for(Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+			appendText(child, out);
+		}
+	}
+
+	/**
+	 * Whether an element would be displayed, judging only by its own and
+	 * its ancestors' hidden and style attributes, since stylesheets are
+	 * not applied
+	 */
+	static boolean visible(Element el) {
+		if(el.getNodeName().equals("input") && el.getAttribute("type").equalsIgnoreCase("hidden")) {
+			return false;
+		}
+		for(Node n = el; n != null && n.getNodeType() == Node.ELEMENT_NODE; n = n.getParentNode()) {
+			Element e = (Element) n;
+			String style = e.getAttribute("style").toLowerCase(Locale.ENGLISH).replaceAll("\\s+", "");
+			if(e.hasAttribute("hidden") || style.contains("display:none")
+					|| (n == el && style.contains("visibility:hidden"))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Matches text against a Selenium pattern: glob (the default),
+	 * regexp or exact
+	 * @param whole true if the pattern must match the whole text, false
+	 *        if it may match any part of it
+	 */
+	static boolean matches(String pattern, String text, boolean whole) {
+		if(pattern.startsWith("exact:")) {
+			pattern = pattern.substring(6);
+			return whole ? text.equals(pattern) : text.contains(pattern);
+		} else if(pattern.startsWith("regexp:")) {
+			return Pattern.compile(pattern.substring(7)).matcher(text).find();
+		}
+		if(pattern.startsWith("glob:")) {
+			pattern = pattern.substring(5);
+		}
+		StringBuilder regex = new StringBuilder();
+		for(char c : pattern.toCharArray()) {
+			if(c == '*') {
+				regex.append(".*");
+			} else if(c == '?') {
+				regex.append('.');
+			} else {
+				regex.append(Pattern.quote(String.valueOf(c)));
+			}
+		}
+		Pattern p = Pattern.compile(regex.toString(), Pattern.DOTALL);
+		return whole ? p.matcher(text).matches() : p.matcher(text).find();
+	}
+
+	/**
+	 * Quotes a string as an XPath literal
+	 */
+	static String literal(String s) {
+		if(s.indexOf('\'') < 0) {
+			return "'" + s + "'";
+		} else if(s.indexOf('"') < 0) {
+			return "\"" + s + "\"";
+		}
+		StringBuilder out = new StringBuilder("concat(");
+		String[] parts = s.split("'", -1);
+		for(int i = 0; i < parts.length; i++) {
+			if(i > 0) {
+				out.append(", \"'\", ");
+			}
+			out.append("'").append(parts[i]).append("'");
+		}
+		return out.append(")").toString();
+	}
+
+	/**
+	 * Translates a CSS selector into XPath. Type, universal, id, class and
+	 * attribute selectors are supported, with the descendant and child
+	 * combinators and selector groups.
+	 *
+	 * @throws SeleniumException if the selector uses anything else
+	 */
+	static String cssToXPath(String css) {
+		StringBuilder out = new StringBuilder();
+		for(String selector : css.split(",")) {
+			if(out.length() > 0) {
+				out.append(" | ");
+			}
+			out.append(new CssTranslator(css, selector.trim()).translate());
+		}
+		return out.toString();
+	}
+
+	private static class CssTranslator {
+		private final String css;
+		private final String s;
+		private int pos = 0;
+
+		CssTranslator(String css, String selector) {
+			this.css = css;
+			this.s = selector;
+		}
+
+		String translate() {
+			StringBuilder out = new StringBuilder("//");
+			compound(out);
+			while(pos < s.length()) {
+				boolean space = skipSpace();
+				if(pos < s.length() && s.charAt(pos) == '>') {
+					pos++;
+					skipSpace();
+					out.append('/');
+				} else if(space) {
+					out.append("//");
+				} else {
+					throw unsupported();
+				}
+				compound(out);
+			}
+			return out.toString();
+		}
+
+		private void compound(StringBuilder out) {
+			String tag = "*";
+			if(pos < s.length() && (s.charAt(pos) == '*' || isNameChar(s.charAt(pos)))) {
+				tag = s.charAt(pos) == '*' ? "*" : null;
+				if(tag == null) {
+					tag = name().toLowerCase(Locale.ENGLISH);
+				} else {
+					pos++;
+				}
+			}
+			out.append(tag);
+
+			boolean any = !tag.equals("*");
+			while(pos < s.length()) {
+				char c = s.charAt(pos);
+				if(c == '#') {
+					pos++;
+					out.append("[@id=").append(literal(name())).append(']');
+				} else if(c == '.') {
+					pos++;
+					out.append("[contains(concat(' ', normalize-space(@class), ' '), ")
+						.append(literal(" " + name() + " ")).append(")]");
+				} else if(c == '[') {
+					pos++;
+					out.append('[').append(attribute()).append(']');
+				} else {
+					break;
+				}
+				any = true;
+			}
+			if(!any) {
+				throw unsupported();
+			}
+		}
+
+		private String attribute() {
+			skipSpace();
+			String attr = "@" + name().toLowerCase(Locale.ENGLISH);
+			skipSpace();
+			if(pos < s.length() && s.charAt(pos) == ']') {
+				pos++;
+				return attr;
+			}
+			String op = "";
+			while(pos < s.length() && "~^$*|=".indexOf(s.charAt(pos)) >= 0) {
+				op += s.charAt(pos++);
+			}
+			skipSpace();
+			String value = value();
+			skipSpace();
+			if(pos >= s.length() || s.charAt(pos) != ']') {
+				throw unsupported();
+			}
+			pos++;
+
+			String v = literal(value);
+			if(op.equals("=")) {
+				return attr + "=" + v;
+			} else if(op.equals("~=")) {
+				return "contains(concat(' ', normalize-space(" + attr + "), ' '), " + literal(" " + value + " ") + ")";
+			} else if(op.equals("^=")) {
+				return "starts-with(" + attr + ", " + v + ")";
+			} else if(op.equals("$=")) {
+				return "substring(" + attr + ", string-length(" + attr + ") - " + value.length() + " + 1) = " + v;
+			} else if(op.equals("*=")) {
+				return "contains(" + attr + ", " + v + ")";
+			} else if(op.equals("|=")) {
+				return "(" + attr + "=" + v + " or starts-with(" + attr + ", " + literal(value + "-") + "))";
+			}
+			throw unsupported();
+		}
+
+		private String value() {
+			if(pos < s.length() && (s.charAt(pos) == '"' || s.charAt(pos) == '\'')) {
+				char quote = s.charAt(pos);
+				int end = s.indexOf(quote, pos + 1);
+				if(end < 0) {
+					throw unsupported();
+				}
+				String v = s.substring(pos + 1, end);
+				pos = end + 1;
+				return v;
+			}
+			return name();
+		}
+
+		private String name() {
+			int start = pos;
+			while(pos < s.length() && isNameChar(s.charAt(pos))) {
+				pos++;
+			}
+			if(pos == start) {
+				throw unsupported();
+			}
+			return s.substring(start, pos);
+		}
+
+		private boolean skipSpace() {
+			int start = pos;
+			while(pos < s.length() && Character.isWhitespace(s.charAt(pos))) {
+				pos++;
+			}
+			return pos > start;
+		}
+
+		private static boolean isNameChar(char c) {
+			return Character.isLetterOrDigit(c) || c == '-' || c == '_';
+		}
+
+		private SeleniumException unsupported() {
+			return new SeleniumException("CSS selector '" + css + "' is not supported by the stub Selenium backend");
+		}
+	}
+
+	/**
+	 * Builds a DOM from HTML, tolerating the markup browsers accept
+	 */
+	private static class Parser {
+		private final Document doc;
+		private final String s;
+		/** Source in lower case, for finding end tags */
+		private final String lower;
+		private final LinkedList<Element> open = new LinkedList<Element>();
+		private int pos = 0;
+
+		Parser(Document doc, String html) {
+			this.doc = doc;
+			this.s = html;
+			this.lower = html.toLowerCase(Locale.ENGLISH);
+		}
+
+		void run() {
+			Element root = doc.createElement("html");
+			doc.appendChild(root);
+			open.addFirst(root);
+
+			while(pos < s.length()) {
+				int lt = s.indexOf('<', pos);
+				if(lt < 0) {
+					text(s.substring(pos));
+					break;
+				}
+				if(lt > pos) {
+					text(s.substring(pos, lt));
+				}
+				pos = lt;
+				if(s.startsWith("<!--", pos)) {
+					pos = skipPast("-->", pos + 4);
+				} else if(s.startsWith("<!", pos) || s.startsWith("<?", pos)) {
+					pos = skipPast(">", pos);
+				} else if(s.startsWith("</", pos)) {
+					int end = s.indexOf('>', pos);
+					end = end < 0 ? s.length() : end;
+					close(s.substring(pos + 2, end).trim().toLowerCase(Locale.ENGLISH));
+					pos = Math.min(s.length(), end + 1);
+				} else if(pos + 1 < s.length() && Character.isLetter(s.charAt(pos + 1))) {
+					pos++;
+					startTag();
+				} else {
+					text("<");
+					pos++;
+				}
+			}
+		}
+
+		private int skipPast(String marker, int from) {
+			int end = s.indexOf(marker, from);
+			return end < 0 ? s.length() : end + marker.length();
+		}
+
+		private void startTag() {
+			int start = pos;
+			while(pos < s.length() && (Character.isLetterOrDigit(s.charAt(pos)) || s.charAt(pos) == '-' || s.charAt(pos) == ':')) {
+				pos++;
+			}
+			String name = s.substring(start, pos).toLowerCase(Locale.ENGLISH);
+
+			Map<String, String> attributes = new LinkedHashMap<String, String>();
+			boolean selfClosing = false;
+			while(pos < s.length()) {
+				char c = s.charAt(pos);
+				if(c == '>') {
+					pos++;
+					break;
+				} else if(c == '/' && s.startsWith("/>", pos)) {
+					selfClosing = true;
+					pos += 2;
+					break;
+				} else if(Character.isWhitespace(c) || c == '/') {
+					pos++;
+					continue;
+				}
+
+				int attrStart = pos;
+				while(pos < s.length() && !Character.isWhitespace(s.charAt(pos)) && "=>/".indexOf(s.charAt(pos)) < 0) {
+					pos++;
+				}
+				String attr = s.substring(attrStart, pos).toLowerCase(Locale.ENGLISH);
+				String value = "";
+				skipSpace();
+				if(pos < s.length() && s.charAt(pos) == '=') {
+					pos++;
+					skipSpace();
+					value = attributeValue();
+				}
+				if(!attributes.containsKey(attr)) {
+					attributes.put(attr, value);
+				}
+			}
+
+			if(name.equals("html")) {
+				setAttributes(open.getLast(), attributes);
+				return;
+			}
+
+			Set<String> closes = CLOSES.get(name);
+			while(closes != null && open.size() > 1 && closes.contains(open.getFirst().getNodeName())) {
+				open.removeFirst();
+			}
+
+			Element el;
+			try {
+				el = doc.createElement(name);
+			} catch(DOMException e) {
+				// Not a name the DOM accepts; keep its content in the parent
+				return;
+			}
+			setAttributes(el, attributes);
+			open.getFirst().appendChild(el);
+
+			if(RAW_TEXT.contains(name) && !selfClosing) {
+				int end = lower.indexOf("</" + name, pos);
+				String content = s.substring(pos, end < 0 ? s.length() : end);
+				boolean script = name.equals("script") || name.equals("style");
+				el.appendChild(doc.createTextNode(script ? content : decode(content)));
+				pos = end < 0 ? s.length() : skipPast(">", end);
+			} else if(!selfClosing && !VOID.contains(name)) {
+				open.addFirst(el);
+			}
+		}
+
+		private void setAttributes(Element el, Map<String, String> attributes) {
+			for(Map.Entry<String, String> a : attributes.entrySet()) {
+				try {
+					el.setAttribute(a.getKey(), decode(a.getValue()));
+				} catch(DOMException e) {
+					// Attribute name the DOM does not accept
+				}
+			}
+		}
+
+		private String attributeValue() {
+			if(pos < s.length() && (s.charAt(pos) == '"' || s.charAt(pos) == '\'')) {
+				char quote = s.charAt(pos);
+				int end = s.indexOf(quote, pos + 1);
+				end = end < 0 ? s.length() : end;
+				String value = s.substring(pos + 1, end);
+				pos = Math.min(s.length(), end + 1);
+				return value;
+			}
+			int start = pos;
+			while(pos < s.length() && !Character.isWhitespace(s.charAt(pos)) && s.charAt(pos) != '>') {
+				pos++;
+			}
+			return s.substring(start, pos);
+		}
+
+		private void skipSpace() {
+			while(pos < s.length() && Character.isWhitespace(s.charAt(pos))) {
+				pos++;
+			}
+		}
+
+		/**
+		 * Closes the innermost open element of the given name, along with
+		 * any left open inside it. End tags with no open element are ignored.
+		 */
+		private void close(String name) {
+			for(int i = 0; i < open.size() - 1; i++) {
+				if(open.get(i).getNodeName().equals(name)) {
+					for(int j = 0; j <= i; j++) {
+						open.removeFirst();
+					}
+					return;
+				}
+			}
+		}
+
+		private void text(String raw) {
+			open.getFirst().appendChild(doc.createTextNode(decode(raw)));
+		}
+	}
+
+	/**
+	 * Replaces character references with the characters they stand for.
+	 * Unknown references are left as they are.
+	 */
+	static String decode(String s) {
+		int amp = s.indexOf('&');
+		if(amp < 0) {
+			return s;
+		}
+		StringBuilder out = new StringBuilder(s.length());
+		int pos = 0;
+		while(amp >= 0) {
+			out.append(s, pos, amp);
+			int semi = s.indexOf(';', amp);
+			String replacement = null;
+			if(semi > amp + 1 && semi - amp < 12) {
+				String name = s.substring(amp + 1, semi);
+				try {
+					if(name.startsWith("#x") || name.startsWith("#X")) {
+						replacement = new String(Character.toChars(Integer.parseInt(name.substring(2), 16)));
+					} else if(name.startsWith("#")) {
+						replacement = new String(Character.toChars(Integer.parseInt(name.substring(1))));
+					} else {
+						replacement = ENTITIES.get(name);
+					}
+				} catch(IllegalArgumentException e) {
+					replacement = null;
+				}
+			}
+			if(replacement == null) {
+				out.append('&');
+				pos = amp + 1;
+			} else {
+				out.append(replacement);
+				pos = semi + 1;
+			}
+			amp = s.indexOf('&', pos);
+		}
+		return out.append(s.substring(pos)).toString();
+	}
+}
@@ -0,0 +1,492 @@
+/* Copyright 2008
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import com.thoughtworks.selenium.Selenium;
+import com.thoughtworks.selenium.SeleniumException;
+
+/**
+ * A Selenium session with no browser, which loads pages from static
+ * HTML fixtures on disk and evaluates locators against them in memory.
+ * It lets the framework's own tests, and checks of UI map locators,
+ * run in milliseconds without a Selenium Server, browser or network.
+ *
+ * URLs on the site under test are mapped to fixture directories by path
+ * prefix. Pages are static: forms can be typed into, boxes checked and
+ * links followed, but scripts are not run, so getEval and the commands
+ * built on it fail with a {@link SeleniumException}. Only the hidden and
+ * style attributes are considered when deciding whether an element is
+ * visible.
+ *
+ * Selected in {@link Globals} by setting selenium.backend to "stub".
+ */
+public class StubSelenium implements InvocationHandler {
+	private static final String BLANK = "about:blank";
+
+	/** Commands with no effect without a browser */
+	private static final Set<String> IGNORED = new HashSet<String>(Arrays.asList(
+			"setExtensionJs", "start", "stop", "close", "showContextualBanner", "setSpeed", "selectWindow",
+			"selectFrame", "windowFocus", "windowMaximize", "setTimeout", "waitForPageToLoad", "waitForFrameToLoad",
+			"deleteAllVisibleCookies", "setContext", "setBrowserLogLevel", "allowNativeXpath",
+			"ignoreAttributesWithoutValue", "useXpathLibrary", "setMouseSpeed", "shiftKeyDown", "shiftKeyUp",
+			"metaKeyDown", "metaKeyUp", "altKeyDown", "altKeyUp", "controlKeyDown", "controlKeyUp",
+			"chooseCancelOnNextConfirmation", "chooseOkOnNextConfirmation", "answerOnNextPrompt"));
+
+	/** Commands on an element which change nothing on a static page, but fail if the element is missing */
+	private static final Set<String> EVENTS = new HashSet<String>(Arrays.asList(
+			"doubleClick", "contextMenu", "clickAt", "doubleClickAt", "contextMenuAt", "fireEvent", "focus",
+			"keyPress", "keyDown", "keyUp", "mouseOver", "mouseOut", "mouseDown", "mouseDownRight", "mouseDownAt",
+			"mouseDownRightAt", "mouseUp", "mouseUpRight", "mouseUpAt", "mouseUpRightAt", "mouseMove",
+			"mouseMoveAt", "highlight"));
+
+	private final URL site;
+	private final Map<String, File> fixtures;
+
+	private StubDocument page;
+	private final LinkedList<String> history = new LinkedList<String>();
+
+	/**
+	 * @param site Root of the site under test, against which relative URLs are resolved
+	 * @param fixtures Directory holding the pages under each URL path prefix
+	 */
+	public StubSelenium(String site, Map<String, File> fixtures) {
+		try {
+			this.site = new URL(site);
+		} catch(MalformedURLException e) {
+			throw new RuntimeException("Site under test '" + site + "' must be a URL", e);
+		}
+		this.fixtures = new LinkedHashMap<String, File>(fixtures);
+		this.page = StubDocument.parse(BLANK, "");
+	}
+
+	/**
+	 * Parses a list of fixture directories
+	 * @param spec Comma-separated list of path=directory pairs, such as "/test=src/test/resources"
+	 * @return Directory for each URL path prefix
+	 */
+	public static Map<String, File> parseFixtures(String spec) {
+		Map<String, File> out = new LinkedHashMap<String, File>();
+		for(String pair : spec.split(",")) {
+			pair = pair.trim();
+			if(pair.length() == 0) {
+				continue;
+			}
+			int eq = pair.indexOf('=');
+			if(eq <= 0 || !pair.startsWith("/")) {
+				throw new RuntimeException("Fixture '" + pair + "' must be given as /path=directory");
+			}
+			out.put(pair.substring(0, eq).trim(), new File(pair.substring(eq + 1).trim()));
+		}
+		return out;
+	}
+
+	/**
+	 * Creates a session pool whose sessions are stubs
+	 * @param site Root of the site under test
+	 * @param fixtures Directory holding the pages under each URL path prefix
+	 * @param browser Browser string, only used to identify the pool
+	 * @param size Maximum number of concurrent sessions
+	 * @return Pool of stub sessions
+	 */
+	public static SeleniumPool pool(final String site, final Map<String, File> fixtures, String browser, int size) {
+		return new SeleniumPool(new ServerFarm("stub", 0), browser, site, size) {
+			protected Selenium createSession() {
+				return new StubSelenium(site, fixtures).proxy();
+			}
+
+			protected void resetSession(Selenium session) {
+				session.open(BLANK);
+			}
+		};
+	}
+
+	/**
+	 * Gets a Selenium object which carries out commands on this stub
+	 */
+	public Selenium proxy() {
+		return (Selenium) Proxy.newProxyInstance(Selenium.class.getClassLoader(),
+				new Class[] { Selenium.class }, this);
+	}
+
+	public synchronized Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		String name = method.getName();
+		if(name.equals("equals")) {
+			// Sessions are told apart by identity, as the pool expects
+			return Boolean.valueOf(proxy == args[0]);
+		} else if(name.equals("hashCode")) {
+			return Integer.valueOf(System.identityHashCode(proxy));
+		} else if(method.getDeclaringClass() == Object.class) {
+			return method.invoke(this, args);
+		} else if(IGNORED.contains(name)) {
+			return null;
+		} else if(EVENTS.contains(name)) {
+			page.require(string(args, 0));
+			return null;
+		}
+
+		if(name.equals("open")) {
+			open(string(args, 0));
+			return null;
+		} else if(name.equals("refresh")) {
+			page = load(site, page.getUrl());
+			return null;
+		} else if(name.equals("goBack")) {
+			if(!history.isEmpty()) {
+				page = load(site, history.removeLast());
+			}
+			return null;
+		} else if(name.equals("getLocation")) {
+			return page.getUrl();
+		} else if(name.equals("getTitle")) {
+			return page.getTitle();
+		} else if(name.equals("getBodyText")) {
+			return page.getBodyText();
+		} else if(name.equals("getHtmlSource")) {
+			return page.getSource();
+		} else if(name.equals("isTextPresent")) {
+			return Boolean.valueOf(StubDocument.matches(string(args, 0), page.getBodyText(), false));
+		} else if(name.equals("isElementPresent")) {
+			return Boolean.valueOf(page.find(string(args, 0)) != null);
+		} else if(name.equals("getXpathCount")) {
+			return Integer.valueOf(page.count(string(args, 0)));
+		} else if(name.equals("getAllLinks")) {
+			return ids("a");
+		} else if(name.equals("getAllButtons")) {
+			return ids("input", "button", "submit", "reset", "image");
+		} else if(name.equals("getAllFields")) {
+			return ids("input", "text", "password", "email", "search");
+		} else if(name.equals("getAttribute")) {
+			return attribute(string(args, 0));
+		}
+
+		// Everything else acts on a single element
+		if(args == null || args.length == 0 || !(args[0] instanceof String)) {
+			throw unsupported(name);
+		}
+		Element el = page.require((String) args[0]);
+		if(name.equals("isVisible")) {
+			return Boolean.valueOf(StubDocument.visible(el));
+		} else if(name.equals("getText")) {
+			return StubDocument.text(el);
+		} else if(name.equals("getValue")) {
+			return value(el);
+		} else if(name.equals("isChecked")) {
+			return Boolean.valueOf(el.hasAttribute("checked"));
+		} else if(name.equals("isEditable")) {
+			String tag = el.getNodeName();
+			return Boolean.valueOf((tag.equals("input") || tag.equals("textarea") || tag.equals("select"))
+					&& !el.hasAttribute("disabled") && !el.hasAttribute("readonly"));
+		} else if(name.equals("type")) {
+			setValue(el, string(args, 1));
+			return null;
+		} else if(name.equals("typeKeys")) {
+			setValue(el, value(el) + string(args, 1));
+			return null;
+		} else if(name.equals("check") || name.equals("uncheck")) {
+			check(el, name.equals("check"));
+			return null;
+		} else if(name.equals("click")) {
+			click(el);
+			return null;
+		} else if(name.equals("select")) {
+			select(el, string(args, 1));
+			return null;
+		} else if(name.equals("getSelectedLabel")) {
+			Element option = selected(el);
+			return option == null ? null : StubDocument.text(option);
+		} else if(name.equals("getSelectedValue")) {
+			Element option = selected(el);
+			return option == null ? null : optionValue(option);
+		} else if(name.equals("isSomethingSelected")) {
+			return Boolean.valueOf(selected(el) != null);
+		} else if(name.equals("getSelectOptions")) {
+			List<String> labels = new ArrayList<String>();
+			for(Element option : options(el)) {
+				labels.add(StubDocument.text(option));
+			}
+			return labels.toArray(new String[labels.size()]);
+		}
+		throw unsupported(name);
+	}
+
+	private static SeleniumException unsupported(String command) {
+		return new SeleniumException(command + " is not supported by the stub Selenium backend");
+	}
+
+	private static String string(Object[] args, int i) {
+		return (String) args[i];
+	}
+
+	/**
+	 * Opens a page, keeping the current one in the history
+	 * @param url URL, relative to the site under test as with Selenium's own open
+	 */
+	private void open(String url) {
+		navigate(site, url);
+	}
+
+	private void navigate(URL base, String url) {
+		StubDocument next = load(base, url);
+		if(!page.getUrl().equals(BLANK)) {
+			history.addLast(page.getUrl());
+		}
+		page = next;
+	}
+
+	/**
+	 * Reads and parses the fixture for a URL
+	 * @param base URL which a relative URL is resolved against
+	 */
+	private StubDocument load(URL base, String url) {
+		if(url.equals(BLANK)) {
+			return StubDocument.parse(BLANK, "");
+		}
+		URL resolved;
+		try {
+			resolved = new URL(base, url);
+		} catch(MalformedURLException e) {
+			throw new SeleniumException("Cannot open '" + url + "': not a URL");
+		}
+		if(!resolved.getProtocol().equals(site.getProtocol()) || !resolved.getHost().equalsIgnoreCase(site.getHost())
+				|| resolved.getPort() != site.getPort()) {
+			throw new SeleniumException("Cannot open " + resolved + ": the stub Selenium backend only serves fixtures for " + site);
+		}
+
+		File file = fixture(resolved.getPath());
+		if(file == null || !file.isFile()) {
+			throw new SeleniumException("XHR ERROR: URL = " + resolved + " Response_Code = 404 Error_Message = No fixture"
+					+ (file == null ? "" : " at " + file.getPath()));
+		}
+		return StubDocument.parse(resolved.toString(), read(file));
+	}
+
+	/**
+	 * Finds the file for a URL path, under the fixture directory with the
+	 * longest matching prefix
+	 */
+	private File fixture(String path) {
+		if(path.length() == 0) {
+			path = "/";
+		}
+		String best = null;
+		for(String prefix : fixtures.keySet()) {
+			boolean under = prefix.equals("/") || path.equals(prefix) || path.startsWith(prefix.endsWith("/") ? prefix : prefix + "/");
+			if(under && (best == null || prefix.length() > best.length())) {
+				best = prefix;
+			}
+		}
+		if(best == null) {
+			return null;
+		}
+		File f = new File(fixtures.get(best), path.substring(best.equals("/") ? 0 : best.length()));
+		return f.isDirectory() ? new File(f, "index.html") : f;
+	}
+
+	private static String read(File f) {
+		try {
+			InputStream in = new FileInputStream(f);
+			try {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				byte[] buffer = new byte[8192];
+				for(int n = in.read(buffer); n > 0; n = in.read(buffer)) {
+					out.write(buffer, 0, n);
+				}
+				return out.toString("UTF-8");
+			} finally {
+				in.close();
+			}
+		} catch(IOException e) {
+			throw new RuntimeException("Failed to read fixture " + f.getPath(), e);
+		}
+	}
+
+	/**
+	 * Gets the ids of elements with the given tag, and with one of the given types if any are listed
+	 */
+	private String[] ids(String tag, String... types) {
+		List<String> out = new ArrayList<String>();
+		for(Element el : page.findAll("//" + tag)) {
+			String type = el.getAttribute("type").toLowerCase(Locale.ENGLISH);
+			if(types.length == 0 || Arrays.asList(types).contains(type.length() == 0 ? "text" : type)) {
+				out.add(el.getAttribute("id"));
+			}
+		}
+		return out.toArray(new String[out.size()]);
+	}
+
+	private String attribute(String attributeLocator) {
+		int at = attributeLocator.lastIndexOf('@');
+		if(at <= 0) {
+			throw new SeleniumException("ERROR: Invalid attribute locator " + attributeLocator);
+		}
+		Element el = page.require(attributeLocator.substring(0, at));
+		String name = attributeLocator.substring(at + 1);
+		if(!el.hasAttribute(name)) {
+			throw new SeleniumException("ERROR: Could not find element attribute: " + attributeLocator);
+		}
+		return el.getAttribute(name);
+	}
+
+	private static String value(Element el) {
+		String tag = el.getNodeName();
+		if(tag.equals("textarea")) {
+			return el.getTextContent();
+		} else if(tag.equals("select")) {
+			Element option = selected(el);
+			return option == null ? "" : optionValue(option);
+		} else if(isCheckable(el)) {
+			return el.hasAttribute("checked") ? "on" : "off";
+		}
+		return el.getAttribute("value");
+	}
+
+	private static void setValue(Element el, String value) {
+		if(el.getNodeName().equals("textarea")) {
+			el.setTextContent(value);
+		} else {
+			el.setAttribute("value", value);
+		}
+	}
+
+	private static boolean isCheckable(Element el) {
+		String type = el.getAttribute("type").toLowerCase(Locale.ENGLISH);
+		return el.getNodeName().equals("input") && (type.equals("checkbox") || type.equals("radio"));
+	}
+
+	private void check(Element el, boolean on) {
+		if(!isCheckable(el)) {
+			throw new SeleniumException("ERROR: Element is not a toggle-button");
+		}
+		if(on) {
+			if(el.getAttribute("type").equalsIgnoreCase("radio") && el.hasAttribute("name")) {
+				for(Element other : page.findAll("//input[@name=" + StubDocument.literal(el.getAttribute("name")) + "]")) {
+					other.removeAttribute("checked");
+				}
+			}
+			el.setAttribute("checked", "checked");
+		} else {
+			el.removeAttribute("checked");
+		}
+	}
+
+	/**
+	 * Toggles check boxes, selects radio buttons and follows links. Other
+	 * clicks have no effect, since pages have no scripts and forms are not
+	 * submitted.
+	 */
+	private void click(Element el) {
+		if(isCheckable(el)) {
+			check(el, el.getAttribute("type").equalsIgnoreCase("radio") || !el.hasAttribute("checked"));
+			return;
+		}
+		for(Node n = el; n != null && n.getNodeType() == Node.ELEMENT_NODE; n = n.getParentNode()) {
+			Element link = (Element) n;
+			if(link.getNodeName().equals("a") && link.hasAttribute("href")) {
+				String href = link.getAttribute("href");
+				if(!href.startsWith("#") && !href.startsWith("javascript:")) {
+					try {
+						navigate(new URL(page.getUrl()), href);
+					} catch(MalformedURLException e) {
+						throw new SeleniumException("Cannot follow link to '" + href + "' from " + page.getUrl());
+					}
+				}
+				return;
+			}
+		}
+	}
+
+	private static List<Element> options(Element select) {
+		List<Element> out = new ArrayList<Element>();
+		NodeList nodes = select.getElementsByTagName("option");
+		for(int i = 0; i < nodes.getLength(); i++) {
+			out.add((Element) nodes.item(i));
+		}
+		return out;
+	}
+
+	private static String optionValue(Element option) {
+		return option.hasAttribute("value") ? option.getAttribute("value") : StubDocument.text(option);
+	}
+
+	/**
+	 * Gets the selected option of a list, which is the first if none is marked selected
+	 */
+	private static Element selected(Element select) {
+		List<Element> options = options(select);
+		for(Element option : options) {
+			if(option.hasAttribute("selected")) {
+				return option;
+			}
+		}
+		return options.isEmpty() || select.hasAttribute("multiple") ? null : options.get(0);
+	}
+
+	/**
+	 * Selects an option given by label=, value=, id= or index=, or by label
+	 * if there is no prefix
+	 */
+	private static void select(Element select, String optionLocator) {
+		List<Element> options = options(select);
+		Element chosen = null;
+		for(int i = 0; i < options.size() && chosen == null; i++) {
+			Element option = options.get(i);
+			if(optionLocator.startsWith("value=")) {
+				chosen = StubDocument.matches(optionLocator.substring(6), optionValue(option), true) ? option : null;
+			} else if(optionLocator.startsWith("id=")) {
+				chosen = option.getAttribute("id").equals(optionLocator.substring(3)) ? option : null;
+			} else if(optionLocator.startsWith("index=")) {
+				chosen = String.valueOf(i).equals(optionLocator.substring(6)) ? option : null;
+			} else {
+				String label = optionLocator.startsWith("label=") ? optionLocator.substring(6) : optionLocator;
+				chosen = StubDocument.matches(label, StubDocument.text(option), true) ? option : null;
+			}
+		}
+		if(chosen == null) {
+			throw new SeleniumException("ERROR: Option with " + optionLocator + " not found");
+		}
+		for(Element option : options) {
+			option.removeAttribute("selected");
+		}
+		chosen.setAttribute("selected", "selected");
+	}
+
+	public String toString() {
+		return "StubSelenium(" + page.getUrl() + ")";
+	}
+}
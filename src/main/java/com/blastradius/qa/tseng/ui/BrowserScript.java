@@ -0,0 +1,181 @@
+/* Copyright 2008
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng.ui;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds scripts which run the browser-side helpers in tseng.js through
+ * Selenium's getEval, and decodes the values they return.
+ */
+final class BrowserScript {
+	/** Decoded in place of a value when the element could not be found */
+	static final Object MISSING = new Object();
+
+	/** Source of the browser-side helper library */
+	static final String LIBRARY = load("tseng.js");
+
+	/** Expression which installs the helper library if necessary and gives its value */
+	static final String INSTALL = "selenium.tseng || (selenium.tseng = typeof tseng != 'undefined' ? tseng"
+		+ " : (function() {\n" + LIBRARY + "\nreturn tseng; })())";
+
+	private BrowserScript() {
+	}
+
+	static String load(String resource) {
+		InputStream in = BrowserScript.class.getResourceAsStream(resource);
+		if(in == null) {
+			throw new RuntimeException("Browser script " + resource + " is missing from the classpath");
+		}
+		try {
+			Reader reader = new InputStreamReader(in, "UTF-8");
+			StringBuilder out = new StringBuilder();
+			char[] buffer = new char[4096];
+			int read;
+			while((read = reader.read(buffer)) > 0) {
+				out.append(buffer, 0, read);
+			}
+			return out.toString();
+		} catch(IOException e) {
+			throw new RuntimeException("Failure while reading browser script " + resource, e);
+		} finally {
+			try {
+				in.close();
+			} catch(IOException e) { /* Swallowed */ }
+		}
+	}
+
+	/**
+	 * Builds a script which evaluates the given expression with the helper
+	 * library as tseng. The library is installed on the session's selenium
+	 * object by the first script, and reused by later ones. Where the
+	 * {@link ElementCache} extension has already defined it, that is used,
+	 * so that elements are found through the cache.
+	 *
+	 * @param expression JavaScript expression whose value is returned
+	 * @return Complete script for getEval
+	 */
+	static String script(String expression) {
+		return "(function(tseng) { return " + expression + "; })(" + INSTALL + ");";
+	}
+
+	/**
+	 * Renders a string as a JavaScript string literal
+	 */
+	static String quote(String s) {
+		if(s == null) {
+			return "null";
+		}
+		StringBuilder out = new StringBuilder(s.length() + 2);
+		out.append('\'');
+		for(int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch(c) {
+			case '\'': out.append("\\'"); break;
+			case '\\': out.append("\\\\"); break;
+			case '\n': out.append("\\n"); break;
+			case '\r': out.append("\\r"); break;
+			case '\t': out.append("\\t"); break;
+			default:
+				if(c < 0x20 || c == '\u2028' || c == '\u2029' || c == '<') {
+					// Escape control characters, line separators, and '<' (to avoid closing tags)
+					String hex = Integer.toHexString(c);
+					out.append("\\u");
+					for(int pad = hex.length(); pad < 4; pad++) {
+						out.append('0');
+					}
+					out.append(hex);
+				} else {
+					out.append(c);
+				}
+			}
+		}
+		out.append('\'');
+		return out.toString();
+	}
+
+	/**
+	 * Renders an array of strings as a JavaScript array literal
+	 */
+	static String array(String[] values) {
+		StringBuilder out = new StringBuilder("[");
+		for(int i = 0; i < values.length; i++) {
+			if(i > 0) {
+				out.append(',');
+			}
+			out.append(quote(values[i]));
+		}
+		return out.append(']').toString();
+	}
+
+	/**
+	 * Decodes the values returned by a helper script. Each value becomes
+	 * null, a Boolean, an Integer, a String, or {@link #MISSING}.
+	 *
+	 * @param encoded Result of getEval
+	 * @return Decoded values in order
+	 */
+	static List<Object> decode(String encoded) {
+		List<Object> out = new ArrayList<Object>();
+		int i = 0;
+		while(i < encoded.length()) {
+			char type = encoded.charAt(i++);
+			switch(type) {
+			case 'n':
+				out.add(null);
+				break;
+			case 't':
+				out.add(Boolean.TRUE);
+				break;
+			case 'f':
+				out.add(Boolean.FALSE);
+				break;
+			case 'x':
+				out.add(MISSING);
+				break;
+			case 'i': {
+				int end = encoded.indexOf(';', i);
+				if(end < 0) {
+					throw new RuntimeException("Unterminated integer in browser script result");
+				}
+				out.add(Integer.valueOf(encoded.substring(i, end)));
+				i = end + 1;
+				break;
+			}
+			case 's': {
+				int colon = encoded.indexOf(':', i);
+				if(colon < 0) {
+					throw new RuntimeException("Malformed string in browser script result");
+				}
+				int length = Integer.parseInt(encoded.substring(i, colon));
+				i = colon + 1 + length;
+				if(i > encoded.length()) {
+					throw new RuntimeException("Truncated string in browser script result");
+				}
+				out.add(encoded.substring(colon + 1, i));
+				break;
+			}
+			default:
+				throw new RuntimeException("Unexpected value type '" + type + "' in browser script result");
+			}
+		}
+		return out;
+	}
+}
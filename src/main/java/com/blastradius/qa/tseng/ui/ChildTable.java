@@ -0,0 +1,155 @@
+/* Copyright 2008
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng.ui;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Immutable set of named children, held as a pair of arrays sorted by
+ * name. A UI Object's children are replaced with a new table whenever a
+ * child is added, so that lookups need no lock. Most objects have few
+ * children, for which a binary search is as quick as hashing and takes
+ * far less memory than a hash map's table and entry objects.
+ */
+final class ChildTable {
+	static final ChildTable EMPTY = new ChildTable(new String[0], new UIObject[0]);
+
+	final String[] names;
+	final UIObject[] values;
+
+	private ChildTable(String[] names, UIObject[] values) {
+		this.names = names;
+		this.values = values;
+	}
+
+	int size() {
+		return names.length;
+	}
+
+	UIObject get(String name) {
+		int i = Arrays.binarySearch(names, name);
+		return i >= 0 ? values[i] : null;
+	}
+
+	/**
+	 * Creates a table with a child added, replacing any of the same name
+	 */
+	ChildTable with(String name, UIObject child) {
+		int i = Arrays.binarySearch(names, name);
+		if(i >= 0) {
+			UIObject[] nextValues = values.clone();
+			nextValues[i] = child;
+			return new ChildTable(names, nextValues);
+		}
+
+		int at = -(i + 1);
+		int n = names.length;
+		String[] nextNames = new String[n + 1];
+		UIObject[] nextValues = new UIObject[n + 1];
+		System.arraycopy(names, 0, nextNames, 0, at);
+		System.arraycopy(values, 0, nextValues, 0, at);
+		nextNames[at] = StringPool.canonical(name);
+		nextValues[at] = child;
+		System.arraycopy(names, at, nextNames, at + 1, n - at);
+		System.arraycopy(values, at, nextValues, at + 1, n - at);
+		return new ChildTable(nextNames, nextValues);
+	}
+
+	/**
+	 * Gets an unmodifiable view of the table, in name order
+	 */
+	Map<String, UIObject> asMap() {
+		return new AbstractMap<String, UIObject>() {
+			public UIObject get(Object key) {
+				return key instanceof String ? ChildTable.this.get((String) key) : null;
+			}
+
+			public boolean containsKey(Object key) {
+				return get(key) != null;
+			}
+
+			public int size() {
+				return names.length;
+			}
+
+			public Set<Map.Entry<String, UIObject>> entrySet() {
+				return new AbstractSet<Map.Entry<String, UIObject>>() {
+					public int size() {
+						return names.length;
+					}
+
+					public Iterator<Map.Entry<String, UIObject>> iterator() {
+						return new Iterator<Map.Entry<String, UIObject>>() {
+							private int next = 0;
+
+							public boolean hasNext() {
+								return next < names.length;
+							}
+
+							public Map.Entry<String, UIObject> next() {
+								if(next >= names.length) {
+									throw new NoSuchElementException();
+								}
+								return new Child(next++);
+							}
+
+							public void remove() {
+								throw new UnsupportedOperationException();
+							}
+						};
+					}
+				};
+			}
+		};
+	}
+
+	private class Child implements Map.Entry<String, UIObject> {
+		private final int index;
+
+		Child(int index) {
+			this.index = index;
+		}
+
+		public String getKey() {
+			return names[index];
+		}
+
+		public UIObject getValue() {
+			return values[index];
+		}
+
+		public UIObject setValue(UIObject value) {
+			throw new UnsupportedOperationException();
+		}
+
+		public boolean equals(Object o) {
+			if(!(o instanceof Map.Entry)) {
+				return false;
+			}
+			Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+			return getKey().equals(e.getKey()) && getValue().equals(e.getValue());
+		}
+
+		public int hashCode() {
+			return getKey().hashCode() ^ getValue().hashCode();
+		}
+	}
+}
@@ -0,0 +1,246 @@
+/* Copyright 2008
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng.ui;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.thoughtworks.selenium.Selenium;
+import com.thoughtworks.selenium.SeleniumException;
+
+/**
+ * Browser-side cache of the elements that UI Objects resolve to.
+ *
+ * The cache is a Selenium user extension, installed in each session with
+ * {@link Selenium#setExtensionJs(String)} before the session is started.
+ * It adds a "tseng" locator strategy whose locators carry a UI Object's
+ * compiled locator path. The first command using such a locator resolves
+ * the path as usual. Later commands reuse the element until a new page is
+ * loaded or the element is removed from the page.
+ *
+ * While the cache is enabled, {@link UIBatch}, {@link UISnapshot} and
+ * {@link UIWait} find elements through it, and commands sent through
+ * {@link #route(Selenium)} against the effective locator of the UI Object
+ * last looked up are given its cache locator instead.
+ *
+ * The cache is off unless enabled with {@link #setEnabled(boolean)}, which
+ * {@link com.blastradius.qa.tseng.Globals} does when the
+ * selenium.element.cache parameter is true.
+ */
+public final class ElementCache {
+	/** Prefix of locators which resolve through the cache */
+	public static final String PREFIX = "tseng=";
+
+	private static volatile boolean enabled = false;
+
+	private static final AtomicLong hits = new AtomicLong();
+	private static final AtomicLong misses = new AtomicLong();
+	private static final AtomicLong stale = new AtomicLong();
+	private static final AtomicLong invalidations = new AtomicLong();
+
+	private ElementCache() {
+	}
+
+	/**
+	 * Counters read from the cache of one or more sessions
+	 */
+	public static final class Stats {
+		private final long hits;
+		private final long misses;
+		private final long stale;
+		private final long invalidations;
+		private final long size;
+
+		Stats(long hits, long misses, long stale, long invalidations, long size) {
+			this.hits = hits;
+			this.misses = misses;
+			this.stale = stale;
+			this.invalidations = invalidations;
+			this.size = size;
+		}
+
+		/**
+		 * Gets the number of lookups answered from the cache
+		 */
+		public long getHits() {
+			return hits;
+		}
+
+		/**
+		 * Gets the number of lookups which had to resolve the locator path
+		 */
+		public long getMisses() {
+			return misses;
+		}
+
+		/**
+		 * Gets the number of entries dropped because their element was
+		 * removed from the page
+		 */
+		public long getStale() {
+			return stale;
+		}
+
+		/**
+		 * Gets the number of times every entry was dropped because a new
+		 * page was loaded
+		 */
+		public long getInvalidations() {
+			return invalidations;
+		}
+
+		/**
+		 * Gets the number of elements held in the cache when the counters
+		 * were read. Always 0 for totals over finished sessions.
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * Gets the fraction of lookups answered from the cache
+		 * @return Hit rate between 0 and 1, or 0 if there were no lookups
+		 */
+		public double getHitRate() {
+			long lookups = hits + misses;
+			return lookups == 0 ? 0 : (double) hits / lookups;
+		}
+
+		public String toString() {
+			return hits + " hits, " + misses + " misses (" + Math.round(getHitRate() * 100) + "% hit rate), "
+				+ stale + " stale, " + invalidations + " page loads";
+		}
+	}
+
+	/**
+	 * Turns use of the cache by {@link UIObject#getCachedLocator()} on or off.
+	 * Only enable the cache once sessions are being started with {@link #extension()}.
+	 */
+	public static void setEnabled(boolean on) {
+		enabled = on;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Gets the user extension script which installs the cache
+	 * @return Script for {@link Selenium#setExtensionJs(String)}
+	 */
+	public static String extension() {
+		return Extension.SCRIPT;
+	}
+
+	/** Holds the extension script, so that it is only loaded once the cache is used */
+	private static class Extension {
+		static final String SCRIPT = BrowserScript.LIBRARY + "\n" + BrowserScript.load("tseng-cache.js");
+	}
+
+	/**
+	 * Builds a locator which resolves a UI Object through the cache
+	 * @param o Object to locate
+	 * @return Locator for the "tseng" strategy
+	 */
+	public static String locator(UIObject o) {
+		return PREFIX + BrowserScript.array(o.getCompiledLocatorPath());
+	}
+
+	/**
+	 * Wraps a Selenium so that, while the cache is enabled, commands whose
+	 * locator is the effective locator of the UI Object last looked up on
+	 * the thread use its cache locator instead. Objects are only known if
+	 * {@link UISelection} is tracking them.
+	 *
+	 * @param target Selenium to pass commands to
+	 * @return Selenium which routes UI Object commands through the cache
+	 */
+	public static Selenium route(final Selenium target) {
+		return (Selenium) Proxy.newProxyInstance(Selenium.class.getClassLoader(),
+				new Class[] { Selenium.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						UIObject o = enabled ? UISelection.object() : null;
+						if(o != null && args != null && args.length > 0 && args[0] instanceof String
+								&& args[0].equals(o.getEffectiveLocator())) {
+							// The proxy's argument array is made for each call, so may be changed
+							args[0] = o.getCachedLocator();
+						}
+						try {
+							return method.invoke(target, args);
+						} catch(InvocationTargetException e) {
+							throw e.getCause();
+						}
+					}
+				});
+	}
+
+	/**
+	 * Reads the counters of a session's cache
+	 * @param selenium Session to read from
+	 * @return Counters since the session started or was last collected,
+	 *         or null if the session does not have the cache installed
+	 */
+	public static Stats stats(Selenium selenium) {
+		return read(selenium, "typeof tseng != 'undefined' && tseng.cache ? tseng.cache.stats() : ''");
+	}
+
+	/**
+	 * Reads the counters of a session's cache, adds them to the totals
+	 * and zeroes them in the browser. Called for each session before it
+	 * is stopped.
+	 * @param selenium Session to read from
+	 * @return Counters collected, or null if the session does not have the cache installed
+	 */
+	public static Stats collect(Selenium selenium) {
+		Stats s = read(selenium, "typeof tseng != 'undefined' && tseng.cache ? "
+				+ "(function() { var s = tseng.cache.stats(); tseng.cache.reset(); return s; })() : ''");
+		if(s != null) {
+			hits.addAndGet(s.getHits());
+			misses.addAndGet(s.getMisses());
+			stale.addAndGet(s.getStale());
+			invalidations.addAndGet(s.getInvalidations());
+		}
+		return s;
+	}
+
+	/**
+	 * Gets the counters collected from all sessions so far
+	 */
+	public static Stats getTotals() {
+		return new Stats(hits.get(), misses.get(), stale.get(), invalidations.get(), 0);
+	}
+
+	private static Stats read(Selenium selenium, String script) {
+		String result = selenium.getEval(script);
+		if(result == null || result.length() == 0) {
+			return null;
+		}
+		List<Object> values = BrowserScript.decode(result);
+		if(values.size() != 5) {
+			throw new SeleniumException("Element cache returned " + values.size() + " counters");
+		}
+		return new Stats(number(values.get(0)), number(values.get(1)), number(values.get(2)),
+				number(values.get(3)), number(values.get(4)));
+	}
+
+	private static long number(Object value) {
+		return ((Integer) value).longValue();
+	}
+}
@@ -0,0 +1,464 @@
+/* Copyright 2008
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng.ui;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.testng.Reporter;
+
+import com.thoughtworks.selenium.Selenium;
+import com.thoughtworks.selenium.SeleniumException;
+
+/**
+ * Rewrites XPath locators as CSS selectors while a UI map is parsed,
+ * since browsers evaluate CSS much faster. A locator is only rewritten
+ * when the selector is certain to find the same element, which is the
+ * case for paths made of these parts:
+ * <ul>
+ * <li>steps separated by <code>//</code> or <code>/</code>, starting with <code>//</code></li>
+ * <li>lower-case element names, or <code>*</code></li>
+ * <li>predicates <code>[@attr]</code> and <code>[@attr='value']</code>, joined by <code>and</code>,
+ * except for value tests of attributes such as type, whose values CSS matches regardless of case</li>
+ * <li>the class-token idiom <code>[contains(concat(' ', normalize-space(@class), ' '), ' name ')]</code></li>
+ * </ul>
+ * Anything else, such as positions, text() or other axes, leaves the
+ * locator as it is.
+ *
+ * Components are only rewritten when their parent's locator is CSS and
+ * their path has a single step. Their locator can then be merged with
+ * the parent's, and keeps its meaning if the parent is cloned under a
+ * different locator.
+ *
+ * Every rewrite is logged. {@link #verify(Selenium)} checks on a live
+ * page that the original and rewritten locators find the same elements.
+ * <pre>
+ * LocatorOptimizer optimizer = new LocatorOptimizer();
+ * UIMapParser.parseFile(f, optimizer);
+ * assertTrue(optimizer.verify(Globals.s).isEmpty());
+ * </pre>
+ */
+public class LocatorOptimizer {
+	private static final String XPATH_PREFIX = "xpath=";
+	private static final String CSS_PREFIX = "css=";
+
+	/**
+	 * Attributes whose values HTML compares without regard to case in CSS
+	 * selectors, but which XPath compares exactly. Tests of their values
+	 * are never rewritten.
+	 */
+	private static final Set<String> CASE_INSENSITIVE_ATTRIBUTES = new HashSet<String>(Arrays.asList(
+			"accept", "accept-charset", "align", "alink", "axis", "bgcolor", "charset", "checked",
+			"clear", "codetype", "color", "compact", "declare", "defer", "dir", "direction", "disabled",
+			"enctype", "face", "frame", "hreflang", "http-equiv", "lang", "language", "link", "media",
+			"method", "multiple", "nohref", "noresize", "noshade", "nowrap", "readonly", "rel", "rev",
+			"rules", "scope", "scrolling", "selected", "shape", "target", "text", "type", "valign",
+			"valuetype", "vlink"));
+
+	/**
+	 * A locator which was rewritten
+	 */
+	public static final class Rewrite {
+		private final UIObject object;
+		private final String original;
+		private final String[] originalPath;
+
+		Rewrite(UIObject object, String original, String[] originalPath) {
+			this.object = object;
+			this.original = original;
+			this.originalPath = originalPath;
+		}
+
+		/**
+		 * Gets the object created with the rewritten locator
+		 */
+		public UIObject getObject() {
+			return object;
+		}
+
+		/**
+		 * Gets the locator as it was written in the UI map
+		 */
+		public String getOriginal() {
+			return original;
+		}
+
+		/**
+		 * Gets the locator the object was given
+		 */
+		public String getOptimized() {
+			return object.getLocator();
+		}
+
+		/**
+		 * Gets the object's locator path as it would have been without any rewrites
+		 */
+		public String[] getOriginalPath() {
+			return originalPath.clone();
+		}
+
+		public String toString() {
+			return original + " -> " + getOptimized();
+		}
+	}
+
+	private final List<Rewrite> rewrites = new ArrayList<Rewrite>();
+
+	/** Original locator paths of objects which are, or are beneath, a rewritten object */
+	private final Map<UIObject, String[]> originalPaths = new IdentityHashMap<UIObject, String[]>();
+
+	/**
+	 * Converts an XPath locator to an equivalent CSS locator
+	 *
+	 * @param locator Selenium locator
+	 * @return CSS locator, or null if the locator is not an XPath or has no certain CSS equivalent
+	 */
+	public static String toCss(String locator) {
+		Translation t = translate(locator);
+		return t == null ? null : CSS_PREFIX + t.selector;
+	}
+
+	/**
+	 * Chooses the locator to create an object with
+	 *
+	 * @param parent Parent of the object, or null for top-level objects
+	 * @param locator Locator given in the UI map
+	 * @return Rewritten locator, or the given one
+	 */
+	synchronized String optimize(UIObject parent, String locator) {
+		Translation t = translate(locator);
+		if(t == null) {
+			return locator;
+		}
+		if(parent != null && (t.steps > 1 || !parent.getLocator().startsWith(CSS_PREFIX))) {
+			return locator;
+		}
+		return CSS_PREFIX + t.selector;
+	}
+
+	/**
+	 * Notes that an object has been created, recording it if its locator
+	 * was rewritten
+	 *
+	 * @param o New object
+	 * @param parent Parent of the object, or null
+	 * @param original Locator given in the UI map
+	 */
+	synchronized void created(UIObject o, UIObject parent, String original) {
+		boolean rewritten = !original.equals(o.getLocator());
+		String[] parentPath = parent == null ? null : originalPaths.get(parent);
+		if(!rewritten && parentPath == null) {
+			return;
+		}
+
+		if(parentPath == null) {
+			parentPath = parent == null ? new String[0] : parent.getLocatorPath();
+		}
+		String[] path = new String[parentPath.length + 1];
+		System.arraycopy(parentPath, 0, path, 0, parentPath.length);
+		path[parentPath.length] = original;
+		originalPaths.put(o, path);
+
+		if(rewritten) {
+			Rewrite r = new Rewrite(o, original, path);
+			rewrites.add(r);
+			Reporter.log("Rewrote locator " + r);
+		}
+	}
+
+	/**
+	 * Gets every rewrite made so far, in the order they were made
+	 */
+	public synchronized List<Rewrite> getRewrites() {
+		return Collections.unmodifiableList(new ArrayList<Rewrite>(rewrites));
+	}
+
+	/**
+	 * Checks, in a single browser round-trip, that each rewritten object
+	 * is found at the same element as before it was rewritten. The page
+	 * should be one on which the objects appear.
+	 *
+	 * @param selenium Session showing the page to check against
+	 * @return Rewrites whose locators found different elements
+	 */
+	public List<Rewrite> verify(Selenium selenium) {
+		List<Rewrite> all = getRewrites();
+		if(all.isEmpty()) {
+			return all;
+		}
+
+		StringBuilder pairs = new StringBuilder("[");
+		for(int i = 0; i < all.size(); i++) {
+			if(i > 0) {
+				pairs.append(',');
+			}
+			pairs.append('[').append(BrowserScript.array(Locators.compile(all.get(i).originalPath)))
+				.append(',').append(BrowserScript.array(all.get(i).object.getCompiledLocatorPath())).append(']');
+		}
+		pairs.append(']');
+
+		List<Object> values = BrowserScript.decode(selenium.getEval(BrowserScript.script("tseng.agree(" + pairs + ")")));
+		if(values.size() != all.size()) {
+			throw new SeleniumException("Verification of " + all.size() + " locators returned " + values.size() + " values");
+		}
+
+		List<Rewrite> disagreements = new ArrayList<Rewrite>();
+		for(int i = 0; i < all.size(); i++) {
+			if(!Boolean.TRUE.equals(values.get(i))) {
+				disagreements.add(all.get(i));
+				Reporter.log("Rewritten locator found a different element: " + all.get(i));
+			}
+		}
+		return disagreements;
+	}
+
+	/** A CSS selector translated from an XPath */
+	private static class Translation {
+		final String selector;
+		final int steps;
+
+		Translation(String selector, int steps) {
+			this.selector = selector;
+			this.steps = steps;
+		}
+	}
+
+	private static Translation translate(String locator) {
+		String xpath;
+		if(locator.startsWith(XPATH_PREFIX)) {
+			xpath = locator.substring(XPATH_PREFIX.length());
+		} else if(locator.startsWith("//")) {
+			xpath = locator;
+		} else {
+			return null;
+		}
+		return new Translator(xpath.trim()).translate();
+	}
+
+	/**
+	 * Reads the supported subset of XPath, giving up at the first
+	 * construct outside it
+	 */
+	private static class Translator {
+		private final String in;
+		private int pos = 0;
+		private final StringBuilder out = new StringBuilder();
+
+		Translator(String in) {
+			this.in = in;
+		}
+
+		Translation translate() {
+			if(!in.startsWith("//")) {
+				return null;
+			}
+			int steps = 0;
+			while(pos < in.length()) {
+				if(in.startsWith("//", pos)) {
+					pos += 2;
+					if(steps > 0) {
+						out.append(' ');
+					}
+				} else if(in.startsWith("/", pos)) {
+					pos += 1;
+					out.append(" > ");
+				} else {
+					return null;
+				}
+				if(!step()) {
+					return null;
+				}
+				steps++;
+			}
+			return new Translation(out.toString(), steps);
+		}
+
+		/** Reads a name test and its predicates */
+		private boolean step() {
+			if(in.startsWith("*", pos)) {
+				pos++;
+				out.append('*');
+			} else {
+				String name = name(false);
+				if(name == null) {
+					return false;
+				}
+				out.append(name);
+			}
+			while(pos < in.length() && in.charAt(pos) == '[') {
+				pos++;
+				if(!predicate()) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/** Reads the contents of a predicate, up to and including the closing bracket */
+		private boolean predicate() {
+			do {
+				space();
+				if(!condition()) {
+					return false;
+				}
+				space();
+			} while(keyword("and"));
+			return expect(']');
+		}
+
+		/** Reads one attribute test */
+		private boolean condition() {
+			if(in.startsWith("contains(", pos)) {
+				return classToken();
+			}
+			if(!expect('@')) {
+				return false;
+			}
+			String attribute = name(true);
+			if(attribute == null) {
+				return false;
+			}
+			space();
+			if(!expect('=')) {
+				out.append('[').append(attribute).append(']');
+				return true;
+			}
+			space();
+			String value = literal();
+			if(value == null || CASE_INSENSITIVE_ATTRIBUTES.contains(attribute)) {
+				return false;
+			}
+			out.append('[').append(attribute).append("=").append(cssString(value)).append(']');
+			return true;
+		}
+
+		/**
+		 * Reads contains(concat(' ', normalize-space(@class), ' '), ' name '),
+		 * which tests for a class name as CSS's ~= does
+		 */
+		private boolean classToken() {
+			if(!(keyword("contains") && expect('(') && keyword("concat") && expect('('))) {
+				return false;
+			}
+			if(!" ".equals(literal()) || !expect(',') || !keyword("normalize-space") || !expect('(')
+					|| !expect('@') || !"class".equals(name(true)) || !expect(')') || !expect(',')
+					|| !" ".equals(literal()) || !expect(')') || !expect(',')) {
+				return false;
+			}
+			String token = literal();
+			if(token == null || token.length() < 3 || token.charAt(0) != ' ' || token.charAt(token.length() - 1) != ' ') {
+				return false;
+			}
+			token = token.substring(1, token.length() - 1);
+			if(token.length() == 0 || token.indexOf(' ') >= 0 || !expect(')')) {
+				return false;
+			}
+			out.append("[class~=").append(cssString(token)).append(']');
+			return true;
+		}
+
+		/**
+		 * Reads an element or attribute name. Only lower-case names are
+		 * accepted, as HTML matches upper-case names differently in XPath.
+		 */
+		private String name(boolean attribute) {
+			int start = pos;
+			while(pos < in.length()) {
+				char c = in.charAt(pos);
+				if((c >= 'a' && c <= 'z') || (pos > start && ((c >= '0' && c <= '9') || (attribute && c == '-')))) {
+					pos++;
+				} else {
+					break;
+				}
+			}
+			return pos > start ? in.substring(start, pos) : null;
+		}
+
+		/** Reads a quoted string */
+		private String literal() {
+			space();
+			if(pos >= in.length()) {
+				return null;
+			}
+			char quote = in.charAt(pos);
+			if(quote != '\'' && quote != '"') {
+				return null;
+			}
+			int end = in.indexOf(quote, pos + 1);
+			if(end < 0) {
+				return null;
+			}
+			String value = in.substring(pos + 1, end);
+			pos = end + 1;
+			space();
+			return value;
+		}
+
+		/** Reads a word, such as a function name or operator, followed by optional spaces */
+		private boolean keyword(String word) {
+			space();
+			if(!in.startsWith(word, pos)) {
+				return false;
+			}
+			int end = pos + word.length();
+			if(end < in.length() && Character.isLetterOrDigit(in.charAt(end))) {
+				return false;
+			}
+			pos = end;
+			space();
+			return true;
+		}
+
+		private boolean expect(char c) {
+			space();
+			if(pos < in.length() && in.charAt(pos) == c) {
+				pos++;
+				space();
+				return true;
+			}
+			return false;
+		}
+
+		private void space() {
+			while(pos < in.length() && in.charAt(pos) == ' ') {
+				pos++;
+			}
+		}
+	}
+
+	/**
+	 * Renders a value as a double-quoted CSS string
+	 */
+	private static String cssString(String value) {
+		StringBuilder out = new StringBuilder("\"");
+		for(int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if(c == '"' || c == '\\') {
+				out.append('\\').append(c);
+			} else if(c == '\n' || c == '\r' || c == '\f') {
+				out.append('\\').append(Integer.toHexString(c)).append(' ');
+			} else {
+				out.append(c);
+			}
+		}
+		return out.append('"').toString();
+	}
+}
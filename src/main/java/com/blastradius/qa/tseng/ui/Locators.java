@@ -0,0 +1,191 @@
+/* Copyright 2008
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng.ui;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Utilities for combining chains of Selenium locators.
+ *
+ * Adjacent XPath segments are merged by concatenation, so that
+ * <code>//div[@id='a']</code> followed by <code>//span</code> becomes
+ * <code>xpath=//div[@id='a']//span</code>. Adjacent CSS segments are
+ * merged with the descendant combinator. Segments of any other kind,
+ * or which could change meaning when merged (unions, selector groups),
+ * are left as they are.
+ */
+final class Locators {
+	private static final String XPATH_PREFIX = "xpath=";
+	private static final String CSS_PREFIX = "css=";
+
+	/**
+	 * Function which resolves a locator path in the same way as
+	 * tseng.find in tseng.js, but without needing the helper library.
+	 * Selenium evaluates dom= locators with the BrowserBot as this.
+	 */
+	private static final String SCOPED_FUNCTION = "(function(bot, path) {"
+		+ " var e = bot.findElementOrNull(path[0]);"
+		+ " for(var i = 1; e && i < path.length; i++) {"
+		+ " var l = path[i], d = e.ownerDocument;"
+		+ " var x = l.indexOf('xpath=') == 0 ? l.substring(6) : l.indexOf('//') == 0 ? l : null;"
+		+ " if(x != null && x.charAt(0) == '/' && d.evaluate) {"
+		+ " e = d.evaluate('.' + x, e, null, 9, null).singleNodeValue;"
+		+ " } else if(l.indexOf('css=') == 0 && e.querySelector) {"
+		+ " e = e.querySelector(l.substring(4));"
+		+ " } else {"
+		+ " var f = bot.findElementOrNull(l), n = f;"
+		+ " while(n && n != e) { n = n.parentNode; }"
+		+ " e = n ? f : null;"
+		+ " } }"
+		+ " return e; })";
+
+	private enum Kind { XPATH, CSS, OTHER }
+
+	private Locators() {
+	}
+
+	/**
+	 * Merges runs of compatible locators in a chain.
+	 *
+	 * @param chain Locators from least- to most-specific
+	 * @return Equivalent chain, of length 1 if all segments could be merged
+	 */
+	static String[] compile(String[] chain) {
+		List<String> out = new ArrayList<String>();
+
+		Kind runKind = null;
+		StringBuilder run = null;
+		String runOriginal = null;
+
+		for(String segment : chain) {
+			Kind kind = kindOf(segment);
+			String body = bodyOf(segment, kind);
+
+			if(run != null && kind == runKind && canAppend(kind, body)) {
+				if(kind == Kind.CSS) {
+					run.append(' ');
+				}
+				run.append(body);
+				runOriginal = null;
+				continue;
+			}
+
+			flush(out, runKind, run, runOriginal);
+			if(kind == Kind.OTHER || !canStart(kind, body)) {
+				out.add(segment);
+				runKind = null;
+				run = null;
+			} else {
+				runKind = kind;
+				run = new StringBuilder(body);
+				runOriginal = segment;
+			}
+		}
+		flush(out, runKind, run, runOriginal);
+
+		return out.toArray(new String[out.size()]);
+	}
+
+	/**
+	 * Adds a finished run to the output. Runs of a single segment are
+	 * added in their original form.
+	 */
+	private static void flush(List<String> out, Kind kind, StringBuilder run, String original) {
+		if(run == null) {
+			return;
+		}
+		if(original != null) {
+			out.add(original);
+		} else {
+			out.add((kind == Kind.XPATH ? XPATH_PREFIX : CSS_PREFIX) + run);
+		}
+	}
+
+	/**
+	 * Builds a single locator which resolves a whole locator path, each
+	 * locator within the element found by the one before it
+	 *
+	 * @param path Compiled locator path
+	 * @return The only locator if the path has one, otherwise a dom= locator
+	 */
+	static String scoped(String[] path) {
+		if(path.length == 1) {
+			return path[0];
+		}
+		return "dom=" + SCOPED_FUNCTION + "(this, " + BrowserScript.array(path) + ")";
+	}
+
+	/**
+	 * Describes a UI Object by its chain of locators, for use in messages
+	 */
+	static String describe(UIObject o) {
+		StringBuilder out = new StringBuilder();
+		for(String locator : o.getLocatorPath()) {
+			if(out.length() > 0) {
+				out.append(" > ");
+			}
+			out.append(locator);
+		}
+		return out.toString();
+	}
+
+	private static Kind kindOf(String locator) {
+		if(locator.startsWith(XPATH_PREFIX) || locator.startsWith("//")) {
+			return Kind.XPATH;
+		} else if(locator.startsWith(CSS_PREFIX)) {
+			return Kind.CSS;
+		}
+		return Kind.OTHER;
+	}
+
+	private static String bodyOf(String locator, Kind kind) {
+		switch(kind) {
+		case XPATH:
+			return locator.startsWith(XPATH_PREFIX) ? locator.substring(XPATH_PREFIX.length()) : locator;
+		case CSS:
+			return locator.substring(CSS_PREFIX.length());
+		default:
+			return locator;
+		}
+	}
+
+	/**
+	 * Whether a segment may be the first of a merged run. Unions and
+	 * selector groups would bind more loosely than the concatenation.
+	 */
+	private static boolean canStart(Kind kind, String body) {
+		switch(kind) {
+		case XPATH:
+			return body.indexOf('|') < 0;
+		case CSS:
+			return body.indexOf(',') < 0 && body.trim().length() > 0;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Whether a segment may follow another in a merged run. XPath
+	 * segments must be location paths starting with '/', so that they
+	 * continue the path built so far.
+	 */
+	private static boolean canAppend(Kind kind, String body) {
+		if(!canStart(kind, body)) {
+			return false;
+		}
+		return kind != Kind.XPATH || body.startsWith("/");
+	}
+}
@@ -0,0 +1,55 @@
+/* Copyright 2008
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng.ui;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Shares a single copy of each name and locator among all UI Objects.
+ * Large maps repeat the same names and locators many times, particularly
+ * in objects cloned from templates, and each copy read from a file is
+ * otherwise a separate string.
+ *
+ * Unlike {@link String#intern()}, strings are kept on the ordinary heap.
+ * They are never released, which suits UI maps since they live as long
+ * as the test run.
+ */
+final class StringPool {
+	private static final ConcurrentMap<String, String> pool = new ConcurrentHashMap<String, String>();
+
+	private StringPool() {
+	}
+
+	/**
+	 * Gets the shared copy of a string
+	 * @param s String to look up, or null
+	 * @return Shared string equal to s, or null
+	 */
+	static String canonical(String s) {
+		if(s == null) {
+			return null;
+		}
+		String shared = pool.putIfAbsent(s, s);
+		return shared != null ? shared : s;
+	}
+
+	/**
+	 * Gets the number of distinct strings in the pool
+	 */
+	static int size() {
+		return pool.size();
+	}
+}
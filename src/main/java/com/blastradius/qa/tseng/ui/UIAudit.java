@@ -0,0 +1,307 @@
+/* Copyright 2008
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng.ui;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.blastradius.qa.tseng.Globals;
+import com.thoughtworks.selenium.Selenium;
+import com.thoughtworks.selenium.SeleniumException;
+
+/**
+ * Checks every locator in one or more UI Object trees against a page in
+ * a single browser round-trip, to find which have broken after a change
+ * to the site:
+ * <pre>
+ * UIAudit audit = UIAudit.check("/cart", "cart", "header");
+ * assertTrue(audit.isClean(), audit.toString());
+ * </pre>
+ * Each element is counted as a test would find it, through its
+ * {@link UIObject#getCompiledLocatorPath() compiled locator path}. Where
+ * an element's locator was merged into its parent's, it is counted within
+ * every match of the parent; where it could not be merged, it is counted
+ * within the first. An element is missing if nothing matches, and
+ * ambiguous if more than one element does, since tests would silently
+ * act on the first.
+ */
+public final class UIAudit {
+	/**
+	 * The outcome of checking one element
+	 */
+	public static final class Entry {
+		private final String name;
+		private final UIObject object;
+		private final int matches;
+		private final long micros;
+
+		Entry(String name, UIObject object, int matches, long micros) {
+			this.name = name;
+			this.object = object;
+			this.matches = matches;
+			this.micros = micros;
+		}
+
+		/**
+		 * Gets the names leading to the element, separated by '/'
+		 */
+		public String getName() {
+			return name;
+		}
+
+		public UIObject getObject() {
+			return object;
+		}
+
+		/**
+		 * Gets the number of elements the locator matched, or -1 if it
+		 * could not be evaluated. Locators other than XPath and CSS are
+		 * only ever counted as 0 or 1.
+		 */
+		public int getMatches() {
+			return matches;
+		}
+
+		/**
+		 * Gets the time the browser took to evaluate the locator, in microseconds
+		 */
+		public long getMicros() {
+			return micros;
+		}
+
+		public boolean isMissing() {
+			return matches == 0;
+		}
+
+		public boolean isAmbiguous() {
+			return matches > 1;
+		}
+
+		/**
+		 * Whether the locator could not be evaluated, usually because it
+		 * is malformed
+		 */
+		public boolean isInvalid() {
+			return matches < 0;
+		}
+
+		/**
+		 * Describes the state of the element: ok, missing, ambiguous or invalid
+		 */
+		public String getStatus() {
+			return isInvalid() ? "invalid" : isMissing() ? "missing" : isAmbiguous() ? "ambiguous" : "ok";
+		}
+	}
+
+	private final String page;
+	private final List<Entry> entries;
+	private final long elapsed;
+
+	private UIAudit(String page, List<Entry> entries, long elapsed) {
+		this.page = page;
+		this.entries = Collections.unmodifiableList(entries);
+		this.elapsed = elapsed;
+	}
+
+	/**
+	 * Opens a page and checks top-level UI Objects and their descendants
+	 * against it, using {@link Globals#s}.
+	 *
+	 * @param url Page to open, or null to check the page already open
+	 * @param names Names of top-level UI Objects mapped to the page
+	 * @return Results of the check
+	 */
+	public static UIAudit check(String url, String... names) {
+		Map<String, UIObject> roots = new LinkedHashMap<String, UIObject>();
+		for(String name : names) {
+			UIObject o = UIMap.get(name);
+			if(o == null) {
+				throw new IllegalArgumentException("No UI Object named '" + name + "' has been defined");
+			}
+			roots.put(name, o);
+		}
+		return check(Globals.s, url, roots);
+	}
+
+	/**
+	 * Opens a page and checks UI Objects and their descendants against it
+	 *
+	 * @param selenium Session to check the page with
+	 * @param url Page to open, or null to check the page already open
+	 * @param roots UI Objects to check, by name
+	 * @return Results of the check
+	 */
+	public static UIAudit check(Selenium selenium, String url, Map<String, UIObject> roots) {
+		if(url != null) {
+			selenium.open(url);
+		}
+
+		List<String> names = new ArrayList<String>();
+		List<UIObject> nodes = new ArrayList<UIObject>();
+		for(Map.Entry<String, UIObject> root : roots.entrySet()) {
+			collect(root.getKey(), root.getValue(), names, nodes);
+		}
+
+		StringBuilder paths = new StringBuilder("[");
+		for(int i = 0; i < nodes.size(); i++) {
+			if(i > 0) {
+				paths.append(',');
+			}
+			// The path tests use, so merged locators are counted as tests would match them
+			paths.append(BrowserScript.array(nodes.get(i).getCompiledLocatorPath()));
+		}
+		paths.append(']');
+
+		long start = System.currentTimeMillis();
+		List<Object> values = BrowserScript.decode(selenium.getEval(BrowserScript.script("tseng.audit(" + paths + ")")));
+		long elapsed = System.currentTimeMillis() - start;
+		if(values.size() != nodes.size() * 2) {
+			throw new SeleniumException("Audit of " + nodes.size() + " elements returned " + values.size() + " values");
+		}
+
+		List<Entry> entries = new ArrayList<Entry>(nodes.size());
+		Iterator<Object> it = values.iterator();
+		for(int i = 0; i < nodes.size(); i++) {
+			int matches = ((Integer) it.next()).intValue();
+			long micros = ((Integer) it.next()).longValue();
+			entries.add(new Entry(names.get(i), nodes.get(i), matches, micros));
+		}
+		return new UIAudit(url, entries, elapsed);
+	}
+
+	/**
+	 * Lists a tree's nodes depth-first, children in name order
+	 */
+	private static void collect(String name, UIObject o, List<String> names, List<UIObject> nodes) {
+		names.add(name);
+		nodes.add(o);
+		for(Map.Entry<String, UIObject> child : new TreeMap<String, UIObject>(o.getChildren()).entrySet()) {
+			collect(name + "/" + child.getKey(), child.getValue(), names, nodes);
+		}
+	}
+
+	/**
+	 * Gets the page that was checked, or null if it was not opened by the audit
+	 */
+	public String getPage() {
+		return page;
+	}
+
+	/**
+	 * Gets the results for every element, depth-first
+	 */
+	public List<Entry> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Gets the time taken by the whole check, including the round-trip
+	 * to the browser, in milliseconds
+	 */
+	public long getElapsed() {
+		return elapsed;
+	}
+
+	public List<Entry> getMissing() {
+		List<Entry> out = new ArrayList<Entry>();
+		for(Entry e : entries) {
+			if(e.isMissing()) {
+				out.add(e);
+			}
+		}
+		return out;
+	}
+
+	public List<Entry> getAmbiguous() {
+		List<Entry> out = new ArrayList<Entry>();
+		for(Entry e : entries) {
+			if(e.isAmbiguous()) {
+				out.add(e);
+			}
+		}
+		return out;
+	}
+
+	public List<Entry> getInvalid() {
+		List<Entry> out = new ArrayList<Entry>();
+		for(Entry e : entries) {
+			if(e.isInvalid()) {
+				out.add(e);
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Whether every element matched exactly once
+	 */
+	public boolean isClean() {
+		for(Entry e : entries) {
+			if(e.getMatches() != 1) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the results for every element as CSV, with the columns
+	 * page, element, locator, matches, status and micros
+	 */
+	public void writeCsv(Writer out) throws IOException {
+		out.write("page,element,locator,matches,status,micros\n");
+		for(Entry e : entries) {
+			out.write(quote(page) + "," + quote(e.getName()) + "," + quote(Locators.describe(e.getObject()))
+					+ "," + e.getMatches() + "," + e.getStatus() + "," + e.getMicros() + "\n");
+		}
+		out.flush();
+	}
+
+	private static String quote(String s) {
+		return s == null ? "" : "\"" + s.replace("\"", "\"\"") + "\"";
+	}
+
+	/**
+	 * Summarizes the audit, listing every element which did not match exactly once
+	 */
+	public String toString() {
+		StringBuilder out = new StringBuilder();
+		out.append("Checked ").append(entries.size()).append(" elements");
+		if(page != null) {
+			out.append(" on ").append(page);
+		}
+		out.append(" in ").append(elapsed).append("ms: ")
+			.append(getMissing().size()).append(" missing, ")
+			.append(getAmbiguous().size()).append(" ambiguous, ")
+			.append(getInvalid().size()).append(" invalid");
+		for(Entry e : entries) {
+			if(e.getMatches() != 1) {
+				out.append("\n\t").append(e.getStatus()).append(": ").append(e.getName())
+					.append(" (").append(Locators.describe(e.getObject())).append(")");
+				if(e.isAmbiguous()) {
+					out.append(" matched ").append(e.getMatches());
+				}
+			}
+		}
+		return out.toString();
+	}
+}
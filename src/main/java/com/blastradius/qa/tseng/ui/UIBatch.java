@@ -0,0 +1,180 @@
+/* Copyright 2008
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng.ui;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.blastradius.qa.tseng.Globals;
+import com.thoughtworks.selenium.Selenium;
+import com.thoughtworks.selenium.SeleniumException;
+
+/**
+ * Queues reads against UI Objects and performs them all in a single
+ * browser round-trip. Each queued read returns a {@link Result}, whose
+ * value becomes available once the batch is flushed:
+ * <pre>
+ * UIBatch batch = new UIBatch();
+ * UIBatch.Result&lt;String&gt; name = batch.text(UIMap.ui("cart", "name"));
+ * UIBatch.Result&lt;Boolean&gt; shown = batch.isVisible(UIMap.ui("cart", "total"));
+ * batch.flush();
+ * assertEquals(name.get(), "Widget");
+ * </pre>
+ */
+public class UIBatch {
+	private final Selenium selenium;
+	private final List<Result<?>> queued = new ArrayList<Result<?>>();
+	private final StringBuilder queries = new StringBuilder();
+
+	/**
+	 * Creates a batch which runs against {@link Globals#s}
+	 */
+	public UIBatch() {
+		this(Globals.s);
+	}
+
+	/**
+	 * @param selenium Selenium session to run the batch against
+	 */
+	public UIBatch(Selenium selenium) {
+		this.selenium = selenium;
+	}
+
+	/**
+	 * The outcome of a queued read, available after the batch is flushed
+	 */
+	public static class Result<T> {
+		private final UIObject target;
+		private final Class<T> type;
+		private boolean done = false;
+		private boolean missing = false;
+		private T value;
+
+		Result(UIObject target, Class<T> type) {
+			this.target = target;
+			this.type = type;
+		}
+
+		/**
+		 * Gets the value that was read
+		 * @return Value read from the browser
+		 * @throws IllegalStateException if the batch has not been flushed
+		 * @throws SeleniumException if the element was not found
+		 */
+		public T get() {
+			if(!done) {
+				throw new IllegalStateException("Batch must be flushed before results are read");
+			}
+			if(missing) {
+				throw new SeleniumException("Element " + Locators.describe(target) + " not found");
+			}
+			return value;
+		}
+
+		/**
+		 * Whether the batch containing this result has been flushed
+		 */
+		public boolean isDone() {
+			return done;
+		}
+
+		void complete(Object decoded) {
+			done = true;
+			if(decoded == BrowserScript.MISSING) {
+				missing = true;
+			} else {
+				value = type.cast(decoded);
+			}
+		}
+	}
+
+	/**
+	 * Queues a read of an element's text
+	 */
+	public Result<String> text(UIObject o) {
+		return queue(o, "text", null, String.class);
+	}
+
+	/**
+	 * Queues a read of an input element's value
+	 */
+	public Result<String> value(UIObject o) {
+		return queue(o, "value", null, String.class);
+	}
+
+	/**
+	 * Queues a read of one of an element's attributes. The result is null
+	 * if the element does not have the attribute.
+	 */
+	public Result<String> attribute(UIObject o, String name) {
+		return queue(o, "attribute", name, String.class);
+	}
+
+	/**
+	 * Queues a check of whether an element is on the page
+	 */
+	public Result<Boolean> isPresent(UIObject o) {
+		return queue(o, "present", null, Boolean.class);
+	}
+
+	/**
+	 * Queues a check of whether an element is visible
+	 */
+	public Result<Boolean> isVisible(UIObject o) {
+		return queue(o, "visible", null, Boolean.class);
+	}
+
+	/**
+	 * Gets the number of reads waiting to be flushed
+	 */
+	public int size() {
+		return queued.size();
+	}
+
+	/**
+	 * Performs all queued reads in one call to the browser and completes
+	 * their results. The batch is empty afterwards and may be reused.
+	 */
+	public void flush() {
+		if(queued.isEmpty()) {
+			return;
+		}
+
+		String script = BrowserScript.script("tseng.batch([" + queries + "])");
+		List<Object> values = BrowserScript.decode(selenium.getEval(script));
+		if(values.size() != queued.size()) {
+			throw new SeleniumException("Batch of " + queued.size() + " reads returned " + values.size() + " values");
+		}
+
+		for(int i = 0; i < values.size(); i++) {
+			queued.get(i).complete(values.get(i));
+		}
+		queued.clear();
+		queries.setLength(0);
+	}
+
+	private <T> Result<T> queue(UIObject o, String operation, String argument, Class<T> type) {
+		if(queries.length() > 0) {
+			queries.append(',');
+		}
+		queries.append('[').append(BrowserScript.quote(operation)).append(',')
+			.append(BrowserScript.array(o.getCompiledLocatorPath())).append(',')
+			.append(BrowserScript.quote(argument)).append(']');
+
+		Result<T> result = new Result<T>(o, type);
+		queued.add(result);
+		return result;
+	}
+}
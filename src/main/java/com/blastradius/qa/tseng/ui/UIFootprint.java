@@ -0,0 +1,247 @@
+/* Copyright 2008
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng.ui;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Estimates the heap taken by a tree of UI Objects, for judging the cost
+ * of a loaded map:
+ * <pre>
+ * Reporter.log(UIFootprint.measure().toString());
+ * </pre>
+ * Sizes are calculated from a model of the JVM's object layout rather
+ * than measured, using 4-byte references and 8-byte headers on 32-bit
+ * JVMs, 8-byte references and 16-byte headers on 64-bit ones, and 8-byte
+ * alignment. Only children which have been copied from their templates
+ * are counted; children still shared with a template are counted once,
+ * with the template.
+ */
+public final class UIFootprint {
+	private final int reference;
+	private final int header;
+
+	private int objects = 0;
+	private int childTables = 0;
+	private int childSlots = 0;
+	private int cachedPaths = 0;
+	private int strings = 0;
+	private long characters = 0;
+	private int stringReferences = 0;
+
+	private long objectBytes = 0;
+	private long childTableBytes = 0;
+	private long stringBytes = 0;
+	private long cacheBytes = 0;
+	private long hashMapBytes = 0;
+
+	private UIFootprint(boolean wide) {
+		reference = wide ? 8 : 4;
+		header = wide ? 16 : 8;
+	}
+
+	/**
+	 * Measures every top-level object in the UI map and its descendants
+	 */
+	public static UIFootprint measure() {
+		List<UIObject> roots = new ArrayList<UIObject>();
+		for(String name : UIMap.names()) {
+			roots.add(UIMap.get(name));
+		}
+		return measure(roots);
+	}
+
+	/**
+	 * Measures the given objects and their descendants, including the
+	 * templates they were cloned from
+	 */
+	public static UIFootprint measure(Collection<UIObject> roots) {
+		UIFootprint f = new UIFootprint("64".equals(System.getProperty("sun.arch.data.model")));
+		f.walk(roots);
+		return f;
+	}
+
+	private void walk(Collection<UIObject> roots) {
+		Map<Object, Boolean> seen = new IdentityHashMap<Object, Boolean>();
+		LinkedList<UIObject> queue = new LinkedList<UIObject>(roots);
+		while(!queue.isEmpty()) {
+			UIObject o = queue.removeFirst();
+			if(o == null || seen.put(o, Boolean.TRUE) != null) {
+				continue;
+			}
+
+			objects++;
+			// Parent, locator, template and its children, children, and three locator caches, plus a flag
+			objectBytes += align(header + 8 * reference + 1);
+			string(o.getLocator(), seen);
+
+			ChildTable table = o.childTable();
+			if(table.size() > 0) {
+				hashMapBytes += hashMap(table.size());
+				table(table, seen, queue);
+			}
+			// Usually still the template's own table, unless children were added to it since
+			ChildTable shared = o.templateChildTable();
+			if(shared != null && shared.size() > 0) {
+				table(shared, seen, queue);
+			}
+
+			cache(o.cachedLocatorPath(), seen);
+			cache(o.cachedCompiledLocatorPath(), seen);
+			cache(o.cachedCacheLocator(), seen);
+			queue.add(o.getTemplate());
+		}
+	}
+
+	private void table(ChildTable table, Map<Object, Boolean> seen, LinkedList<UIObject> queue) {
+		if(seen.put(table, Boolean.TRUE) == null) {
+			childTables++;
+			childSlots += table.size();
+			childTableBytes += align(header + 2 * reference) + 2 * array(table.size(), reference);
+		}
+		for(int i = 0; i < table.size(); i++) {
+			string(table.names[i], seen);
+			queue.add(table.values[i]);
+		}
+	}
+
+	private void string(String s, Map<Object, Boolean> seen) {
+		if(s == null) {
+			return;
+		}
+		stringReferences++;
+		if(seen.put(s, Boolean.TRUE) == null) {
+			strings++;
+			characters += s.length();
+			// Value, offset, count and hash
+			stringBytes += align(header + reference + 12) + array(s.length(), 2);
+		}
+	}
+
+	private void cache(String locator, Map<Object, Boolean> seen) {
+		if(locator != null && seen.put(locator, Boolean.TRUE) == null) {
+			cacheBytes += align(header + reference + 12) + array(locator.length(), 2);
+		}
+	}
+
+	private void cache(String[] path, Map<Object, Boolean> seen) {
+		if(path == null || seen.put(path, Boolean.TRUE) != null) {
+			return;
+		}
+		cachedPaths++;
+		cacheBytes += array(path.length, reference);
+		for(String s : path) {
+			// Merged locators are new strings; others are shared with the objects
+			if(seen.put(s, Boolean.TRUE) == null) {
+				cacheBytes += align(header + reference + 12) + array(s.length(), 2);
+			}
+		}
+	}
+
+	/**
+	 * Estimates the size of an unmodifiable HashMap of children, as UI
+	 * Objects used to hold, for comparison
+	 */
+	private long hashMap(int size) {
+		int capacity = 16;
+		while(size > capacity * 3 / 4) {
+			capacity *= 2;
+		}
+		// HashMap fields, its table, one entry per child, and the unmodifiable wrapper
+		return align(header + 3 * reference + 16) + array(capacity, reference)
+			+ size * align(header + 3 * reference + 4) + align(header + 4 * reference);
+	}
+
+	private long array(int length, int width) {
+		return align(header + 4 + (long) length * width);
+	}
+
+	private static long align(long bytes) {
+		return (bytes + 7) & ~7L;
+	}
+
+	/** Gets the number of UI Objects counted */
+	public int getObjects() {
+		return objects;
+	}
+
+	/** Gets the number of distinct child tables, and the children in them */
+	public int getChildTables() {
+		return childTables;
+	}
+
+	public int getChildSlots() {
+		return childSlots;
+	}
+
+	/** Gets the number of distinct name and locator strings */
+	public int getStrings() {
+		return strings;
+	}
+
+	/** Gets the number of references to name and locator strings, including repeats */
+	public int getStringReferences() {
+		return stringReferences;
+	}
+
+	/** Gets the number of cached locator paths */
+	public int getCachedPaths() {
+		return cachedPaths;
+	}
+
+	/**
+	 * Gets the estimated size of everything counted, in bytes
+	 */
+	public long getTotalBytes() {
+		return objectBytes + childTableBytes + stringBytes + cacheBytes;
+	}
+
+	public long getObjectBytes() {
+		return objectBytes;
+	}
+
+	public long getChildTableBytes() {
+		return childTableBytes;
+	}
+
+	public long getStringBytes() {
+		return stringBytes;
+	}
+
+	public long getCacheBytes() {
+		return cacheBytes;
+	}
+
+	/**
+	 * Gets the estimated size of the same children held in one HashMap
+	 * per object, for comparison with {@link #getChildTableBytes()}
+	 */
+	public long getHashMapBytes() {
+		return hashMapBytes;
+	}
+
+	public String toString() {
+		return "UI map footprint: " + objects + " objects, " + childTables + " child tables (" + childSlots
+			+ " children), " + strings + " distinct strings (" + characters + " chars, " + stringReferences
+			+ " references), " + cachedPaths + " cached locator paths\n"
+			+ "Estimated " + getTotalBytes() + " bytes: objects " + objectBytes + ", child tables " + childTableBytes
+			+ " (" + hashMapBytes + " as hash maps), strings " + stringBytes + ", locator caches " + cacheBytes;
+	}
+}
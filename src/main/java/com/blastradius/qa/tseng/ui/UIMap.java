@@ -14,27 +14,156 @@
  */
 package com.blastradius.qa.tseng.ui;
 
-import java.util.Hashtable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Manages the top-level UI Elements
+ * 
+ * The registry is an immutable map which is replaced as a whole whenever
+ * elements are registered, so lookups never need to take a lock. Many
+ * elements can be registered at once through a {@link Batch}.
  */
 public class UIMap {
-	private static Hashtable<String, UIObject> uimap = new Hashtable<String, UIObject>();
+	private static final AtomicReference<Map<String, UIObject>> uimap =
+		new AtomicReference<Map<String, UIObject>>(Collections.<String, UIObject>emptyMap());
+	
+	/**
+	 * Incremented whenever an element is registered anywhere in the tree,
+	 * invalidating paths resolved by {@link UIPath} handles.
+	 */
+	private static final AtomicInteger generation = new AtomicInteger();
 	
 	public static UIObject ui(String... path) {
 		UIObject out = get(path[0]);
 		for(int i = 1; i < path.length; i++) {
 			out = out.ui(path[i]);
 		}
+		if(UISelection.isTracking()) {
+			UISelection.select(out, path);
+		}
 		return out;
 	}
 
 	public static UIObject get(String name) {
-		return uimap.get(name);
+		return uimap.get().get(name);
+	}
+
+	/**
+	 * Creates a handle to the element at the given path. The handle
+	 * resolves the path once and remembers the result until elements are
+	 * next registered, making it suitable for frequently-used elements.
+	 * 
+	 * @param path Names leading from a top-level element to the target
+	 * @return Handle to the element
+	 */
+	public static UIPath path(String... path) {
+		return new UIPath(path);
 	}
 
 	public static UIObject put(String name, UIObject value) {
-		return uimap.put(name, value);
+		while(true) {
+			Map<String, UIObject> current = uimap.get();
+			Map<String, UIObject> next = new HashMap<String, UIObject>(current);
+			UIObject previous = next.put(name, value);
+			if(uimap.compareAndSet(current, Collections.unmodifiableMap(next))) {
+				invalidatePaths();
+				return previous;
+			}
+		}
+	}
+	
+	/**
+	 * Registers several top-level elements in a single update
+	 * @param values UI Objects by name
+	 */
+	public static void putAll(Map<String, UIObject> values) {
+		if(values.isEmpty()) {
+			return;
+		}
+		while(true) {
+			Map<String, UIObject> current = uimap.get();
+			Map<String, UIObject> next = new HashMap<String, UIObject>(current);
+			next.putAll(values);
+			if(uimap.compareAndSet(current, Collections.unmodifiableMap(next))) {
+				invalidatePaths();
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Gets the current registration generation
+	 */
+	static int generation() {
+		return generation.get();
+	}
+	
+	/**
+	 * Marks all resolved paths as stale
+	 */
+	static void invalidatePaths() {
+		generation.incrementAndGet();
+	}
+
+	/**
+	 * Gets the names of all top-level UI Objects
+	 * @return Unmodifiable set of the names registered at the time of the call
+	 */
+	public static Set<String> names() {
+		return uimap.get().keySet();
+	}
+	
+	/**
+	 * Collects top-level elements to be registered together. Elements
+	 * put into the batch are visible through {@link #get(String)} on the
+	 * batch straight away, but only become visible to other callers once
+	 * the batch is committed.
+	 */
+	public static class Batch {
+		private final Map<String, UIObject> pending = new LinkedHashMap<String, UIObject>();
+		
+		/**
+		 * Looks up a top-level element, preferring those in this batch
+		 * @param name Name of element
+		 * @return Matching element, or null if none exists
+		 */
+		public UIObject get(String name) {
+			UIObject o = pending.get(name);
+			return o != null ? o : UIMap.get(name);
+		}
+		
+		/**
+		 * Adds a top-level element to the batch
+		 * @param name Name of element
+		 * @param value Element to register
+		 * @return Element previously associated with the name
+		 */
+		public UIObject put(String name, UIObject value) {
+			UIObject previous = get(name);
+			pending.put(name, value);
+			return previous;
+		}
+		
+		/**
+		 * Gets the elements in this batch which have not been committed
+		 * @return Unmodifiable map of pending elements
+		 */
+		public Map<String, UIObject> getPending() {
+			return Collections.unmodifiableMap(pending);
+		}
+		
+		/**
+		 * Registers every pending element with the UI map
+		 */
+		public void commit() {
+			UIMap.putAll(pending);
+			pending.clear();
+		}
 	}
 }
@@ -0,0 +1,400 @@
+/* Copyright 2008
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng.ui;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Loads a set of UI map files together. Unlike {@link UIMapParser#parseFile(File)},
+ * the files may be given in any order: a type may be used in one file and
+ * defined in another, or further down the same file.
+ *
+ * Loading happens in three steps:
+ * <ol>
+ * <li>Every file is read and checked on its own thread, noting the
+ * top-level objects it defines and the types each of them uses.</li>
+ * <li>The type references are gathered into a dependency graph. Missing
+ * types, cycles and duplicate definitions are collected across all files.</li>
+ * <li>If there were no problems, objects are built in dependency order,
+ * so that every template exists before it is cloned, and registered with
+ * the UI map in a single update.</li>
+ * </ol>
+ * If any file has a problem, a single exception listing all of them is
+ * thrown and nothing is registered.
+ */
+public class UIMapLoader {
+	private static final FileFilter XML_FILES = new FileFilter() {
+		public boolean accept(File f) {
+			return f.isFile() && f.getName().endsWith(".xml");
+		}
+	};
+
+	private UIMapLoader() {
+	}
+
+	/**
+	 * A top-level object defined in one of the files
+	 */
+	private static class Definition {
+		final String name;
+		final Element element;
+		final File file;
+		/** Types used by the object or any of its components */
+		final Set<String> uses = new LinkedHashSet<String>();
+
+		Definition(String name, Element element, File file) {
+			this.name = name;
+			this.element = element;
+			this.file = file;
+		}
+	}
+
+	/**
+	 * What was found in one file
+	 */
+	private static class FileContents {
+		final List<Definition> definitions = new ArrayList<Definition>();
+		final List<String> problems = new ArrayList<String>();
+	}
+
+	/**
+	 * Loads UI map files using a thread per available processor
+	 *
+	 * @param files Map files, or directories whose .xml files are all loaded
+	 * @throws RuntimeException listing every problem found, if the files
+	 *         cannot be loaded
+	 */
+	public static void load(File... files) {
+		ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		try {
+			load(executor, files);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Loads UI map files, reading them on the given executor
+	 *
+	 * @param executor Executor to read files with
+	 * @param files Map files, or directories whose .xml files are all loaded
+	 * @throws RuntimeException listing every problem found, if the files
+	 *         cannot be loaded
+	 */
+	public static void load(ExecutorService executor, File... files) {
+		load(executor, null, files);
+	}
+
+	/**
+	 * Loads UI map files, reading them on the given executor and
+	 * rewriting locators with the given optimizer
+	 *
+	 * @param executor Executor to read files with
+	 * @param optimizer Optimizer to rewrite locators with, or null to leave them as written
+	 * @param files Map files, or directories whose .xml files are all loaded
+	 * @throws RuntimeException listing every problem found, if the files
+	 *         cannot be loaded
+	 */
+	public static void load(ExecutorService executor, LocatorOptimizer optimizer, File... files) {
+		List<File> inputs = expand(files);
+
+		// Read every file in parallel
+		List<Future<FileContents>> reads = new ArrayList<Future<FileContents>>(inputs.size());
+		for(final File f : inputs) {
+			reads.add(executor.submit(new Callable<FileContents>() {
+				public FileContents call() {
+					return read(f);
+				}
+			}));
+		}
+
+		List<String> problems = new ArrayList<String>();
+		Map<String, Definition> definitions = new LinkedHashMap<String, Definition>();
+		for(int i = 0; i < reads.size(); i++) {
+			FileContents contents = join(reads.get(i), inputs.get(i));
+			problems.addAll(contents.problems);
+			for(Definition d : contents.definitions) {
+				Definition previous = definitions.get(d.name);
+				if(previous != null) {
+					problems.add(d.file.getPath() + ": '" + d.name + "' is already defined"
+							+ (previous.file.equals(d.file) ? " earlier in the file" : " in " + previous.file.getPath()));
+				} else {
+					definitions.put(d.name, d);
+				}
+			}
+		}
+
+		// Check that every type used is either being loaded or already registered
+		for(Definition d : definitions.values()) {
+			for(String type : d.uses) {
+				if(!definitions.containsKey(type) && UIMap.get(type) == null) {
+					problems.add(d.file.getPath() + ": '" + d.name + "' uses type '" + type + "', which has not been defined");
+				}
+			}
+		}
+
+		List<Definition> order = sort(definitions, problems);
+		if(!problems.isEmpty()) {
+			StringBuilder message = new StringBuilder("Failed to load UI map (" + problems.size() + " problems):");
+			for(String problem : problems) {
+				message.append("\n\t").append(problem);
+			}
+			throw new RuntimeException(message.toString());
+		}
+
+		UIMap.Batch batch = new UIMap.Batch();
+		for(Definition d : order) {
+			UIMapParser.parseUIObject(batch, optimizer, null, d.element);
+		}
+		batch.commit();
+	}
+
+	/**
+	 * Replaces directories in a list of files with the .xml files they
+	 * contain, in name order
+	 */
+	private static List<File> expand(File[] files) {
+		List<File> out = new ArrayList<File>();
+		for(File f : files) {
+			if(f.isDirectory()) {
+				File[] contents = f.listFiles(XML_FILES);
+				Arrays.sort(contents);
+				out.addAll(Arrays.asList(contents));
+			} else {
+				out.add(f);
+			}
+		}
+		return out;
+	}
+
+	private static FileContents join(Future<FileContents> read, File f) {
+		try {
+			return read.get();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while reading " + f.getPath(), e);
+		} catch(ExecutionException e) {
+			FileContents failed = new FileContents();
+			failed.problems.add(e.getCause().getMessage());
+			return failed;
+		}
+	}
+
+	/**
+	 * Reads one file, noting its definitions and any problems with it
+	 */
+	private static FileContents read(File f) {
+		FileContents out = new FileContents();
+		Element root = UIMapParser.readXML(f).getDocumentElement();
+		for(Element el : elements(root)) {
+			String name = el.getAttribute("name");
+			Definition d = new Definition(name, el, f);
+			check(d, el, out.problems);
+			if(name.length() > 0) {
+				out.definitions.add(d);
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Checks that an object and its components have the attributes they
+	 * need, and collects the types they use
+	 */
+	private static void check(Definition d, Element el, List<String> problems) {
+		String type = el.getNodeName();
+		if(!el.hasAttribute("locator")) {
+			problems.add(d.file.getPath() + ": Locator was not specified for " + type + describe(el));
+		}
+		if(!el.hasAttribute("name")) {
+			problems.add(d.file.getPath() + ": Name was not specified for " + type);
+		}
+		if(!type.equals("ui")) {
+			d.uses.add(type);
+		}
+
+		for(Element child : elements(el)) {
+			if(child.getNodeName().equals("components")) {
+				for(Element component : elements(child)) {
+					check(d, component, problems);
+				}
+			}
+		}
+	}
+
+	private static String describe(Element el) {
+		return el.hasAttribute("name") ? " '" + el.getAttribute("name") + "'" : "";
+	}
+
+	private static List<Element> elements(Element parent) {
+		List<Element> out = new ArrayList<Element>();
+		NodeList children = parent.getChildNodes();
+		for(int i = 0; i < children.getLength(); i++) {
+			Node n = children.item(i);
+			if(n.getNodeType() == Node.ELEMENT_NODE) {
+				out.add((Element) n);
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Orders definitions so that each comes after the types it uses. Types
+	 * already in the UI map impose no ordering. Any cycles are added to the
+	 * list of problems.
+	 *
+	 * @return Definitions in dependency order, leaving out those in or
+	 *         depending on a cycle
+	 */
+	private static List<Definition> sort(Map<String, Definition> definitions, List<String> problems) {
+		Map<String, Integer> waiting = new HashMap<String, Integer>();
+		Map<String, List<Definition>> users = new HashMap<String, List<Definition>>();
+		LinkedList<Definition> ready = new LinkedList<Definition>();
+
+		for(Definition d : definitions.values()) {
+			int count = 0;
+			for(String type : d.uses) {
+				if(definitions.containsKey(type)) {
+					List<Definition> list = users.get(type);
+					if(list == null) {
+						list = new ArrayList<Definition>();
+						users.put(type, list);
+					}
+					list.add(d);
+					count++;
+				}
+			}
+			waiting.put(d.name, count);
+			if(count == 0) {
+				ready.add(d);
+			}
+		}
+
+		List<Definition> order = new ArrayList<Definition>(definitions.size());
+		while(!ready.isEmpty()) {
+			Definition d = ready.removeFirst();
+			order.add(d);
+			List<Definition> dependents = users.get(d.name);
+			if(dependents != null) {
+				for(Definition user : dependents) {
+					int remaining = waiting.get(user.name) - 1;
+					waiting.put(user.name, remaining);
+					if(remaining == 0) {
+						ready.add(user);
+					}
+				}
+			}
+		}
+
+		if(order.size() < definitions.size()) {
+			Map<String, Definition> unsorted = new LinkedHashMap<String, Definition>(definitions);
+			for(Definition d : order) {
+				unsorted.remove(d.name);
+			}
+			for(List<Definition> cycle : new Cycles(unsorted).find()) {
+				StringBuilder path = new StringBuilder();
+				for(Definition d : cycle) {
+					path.append("'").append(d.name).append("' (").append(d.file.getName()).append(") -> ");
+				}
+				path.append("'").append(cycle.get(0).name).append("'");
+				problems.add("Types depend on each other in a cycle: " + path);
+			}
+		}
+		return order;
+	}
+
+	/**
+	 * Finds the cycles among definitions which could not be sorted, using
+	 * Tarjan's strongly connected components algorithm. Definitions which
+	 * only depend on a cycle are not reported themselves.
+	 */
+	private static class Cycles {
+		private final Map<String, Definition> definitions;
+		private final Map<String, Integer> index = new HashMap<String, Integer>();
+		private final Map<String, Integer> low = new HashMap<String, Integer>();
+		private final LinkedList<Definition> stack = new LinkedList<Definition>();
+		private final Set<String> onStack = new LinkedHashSet<String>();
+		private final List<List<Definition>> cycles = new ArrayList<List<Definition>>();
+
+		Cycles(Map<String, Definition> definitions) {
+			this.definitions = definitions;
+		}
+
+		List<List<Definition>> find() {
+			for(Definition d : definitions.values()) {
+				if(!index.containsKey(d.name)) {
+					visit(d);
+				}
+			}
+			return cycles;
+		}
+
+		private void visit(Definition d) {
+			int i = index.size();
+			index.put(d.name, i);
+			low.put(d.name, i);
+			stack.addFirst(d);
+			onStack.add(d.name);
+
+			for(String type : d.uses) {
+				Definition used = definitions.get(type);
+				if(used == null) {
+					continue;
+				}
+				if(!index.containsKey(type)) {
+					visit(used);
+					low.put(d.name, Math.min(low.get(d.name), low.get(type)));
+				} else if(onStack.contains(type)) {
+					low.put(d.name, Math.min(low.get(d.name), index.get(type)));
+				}
+			}
+
+			if(low.get(d.name).intValue() == i) {
+				List<Definition> component = new ArrayList<Definition>();
+				Definition member;
+				do {
+					member = stack.removeFirst();
+					onStack.remove(member.name);
+					component.add(member);
+				} while(member != d);
+
+				if(component.size() > 1 || d.uses.contains(d.name)) {
+					Collections.reverse(component);
+					cycles.add(component);
+				}
+			}
+		}
+	}
+}
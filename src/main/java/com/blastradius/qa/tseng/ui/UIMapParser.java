@@ -16,17 +16,22 @@ package com.blastradius.qa.tseng.ui;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.LinkedList;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
 
 import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
+import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
 
 public class UIMapParser {
 	/**
@@ -34,7 +39,7 @@ public class UIMapParser {
 	 * @param f
 	 * @return
 	 */
-	private static Document readXML(File f) {
+	static Document readXML(File f) {
 		try {
 			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
 			DocumentBuilder builder = factory.newDocumentBuilder();
@@ -53,16 +58,62 @@ public class UIMapParser {
 	 * @param f
 	 */
 	public static void parseFile(File f) {
+		parseFile(f, null);
+	}
+	
+	/**
+	 * Populates the UI map with the elements specified in the given file,
+	 * rewriting locators with the given optimizer as they are read
+	 * @param f
+	 * @param optimizer Optimizer to rewrite locators with, or null to leave them as written
+	 */
+	public static void parseFile(File f, LocatorOptimizer optimizer) {
 		Document d = readXML(f);
 		Element doc = d.getDocumentElement();
 		
+		UIMap.Batch batch = new UIMap.Batch();
 		NodeList topElements = doc.getChildNodes();
 		for(int i = 0; i < topElements.getLength(); i++) {
 			Node n = topElements.item(i);
 			if(n.getNodeType() == Node.ELEMENT_NODE) {
-				parseUIObject(null, (Element) n);
+				parseUIObject(batch, optimizer, null, (Element) n);
 			}
 		}
+		batch.commit();
+	}
+	
+	/**
+	 * Populates the UI map with the elements specified in the given file,
+	 * building UI Objects directly from parser events rather than reading
+	 * the whole document into memory first. Produces the same UI map as
+	 * {@link #parseFile(File)}, and is preferable for very large files.
+	 * 
+	 * @param f
+	 */
+	public static void parseFileStreaming(File f) {
+		parseFileStreaming(f, null);
+	}
+	
+	/**
+	 * Streams the given file into the UI map, rewriting locators with the
+	 * given optimizer as they are read
+	 * @param f
+	 * @param optimizer Optimizer to rewrite locators with, or null to leave them as written
+	 * @see #parseFileStreaming(File)
+	 */
+	public static void parseFileStreaming(File f, LocatorOptimizer optimizer) {
+		try {
+			UIMap.Batch batch = new UIMap.Batch();
+			SAXParser parser = SAXParserFactory.newInstance().newSAXParser();
+			parser.parse(f, new StreamingHandler(batch, optimizer));
+			batch.commit();
+		} catch (ParserConfigurationException e) {
+			throw new RuntimeException("Failed to instantiate XML Parser", e);
+		} catch (SAXException e) {
+			throw new RuntimeException("Input File " + f.getPath() + " is malformed: " + e.getMessage(), e);
+		} catch (IOException e) {
+			throw new RuntimeException("Failure while reading " + f.getPath() + ": " + e.getMessage(), e);
+		}
 	}
 	
 	/**
@@ -81,6 +132,18 @@ public class UIMapParser {
 	 * @return
 	 */
 	public static UIObject parseUIObject(UIObject parent, Element el) {
+		UIMap.Batch batch = new UIMap.Batch();
+		UIObject ui = parseUIObject(batch, null, parent, el);
+		batch.commit();
+		return ui;
+	}
+	
+	/**
+	 * Parses a UI Object and its children, registering top-level objects
+	 * with the given batch and rewriting locators with the optimizer, if
+	 * one is given.
+	 */
+	static UIObject parseUIObject(UIMap.Batch batch, LocatorOptimizer optimizer, UIObject parent, Element el) {
 		UIObject ui;
 		
 		String type = el.getNodeName();
@@ -103,20 +166,7 @@ public class UIMapParser {
 			name = nameAttribute.getTextContent();
 		}
 		
-		
-		if(type.equals("ui")) {
-			ui = new UIObject(parent, locator);
-		} else if(UIMap.get(type) != null) {
-			ui = UIMap.get(type).clone(parent, locator);
-		} else {
-			throw new RuntimeException("No type named '" + type + "' has been defined");
-		}
-		
-		if(parent == null) {
-			UIMap.put(name, ui);
-		} else {
-			parent.putChild(name, ui);
-		}
+		ui = createUIObject(batch, optimizer, parent, type, name, locator);
 		
 		// Add any defined children to the object
 		
@@ -132,7 +182,7 @@ public class UIMapParser {
 					for(int j = 0; j < grandChildren.getLength(); j++) {
 						Node grandChild = grandChildren.item(j);
 						if(grandChild.getNodeType() == Node.ELEMENT_NODE) {
-							parseUIObject(ui, (Element) grandChild);
+							parseUIObject(batch, optimizer, ui, (Element) grandChild);
 						}
 					}
 				}
@@ -144,4 +194,98 @@ public class UIMapParser {
 		
 		return ui;
 	}
+	
+	/**
+	 * Creates a UI Object of the given type and registers it with its
+	 * parent, or with the batch if the parent is null.
+	 * 
+	 * @param batch Batch of top-level objects, also used to look up types
+	 * @param optimizer Optimizer to rewrite the locator with, or null
+	 * @param parent Parent object, or null for top-level objects
+	 * @param type Tag name: "ui" or the name of a previously-defined object
+	 * @param name Name to register the object under
+	 * @param original Locator of the new object, as written in the map
+	 * @return The new object
+	 */
+	private static UIObject createUIObject(UIMap.Batch batch, LocatorOptimizer optimizer, UIObject parent,
+			String type, String name, String original) {
+		UIObject ui;
+		UIObject template;
+		String locator = optimizer == null ? original : optimizer.optimize(parent, original);
+		
+		if(type.equals("ui")) {
+			ui = new UIObject(parent, locator);
+		} else if((template = batch.get(type)) != null) {
+			ui = template.clone(parent, locator);
+		} else {
+			throw new RuntimeException("No type named '" + type + "' has been defined");
+		}
+		if(optimizer != null) {
+			optimizer.created(ui, parent, original);
+		}
+		
+		if(parent == null) {
+			batch.put(name, ui);
+		} else {
+			parent.putChild(name, ui);
+		}
+		
+		return ui;
+	}
+	
+	/**
+	 * Builds UI Objects as SAX events arrive. Only the currently-open
+	 * chain of elements is held in memory.
+	 */
+	private static class StreamingHandler extends DefaultHandler {
+		/** What an open element represents */
+		private enum Context { DOCUMENT, OBJECT, COMPONENTS, IGNORED }
+		
+		private final LinkedList<Context> contexts = new LinkedList<Context>();
+		private final LinkedList<UIObject> objects = new LinkedList<UIObject>();
+		private final UIMap.Batch batch;
+		private final LocatorOptimizer optimizer;
+		
+		StreamingHandler(UIMap.Batch batch, LocatorOptimizer optimizer) {
+			this.batch = batch;
+			this.optimizer = optimizer;
+		}
+		
+		public void startElement(String uri, String localName, String qName, Attributes attributes) {
+			if(contexts.isEmpty()) {
+				contexts.addFirst(Context.DOCUMENT);
+				return;
+			}
+			
+			switch(contexts.getFirst()) {
+			case DOCUMENT:
+			case COMPONENTS:
+				// Top-level elements and the contents of <components> are UI Objects
+				String locator = attributes.getValue("locator");
+				String name = attributes.getValue("name");
+				if(locator == null) {
+					throw new RuntimeException("Locator was not specified for " + qName);
+				}
+				if(name == null) {
+					throw new RuntimeException("Name was not specified for " + qName);
+				}
+				
+				UIObject parent = objects.isEmpty() ? null : objects.getFirst();
+				objects.addFirst(createUIObject(batch, optimizer, parent, qName, name, locator));
+				contexts.addFirst(Context.OBJECT);
+				break;
+			case OBJECT:
+				contexts.addFirst(qName.equals("components") ? Context.COMPONENTS : Context.IGNORED);
+				break;
+			default:
+				contexts.addFirst(Context.IGNORED);
+			}
+		}
+		
+		public void endElement(String uri, String localName, String qName) {
+			if(contexts.removeFirst() == Context.OBJECT) {
+				objects.removeFirst();
+			}
+		}
+	}
 }
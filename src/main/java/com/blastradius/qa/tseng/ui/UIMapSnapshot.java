@@ -0,0 +1,516 @@
+/* Copyright 2008
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng.ui;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Caches fully-resolved UI maps on disk in a compact binary form.
+ *
+ * A snapshot is identified by a hash of the contents of the files it
+ * was built from. When the same files are loaded again, the snapshot is
+ * memory-mapped and the UI Objects are rebuilt from it directly, without
+ * parsing XML or resolving templates. If any file has changed, the files
+ * are parsed as usual and a new snapshot is written.
+ *
+ * Files may use templates defined by files loaded earlier, which are not
+ * part of the hash. The snapshot records a fingerprint of each such
+ * template as it was resolved, and is only loaded while the UI map still
+ * holds the same definitions.
+ *
+ * Objects cloned from a template are stored as a reference to it, along
+ * with only the children copied into or added to the clone, so that a
+ * map loaded from a snapshot shares template children just as a parsed
+ * one does. Roots are stored after the templates they use. An object is
+ * stored in full if its template has changed since it was cloned, or is
+ * not a top-level object of the snapshot or of the UI map.
+ *
+ * Snapshot layout (all integers big-endian):
+ * <pre>
+ * int magic, int version
+ * int stringCount, { int byteLength, byte[] utf8 } * stringCount
+ * int dependencyCount, { int nameIndex, int fingerprintIndex } * dependencyCount
+ * int rootCount, { int nameIndex, node } * rootCount
+ * node := int locatorIndex, int templateIndex, int childCount, { int nameIndex, node } * childCount
+ * </pre>
+ * where templateIndex is -1, or the index of the name of a root stored
+ * earlier or of a dependency.
+ */
+public class UIMapSnapshot {
+	static final int MAGIC = 0x54534e47; // "TSNG"
+	static final int VERSION = 3;
+	private static final String SUFFIX = ".uimap";
+
+	/**
+	 * Populates the UI map with the elements specified in the given files,
+	 * using a snapshot from the cache directory when one exists for the
+	 * current contents of the files.
+	 *
+	 * @param cacheDir Directory holding snapshots. Created if necessary.
+	 * @param files UI map files, parsed in the order given
+	 * @return true if the UI map was loaded from a snapshot, false if the files were parsed
+	 */
+	public static boolean parseFiles(File cacheDir, File... files) {
+		File snapshot = new File(cacheDir, "ui-map-" + hash(files) + SUFFIX);
+
+		if(snapshot.isFile()) {
+			try {
+				load(snapshot);
+				return true;
+			} catch(IOException e) {
+				// Unreadable or stale snapshot - fall back to parsing and replace it
+			}
+		}
+
+		Map<String, UIObject> before = new HashMap<String, UIObject>();
+		for(String name : UIMap.names()) {
+			before.put(name, UIMap.get(name));
+		}
+
+		for(File f : files) {
+			UIMapParser.parseFileStreaming(f);
+		}
+
+		// Only the roots added or replaced by these files belong in the snapshot
+		Map<String, UIObject> roots = new LinkedHashMap<String, UIObject>();
+		for(String name : UIMap.names()) {
+			UIObject root = UIMap.get(name);
+			if(root != before.get(name)) {
+				roots.put(name, root);
+			}
+		}
+
+		try {
+			write(snapshot, roots, before);
+		} catch(IOException e) {
+			throw new RuntimeException("Failed to write UI map snapshot " + snapshot.getPath() + ": " + e.getMessage(), e);
+		}
+		return false;
+	}
+
+	/**
+	 * Registers every root stored in a snapshot with the UI map
+	 *
+	 * @param snapshot Snapshot file
+	 * @throws IOException if the file cannot be read or is not a valid
+	 *         snapshot, or if a template it was built from has since been
+	 *         defined differently
+	 */
+	public static void load(File snapshot) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(snapshot, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			if(buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				throw new IOException(snapshot.getPath() + " is not a UI map snapshot of version " + VERSION);
+			}
+
+			String[] strings = new String[count(buffer, 4, snapshot)];
+			for(int i = 0; i < strings.length; i++) {
+				byte[] bytes = new byte[count(buffer, 1, snapshot)];
+				buffer.get(bytes);
+				strings[i] = new String(bytes, "UTF-8");
+			}
+
+			// Templates which clones may refer to, by name
+			Map<String, UIObject> templates = new HashMap<String, UIObject>();
+
+			int dependencyCount = count(buffer, 8, snapshot);
+			for(int i = 0; i < dependencyCount; i++) {
+				String name = strings[buffer.getInt()];
+				String fingerprint = strings[buffer.getInt()];
+				UIObject current = UIMap.get(name);
+				if(current == null || !fingerprint(current).equals(fingerprint)) {
+					throw new IOException(snapshot.getPath() + " was built with a different definition of '" + name + "'");
+				}
+				templates.put(name, current);
+			}
+
+			int rootCount = count(buffer, 16, snapshot);
+			List<String> names = new ArrayList<String>();
+			List<UIObject> roots = new ArrayList<UIObject>();
+			for(int i = 0; i < rootCount; i++) {
+				String name = strings[buffer.getInt()];
+				UIObject root = readNode(buffer, strings, null, templates, snapshot);
+				names.add(name);
+				roots.add(root);
+				templates.put(name, root);
+			}
+
+			// Register only once the whole file has been read successfully
+			UIMap.Batch batch = new UIMap.Batch();
+			for(int i = 0; i < rootCount; i++) {
+				batch.put(names.get(i), roots.get(i));
+			}
+			batch.commit();
+		} catch(BufferUnderflowException e) {
+			throw corrupt(snapshot, e);
+		} catch(IndexOutOfBoundsException e) {
+			throw corrupt(snapshot, e);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Writes the given roots and all of their descendants to a snapshot.
+	 * The snapshot is written to a temporary file first, so that readers
+	 * never see a partially-written snapshot.
+	 *
+	 * Templates outside the given roots which are registered with the UI
+	 * map are recorded as dependencies of the snapshot.
+	 *
+	 * @param snapshot Destination file
+	 * @param roots Top-level UI Objects, by name
+	 * @throws IOException
+	 */
+	public static void write(File snapshot, Map<String, UIObject> roots) throws IOException {
+		Map<String, UIObject> registered = new HashMap<String, UIObject>();
+		for(String name : UIMap.names()) {
+			registered.put(name, UIMap.get(name));
+		}
+		write(snapshot, roots, registered);
+	}
+
+	/**
+	 * @param available Top-level UI Objects which the roots may have used
+	 *        as templates, by name. Those used are recorded as dependencies.
+	 */
+	private static void write(File snapshot, Map<String, UIObject> roots, Map<String, UIObject> available)
+			throws IOException {
+		Plan plan = new Plan(roots, available);
+		Map<String, Integer> strings = plan.strings;
+		Map<String, String> fingerprints = new LinkedHashMap<String, String>();
+		for(Map.Entry<String, UIObject> dependency : plan.dependencies.entrySet()) {
+			String fingerprint = fingerprint(dependency.getValue());
+			intern(strings, dependency.getKey());
+			intern(strings, fingerprint);
+			fingerprints.put(dependency.getKey(), fingerprint);
+		}
+
+		File dir = snapshot.getAbsoluteFile().getParentFile();
+		if(!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create snapshot directory " + dir.getPath());
+		}
+		File temp = File.createTempFile("ui-map-", ".tmp", dir);
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+
+			out.writeInt(strings.size());
+			for(String s : strings.keySet()) {
+				byte[] bytes = s.getBytes("UTF-8");
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+
+			out.writeInt(fingerprints.size());
+			for(Map.Entry<String, String> dependency : fingerprints.entrySet()) {
+				out.writeInt(strings.get(dependency.getKey()).intValue());
+				out.writeInt(strings.get(dependency.getValue()).intValue());
+			}
+
+			out.writeInt(plan.order.size());
+			for(String name : plan.order) {
+				out.writeInt(strings.get(name).intValue());
+				writeNode(out, roots.get(name), plan);
+			}
+		} finally {
+			out.close();
+		}
+
+		snapshot.delete();
+		if(!temp.renameTo(snapshot)) {
+			temp.delete();
+			throw new IOException("Cannot move snapshot into place at " + snapshot.getPath());
+		}
+	}
+
+	/**
+	 * Computes a hex-encoded SHA-1 hash of the contents of the given files,
+	 * in order.
+	 */
+	static String hash(File... files) {
+		try {
+			MessageDigest digest = digest();
+			byte[] buffer = new byte[8192];
+			for(File f : files) {
+				// Prefix each file with its length, so that moving content between files changes the hash
+				long length = f.length();
+				for(int shift = 56; shift >= 0; shift -= 8) {
+					digest.update((byte) (length >>> shift));
+				}
+
+				InputStream in = new FileInputStream(f);
+				try {
+					int read;
+					while((read = in.read(buffer)) > 0) {
+						digest.update(buffer, 0, read);
+					}
+				} finally {
+					in.close();
+				}
+			}
+
+			return hex(digest);
+		} catch(IOException e) {
+			throw new RuntimeException("Failure while reading UI map files: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Computes a hex-encoded SHA-1 hash of a UI Object's locator and those
+	 * of all of its descendants, by name
+	 */
+	static String fingerprint(UIObject o) {
+		MessageDigest digest = digest();
+		fingerprint(digest, o);
+		return hex(digest);
+	}
+
+	private static void fingerprint(MessageDigest digest, UIObject o) {
+		update(digest, o.getLocator());
+		for(String name : new TreeSet<String>(o.getChildNames())) {
+			update(digest, name);
+			fingerprint(digest, o.peekChild(name));
+		}
+		// Marks the end of the children, so that a tree's shape changes its fingerprint
+		digest.update((byte) 0xff);
+	}
+
+	private static void update(MessageDigest digest, String s) {
+		try {
+			digest.update(s.getBytes("UTF-8"));
+			digest.update((byte) 0);
+		} catch(UnsupportedEncodingException e) {
+			throw new RuntimeException("UTF-8 encoding is not available", e);
+		}
+	}
+
+	private static MessageDigest digest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch(NoSuchAlgorithmException e) {
+			throw new RuntimeException("SHA-1 digest is not available", e);
+		}
+	}
+
+	private static String hex(MessageDigest digest) {
+		StringBuilder hex = new StringBuilder();
+		for(byte b : digest.digest()) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+			hex.append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * @param cause Failure which revealed the damage, or null
+	 */
+	private static IOException corrupt(File snapshot, RuntimeException cause) {
+		IOException e = new IOException(snapshot.getPath() + " is truncated or corrupt");
+		if(cause != null) {
+			e.initCause(cause);
+		}
+		return e;
+	}
+
+	/**
+	 * Reads the number of entries which follow, checking that the rest of
+	 * the snapshot is long enough to hold them, so that a damaged count
+	 * cannot cause a huge allocation
+	 *
+	 * @param size Smallest number of bytes each entry takes up
+	 */
+	private static int count(MappedByteBuffer buffer, int size, File snapshot) throws IOException {
+		int count = buffer.getInt();
+		if(count < 0 || (long) count * size > buffer.remaining()) {
+			throw corrupt(snapshot, null);
+		}
+		return count;
+	}
+
+	private static void intern(Map<String, Integer> strings, String s) {
+		if(!strings.containsKey(s)) {
+			strings.put(s, Integer.valueOf(strings.size()));
+		}
+	}
+
+	/**
+	 * Works out what a snapshot of some roots holds: the strings they use,
+	 * the templates they depend on, and the order in which the roots must
+	 * be read back so that each template is loaded before its clones.
+	 */
+	private static class Plan {
+		final Map<String, UIObject> roots;
+		final Map<UIObject, String> internal = new IdentityHashMap<UIObject, String>();
+		final Map<UIObject, String> external = new IdentityHashMap<UIObject, String>();
+		final Map<String, Integer> strings = new LinkedHashMap<String, Integer>();
+		final Map<String, UIObject> dependencies = new LinkedHashMap<String, UIObject>();
+		final List<String> order = new ArrayList<String>();
+
+		/** Roots each root's clones refer to, by name */
+		private final Map<String, Set<String>> requires = new HashMap<String, Set<String>>();
+
+		Plan(Map<String, UIObject> roots, Map<String, UIObject> available) {
+			this.roots = roots;
+			for(Map.Entry<String, UIObject> entry : available.entrySet()) {
+				external.put(entry.getValue(), entry.getKey());
+			}
+			for(Map.Entry<String, UIObject> root : roots.entrySet()) {
+				external.remove(root.getValue());
+				internal.put(root.getValue(), root.getKey());
+			}
+
+			for(Map.Entry<String, UIObject> root : roots.entrySet()) {
+				intern(strings, root.getKey());
+				Set<String> uses = new HashSet<String>();
+				collect(root.getValue(), uses);
+				requires.put(root.getKey(), uses);
+			}
+			Set<String> visited = new HashSet<String>();
+			for(String name : roots.keySet()) {
+				place(name, visited);
+			}
+		}
+
+		/**
+		 * Gets the name of the template whose children an object still
+		 * shares, or null if the object must be stored in full
+		 */
+		String template(UIObject o) {
+			UIObject t = o.getTemplate();
+			if(t == null || o.templateChildTable() != t.childTable()) {
+				return null;
+			}
+			String name = internal.get(t);
+			if(name == null) {
+				name = external.get(t);
+				// The snapshot's own root of that name would be found in its place
+				if(name != null && roots.containsKey(name)) {
+					name = null;
+				}
+			}
+			return name;
+		}
+
+		/**
+		 * Gets the children to store for an object: only its own if it
+		 * refers to a template, otherwise all of them. Children still
+		 * shared with a template are not copied.
+		 */
+		Map<String, UIObject> children(UIObject o, String template) {
+			if(template != null) {
+				return o.childTable().asMap();
+			}
+			Map<String, UIObject> out = new LinkedHashMap<String, UIObject>();
+			for(String name : o.getChildNames()) {
+				out.put(name, o.peekChild(name));
+			}
+			return out;
+		}
+
+		private void collect(UIObject o, Set<String> uses) {
+			for(UIObject t = o.getTemplate(); t != null; t = t.getTemplate()) {
+				String name = external.get(t);
+				if(name != null) {
+					dependencies.put(name, t);
+				}
+			}
+			intern(strings, o.getLocator());
+			String template = template(o);
+			if(template != null) {
+				intern(strings, template);
+				if(roots.containsKey(template)) {
+					uses.add(template);
+				}
+			}
+			for(Map.Entry<String, UIObject> child : children(o, template).entrySet()) {
+				intern(strings, child.getKey());
+				collect(child.getValue(), uses);
+			}
+		}
+
+		private void place(String name, Set<String> visited) {
+			if(!visited.add(name)) {
+				return;
+			}
+			for(String template : requires.get(name)) {
+				place(template, visited);
+			}
+			order.add(name);
+		}
+	}
+
+	private static void writeNode(DataOutputStream out, UIObject o, Plan plan) throws IOException {
+		String template = plan.template(o);
+		Map<String, UIObject> children = plan.children(o, template);
+		out.writeInt(plan.strings.get(o.getLocator()).intValue());
+		out.writeInt(template == null ? -1 : plan.strings.get(template).intValue());
+		out.writeInt(children.size());
+		for(Map.Entry<String, UIObject> child : children.entrySet()) {
+			out.writeInt(plan.strings.get(child.getKey()).intValue());
+			writeNode(out, child.getValue(), plan);
+		}
+	}
+
+	private static UIObject readNode(MappedByteBuffer buffer, String[] strings, UIObject parent,
+			Map<String, UIObject> templates, File snapshot) throws IOException {
+		String locator = strings[buffer.getInt()];
+		int template = buffer.getInt();
+		UIObject o;
+		if(template < 0) {
+			o = new UIObject(parent, locator);
+		} else {
+			UIObject t = templates.get(strings[template]);
+			if(t == null) {
+				throw corrupt(snapshot, null);
+			}
+			o = t.clone(parent, locator);
+		}
+
+		int childCount = count(buffer, 16, snapshot);
+		for(int i = 0; i < childCount; i++) {
+			String name = strings[buffer.getInt()];
+			o.putChild(name, readNode(buffer, strings, o, templates, snapshot));
+		}
+		return o;
+	}
+}
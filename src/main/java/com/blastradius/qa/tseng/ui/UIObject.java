@@ -14,8 +14,15 @@
  */
 package com.blastradius.qa.tseng.ui;
 
-import java.util.Hashtable;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import com.blastradius.qa.tseng.Globals;
+import com.thoughtworks.selenium.SeleniumException;
 
 /**
  * Describes an element of the User Interface in terms of
@@ -26,13 +33,55 @@ public class UIObject {
 	private final UIObject parent;
 	private final String locator;
 	
-	private final Hashtable<String, UIObject> children = new Hashtable<String, UIObject>();
+	/**
+	 * Object whose children this object shares, or null. Children of the
+	 * template are only copied into this object when they are accessed.
+	 */
+	private final UIObject template;
+	
+	/**
+	 * The template's children when this object was cloned from it, or null
+	 * if there is no template. Children added to the template later are
+	 * not in it, so are not shared.
+	 */
+	private final ChildTable templateChildren;
+	
+	/**
+	 * Immutable table of children, replaced whenever a child is added so
+	 * that lookups need no lock. Writers replace it by compare-and-set.
+	 */
+	private volatile ChildTable children = ChildTable.EMPTY;
+	
+	private static final AtomicReferenceFieldUpdater<UIObject, ChildTable> CHILDREN =
+		AtomicReferenceFieldUpdater.newUpdater(UIObject.class, ChildTable.class, "children");
+	
+	/**
+	 * True if neither this object nor any of its ancestors is a subclass,
+	 * and so none of them can produce a locator which varies over time.
+	 */
+	private final boolean stableLocators;
+	
+	/** Locator path, computed on first use if locators are stable */
+	private volatile String[] locatorPath;
+	
+	/** Locator path with compatible segments merged, computed on first use if locators are stable */
+	private volatile String[] compiledLocatorPath;
+	
+	/** Locator resolving through the {@link ElementCache}, computed on first use if locators are stable */
+	private volatile String cacheLocator;
 	// private final Hashtable<String, UIAction> actions = new Hashtable<String, UIAction>(); // For future use
 	// private final Hashtable<String, String> attributes = new Hashtable<String, String>(); // For future use
 	
 	public UIObject(UIObject parent, String locator) {
+		this(parent, locator, null);
+	}
+	
+	private UIObject(UIObject parent, String locator, UIObject template) {
 		this.parent = parent;
-		this.locator = locator;
+		this.locator = StringPool.canonical(locator);
+		this.template = template;
+		this.templateChildren = template != null ? template.children : null;
+		this.stableLocators = getClass() == UIObject.class && (parent == null || parent.stableLocators);
 	}
 	
 	/**
@@ -78,7 +127,14 @@ public class UIObject {
 	 * @return The named child, or null if no such child exists
 	 */
 	public UIObject getChild(String name) {
-		return children.get(name);
+		UIObject child = children.get(name);
+		if(child == null && template != null) {
+			UIObject shared = sharedChild(name);
+			if(shared != null) {
+				child = materialize(name, shared);
+			}
+		}
+		return child;
 	}
 	
 	/**
@@ -92,49 +148,292 @@ public class UIObject {
 	 * @return Child previously associated with provided name
 	 */
 	public UIObject putChild(String name, UIObject child) {
-		return children.put(name, child);
+		UIObject previous = storeChild(name, child);
+		UIMap.invalidatePaths();
+		return previous;
 	}
 	
 	/**
-	 * Gets this object's list of children
-	 * @return Child map
+	 * Replaces the child table with a copy containing the given child
 	 */
-	public Hashtable<String, UIObject> getChildren() {
-		return (Hashtable<String, UIObject>) children;
+	private UIObject storeChild(String name, UIObject child) {
+		while(true) {
+			ChildTable current = children;
+			if(CHILDREN.compareAndSet(this, current, current.with(name, child))) {
+				return current.get(name);
+			}
+		}
 	}
 	
 	/**
-	 * Perform a deep clone of this object and all of its children,
+	 * Gets this object's list of children. Any children still shared
+	 * with a template are copied into this object first.
+	 * 
+	 * @return Unmodifiable map of children at the time of the call, in name order
+	 */
+	public Map<String, UIObject> getChildren() {
+		if(template != null) {
+			for(String name : template.getChildNames()) {
+				getChild(name);
+			}
+		}
+		return children.asMap();
+	}
+	
+	/**
+	 * Perform a clone of this object and all of its children,
 	 * re-parenting it to a different object and locator. Locators
 	 * of children are preserved.
 	 * 
+	 * The clone initially shares this object's children rather than
+	 * copying them, so cloning is cheap regardless of the size of the
+	 * tree. Each child is copied, with the clone as its parent, the first
+	 * time it is accessed.
+	 * 
+	 * The clone has the children this object has at the time of cloning:
+	 * children added to this object afterwards are not added to the clone,
+	 * as if it had been copied in full. The same holds for each child when
+	 * it is copied into the clone, so children added further down this
+	 * object's tree are seen by the clone if the child they were added to
+	 * had not yet been accessed through it.
+	 * 
 	 * @param parent Parent to assign to the new clone
 	 * @param locator New locator for object
-	 * @return Deep clone of object and its children
+	 * @return Clone of object and its children
 	 */
 	public UIObject clone(UIObject parent, String locator) {
-		UIObject clone = new UIObject(parent, locator);
-		
-		/* Recursively clone all of the children, assigning them to
-		 * newly-cloned parents.
-		 */
-		for(String childName : getChildren().keySet()) {
-			UIObject originalChild = getChild(childName);
-			UIObject newChild = originalChild.clone(clone, originalChild.getLocator());
-			
-			clone.putChild(childName, newChild);
+		return new UIObject(parent, locator, this);
+	}
+	
+	/**
+	 * Gets the names of all children, including those still shared with
+	 * a template, without copying any of them.
+	 * 
+	 * @return Set of child names
+	 */
+	Set<String> getChildNames() {
+		Set<String> names = new HashSet<String>(Arrays.asList(children.names));
+		for(UIObject o = this; o.template != null; o = o.template) {
+			names.addAll(Arrays.asList(o.templateChildren.names));
 		}
-		
-		return clone;
+		return names;
+	}
+	
+	/**
+	 * Gets a child without copying it from a template. The result has the
+	 * same locator and descendants as {@link #getChild(String)} would
+	 * return, but its parent may be the template rather than this object.
+	 * 
+	 * @param name Name of child
+	 * @return The named child or its shared equivalent, or null
+	 */
+	UIObject peekChild(String name) {
+		UIObject child = children.get(name);
+		return child == null && template != null ? sharedChild(name) : child;
+	}
+	
+	/**
+	 * Gets a child shared with this object's template, as it was when this
+	 * object was cloned, without copying it
+	 * 
+	 * @param name Name of child
+	 * @return Child of the template or of one of its own templates, or null
+	 */
+	private UIObject sharedChild(String name) {
+		for(UIObject o = this; o.template != null; o = o.template) {
+			UIObject child = o.templateChildren.get(name);
+			if(child != null) {
+				return child;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Copies a shared child into this object, unless another thread has
+	 * already done so.
+	 */
+	private UIObject materialize(String name, UIObject shared) {
+		UIObject child = null;
+		while(true) {
+			ChildTable current = children;
+			UIObject existing = current.get(name);
+			if(existing != null) {
+				return existing;
+			}
+			if(child == null) {
+				child = shared.clone(this, shared.getLocator());
+			}
+			// Paths resolved through this object already led to an equivalent child
+			if(CHILDREN.compareAndSet(this, current, current.with(name, child))) {
+				return child;
+			}
+		}
+	}
+	
+	/**
+	 * Gets the children copied into or added to this object so far
+	 */
+	ChildTable childTable() {
+		return children;
+	}
+	
+	/**
+	 * Gets the object whose children this object shares, or null
+	 */
+	UIObject getTemplate() {
+		return template;
+	}
+	
+	/**
+	 * Gets the template's children when this object was cloned, or null
+	 */
+	ChildTable templateChildTable() {
+		return templateChildren;
+	}
+	
+	/**
+	 * Gets the cached locator path without computing it, or null
+	 */
+	String[] cachedLocatorPath() {
+		return locatorPath;
+	}
+	
+	/**
+	 * Gets the cached compiled locator path without computing it, or null
+	 */
+	String[] cachedCompiledLocatorPath() {
+		return compiledLocatorPath;
+	}
+	
+	/**
+	 * Gets the cached element cache locator without computing it, or null
+	 */
+	String cachedCacheLocator() {
+		return cacheLocator;
 	}
 	
 	/**
 	 * Returns the chain of locators that identifies the referenced
 	 * UIObject.
 	 * 
+	 * Since an object's parent and locator never change, the chain is
+	 * computed once and cached, unless a subclass somewhere in the chain
+	 * might override {@link #getLocator()} to vary its locator.
+	 * 
 	 * @return Array of locators describing path to this object
 	 */
 	public String[] getLocatorPath() {
+		if(!stableLocators) {
+			return computeLocatorPath();
+		}
+		
+		String[] path = locatorPath;
+		if(path == null) {
+			path = computeLocatorPath();
+			locatorPath = path;
+		}
+		return path.clone();
+	}
+	
+	/**
+	 * Returns the chain of locators that identifies this object, with
+	 * adjacent segments merged wherever they can be expressed as a single
+	 * locator. Consecutive XPath segments are joined into one path and
+	 * consecutive CSS segments are joined with the descendant combinator;
+	 * other locators are left as separate steps.
+	 * 
+	 * @return Array of locators, of length 1 if the whole chain could be merged
+	 * @see #getEffectiveLocator()
+	 */
+	public String[] getCompiledLocatorPath() {
+		return stableLocators ? compiledPath().clone() : Locators.compile(computeLocatorPath());
+	}
+	
+	/**
+	 * Gets the cached compiled locator path, computing it if necessary.
+	 * Only for objects with stable locators; not copied, so must not be modified.
+	 */
+	private String[] compiledPath() {
+		String[] path = compiledLocatorPath;
+		if(path == null) {
+			path = Locators.compile(getLocatorPath());
+			compiledLocatorPath = path;
+		}
+		return path;
+	}
+	
+	/**
+	 * Gets a single locator that identifies this object directly, without
+	 * scoping through each of its parents in turn.
+	 * 
+	 * @return Merged locator, or null if the locator path cannot be merged,
+	 * in which case {@link #getCompiledLocatorPath()} should be used
+	 */
+	public String getEffectiveLocator() {
+		String[] path = stableLocators ? compiledPath() : Locators.compile(computeLocatorPath());
+		return path.length == 1 ? path[0] : null;
+	}
+
+	/**
+	 * Gets a locator for use in Selenium commands which, when the
+	 * {@link ElementCache} is enabled, reuses the element found by earlier
+	 * commands instead of evaluating the locator path again.
+	 *
+	 * @return Cache locator if the cache is enabled, otherwise the same as
+	 * {@link #getEffectiveLocator()}, or a dom= locator which resolves the
+	 * whole path if it cannot be merged. Never null.
+	 */
+	public String getCachedLocator() {
+		boolean enabled = ElementCache.isEnabled();
+		if(!stableLocators) {
+			return enabled ? ElementCache.locator(this) : Locators.scoped(getCompiledLocatorPath());
+		}
+		String cached = cacheLocator;
+		// The cache may have been turned on or off since the locator was built
+		if(cached == null || cached.startsWith(ElementCache.PREFIX) != enabled) {
+			cached = enabled ? ElementCache.locator(this) : Locators.scoped(compiledPath());
+			cacheLocator = cached;
+		}
+		return cached;
+	}
+
+	/**
+	 * Waits for this object to be on the page, checking from within the
+	 * browser so that the wait ends as soon as it appears
+	 * 
+	 * @param timeout Milliseconds after which to give up
+	 * @return Milliseconds spent waiting
+	 * @throws SeleniumException if the object does not appear in time
+	 */
+	public long waitUntilPresent(long timeout) {
+		return UIWait.untilPresent(Globals.s, this, timeout);
+	}
+	
+	/**
+	 * Waits for this object to be visible
+	 * 
+	 * @param timeout Milliseconds after which to give up
+	 * @return Milliseconds spent waiting
+	 * @throws SeleniumException if the object is not visible in time
+	 */
+	public long waitUntilVisible(long timeout) {
+		return UIWait.untilVisible(Globals.s, this, timeout);
+	}
+	
+	/**
+	 * Waits for this object's text to contain the given text
+	 * 
+	 * @param text Text to wait for
+	 * @param timeout Milliseconds after which to give up
+	 * @return Milliseconds spent waiting
+	 * @throws SeleniumException if the text does not appear in time
+	 */
+	public long waitUntilText(String text, long timeout) {
+		return UIWait.untilText(Globals.s, this, text, timeout);
+	}
+	
+	private String[] computeLocatorPath() {
 		LinkedList<String> path = new LinkedList<String>();
 		buildLocatorPath(path);
 		return path.toArray(new String[path.size()]);
@@ -0,0 +1,90 @@
+/* Copyright 2008
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng.ui;
+
+import java.util.Arrays;
+
+/**
+ * Precompiled handle to an element of the UI map. The path is resolved
+ * on first use and the result is reused until any element is registered
+ * with the UI map or added as a child, so repeated lookups cost a single
+ * comparison.
+ * 
+ * Handles are typically held in constants:
+ * <pre>
+ * private static final UIPath LOGIN = UIMap.path("header", "login");
+ * ...
+ * s.click(LOGIN.get().getLocator());
+ * </pre>
+ */
+public final class UIPath {
+	private final String[] path;
+	private volatile Resolution resolved;
+	
+	/** Resolved element, paired with the generation it was resolved in */
+	private static final class Resolution {
+		final int generation;
+		final UIObject target;
+		
+		Resolution(int generation, UIObject target) {
+			this.generation = generation;
+			this.target = target;
+		}
+	}
+	
+	UIPath(String... path) {
+		if(path.length == 0) {
+			throw new IllegalArgumentException("UI path must contain at least one name");
+		}
+		this.path = path.clone();
+	}
+	
+	/**
+	 * Gets the element this path refers to
+	 * @return The element, or null if any part of the path does not exist
+	 */
+	public UIObject get() {
+		int generation = UIMap.generation();
+		Resolution r = resolved;
+		if(r == null || r.generation != generation) {
+			r = new Resolution(generation, resolve());
+			resolved = r;
+		}
+		if(UISelection.isTracking()) {
+			UISelection.select(r.target, path);
+		}
+		return r.target;
+	}
+	
+	private UIObject resolve() {
+		UIObject out = UIMap.get(path[0]);
+		for(int i = 1; i < path.length && out != null; i++) {
+			out = out.ui(path[i]);
+		}
+		return out;
+	}
+	
+	/**
+	 * Gets the names making up this path
+	 * @return Copy of the path
+	 */
+	public String[] getNames() {
+		return path.clone();
+	}
+	
+	public String toString() {
+		return Arrays.toString(path);
+	}
+}
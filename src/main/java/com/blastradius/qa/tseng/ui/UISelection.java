@@ -0,0 +1,102 @@
+/* Copyright 2008
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng.ui;
+
+/**
+ * Remembers the UI Object most recently looked up on each thread through
+ * {@link UIMap#ui(String...)} or a {@link UIPath}, so that the Selenium
+ * commands and failures which follow can be attributed to it.
+ *
+ * Tracking is off unless turned on with {@link #setTracking(boolean)},
+ * which {@link com.blastradius.qa.tseng.Globals} does when command
+ * statistics, failure artifacts or the element cache are in use. While
+ * it is off, lookups do not touch the thread's selection at all.
+ */
+public final class UISelection {
+	private static volatile boolean tracking = false;
+
+	private static final ThreadLocal<Selection> selection = new ThreadLocal<Selection>() {
+		protected Selection initialValue() {
+			return new Selection();
+		}
+	};
+
+	private static final class Selection {
+		UIObject target;
+		String[] names;
+	}
+
+	private UISelection() {
+	}
+
+	/**
+	 * Turns tracking of looked-up UI Objects on or off
+	 */
+	public static void setTracking(boolean on) {
+		tracking = on;
+	}
+
+	public static boolean isTracking() {
+		return tracking;
+	}
+
+	/**
+	 * Notes the UI Object most recently looked up on this thread
+	 *
+	 * @param target UI Object which was looked up
+	 * @param names Path by which it was found. Not copied, so must not be modified.
+	 */
+	public static void select(UIObject target, String[] names) {
+		Selection s = selection.get();
+		s.target = target;
+		s.names = names;
+	}
+
+	/**
+	 * Forgets the UI Object looked up on this thread, so that nothing
+	 * which follows is attributed to it
+	 */
+	public static void clear() {
+		select(null, null);
+	}
+
+	/**
+	 * Gets the UI Object most recently looked up on this thread
+	 * @return UI Object, or null if none has been looked up
+	 */
+	public static UIObject object() {
+		return selection.get().target;
+	}
+
+	/**
+	 * Gets the path by which the UI Object most recently looked up on this
+	 * thread was found
+	 * @return Names separated by '/', or null if none has been looked up
+	 */
+	public static String name() {
+		String[] names = selection.get().names;
+		if(names == null) {
+			return null;
+		}
+		StringBuilder out = new StringBuilder();
+		for(String name : names) {
+			if(out.length() > 0) {
+				out.append('/');
+			}
+			out.append(name);
+		}
+		return out.toString();
+	}
+}
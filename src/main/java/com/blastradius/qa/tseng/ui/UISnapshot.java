@@ -0,0 +1,206 @@
+/* Copyright 2008
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng.ui;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.blastradius.qa.tseng.Globals;
+import com.thoughtworks.selenium.Selenium;
+import com.thoughtworks.selenium.SeleniumException;
+
+/**
+ * Immutable record of the state of a UI Object and all of its
+ * descendants on the page, captured in a single browser round-trip.
+ * The snapshot tree has the same shape as the UI Object tree.
+ */
+public final class UISnapshot {
+	private final UIObject source;
+	private final boolean present;
+	private final boolean visible;
+	private final String text;
+	private final Map<String, String> attributes;
+	private final Map<String, UISnapshot> children;
+
+	private UISnapshot(UIObject source, boolean present, boolean visible, String text,
+			Map<String, String> attributes, Map<String, UISnapshot> children) {
+		this.source = source;
+		this.present = present;
+		this.visible = visible;
+		this.text = text;
+		this.attributes = Collections.unmodifiableMap(attributes);
+		this.children = Collections.unmodifiableMap(children);
+	}
+
+	/**
+	 * Captures the state of a UI Object and its descendants using
+	 * {@link Globals#s}.
+	 *
+	 * @param root Top of the tree to capture
+	 * @param attributes Names of attributes to read from every element
+	 * @return Snapshot of the tree
+	 */
+	public static UISnapshot capture(UIObject root, String... attributes) {
+		return capture(Globals.s, root, attributes);
+	}
+
+	/**
+	 * Captures the state of a UI Object and its descendants.
+	 *
+	 * @param selenium Session to read the page from
+	 * @param root Top of the tree to capture
+	 * @param attributes Names of attributes to read from every element
+	 * @return Snapshot of the tree
+	 */
+	public static UISnapshot capture(Selenium selenium, UIObject root, String... attributes) {
+		List<UIObject> nodes = new ArrayList<UIObject>();
+		collect(root, nodes);
+
+		StringBuilder paths = new StringBuilder("[");
+		for(int i = 0; i < nodes.size(); i++) {
+			if(i > 0) {
+				paths.append(',');
+			}
+			paths.append(BrowserScript.array(nodes.get(i).getCompiledLocatorPath()));
+		}
+		paths.append(']');
+
+		String script = BrowserScript.script("tseng.snapshot(" + paths + "," + BrowserScript.array(attributes) + ")");
+		Iterator<Object> values = BrowserScript.decode(selenium.getEval(script)).iterator();
+		UISnapshot snapshot = build(root, values, attributes);
+		if(values.hasNext()) {
+			throw new SeleniumException("Snapshot of " + nodes.size() + " elements returned unexpected values");
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Lists a tree's nodes in the order they are built: each node
+	 * followed by its children in name order.
+	 */
+	private static void collect(UIObject o, List<UIObject> nodes) {
+		nodes.add(o);
+		for(UIObject child : new TreeMap<String, UIObject>(o.getChildren()).values()) {
+			collect(child, nodes);
+		}
+	}
+
+	private static UISnapshot build(UIObject o, Iterator<Object> values, String[] attributeNames) {
+		boolean present = next(values, Boolean.class).booleanValue();
+		boolean visible = false;
+		String text = null;
+		Map<String, String> attributes = new LinkedHashMap<String, String>();
+
+		if(present) {
+			visible = next(values, Boolean.class).booleanValue();
+			text = next(values, String.class);
+			for(String name : attributeNames) {
+				attributes.put(name, next(values, String.class));
+			}
+		}
+
+		Map<String, UISnapshot> children = new LinkedHashMap<String, UISnapshot>();
+		for(Map.Entry<String, UIObject> child : new TreeMap<String, UIObject>(o.getChildren()).entrySet()) {
+			children.put(child.getKey(), build(child.getValue(), values, attributeNames));
+		}
+		return new UISnapshot(o, present, visible, text, attributes, children);
+	}
+
+	private static <T> T next(Iterator<Object> values, Class<T> type) {
+		if(!values.hasNext()) {
+			throw new SeleniumException("Snapshot returned fewer values than expected");
+		}
+		Object value = values.next();
+		if(value != null && !type.isInstance(value)) {
+			throw new SeleniumException("Snapshot returned " + value + " where a " + type.getSimpleName() + " was expected");
+		}
+		return type.cast(value);
+	}
+
+	/**
+	 * Gets the UI Object this snapshot was taken from
+	 */
+	public UIObject getSource() {
+		return source;
+	}
+
+	/**
+	 * Whether the element was on the page
+	 */
+	public boolean isPresent() {
+		return present;
+	}
+
+	/**
+	 * Whether the element was visible. False if it was not present.
+	 */
+	public boolean isVisible() {
+		return visible;
+	}
+
+	/**
+	 * Gets the element's text, or null if it was not present
+	 */
+	public String getText() {
+		return text;
+	}
+
+	/**
+	 * Gets the value of an attribute captured with the snapshot
+	 * @param name Attribute name
+	 * @return Attribute value, or null if the element was not present or lacked the attribute
+	 */
+	public String getAttribute(String name) {
+		return attributes.get(name);
+	}
+
+	/**
+	 * Gets all attributes captured for this element
+	 * @return Unmodifiable map of attribute names to values
+	 */
+	public Map<String, String> getAttributes() {
+		return attributes;
+	}
+
+	/**
+	 * Retrieves the snapshot of a named child. Synonym for
+	 * {@link #getChild(String)}, for chaining.
+	 */
+	public UISnapshot ui(String name) {
+		return getChild(name);
+	}
+
+	/**
+	 * Retrieves the snapshot of a named child
+	 * @param name Name of child
+	 * @return Snapshot of the child, or null if no such child exists
+	 */
+	public UISnapshot getChild(String name) {
+		return children.get(name);
+	}
+
+	/**
+	 * Gets the snapshots of all children, in name order
+	 * @return Unmodifiable map of child snapshots
+	 */
+	public Map<String, UISnapshot> getChildren() {
+		return children;
+	}
+}
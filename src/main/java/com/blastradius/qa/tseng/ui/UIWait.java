@@ -0,0 +1,221 @@
+/* Copyright 2008
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng.ui;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.blastradius.qa.tseng.LatencyHistogram;
+import com.thoughtworks.selenium.Selenium;
+import com.thoughtworks.selenium.SeleniumException;
+
+/**
+ * Waits for UI Objects to reach a given state, in place of fixed sleeps.
+ * 
+ * Waits on UI Objects are polled inside the browser through Selenium's
+ * waitForCondition, so they cost at most two round-trips however long
+ * they take and return as soon as the condition holds. The first checks
+ * the condition once, installing the browser-side helpers if necessary,
+ * so that each poll after it only evaluates a short condition. Other
+ * conditions are polled from the client with exponential backoff:
+ * frequently at first, so that fast pages are not held up, and less
+ * often as the wait goes on.
+ * 
+ * The time spent waiting on each UI Object is recorded, and can be
+ * written out with {@link #writeCsv(Writer)}.
+ */
+public final class UIWait {
+	/** First delay between client-side polls */
+	private static final long INITIAL_INTERVAL = 10;
+	
+	/** Longest delay between client-side polls */
+	private static final long MAX_INTERVAL = 500;
+	
+	/** Start of the message of Selenium's waitForCondition when the condition does not hold in time */
+	private static final String TIMED_OUT = "Timed out after ";
+	
+	private static final ConcurrentMap<UIObject, LatencyHistogram> waits =
+		new ConcurrentHashMap<UIObject, LatencyHistogram>();
+	
+	private UIWait() {
+	}
+	
+	/**
+	 * A state to be polled for. Its toString() describes it in timeout messages.
+	 */
+	public interface Condition {
+		/**
+		 * @return True once the state has been reached
+		 */
+		boolean isSatisfied();
+	}
+	
+	/**
+	 * Waits for a UI Object to be on the page
+	 * @return Milliseconds spent waiting
+	 * @throws SeleniumException if the object does not appear within the timeout
+	 */
+	public static long untilPresent(Selenium selenium, UIObject o, long timeout) {
+		return inBrowser(selenium, o, "present", null, timeout);
+	}
+	
+	/**
+	 * Waits for a UI Object to be visible
+	 * @return Milliseconds spent waiting
+	 * @throws SeleniumException if the object is not visible within the timeout
+	 */
+	public static long untilVisible(Selenium selenium, UIObject o, long timeout) {
+		return inBrowser(selenium, o, "visible", null, timeout);
+	}
+	
+	/**
+	 * Waits for a UI Object's text to contain the given text
+	 * @return Milliseconds spent waiting
+	 * @throws SeleniumException if the text does not appear within the timeout
+	 */
+	public static long untilText(Selenium selenium, UIObject o, String text, long timeout) {
+		return inBrowser(selenium, o, "text", text, timeout);
+	}
+	
+	private static long inBrowser(Selenium selenium, UIObject o, String condition, String argument, long timeout) {
+		String check = "satisfied(" + BrowserScript.array(o.getCompiledLocatorPath())
+				+ "," + BrowserScript.quote(condition) + "," + BrowserScript.quote(argument) + ")";
+		
+		long start = System.nanoTime();
+		try {
+			// Installs the helper library, and spares the wait if the condition already holds
+			if(!"true".equals(selenium.getEval(BrowserScript.script("tseng." + check)))) {
+				// Each poll evaluates just the condition, not the whole library
+				selenium.waitForCondition("selenium.tseng." + check, Long.toString(timeout));
+			}
+		} catch(SeleniumException e) {
+			record(o, System.nanoTime() - start);
+			if(e.getMessage() == null || e.getMessage().indexOf(TIMED_OUT) < 0) {
+				throw e;
+			}
+			throw new SeleniumException(TIMED_OUT + timeout + "ms waiting for "
+					+ Locators.describe(o) + " to be " + describe(condition, argument), e);
+		}
+		return record(o, System.nanoTime() - start);
+	}
+	
+	private static String describe(String condition, String argument) {
+		return condition.equals("text") ? "showing '" + argument + "'" : condition;
+	}
+	
+	/**
+	 * Polls a condition from the client until it holds, backing off
+	 * exponentially between polls
+	 * 
+	 * @param condition State to wait for
+	 * @param timeout Milliseconds after which to give up
+	 * @param o UI Object to which the waiting time is attributed, or null
+	 * @return Milliseconds spent waiting
+	 * @throws SeleniumException if the condition does not hold within the timeout
+	 */
+	public static long until(Condition condition, long timeout, UIObject o) {
+		final long start = System.nanoTime();
+		final long deadline = System.currentTimeMillis() + timeout;
+		long interval = INITIAL_INTERVAL;
+		
+		while(!condition.isSatisfied()) {
+			long remaining = deadline - System.currentTimeMillis();
+			if(remaining <= 0) {
+				if(o != null) {
+					record(o, System.nanoTime() - start);
+				}
+				throw new SeleniumException(TIMED_OUT + timeout + "ms waiting for " + condition);
+			}
+			try {
+				Thread.sleep(Math.min(interval, remaining));
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SeleniumException("Interrupted while waiting for " + condition, e);
+			}
+			interval = Math.min(interval * 2, MAX_INTERVAL);
+		}
+		
+		long elapsed = System.nanoTime() - start;
+		if(o != null) {
+			record(o, elapsed);
+		}
+		return elapsed / 1000000;
+	}
+	
+	private static long record(UIObject o, long nanos) {
+		LatencyHistogram h = waits.get(o);
+		if(h == null) {
+			waits.putIfAbsent(o, new LatencyHistogram());
+			h = waits.get(o);
+		}
+		h.record(nanos);
+		return nanos / 1000000;
+	}
+	
+	/**
+	 * Gets the times spent waiting on a UI Object
+	 * @return Histogram of waits, or null if the object has not been waited on
+	 */
+	public static LatencyHistogram getWaits(UIObject o) {
+		return waits.get(o);
+	}
+	
+	/**
+	 * Forgets all recorded waits
+	 */
+	public static void reset() {
+		waits.clear();
+	}
+	
+	/**
+	 * Writes the time spent waiting on each UI Object as CSV, longest
+	 * total first. Times are in milliseconds.
+	 * 
+	 * @param out Destination of the report
+	 * @return True if any waits were written
+	 * @throws IOException if the report could not be written
+	 */
+	public static boolean writeCsv(Writer out) throws IOException {
+		List<Map.Entry<UIObject, LatencyHistogram>> entries =
+			new ArrayList<Map.Entry<UIObject, LatencyHistogram>>(waits.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<UIObject, LatencyHistogram>>() {
+			public int compare(Map.Entry<UIObject, LatencyHistogram> a, Map.Entry<UIObject, LatencyHistogram> b) {
+				return Double.compare(b.getValue().getTotal(), a.getValue().getTotal());
+			}
+		});
+		
+		out.write("element,count,total,mean,p95,max\n");
+		for(Map.Entry<UIObject, LatencyHistogram> entry : entries) {
+			LatencyHistogram h = entry.getValue();
+			out.write("\"" + Locators.describe(entry.getKey()).replace("\"", "\"\"") + "\"," + h.getCount()
+					+ "," + format(h.getTotal()) + "," + format(h.getMean())
+					+ "," + format(h.getPercentile(95)) + "," + format(h.getMax()) + "\n");
+		}
+		out.flush();
+		return !entries.isEmpty();
+	}
+	
+	private static String format(double millis) {
+		return String.format(Locale.US, "%.3f", millis);
+	}
+}
@@ -0,0 +1,116 @@
+/* Copyright 2008
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+/*
+ * Selenium user extension which remembers the element each locator path
+ * resolved to, so that repeated commands against the same UI Object do
+ * not evaluate its locators again. Loaded after tseng.js.
+ *
+ * Adds the "tseng" locator strategy. The locator is a JavaScript array
+ * literal holding a compiled locator path, as built by ElementCache:
+ *   tseng=['xpath=//div[@id=\'cart\']//span', 'link=Checkout']
+ *
+ * Every entry is dropped when a new page is loaded, and individual entries
+ * are dropped when their element is removed from its document.
+ */
+tseng.cache = {
+	/** Document of the current page, for which the entries are valid */
+	doc: null,
+	/** Elements by locator path, each key prefixed so as not to clash with Object properties */
+	elements: {},
+	size: 0,
+	hits: 0,
+	misses: 0,
+	/** Entries dropped because their element was removed from the page */
+	stale: 0,
+	/** Number of times the entries were dropped because a new page was loaded */
+	invalidations: 0,
+
+	/** Finds the element for a locator, from the cache if possible */
+	lookup: function(locator) {
+		return tseng.cache.lookupPath(eval(locator));
+	},
+
+	/** Finds the element for a compiled locator path, from the cache if possible */
+	lookupPath: function(path) {
+		var doc = selenium.browserbot.getDocument();
+		if(doc !== tseng.cache.doc) {
+			if(tseng.cache.doc != null) {
+				tseng.cache.invalidations++;
+			}
+			tseng.cache.clear();
+			tseng.cache.doc = doc;
+		}
+
+		var key = '#' + path.join('\n');
+		var element = tseng.cache.elements[key];
+		if(element) {
+			if(tseng.cache.attached(element)) {
+				tseng.cache.hits++;
+				return element;
+			}
+			delete tseng.cache.elements[key];
+			tseng.cache.size--;
+			tseng.cache.stale++;
+		}
+
+		tseng.cache.misses++;
+		element = tseng.find(path);
+		if(element) {
+			tseng.cache.elements[key] = element;
+			tseng.cache.size++;
+		}
+		return element;
+	},
+
+	/** Whether an element is still part of a document being displayed */
+	attached: function(element) {
+		var doc = element.ownerDocument;
+		if(!doc || !tseng.contains(doc, element)) {
+			return false;
+		}
+		// A frame which has loaded another page no longer shows the old document
+		var view = doc.defaultView;
+		return !view || view.document === doc;
+	},
+
+	clear: function() {
+		tseng.cache.elements = {};
+		tseng.cache.size = 0;
+	},
+
+	/** Drops every entry and zeroes the counters */
+	reset: function() {
+		tseng.cache.clear();
+		tseng.cache.doc = null;
+		tseng.cache.hits = tseng.cache.misses = tseng.cache.stale = tseng.cache.invalidations = 0;
+	},
+
+	/** Encodes the counters as hits, misses, stale, invalidations and size */
+	stats: function() {
+		var c = tseng.cache;
+		return tseng.encode(c.hits) + tseng.encode(c.misses) + tseng.encode(c.stale)
+			+ tseng.encode(c.invalidations) + tseng.encode(c.size);
+	}
+};
+
+BrowserBot.prototype.locateElementByTseng = function(locator, inDocument, inWindow) {
+	return tseng.cache.lookup(locator);
+};
+
+// Locator strategies are gathered when the browserbot is created, which may already have happened
+if(typeof selenium != 'undefined' && selenium && selenium.browserbot && selenium.browserbot.locationStrategies) {
+	selenium.browserbot.locationStrategies['tseng'] = BrowserBot.prototype.locateElementByTseng;
+}
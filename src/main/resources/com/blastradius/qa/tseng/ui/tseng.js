@@ -0,0 +1,281 @@
+/* Copyright 2008
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+/*
+ * Browser-side helpers for TSeNG, evaluated through Selenium's getEval.
+ * Elements are identified by locator paths, as produced by
+ * UIObject.getCompiledLocatorPath(): the first locator is resolved
+ * against the document, and each following locator within the element
+ * found by the one before it.
+ *
+ * Results are returned to Java as a single string of encoded values:
+ *   n         null
+ *   t / f     boolean
+ *   s<len>:   string of <len> characters
+ *   i<digits>; integer
+ *   x         element not found
+ */
+var tseng = {
+	/** Resolves a locator path to an element, or null */
+	find: function(path) {
+		var bot = selenium.browserbot;
+		var element = null;
+		for(var i = 0; i < path.length; i++) {
+			element = tseng.step(bot, path[i], element);
+			if(!element) {
+				return null;
+			}
+		}
+		return element;
+	},
+
+	/**
+	 * Resolves a locator path to an element, or null, through the element
+	 * cache where it is installed
+	 */
+	element: function(path) {
+		return tseng.cache ? tseng.cache.lookupPath(path) : tseng.find(path);
+	},
+
+	/** Resolves one locator, within the given element if there is one */
+	step: function(bot, locator, context) {
+		if(!context) {
+			return bot.findElementOrNull(locator);
+		}
+
+		var doc = context.ownerDocument;
+		var xpath = tseng.xpathBody(locator);
+		if(xpath != null && xpath.charAt(0) == '/' && doc.evaluate) {
+			return doc.evaluate('.' + xpath, context, null, 9 /* FIRST_ORDERED_NODE_TYPE */, null).singleNodeValue;
+		}
+		if(locator.indexOf('css=') == 0 && context.querySelector) {
+			return context.querySelector(locator.substring(4));
+		}
+
+		// No scoped lookup available - find in the document and check containment
+		var element = bot.findElementOrNull(locator);
+		return element && tseng.contains(context, element) ? element : null;
+	},
+
+	xpathBody: function(locator) {
+		if(locator.indexOf('xpath=') == 0) {
+			return locator.substring(6);
+		}
+		return locator.indexOf('//') == 0 ? locator : null;
+	},
+
+	contains: function(ancestor, element) {
+		for(var n = element; n; n = n.parentNode) {
+			if(n == ancestor) {
+				return true;
+			}
+		}
+		return false;
+	},
+
+	style: function(element, property) {
+		var view = element.ownerDocument.defaultView;
+		if(view && view.getComputedStyle) {
+			var computed = view.getComputedStyle(element, null);
+			return computed ? computed[property] : null;
+		}
+		return element.currentStyle ? element.currentStyle[property] : null;
+	},
+
+	visible: function(element) {
+		if(element.tagName && element.tagName.toLowerCase() == 'input' && element.type == 'hidden') {
+			return false;
+		}
+		if(tseng.style(element, 'visibility') == 'hidden') {
+			return false;
+		}
+		for(var n = element; n && n.nodeType == 1; n = n.parentNode) {
+			if(tseng.style(n, 'display') == 'none') {
+				return false;
+			}
+		}
+		return true;
+	},
+
+	text: function(element) {
+		if(typeof getText == 'function') {
+			// Selenium Core's own implementation, for consistency with getText()
+			return getText(element);
+		}
+		var text = element.textContent || element.innerText || '';
+		return text.replace(/\s+/g, ' ').replace(/^ | $/g, '');
+	},
+
+	encode: function(value) {
+		if(value === null || value === undefined) {
+			return 'n';
+		}
+		if(value === true || value === false) {
+			return value ? 't' : 'f';
+		}
+		if(typeof value == 'number' && Math.floor(value) == value) {
+			return 'i' + value + ';';
+		}
+		value = String(value);
+		return 's' + value.length + ':' + value;
+	},
+
+	/**
+	 * Whether an element meets a wait condition: 'present', 'visible',
+	 * or 'text', which requires the element's text to contain the argument.
+	 * Used as the condition script of Selenium's waitForCondition, so
+	 * that the browser polls without a round-trip to the client.
+	 */
+	satisfied: function(path, condition, argument) {
+		var element = tseng.element(path);
+		if(condition == 'present') {
+			return element != null;
+		} else if(!element) {
+			return false;
+		} else if(condition == 'visible') {
+			return tseng.visible(element);
+		} else if(condition == 'text') {
+			return tseng.text(element).indexOf(argument) >= 0;
+		}
+		throw new Error('Unknown wait condition ' + condition);
+	},
+
+	/**
+	 * Reads the state of every element in a list of locator paths. For
+	 * each, returns whether it is present and, if so, whether it is
+	 * visible, its text, and the value of each named attribute.
+	 */
+	snapshot: function(paths, attributes) {
+		var out = [];
+		for(var i = 0; i < paths.length; i++) {
+			var element = tseng.element(paths[i]);
+			out.push(tseng.encode(element != null));
+			if(element) {
+				out.push(tseng.encode(tseng.visible(element)));
+				out.push(tseng.encode(tseng.text(element)));
+				for(var j = 0; j < attributes.length; j++) {
+					out.push(tseng.encode(element.getAttribute(attributes[j])));
+				}
+			}
+		}
+		return out.join('');
+	},
+
+	/**
+	 * Counts the elements matched by the last locator of a path, within
+	 * the element found by the rest of it. Locators which are neither
+	 * XPath nor CSS can only be counted as 0 or 1.
+	 */
+	count: function(path) {
+		var bot = selenium.browserbot;
+		var context = null;
+		for(var i = 0; i < path.length - 1; i++) {
+			context = tseng.step(bot, path[i], context);
+			if(!context) {
+				return 0;
+			}
+		}
+
+		var locator = path[path.length - 1];
+		var doc = context ? context.ownerDocument : bot.getDocument();
+		var root = context || doc;
+		var xpath = tseng.xpathBody(locator);
+		if(xpath != null && doc.evaluate) {
+			if(context && xpath.charAt(0) == '/') {
+				xpath = '.' + xpath;
+			}
+			return doc.evaluate(xpath, root, null, 7 /* ORDERED_NODE_SNAPSHOT_TYPE */, null).snapshotLength;
+		}
+		if(locator.indexOf('css=') == 0 && root.querySelectorAll) {
+			return root.querySelectorAll(locator.substring(4)).length;
+		}
+		return tseng.step(bot, locator, context) ? 1 : 0;
+	},
+
+	/** Current time in milliseconds, with a fractional part where the browser has one */
+	now: function() {
+		var w = typeof window != 'undefined' ? window : null;
+		return w && w.performance && w.performance.now ? w.performance.now() : new Date().getTime();
+	},
+
+	/**
+	 * Counts the matches of every path in a list, timing each. For each
+	 * path, returns the number of matches, or -1 if the locator could not
+	 * be evaluated, followed by the time taken in microseconds.
+	 */
+	audit: function(paths) {
+		var out = [];
+		for(var i = 0; i < paths.length; i++) {
+			var start = tseng.now();
+			var matches;
+			try {
+				matches = tseng.count(paths[i]);
+			} catch(e) {
+				matches = -1;
+			}
+			out.push(tseng.encode(matches));
+			out.push(tseng.encode(Math.round((tseng.now() - start) * 1000)));
+		}
+		return out.join('');
+	},
+
+	/**
+	 * For each pair of locator paths, returns whether both find the same
+	 * element, or both find nothing.
+	 */
+	agree: function(pairs) {
+		var out = [];
+		for(var i = 0; i < pairs.length; i++) {
+			var a, b;
+			try {
+				a = tseng.find(pairs[i][0]);
+				b = tseng.find(pairs[i][1]);
+			} catch(e) {
+				out.push(tseng.encode(false));
+				continue;
+			}
+			out.push(tseng.encode(a === b));
+		}
+		return out.join('');
+	},
+
+	/**
+	 * Runs a list of queries, each of the form [operation, path, argument],
+	 * and returns their encoded results.
+	 */
+	batch: function(queries) {
+		var out = [];
+		for(var i = 0; i < queries.length; i++) {
+			var q = queries[i];
+			var element = tseng.element(q[1]);
+			if(q[0] == 'present') {
+				out.push(tseng.encode(element != null));
+			} else if(!element) {
+				out.push('x');
+			} else if(q[0] == 'visible') {
+				out.push(tseng.encode(tseng.visible(element)));
+			} else if(q[0] == 'text') {
+				out.push(tseng.encode(tseng.text(element)));
+			} else if(q[0] == 'value') {
+				out.push(tseng.encode(element.value));
+			} else if(q[0] == 'attribute') {
+				out.push(tseng.encode(element.getAttribute(q[2])));
+			} else {
+				out.push('n');
+			}
+		}
+		return out.join('');
+	}
+};
@@ -0,0 +1,203 @@
+/* Copyright 2008 Blast Radius
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng;
+
+import static org.testng.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mortbay.http.HttpContext;
+import org.mortbay.http.HttpException;
+import org.mortbay.http.HttpRequest;
+import org.mortbay.http.HttpResponse;
+import org.mortbay.http.HttpServer;
+import org.mortbay.http.SocketListener;
+import org.mortbay.http.handler.AbstractHttpHandler;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Records assets from a stand-in site through the caching proxy, then
+ * replays them with the site stopped.
+ */
+public class AssetCacheTests {
+	private HttpServer site;
+	private int sitePort;
+	private final AtomicInteger siteRequests = new AtomicInteger();
+	private File cacheDir;
+	
+	/** Answers every request with its own path */
+	private class EchoHandler extends AbstractHttpHandler {
+		public void handle(String pathInContext, String pathParams, HttpRequest request, HttpResponse response)
+				throws HttpException, IOException {
+			siteRequests.incrementAndGet();
+			response.setContentType(request.getPath().endsWith(".css") ? "text/css" : "text/plain");
+			response.getOutputStream().write(("content of " + request.getPath()).getBytes("UTF-8"));
+			request.setHandled(true);
+		}
+	}
+	
+	private static int freePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		int port = socket.getLocalPort();
+		socket.close();
+		return port;
+	}
+	
+	private static HttpServer start(int port, AbstractHttpHandler handler) throws Exception {
+		HttpServer server = new HttpServer();
+		SocketListener listener = new SocketListener();
+		listener.setHost("localhost");
+		listener.setPort(port);
+		server.addListener(listener);
+		HttpContext context = server.addContext("/");
+		context.addHandler(handler);
+		server.start();
+		return server;
+	}
+	
+	private static String fetch(int port, String path, String[] contentType) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+		assertEquals(connection.getResponseCode(), 200, "Request for " + path + " should succeed");
+		if(contentType != null) {
+			contentType[0] = connection.getContentType();
+		}
+		InputStream in = connection.getInputStream();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int read;
+		while((read = in.read(buffer)) > 0) {
+			body.write(buffer, 0, read);
+		}
+		in.close();
+		return body.toString("UTF-8");
+	}
+	
+	@BeforeClass
+	public void startSite() throws Exception {
+		sitePort = freePort();
+		site = start(sitePort, new EchoHandler());
+		cacheDir = File.createTempFile("asset-cache", "");
+		cacheDir.delete();
+	}
+	
+	@AfterClass(alwaysRun=true)
+	public void cleanUp() throws InterruptedException {
+		if(site != null) {
+			site.stop();
+		}
+		if(cacheDir != null && cacheDir.listFiles() != null) {
+			for(File f : cacheDir.listFiles()) {
+				f.delete();
+			}
+			cacheDir.delete();
+		}
+	}
+	
+	@Test(description="Record mode passes requests through and saves assets")
+	public void record() throws Exception {
+		int port = freePort();
+		AssetCacheHandler cache = new AssetCacheHandler("http://localhost:" + sitePort, cacheDir, AssetCacheHandler.Mode.RECORD);
+		HttpServer proxy = start(port, cache);
+		try {
+			String[] type = new String[1];
+			assertEquals(fetch(port, "/styles/site.css", type), "content of /styles/site.css");
+			assertTrue(type[0].startsWith("text/css"));
+			assertEquals(fetch(port, "/search", null), "content of /search");
+			
+			HttpURLConnection head = (HttpURLConnection) new URL("http://localhost:" + port + "/styles/site.css").openConnection();
+			head.setRequestMethod("HEAD");
+			assertEquals(head.getResponseCode(), 200);
+			head.disconnect();
+		} finally {
+			proxy.stop();
+		}
+		assertEquals(cache.getRecorded(), 1, "Only the stylesheet is a static asset, and only its GET is recorded");
+		assertEquals(cache.getForwarded(), 3);
+	}
+	
+	@Test(description="Concurrent requests for the same asset each get it whole, and one copy is saved",
+			dependsOnMethods="record")
+	public void recordConcurrently() throws Exception {
+		final int port = freePort();
+		AssetCacheHandler cache = new AssetCacheHandler("http://localhost:" + sitePort, cacheDir, AssetCacheHandler.Mode.RECORD);
+		HttpServer proxy = start(port, cache);
+		final String[] bodies = new String[8];
+		try {
+			Thread[] clients = new Thread[bodies.length];
+			for(int i = 0; i < clients.length; i++) {
+				final int index = i;
+				clients[i] = new Thread() {
+					public void run() {
+						try {
+							bodies[index] = fetch(port, "/scripts/app.js", null);
+						} catch(Throwable e) {
+							bodies[index] = e.toString();
+						}
+					}
+				};
+				clients[i].start();
+			}
+			for(Thread client : clients) {
+				client.join(10000);
+			}
+		} finally {
+			proxy.stop();
+		}
+		for(String body : bodies) {
+			assertEquals(body, "content of /scripts/app.js");
+		}
+		for(File f : cacheDir.listFiles()) {
+			assertFalse(f.getName().endsWith(".tmp"), "Temporary files should not be left behind: " + f);
+		}
+		assertTrue(cache.getRecorded() >= 1);
+	}
+	
+	@Test(description="Replay mode serves recorded assets without the site",
+			dependsOnMethods={"record", "recordConcurrently"})
+	public void replay() throws Exception {
+		int port = freePort();
+		AssetCacheHandler cache = new AssetCacheHandler("http://localhost:" + sitePort, cacheDir, AssetCacheHandler.Mode.REPLAY);
+		HttpServer proxy = start(port, cache);
+		try {
+			int before = siteRequests.get();
+			String[] type = new String[1];
+			assertEquals(fetch(port, "/styles/site.css", type), "content of /styles/site.css");
+			assertEquals(fetch(port, "/styles/site.css", null), "content of /styles/site.css");
+			assertTrue(type[0].startsWith("text/css"), "The recorded content type should be replayed");
+			assertEquals(siteRequests.get(), before, "Recorded assets should not be fetched from the site");
+			
+			assertEquals(fetch(port, "/search", null), "content of /search");
+			assertEquals(siteRequests.get(), before + 1, "Dynamic requests should still reach the site");
+			assertEquals(fetch(port, "/scripts/app.js", null), "content of /scripts/app.js",
+					"An asset recorded by concurrent requests should be replayed whole");
+			
+			site.stop();
+			assertEquals(fetch(port, "/styles/site.css", null), "content of /styles/site.css",
+					"Recorded assets should be available with the site offline");
+			assertEquals(cache.getHits(), 4);
+		} finally {
+			proxy.stop();
+		}
+	}
+}
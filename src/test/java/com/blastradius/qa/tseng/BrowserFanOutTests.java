@@ -0,0 +1,164 @@
+/* Copyright 2008 Blast Radius
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng;
+
+import static org.testng.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.TestNG;
+import org.testng.annotations.Test;
+import org.testng.xml.XmlClass;
+import org.testng.xml.XmlSuite;
+import org.testng.xml.XmlTest;
+
+/**
+ * Checks that suites are expanded per browser, and that the copies run
+ * concurrently, each against its own browser.
+ */
+public class BrowserFanOutTests {
+	private static final List<String> BROWSERS = Arrays.asList(new String[] { "*firefox", "*iexplore" });
+	
+	/** Records the browser each invocation was directed to */
+	private static final List<String> seen = Collections.synchronizedList(new ArrayList<String>());
+	
+	/** Stand-in for a slow test, run by the nested suite */
+	public static class Probe {
+		@Test
+		public void slowStep() throws InterruptedException {
+			seen.add(Globals.currentBrowser());
+			Globals.session();
+			Thread.sleep(500);
+		}
+	}
+	
+	private static XmlSuite suite(boolean withGlobals) {
+		return suite(withGlobals, 1);
+	}
+	
+	private static XmlSuite suite(boolean withGlobals, int probes) {
+		XmlSuite suite = new XmlSuite();
+		suite.setName("Fan-out");
+		if(withGlobals) {
+			XmlTest init = new XmlTest(suite);
+			init.setName("00 Initialize Globals");
+			init.setXmlClasses(Collections.singletonList(new XmlClass(Globals.class)));
+		}
+		for(int i = 0; i < probes; i++) {
+			XmlTest test = new XmlTest(suite);
+			test.setName(i == 0 ? "Probe" : "Probe " + (i + 1));
+			test.setXmlClasses(Collections.singletonList(new XmlClass(Probe.class)));
+		}
+		return suite;
+	}
+	
+	@Test(description="Each test is copied per browser, except the initialization of Globals")
+	public void expandSuite() {
+		XmlSuite suite = BrowserFanOut.expand(suite(true), BROWSERS);
+		
+		assertEquals(suite.getTests().size(), 3);
+		assertEquals(suite.getTests().get(0).getName(), "00 Initialize Globals");
+		XmlTest firefox = suite.getTests().get(1);
+		assertEquals(firefox.getName(), "Probe [*firefox]");
+		assertEquals(firefox.getParameter("selenium.browser"), "*firefox");
+		assertEquals(firefox.getXmlClasses().get(0).getName(), Probe.class.getName());
+		assertEquals(suite.getTests().get(2).getName(), "Probe [*iexplore]");
+		
+		assertEquals(suite.getParameter("selenium.browsers"), "*firefox,*iexplore");
+		assertEquals(suite.getParallel(), XmlSuite.PARALLEL_TESTS);
+		assertTrue(suite.getListeners().contains(BrowserFanOut.class.getName()));
+		assertNull(suite.getParameter("selenium.pool.size"), "One copy per browser fits the default pool");
+		assertEquals(BrowserFanOut.browserOf("Probe [*firefox]"), "*firefox");
+		assertNull(BrowserFanOut.browserOf("Probe"));
+	}
+	
+	@Test(description="Copies run at the same time, each directed to its own browser")
+	public void runConcurrently() {
+		Map<String, SeleniumPool> previous = Globals.browserSessions;
+		Map<String, SeleniumPool> pools = new LinkedHashMap<String, SeleniumPool>();
+		for(String browser : BROWSERS) {
+			pools.put(browser, StubSelenium.pool("http://localhost", Collections.<String, File>emptyMap(), browser, 1));
+		}
+		
+		seen.clear();
+		Globals.browserSessions = pools;
+		try {
+			TestNG testng = new TestNG();
+			testng.setXmlSuites(Collections.singletonList(BrowserFanOut.expand(suite(false), BROWSERS)));
+			testng.setOutputDirectory(new File(System.getProperty("java.io.tmpdir"), "tseng-fan-out").getPath());
+			testng.setVerbose(0);
+			
+			long start = System.currentTimeMillis();
+			testng.run();
+			long elapsed = System.currentTimeMillis() - start;
+			
+			assertFalse(testng.hasFailure());
+			assertEquals(new ArrayList<String>(seen).size(), 2);
+			assertTrue(seen.containsAll(BROWSERS), "Each copy should use its own browser: " + seen);
+			assertTrue(elapsed < 900, "Copies should run concurrently, but took " + elapsed + "ms");
+		} finally {
+			Globals.browserSessions = previous;
+		}
+	}
+	
+	@Test(description="Copies for the same browser each get a session, and hand it back when they finish")
+	public void copiesShareBrowserPool() throws InterruptedException {
+		XmlSuite suite = BrowserFanOut.expand(suite(false, 3), Collections.singletonList("*firefox"));
+		assertEquals(suite.getTests().size(), 3);
+		int size = Integer.parseInt(suite.getParameter("selenium.pool.size"));
+		assertEquals(size, 3, "The pool should have a session for each copy of the browser");
+		
+		Map<String, SeleniumPool> previous = Globals.browserSessions;
+		final SeleniumPool pool = StubSelenium.pool("http://localhost", Collections.<String, File>emptyMap(), "*firefox", size);
+		seen.clear();
+		Globals.browserSessions = Collections.singletonMap("*firefox", pool);
+		try {
+			TestNG testng = new TestNG();
+			testng.setXmlSuites(Collections.singletonList(suite));
+			testng.setOutputDirectory(new File(System.getProperty("java.io.tmpdir"), "tseng-fan-out").getPath());
+			testng.setVerbose(0);
+			testng.run();
+			
+			assertFalse(testng.hasFailure());
+			assertEquals(seen.size(), 3);
+			
+			// Every session should be idle again, so these must not wait
+			Thread[] users = new Thread[size];
+			for(int i = 0; i < users.length; i++) {
+				users[i] = new Thread() {
+					public void run() {
+						pool.get();
+					}
+				};
+				users[i].setDaemon(true);
+				users[i].start();
+			}
+			for(Thread user : users) {
+				user.join(5000);
+				assertFalse(user.isAlive(), "Copies should release their sessions when they finish");
+			}
+			assertEquals(pool.getStarted(), size);
+		} finally {
+			Globals.browserSessions = previous;
+			pool.shutdown();
+		}
+	}
+}
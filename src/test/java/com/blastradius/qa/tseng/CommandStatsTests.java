@@ -0,0 +1,188 @@
+/* Copyright 2008 Blast Radius
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng;
+
+import static org.testng.Assert.*;
+
+import java.io.StringWriter;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.blastradius.qa.tseng.ui.BenchmarkRunner;
+import com.blastradius.qa.tseng.ui.ElementCache;
+import com.blastradius.qa.tseng.ui.UIMap;
+import com.blastradius.qa.tseng.ui.UIObject;
+import com.blastradius.qa.tseng.ui.UISelection;
+import com.thoughtworks.selenium.Selenium;
+import com.thoughtworks.selenium.SeleniumException;
+
+/**
+ * Checks the recording and reporting of Selenium command timings
+ * against a fake Selenium.
+ */
+public class CommandStatsTests {
+	private boolean tracking;
+	
+	@BeforeMethod(description="Track UI Object lookups, as Globals does when statistics are recorded")
+	public void track() {
+		tracking = UISelection.isTracking();
+		UISelection.setTracking(true);
+	}
+	
+	@AfterMethod(alwaysRun=true, description="Restore tracking and the element cache")
+	public void restore() {
+		UISelection.setTracking(tracking);
+		ElementCache.setEnabled(false);
+	}
+	
+	/**
+	 * Creates a Selenium which returns immediately from every command,
+	 * except isTextPresent, which fails
+	 */
+	private static Selenium fake() {
+		return new FakeSelenium("browser").fails("isTextPresent", new SeleniumException("Not found"))
+				.otherwiseReturns("text").selenium();
+	}
+	
+	@Test(description="Histograms report percentiles to within a bucket")
+	public void histogramPercentiles() {
+		LatencyHistogram h = new LatencyHistogram();
+		for(int i = 1; i <= 100; i++) {
+			h.record(i * 1000000L);
+		}
+		assertEquals(h.getCount(), 100);
+		assertEquals(h.getMax(), 100.0, 0.001);
+		assertEquals(h.getMean(), 50.5, 0.001);
+		assertEquals(h.getPercentile(50), 50, 50 * 0.25);
+		assertEquals(h.getPercentile(99), 99, 99 * 0.25);
+		assertEquals(h.getPercentile(100), 100.0, 0.001, "No percentile may exceed the maximum");
+		
+		for(long micros = 0; micros < 100000; micros += 7) {
+			int bucket = LatencyHistogram.bucket(micros);
+			assertTrue(LatencyHistogram.upperBound(bucket) >= micros
+					&& (bucket == 0 || LatencyHistogram.upperBound(bucket - 1) < micros),
+					"Bucket " + bucket + " should contain " + micros);
+		}
+	}
+	
+	@Test(description="Commands are recorded per command, per test and per UI Object")
+	public void recordsCommands() {
+		CommandStats stats = new CommandStats();
+		Selenium s = stats.instrument(fake());
+		
+		stats.startTest("CommandStatsTests.recordsCommands");
+		s.open("/");
+		s.open("/cart");
+		stats.endTest();
+		
+		UIObject cart = new UIObject(null, "//div[@id='cart']");
+		UIMap.put("statsCart", cart);
+		UIObject total = new UIObject(cart, "//span[@class='total']");
+		cart.putChild("total", total);
+		assertEquals(s.getText(UIMap.ui("statsCart", "total").getEffectiveLocator()), "text");
+		try {
+			s.isTextPresent("missing");
+			fail("Failures should be passed on");
+		} catch(SeleniumException e) { /* Expected */ }
+		
+		assertEquals(stats.getHistogram("open").getCount(), 2);
+		assertEquals(stats.getHistogram("isTextPresent").getCount(), 1, "Failed commands should be recorded");
+		assertNull(stats.getHistogram("click"));
+		assertEquals(stats.getTestHistogram("CommandStatsTests.recordsCommands", "open").getCount(), 2);
+		assertNull(stats.getTestHistogram("CommandStatsTests.recordsCommands", "getText"),
+				"Commands after the test ends should not be attributed to it");
+		assertEquals(stats.getElementHistogram(total, "getText").getCount(), 1);
+		assertNull(stats.getElementHistogram(total, "isTextPresent"),
+				"Commands against other locators should not be attributed to the UI Object");
+		
+		StringWriter csv = new StringWriter();
+		try {
+			stats.writeCsv(csv);
+		} catch(java.io.IOException e) {
+			throw new RuntimeException(e);
+		}
+		String report = csv.toString();
+		assertTrue(report.startsWith("scope,name,command,count,mean,p50,p95,p99,max\n"));
+		assertTrue(report.contains("\nall,,open,2,"));
+		assertTrue(report.contains("\ntest,CommandStatsTests.recordsCommands,open,2,"));
+		assertTrue(report.contains("\nelement,statsCart/total,getText,1,"));
+	}
+	
+	@Test(description="UI Objects with the same name are reported separately")
+	public void sameNameReported() throws java.io.IOException {
+		CommandStats stats = new CommandStats();
+		Selenium s = stats.instrument(fake());
+		
+		UIMap.put("statsReloaded", new UIObject(null, "//div[@id='old']"));
+		s.getText(UIMap.ui("statsReloaded").getLocator());
+		UIMap.put("statsReloaded", new UIObject(null, "//div[@id='new']"));
+		s.getText(UIMap.ui("statsReloaded").getLocator());
+		s.getText(UIMap.ui("statsReloaded").getLocator());
+		
+		StringWriter csv = new StringWriter();
+		stats.writeCsv(csv);
+		String report = csv.toString();
+		assertTrue(report.contains("\nelement,statsReloaded,getText,1,"), report);
+		assertTrue(report.contains("\nelement,statsReloaded,getText,2,"), report);
+	}
+	
+	@Test(description="Lookups are not tracked unless statistics or failure artifacts need them")
+	public void trackingOff() {
+		UIMap.put("statsUntracked", new UIObject(null, "//div[@id='untracked']"));
+		UISelection.clear();
+		UISelection.setTracking(false);
+		UIMap.ui("statsUntracked");
+		UIMap.path("statsUntracked").get();
+		assertNull(UISelection.object(), "Lookups should leave the selection alone while tracking is off");
+		
+		UISelection.setTracking(true);
+		UIMap.ui("statsUntracked");
+		assertEquals(UISelection.name(), "statsUntracked");
+	}
+	
+	@Test(description="Recording a command against a UI Object allocates nothing")
+	public void recordWithoutAllocating() {
+		CommandStats stats = new CommandStats();
+		UIObject cart = new UIObject(null, "//div[@id='allocCart']");
+		UIObject total = new UIObject(cart, "link=Total");
+		cart.putChild("total", total);
+		UIMap.put("allocCart", cart);
+		ElementCache.setEnabled(true);
+		
+		UIMap.ui("allocCart", "total");
+		int getText = CommandStats.command("getText");
+		Object[] args = new Object[] { total.getCachedLocator() };
+		Object[] other = new Object[] { "//span" };
+		for(int i = 0; i < 1000; i++) {
+			stats.record(getText, args, 1000);
+			stats.record(getText, other, 1000);
+		}
+		
+		long before = BenchmarkRunner.allocatedBytes();
+		for(int i = 0; i < 100000; i++) {
+			stats.record(getText, args, 1000);
+			stats.record(getText, other, 1000);
+		}
+		long allocated = BenchmarkRunner.allocatedBytes() - before;
+		
+		assertEquals(stats.getElementHistogram(total, "getText").getCount(), 101000);
+		if(before >= 0) {
+			// Reading the counter allocates a little itself, but not per command
+			assertTrue(allocated < 4096, "Recording 200000 commands allocated " + allocated + " bytes");
+		}
+	}
+}
@@ -24,7 +24,7 @@ import org.testng.annotations.AfterClass;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
-public class CoreTests {
+public class CoreTests extends CleanSessionTest {
 	private static final String DOCROOT = "./src/test/resources/";
 	private static final String CONTEXT_ROOT = "/test";
 
@@ -56,7 +56,8 @@ public class CoreTests {
 		assertEquals(s.getTitle(), title, "Title should be '" + title + "'");
 	}
 	
-	@Test(description="Ensure that the given browser string can support cross-domain navigation")
+	@Test(description="Ensure that the given browser string can support cross-domain navigation",
+			groups="network")
 	public void navigateBetweenDomains() {
 		s.open("http://www.google.ca");
 		s.type("name=q", "hello");
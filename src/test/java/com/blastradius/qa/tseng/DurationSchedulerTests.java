@@ -0,0 +1,182 @@
+/* Copyright 2008 Blast Radius
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng;
+
+import static org.testng.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.testng.IMethodInstance;
+import org.testng.ITestNGMethod;
+import org.testng.TestNG;
+import org.testng.annotations.Test;
+import org.testng.xml.XmlClass;
+import org.testng.xml.XmlSuite;
+import org.testng.xml.XmlTest;
+
+/**
+ * Checks the ordering of test methods by their recorded durations.
+ */
+public class DurationSchedulerTests {
+	/** Records the order in which the nested suite's methods start */
+	private static final List<String> started = Collections.synchronizedList(new ArrayList<String>());
+	
+	/** Stand-in for a suite with one slow method, run by the nested suite */
+	public static class Probe {
+		@Test
+		public void quick() {
+			started.add("quick");
+		}
+		
+		@Test
+		public void slow() throws InterruptedException {
+			started.add("slow");
+			Thread.sleep(200);
+		}
+	}
+	
+	/**
+	 * Creates a method instance for a method of this class, with the
+	 * given dependencies
+	 */
+	private static IMethodInstance method(final String name, final String[] methods, final String[] groups,
+			final String[] dependsOnGroups) {
+		final ITestNGMethod m = (ITestNGMethod) Proxy.newProxyInstance(ITestNGMethod.class.getClassLoader(),
+				new Class[] { ITestNGMethod.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						String called = method.getName();
+						if(called.equals("getRealClass")) {
+							return DurationSchedulerTests.class;
+						} else if(called.equals("getMethodName") || called.equals("toString")) {
+							return name;
+						} else if(called.equals("getMethodsDependedUpon")) {
+							return methods;
+						} else if(called.equals("getGroups")) {
+							return groups;
+						} else if(called.equals("getGroupsDependedUpon")) {
+							return dependsOnGroups;
+						} else if(called.equals("equals")) {
+							return Boolean.valueOf(proxy == args[0]);
+						} else if(called.equals("hashCode")) {
+							return Integer.valueOf(System.identityHashCode(proxy));
+						}
+						throw new UnsupportedOperationException(called);
+					}
+				});
+		return new IMethodInstance() {
+			public ITestNGMethod getMethod() {
+				return m;
+			}
+			
+			public Object[] getInstances() {
+				return new Object[0];
+			}
+		};
+	}
+	
+	private static final String[] NONE = new String[0];
+	private static final String PREFIX = DurationSchedulerTests.class.getName() + ".";
+	
+	private static List<String> names(List<IMethodInstance> methods) {
+		List<String> out = new ArrayList<String>();
+		for(IMethodInstance m : methods) {
+			out.add(m.getMethod().getMethodName());
+		}
+		return out;
+	}
+	
+	@Test(description="Methods start longest first, but never before their dependencies")
+	public void orderByDuration() {
+		Map<String, Long> durations = new HashMap<String, Long>();
+		durations.put(PREFIX + "short", 10L);
+		durations.put(PREFIX + "medium", 100L);
+		durations.put(PREFIX + "long", 1000L);
+		durations.put(PREFIX + "setup", 1L);
+		durations.put(PREFIX + "afterSetup", 5000L);
+		durations.put(PREFIX + "grouped", 2000L);
+		
+		List<IMethodInstance> methods = Arrays.asList(new IMethodInstance[] {
+			method("short", NONE, NONE, NONE),
+			method("medium", NONE, NONE, NONE),
+			method("afterSetup", new String[] { PREFIX + "setup" }, NONE, NONE),
+			method("long", NONE, new String[] { "base" }, NONE),
+			method("grouped", NONE, NONE, new String[] { "base" }),
+			method("setup", NONE, NONE, NONE),
+		});
+		
+		assertEquals(names(DurationScheduler.order(methods, durations)),
+				Arrays.asList(new String[] { "setup", "afterSetup", "long", "grouped", "medium", "short" }),
+				"A short method which begins a long chain should go first");
+	}
+	
+	@Test(description="Makespan is predicted by starting each job on the first free worker")
+	public void predictMakespan() {
+		List<Long> jobs = Arrays.asList(new Long[] { 5L, 4L, 3L, 3L, 1L });
+		assertEquals(DurationScheduler.makespan(jobs, 1), 16);
+		assertEquals(DurationScheduler.makespan(jobs, 2), 8);
+	}
+	
+	@Test(description="Recorded durations reorder the next run and are saved")
+	public void historyReordersRun() throws IOException {
+		File history = File.createTempFile("test-durations", ".properties");
+		history.deleteOnExit();
+		Properties previous = new Properties();
+		previous.setProperty(Probe.class.getName() + ".slow", "5000");
+		previous.setProperty(Probe.class.getName() + ".quick", "1");
+		OutputStream out = new FileOutputStream(history);
+		previous.store(out, null);
+		out.close();
+		
+		XmlSuite suite = new XmlSuite();
+		suite.setName("Scheduled");
+		suite.setParameters(Collections.singletonMap(DurationScheduler.HISTORY_PARAMETER, history.getPath()));
+		suite.setListeners(Collections.singletonList(DurationScheduler.class.getName()));
+		XmlTest test = new XmlTest(suite);
+		test.setName("Probe");
+		test.setXmlClasses(Collections.singletonList(new XmlClass(Probe.class)));
+		
+		started.clear();
+		TestNG testng = new TestNG();
+		testng.setXmlSuites(Collections.singletonList(suite));
+		testng.setOutputDirectory(new File(System.getProperty("java.io.tmpdir"), "tseng-scheduler").getPath());
+		testng.setVerbose(0);
+		testng.run();
+		
+		assertEquals(new ArrayList<String>(started), Arrays.asList(new String[] { "slow", "quick" }));
+		
+		Properties saved = new Properties();
+		InputStream in = new FileInputStream(history);
+		saved.load(in);
+		in.close();
+		long slow = Long.parseLong(saved.getProperty(Probe.class.getName() + ".slow"));
+		assertTrue(slow > 200 && slow < 5000, "The new duration should be blended into the history, but was " + slow);
+	}
+}
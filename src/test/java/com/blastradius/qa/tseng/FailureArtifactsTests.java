@@ -0,0 +1,173 @@
+/* Copyright 2008 Blast Radius
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng;
+
+import static org.testng.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import org.testng.Reporter;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.blastradius.qa.tseng.ui.UIMap;
+import com.blastradius.qa.tseng.ui.UIObject;
+import com.blastradius.qa.tseng.ui.UISelection;
+import com.thoughtworks.selenium.Selenium;
+
+/**
+ * Saves failure artifacts from stub and scripted sessions.
+ */
+public class FailureArtifactsTests {
+	private File dir;
+
+	@BeforeMethod(description="Create an empty artifact directory")
+	public void createDirectory() throws IOException {
+		dir = File.createTempFile("failure-artifacts", "");
+		dir.delete();
+	}
+
+	@AfterMethod(description="Remove the artifact directory")
+	public void removeDirectory() {
+		delete(dir);
+	}
+
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		if(children != null) {
+			for(File child : children) {
+				delete(child);
+			}
+		}
+		f.delete();
+	}
+
+	private static byte[] read(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			for(int n = in.read(buffer); n > 0; n = in.read(buffer)) {
+				out.write(buffer, 0, n);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static String text(File f) throws IOException {
+		return new String(read(new FileInputStream(f)), "UTF-8");
+	}
+
+	@Test(description="Source, location and the UI Object involved are saved from the test's session")
+	public void captureFromSession() throws IOException {
+		Selenium s = new StubSelenium("http://localhost:4443", StubSelenium.parseFixtures("/=./src/test/resources")).proxy();
+		s.open("/stub-fixture.html");
+
+		UIObject form = new UIObject(null, "//form[@id='login']");
+		form.putChild("user", new UIObject(form, "//input[@name='user']"));
+		UIMap.put("artifactsLogin", form);
+		boolean tracking = UISelection.isTracking();
+		UISelection.setTracking(true);
+		try {
+			UIMap.ui("artifactsLogin", "user");
+		} finally {
+			UISelection.setTracking(tracking);
+		}
+
+		FailureArtifacts artifacts = new FailureArtifacts(dir, 1, 4);
+		artifacts.capture("com.example.LoginTest.badPassword", new AssertionError("Expected a welcome message"), s);
+		assertTrue(artifacts.flush(), "Writes should finish in time");
+
+		File out = new File(dir, "com.example.LoginTest.badPassword-1");
+		String failure = text(new File(out, "failure.txt"));
+		assertTrue(failure.contains("Test: com.example.LoginTest.badPassword"), failure);
+		assertTrue(failure.contains("Location: http://localhost:4443/stub-fixture.html"), failure);
+		assertTrue(failure.contains("UI Object: artifactsLogin/user"), failure);
+		assertTrue(failure.contains("Locator path: //form[@id='login'] -> //input[@name='user']"), failure);
+		assertTrue(failure.contains("java.lang.AssertionError: Expected a welcome message"), failure);
+		assertTrue(failure.contains("Screenshot: Unavailable"), "The stub cannot take screenshots");
+		assertFalse(new File(out, "screenshot.png").exists());
+
+		String source = new String(read(new GZIPInputStream(new FileInputStream(new File(out, "page.html.gz")))), "UTF-8");
+		assertEquals(source, s.getHtmlSource(), "Source should be saved compressed");
+		assertEquals(artifacts.getWritten(), 1);
+	}
+
+	@Test(description="Screenshots are decoded in the background and saved as PNG")
+	public void screenshot() throws IOException {
+		final byte[] png = new byte[] { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n', 0, (byte) 0xff };
+		Selenium s = new FakeSelenium("browser")
+				.fails("captureEntirePageScreenshotToString", new RuntimeException("Only supported in Firefox"))
+				.returns("captureScreenshotToString", "iVBORw0KGgoA\n/w==")
+				.otherwiseReturns("").selenium();
+
+		FailureArtifacts artifacts = new FailureArtifacts(dir, 1, 4);
+		artifacts.capture("[*firefox] Test.method", null, s);
+		artifacts.flush();
+
+		File out = new File(dir, "_firefox_Test.method-1");
+		assertEquals(read(new FileInputStream(new File(out, "screenshot.png"))), png,
+				"The whole screen should be captured when the page cannot be");
+	}
+
+	@Test(description="Artifacts which cannot be written are counted and reported")
+	public void unwritable() throws IOException {
+		assertTrue(dir.createNewFile(), "A file in place of the directory should prevent writing");
+		FailureArtifacts artifacts = new FailureArtifacts(dir, 1, 4);
+		artifacts.capture("Test.unwritable", null, null);
+		artifacts.flush();
+
+		assertEquals(artifacts.getFailed(), 1);
+		assertEquals(artifacts.getWritten(), 0);
+		boolean reported = false;
+		for(String line : Reporter.getOutput()) {
+			reported |= line.startsWith("Failed to save artifacts of Test.unwritable to ")
+				&& line.contains("java.io.IOException: Could not create ");
+		}
+		assertTrue(reported, "The failure and its cause should be written to the report");
+	}
+
+		@Test(description="Base64 is decoded with and without padding")
+	public void base64() throws IOException {
+		assertEquals(new String(FailureArtifacts.decodeBase64("TWFu"), "US-ASCII"), "Man");
+		assertEquals(new String(FailureArtifacts.decodeBase64("TWE="), "US-ASCII"), "Ma");
+		assertEquals(new String(FailureArtifacts.decodeBase64("TQ=="), "US-ASCII"), "M");
+		assertEquals(new String(FailureArtifacts.decodeBase64("TWFu\r\nTWE"), "US-ASCII"), "ManMa");
+		assertEquals(FailureArtifacts.decodeBase64("").length, 0);
+	}
+
+	@Test(description="A burst of failures larger than the queue is written in full")
+	public void backPressure() {
+		FailureArtifacts artifacts = new FailureArtifacts(dir, 1, 2);
+		for(int i = 0; i < 50; i++) {
+			artifacts.capture("Burst.test" + i, new RuntimeException("Failure " + i), null);
+		}
+		assertTrue(artifacts.flush());
+		assertEquals(artifacts.getCaptured(), 50);
+		assertEquals(artifacts.getWritten(), 50, "No failure should be dropped when the queue is full");
+		assertEquals(dir.listFiles().length, 50);
+
+		artifacts.capture("Late.test", null, null);
+		assertEquals(artifacts.getWritten(), 51, "Failures after the flush should be written straight away");
+		assertTrue(new File(new File(dir, "Late.test-51"), "failure.txt").isFile());
+	}
+}
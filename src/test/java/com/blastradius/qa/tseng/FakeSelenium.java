@@ -0,0 +1,210 @@
+/* Copyright 2008
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.thoughtworks.selenium.Selenium;
+
+/**
+ * Selenium for unit tests which answers each command as it is told to,
+ * without a browser, and records the arguments of every call.
+ *
+ * Commands which have not been given an answer fail with
+ * UnsupportedOperationException, unless {@link #otherwise(Answer)} says
+ * otherwise. Text answers are only returned from commands which return
+ * a string, and commands returning boolean answer false in place of null.
+ * Sessions are equal only to themselves, and named by toString().
+ */
+public class FakeSelenium {
+	/**
+	 * Computes the result of a command, or throws its failure
+	 */
+	public interface Answer {
+		Object answer(String command, Object[] args);
+	}
+
+	private final String name;
+	private final Map<String, Answer> answers = new ConcurrentHashMap<String, Answer>();
+	private volatile Answer otherwise;
+	private final List<Call> calls = Collections.synchronizedList(new ArrayList<Call>());
+	private final Selenium selenium;
+
+	private static class Call {
+		final String command;
+		final String[] args;
+
+		Call(String command, String[] args) {
+			this.command = command;
+			this.args = args;
+		}
+	}
+
+	/**
+	 * @param name Returned by the session's toString()
+	 */
+	public FakeSelenium(String name) {
+		this.name = name;
+		this.selenium = (Selenium) Proxy.newProxyInstance(Selenium.class.getClassLoader(),
+				new Class[] { Selenium.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						return FakeSelenium.this.invoke(proxy, method, args);
+					}
+				});
+	}
+
+	/**
+	 * Answers a command with the given function
+	 * @return This, for chaining
+	 */
+	public FakeSelenium answer(String command, Answer answer) {
+		answers.put(command, answer);
+		return this;
+	}
+
+	/**
+	 * Answers a command with a fixed result
+	 * @return This, for chaining
+	 */
+	public FakeSelenium returns(String command, final Object result) {
+		return answer(command, new Answer() {
+			public Object answer(String command, Object[] args) {
+				return result;
+			}
+		});
+	}
+
+	/**
+	 * Fails every call of a command
+	 * @return This, for chaining
+	 */
+	public FakeSelenium fails(String command, final RuntimeException failure) {
+		return answer(command, new Answer() {
+			public Object answer(String command, Object[] args) {
+				throw failure;
+			}
+		});
+	}
+
+	/**
+	 * Answers every command which has not been given an answer of its own
+	 * @return This, for chaining
+	 */
+	public FakeSelenium otherwise(Answer answer) {
+		otherwise = answer;
+		return this;
+	}
+
+	/**
+	 * Answers commands which have not been given an answer with the given
+	 * text, or null where they do not return a string
+	 * @return This, for chaining
+	 */
+	public FakeSelenium otherwiseReturns(final String text) {
+		return otherwise(new Answer() {
+			public Object answer(String command, Object[] args) {
+				return text;
+			}
+		});
+	}
+
+	/**
+	 * Gets the session which answers commands
+	 */
+	public Selenium selenium() {
+		return selenium;
+	}
+
+	/**
+	 * Gets the arguments of each call of a command so far, in order
+	 */
+	public List<String[]> getCalls(String command) {
+		List<String[]> out = new ArrayList<String[]>();
+		synchronized(calls) {
+			for(Call call : calls) {
+				if(call.command.equals(command)) {
+					out.add(call.args);
+				}
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Gets the first argument of each call of a command so far, in order
+	 */
+	public List<String> getArguments(String command) {
+		List<String> out = new ArrayList<String>();
+		for(String[] args : getCalls(command)) {
+			out.add(args.length > 0 ? args[0] : null);
+		}
+		return out;
+	}
+
+	/**
+	 * Gets the names of the commands called so far, in order
+	 */
+	public List<String> getCommands() {
+		List<String> out = new ArrayList<String>();
+		synchronized(calls) {
+			for(Call call : calls) {
+				out.add(call.command);
+			}
+		}
+		return out;
+	}
+
+	private Object invoke(Object proxy, Method method, Object[] args) {
+		String command = method.getName();
+		if(method.getDeclaringClass() == Object.class) {
+			if(command.equals("equals")) {
+				return Boolean.valueOf(proxy == args[0]);
+			} else if(command.equals("hashCode")) {
+				return Integer.valueOf(System.identityHashCode(proxy));
+			}
+			return name;
+		}
+
+		String[] recorded = new String[args == null ? 0 : args.length];
+		for(int i = 0; i < recorded.length; i++) {
+			recorded[i] = args[i] == null ? null : args[i].toString();
+		}
+		calls.add(new Call(command, recorded));
+
+		Answer answer = answers.get(command);
+		if(answer == null) {
+			answer = otherwise;
+		}
+		if(answer == null) {
+			throw new UnsupportedOperationException(command);
+		}
+		Object result = answer.answer(command, args);
+		if(result instanceof String && method.getReturnType() != String.class) {
+			result = null;
+		}
+		if(result == null && method.getReturnType() == boolean.class) {
+			return Boolean.FALSE;
+		}
+		return result;
+	}
+}
@@ -0,0 +1,212 @@
+/* Copyright 2008 Blast Radius
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng;
+
+import static org.testng.Assert.*;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.testng.annotations.Test;
+
+import com.thoughtworks.selenium.Selenium;
+import com.thoughtworks.selenium.SeleniumException;
+
+/**
+ * Checks that sessions are balanced over a farm of servers, and moved
+ * off servers that stop responding.
+ */
+public class ServerFarmTests {
+	/**
+	 * Pool whose sessions answer getLocation() with the server they were
+	 * started on, and fail as if disconnected once their server is down
+	 */
+	private static class FarmPool extends SeleniumPool {
+		final Set<Integer> down = Collections.synchronizedSet(new HashSet<Integer>());
+		final List<FakeSelenium> started = Collections.synchronizedList(new ArrayList<FakeSelenium>());
+		
+		FarmPool(ServerFarm farm, int size) {
+			super(farm, "*mock", "http://localhost", size);
+		}
+		
+		protected Selenium startSession(final String host, final int port) {
+			if(down.contains(port)) {
+				throw new SeleniumException("Connection refused", new ConnectException());
+			}
+			FakeSelenium session = new FakeSelenium(host + ":" + port).otherwise(new FakeSelenium.Answer() {
+				public Object answer(String command, Object[] args) {
+					if(down.contains(port)) {
+						throw new SeleniumException("Connection refused", new ConnectException());
+					}
+					return host + ":" + port;
+				}
+			});
+			started.add(session);
+			return session.selenium();
+		}
+	}
+	
+	/** Finds a port on which nothing is listening */
+	private static int closedPort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		int port = socket.getLocalPort();
+		socket.close();
+		return port;
+	}
+	
+	@Test(description="Server lists are parsed as host:port pairs")
+	public void parseServers() {
+		ServerFarm farm = ServerFarm.parse("alpha:4444, beta:5555,");
+		assertEquals(farm.getEndpoints().size(), 2);
+		assertEquals(farm.getEndpoints().get(1).getHost(), "beta");
+		assertEquals(farm.getEndpoints().get(1).getPort(), 5555);
+	}
+	
+	@Test(description="Servers without a port are rejected", expectedExceptions=RuntimeException.class)
+	public void parseMissingPort() {
+		ServerFarm.parse("alpha:4444,beta");
+	}
+	
+	@Test(description="Sessions go to the live server with the fewest sessions")
+	public void leastLoaded() {
+		ServerFarm farm = ServerFarm.parse("a:1,b:2,c:3");
+		ServerFarm.Endpoint a = farm.acquire();
+		ServerFarm.Endpoint b = farm.acquire();
+		assertEquals(a.toString(), "a:1");
+		assertEquals(b.toString(), "b:2");
+		
+		farm.markDead(farm.getEndpoints().get(2));
+		farm.release(a);
+		assertSame(farm.acquire(), a, "The emptiest live server should be chosen");
+		assertEquals(farm.getSessions(a), 1);
+	}
+	
+	@Test(description="Health checks find which servers accept connections")
+	public void healthCheck() throws IOException {
+		ServerSocket live = new ServerSocket(0);
+		try {
+			ServerFarm farm = ServerFarm.parse("localhost:" + live.getLocalPort() + ",localhost:" + closedPort());
+			assertEquals(farm.checkHealth(), 1);
+			assertTrue(farm.isAlive(farm.getEndpoints().get(0)));
+			assertFalse(farm.isAlive(farm.getEndpoints().get(1)));
+		} finally {
+			live.close();
+		}
+	}
+	
+	@Test(description="Sessions move to another server when theirs stops responding")
+	public void failover() throws IOException {
+		int first = closedPort();
+		int second = closedPort();
+		ServerFarm farm = ServerFarm.parse("localhost:" + first + ",localhost:" + second);
+		FarmPool pool = new FarmPool(farm, 1);
+		Selenium s = pool.proxy();
+		
+		assertEquals(s.getLocation(), "localhost:" + first);
+		
+		pool.down.add(first);
+		try {
+			s.getLocation();
+			fail("The command in progress should fail with its server");
+		} catch(SeleniumException e) { /* Expected */ }
+		assertFalse(farm.isAlive(farm.getEndpoints().get(0)), "The unreachable server should be taken out of use");
+		
+		assertEquals(s.getLocation(), "localhost:" + second, "The next command should run on the other server");
+		assertEquals(pool.getStarted(), 1);
+		assertEquals(farm.getSessions(farm.getEndpoints().get(0)), 0);
+		
+		pool.shutdown();
+		assertEquals(farm.getSessions(farm.getEndpoints().get(1)), 0, "Stopped sessions should free their server");
+	}
+	
+	@Test(description="New sessions skip servers that cannot be reached")
+	public void startOnLiveServer() throws IOException {
+		int first = closedPort();
+		int second = closedPort();
+		ServerFarm farm = ServerFarm.parse("localhost:" + first + ",localhost:" + second);
+		FarmPool pool = new FarmPool(farm, 1);
+		pool.down.add(first);
+		
+		assertEquals(pool.get().getLocation(), "localhost:" + second);
+		assertFalse(farm.isAlive(farm.getEndpoints().get(0)));
+	}
+	
+	@Test(description="Only failures to connect count as losing a server")
+	public void connectionFailures() {
+		assertTrue(ServerFarm.isConnectionFailure(new SeleniumException("x", new ConnectException())));
+		assertTrue(ServerFarm.isConnectionFailure(new SeleniumException("x", new NoRouteToHostException())));
+		assertTrue(ServerFarm.isConnectionFailure(new SeleniumException("x", new SocketTimeoutException("connect timed out"))));
+		assertFalse(ServerFarm.isConnectionFailure(new SeleniumException("x", new SocketTimeoutException("Read timed out"))),
+				"A slow command is not a lost server");
+		assertFalse(ServerFarm.isConnectionFailure(new SeleniumException("x", new IOException("Server returned HTTP response code: 500"))),
+				"An HTTP error comes from a server that can be reached");
+		assertFalse(ServerFarm.isConnectionFailure(new SeleniumException("ERROR: Element not found")));
+	}
+	
+	@Test(description="Sessions dropped from a server which still accepts connections are stopped")
+	public void abandonStopsSession() throws IOException {
+		ServerSocket live = new ServerSocket(0);
+		try {
+			ServerFarm farm = ServerFarm.parse("localhost:" + live.getLocalPort());
+			FarmPool pool = new FarmPool(farm, 1);
+			Selenium s = pool.proxy();
+			assertEquals(s.getLocation(), "localhost:" + live.getLocalPort());
+			
+			pool.down.add(live.getLocalPort());
+			try {
+				s.getLocation();
+				fail("The command should fail");
+			} catch(SeleniumException e) { /* Expected */ }
+			
+			assertTrue(pool.started.get(0).getCommands().contains("stop"),
+					"The session should be stopped rather than left running on the server");
+			assertTrue(farm.isAlive(farm.getEndpoints().get(0)), "A server accepting connections should stay in use");
+			assertEquals(farm.getSessions(farm.getEndpoints().get(0)), 0);
+			assertEquals(pool.getStarted(), 0);
+		} finally {
+			live.close();
+		}
+	}
+	
+	@Test(description="Commands that time out on a reachable server keep their session")
+	public void readTimeoutKeepsSession() throws IOException {
+		final FakeSelenium fake = new FakeSelenium("slow")
+			.fails("waitForPageToLoad", new SeleniumException("x", new SocketTimeoutException("Read timed out")))
+			.otherwiseReturns("ok");
+		ServerFarm farm = ServerFarm.parse("localhost:" + closedPort());
+		SeleniumPool pool = new SeleniumPool(farm, "*mock", "http://localhost", 1) {
+			protected Selenium startSession(String host, int port) {
+				return fake.selenium();
+			}
+		};
+		Selenium s = pool.proxy();
+		try {
+			s.waitForPageToLoad("30000");
+			fail("The command should fail");
+		} catch(SeleniumException e) { /* Expected */ }
+		
+		assertSame(pool.get(), fake.selenium(), "The session should stay bound to the thread");
+		assertFalse(fake.getCommands().contains("stop"));
+		assertTrue(farm.isAlive(farm.getEndpoints().get(0)));
+	}
+}
@@ -0,0 +1,46 @@
+/* Copyright 2008
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng;
+
+import static org.testng.Assert.*;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+import org.testng.annotations.Test;
+
+public class ServerProbeTests {
+	@Test(description="A listening socket is detected without waiting out the timeout")
+	public void detectsListeningPort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			long elapsed = ServerProbe.awaitPort("localhost", socket.getLocalPort(), 30000);
+			assertTrue(elapsed >= 0, "Probe should report that the port is accepting connections");
+			assertTrue(elapsed < 5000, "Probe should return as soon as the port accepts connections");
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test(description="A closed port is reported once the timeout expires")
+	public void reportsClosedPort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		int port = socket.getLocalPort();
+		socket.close();
+
+		assertEquals(ServerProbe.awaitPort("localhost", port, 200), -1,
+				"Probe should give up once the timeout has expired");
+	}
+}
@@ -0,0 +1,243 @@
+/* Copyright 2008
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng;
+
+import static org.testng.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.TestListenerAdapter;
+import org.testng.TestNG;
+import org.testng.annotations.Test;
+import org.testng.xml.XmlClass;
+import org.testng.xml.XmlSuite;
+import org.testng.xml.XmlTest;
+
+import com.thoughtworks.selenium.Selenium;
+
+/**
+ * Exercises the per-thread session pool without launching browsers.
+ */
+public class SessionPoolTests {
+	/**
+	 * Pool whose sessions answer getLocation() with their own serial number
+	 */
+	private static class CountingPool extends SeleniumPool {
+		final AtomicInteger created = new AtomicInteger();
+
+		CountingPool(int size) {
+			super("localhost", 4444, "*mock", "http://localhost", size);
+		}
+
+		protected Selenium createSession() {
+			String id = "session-" + created.incrementAndGet();
+			return new FakeSelenium(id).returns("getLocation", id).otherwiseReturns(null).selenium();
+		}
+	}
+
+	@Test(description="Sessions are created lazily and stay bound to their thread")
+	public void lazyPerThreadSession() {
+		CountingPool pool = new CountingPool(2);
+		assertEquals(pool.created.get(), 0, "No session should be started before one is requested");
+
+		Selenium first = pool.get();
+		assertSame(pool.get(), first, "A thread should receive the same session on every request");
+		assertEquals(pool.proxy().getLocation(), first.getLocation(),
+				"Proxy should route calls to the calling thread's session");
+		assertEquals(pool.created.get(), 1, "Only one session should be started for one thread");
+	}
+
+	@Test(description="Threads receive distinct sessions and released sessions are reused")
+	public void distinctSessionsAndReuse() throws InterruptedException {
+		final CountingPool pool = new CountingPool(2);
+		final Selenium s = pool.proxy();
+		final String[] seen = new String[2];
+
+		Thread[] workers = new Thread[2];
+		for(int i = 0; i < workers.length; i++) {
+			final int index = i;
+			workers[i] = new Thread() {
+				public void run() {
+					seen[index] = s.getLocation();
+					// Hold the session until both threads have one
+					while(pool.getStarted() < 2) {
+						Thread.yield();
+					}
+					pool.release();
+				}
+			};
+			workers[i].start();
+		}
+		for(Thread worker : workers) {
+			worker.join(10000);
+		}
+
+		assertNotNull(seen[0]);
+		assertNotNull(seen[1]);
+		assertFalse(seen[0].equals(seen[1]), "Concurrent threads must not share a session");
+
+		s.getLocation();
+		assertEquals(pool.created.get(), 2, "Released sessions should be reused rather than relaunched");
+	}
+
+	@Test(description="Resetting reuses the browser, relaunching replaces it")
+	public void recycleSessions() {
+		CountingPool pool = new CountingPool(1);
+		Selenium original = pool.get();
+
+		assertSame(pool.recycle(false), original, "Reset should keep the same browser");
+		assertEquals(pool.getResets(), 1, "Reset should be counted as an avoided relaunch");
+
+		Selenium relaunched = pool.recycle(true);
+		assertNotSame(relaunched, original, "Relaunch should start a new browser");
+		assertSame(pool.get(), relaunched, "Relaunched browser should be bound to the thread");
+		assertEquals(pool.getRelaunches(), 1);
+		assertEquals(pool.getStarted(), 1, "Relaunching must not grow the pool");
+	}
+
+	@Test(description="Shut down pools refuse to hand out sessions",
+			expectedExceptions=IllegalStateException.class)
+	public void shutdownPool() {
+		CountingPool pool = new CountingPool(1);
+		pool.get();
+		pool.shutdown();
+		pool.get();
+	}
+
+	/**
+	 * Tests run by {@link SessionPoolTests#parallelSuites}, each using the
+	 * calling thread's session from {@link #pool}
+	 */
+	public static class ParallelUser {
+		static volatile SeleniumPool pool;
+
+		private void visit(String page, String title) {
+			Selenium session = pool.get();
+			session.open(page);
+			assertEquals(session.getTitle(), title);
+			assertSame(pool.current(), session, "The thread should keep its session for the whole test");
+		}
+
+		@Test
+		public void first() {
+			visit("/index.html", "TSeNG Test Home");
+		}
+
+		@Test
+		public void second() {
+			visit("/stub-fixture.html", "Stub & Fixture");
+		}
+
+		@Test
+		public void third() {
+			visit("/index.html", "TSeNG Test Home");
+		}
+
+		@Test
+		public void fourth() {
+			visit("/stub-fixture.html", "Stub & Fixture");
+		}
+	}
+
+	/**
+	 * Runs {@link ParallelUser} in a suite of its own against a pool of
+	 * stub sessions, failing rather than hanging if a session is never
+	 * handed back
+	 *
+	 * @return Listener holding the suite's results
+	 */
+	private static TestListenerAdapter runParallel(SeleniumPool pool, String parallel, int threads, int tests)
+			throws InterruptedException {
+		XmlSuite suite = new XmlSuite();
+		suite.setName("Parallel sessions");
+		suite.setParallel(parallel);
+		suite.setThreadCount(threads);
+		for(int i = 0; i < tests; i++) {
+			XmlTest test = new XmlTest(suite);
+			test.setName("Parallel sessions " + i);
+			test.getXmlClasses().add(new XmlClass(ParallelUser.class.getName()));
+		}
+
+		ParallelUser.pool = pool;
+		final TestNG testng = new TestNG();
+		testng.setUseDefaultListeners(false);
+		testng.setOutputDirectory("target/parallel-sessions");
+		testng.setXmlSuites(Collections.singletonList(suite));
+		TestListenerAdapter results = new TestListenerAdapter();
+		testng.addListener(results);
+		List<SeleniumPool> pools = new ArrayList<SeleniumPool>();
+		pools.add(pool);
+		testng.addListener(new SessionReleaseListener(pools));
+
+		Thread runner = new Thread("parallel-sessions") {
+			public void run() {
+				testng.run();
+			}
+		};
+		runner.setDaemon(true);
+		runner.start();
+		runner.join(30000);
+		assertFalse(runner.isAlive(), "Parallel suite should not wait forever for a session");
+		return results;
+	}
+
+	@Test(description="Parallel methods share a single session as each test hands it back")
+	public void parallelMethods() throws InterruptedException {
+		SeleniumPool pool = StubSelenium.pool("http://localhost:4443",
+				StubSelenium.parseFixtures("/=./src/test/resources"), "*stub", 1);
+		try {
+			TestListenerAdapter results = runParallel(pool, XmlSuite.PARALLEL_METHODS, 2, 1);
+			assertEquals(results.getPassedTests().size(), 4, "Every test should have run: " + results.getFailedTests());
+			assertEquals(pool.getStarted(), 1);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test(description="Sessions released by one test's threads are used by the next test's")
+	public void parallelSuites() throws InterruptedException {
+		SeleniumPool pool = StubSelenium.pool("http://localhost:4443",
+				StubSelenium.parseFixtures("/=./src/test/resources"), "*stub", 2);
+		try {
+			TestListenerAdapter results = runParallel(pool, XmlSuite.PARALLEL_METHODS, 2, 2);
+			assertEquals(results.getPassedTests().size(), 8, "Every test should have run: " + results.getFailedTests());
+			assertTrue(pool.getStarted() <= 2);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test(description="A released session goes back to the thread that last had it")
+	public void releasedSessionAffinity() throws InterruptedException {
+		final CountingPool pool = new CountingPool(2);
+		Selenium mine = pool.get();
+		Thread other = new Thread() {
+			public void run() {
+				pool.get();
+				pool.release();
+			}
+		};
+		other.start();
+		other.join(10000);
+
+		// The other thread's session is now first in line
+		pool.release();
+		assertSame(pool.get(), mine, "An idle session should go back to the thread that last used it");
+		assertEquals(pool.created.get(), 2);
+	}
+}
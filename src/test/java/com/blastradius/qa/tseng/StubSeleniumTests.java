@@ -0,0 +1,205 @@
+/* Copyright 2008 Blast Radius
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng;
+
+import static org.testng.Assert.*;
+
+import java.util.Arrays;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.blastradius.qa.tseng.ui.UIObject;
+import com.thoughtworks.selenium.Selenium;
+import com.thoughtworks.selenium.SeleniumException;
+
+/**
+ * Checks the stub Selenium backend against a static fixture page. Each
+ * test's session is held in a field, so the tests run on one thread even
+ * in parallel suites.
+ */
+@Test(sequential=true)
+public class StubSeleniumTests {
+	private static final String SITE = "http://localhost:4443";
+	private static final String FIXTURE = "/stub/stub-fixture.html";
+
+	private Selenium s;
+
+	@BeforeMethod(description="Open the fixture in a new stub session")
+	public void openFixture() {
+		s = new StubSelenium(SITE, StubSelenium.parseFixtures("/stub=./src/test/resources")).proxy();
+		s.start();
+		s.open(FIXTURE);
+	}
+
+	@Test(description="Pages are loaded from the fixture directory")
+	public void openFixturePage() {
+		assertEquals(s.getLocation(), SITE + FIXTURE);
+		assertEquals(s.getTitle(), "Stub & Fixture", "Entities in the title should be decoded");
+		assertTrue(s.getHtmlSource().contains("<form id=\"login\""), "Source should be returned as written");
+	}
+
+	@Test(description="HTML is parsed as leniently as a browser would")
+	public void lenientParsing() {
+		assertEquals(s.getXpathCount("//ul/li").intValue(), 3, "Unclosed list items should be siblings");
+		assertEquals(s.getXpathCount("//li/li").intValue(), 0);
+		assertEquals(s.getXpathCount("//table//tr").intValue(), 3);
+		assertEquals(s.getXpathCount("//tr/td").intValue(), 4, "Unclosed cells should be siblings");
+		assertEquals(s.getXpathCount("//select/option").intValue(), 3);
+		assertEquals(s.getXpathCount("//p[@id='first']/p").intValue(), 0, "A paragraph should close the one before it");
+		assertTrue(s.isElementPresent("//a[@id='upper' and @href='/stub/missing.html']"), "Names should be lower-cased");
+		assertFalse(s.isElementPresent("commented"), "Comments should not be parsed");
+		assertEquals(s.getXpathCount("//p[.='not markup']").intValue(), 0, "Scripts should not be parsed as markup");
+		assertEquals(s.getText("entities"), "caf\u00e9 \u00a9 2008 \u2014 A B & C");
+	}
+
+	@Test(description="Every supported locator strategy finds elements")
+	public void locatorStrategies() {
+		assertEquals(s.getAttribute("id=user@name"), "user");
+		assertEquals(s.getAttribute("name=pass@type"), "password");
+		assertEquals(s.getAttribute("user@type"), "text", "Identifiers should match ids");
+		assertEquals(s.getAttribute("pass@type"), "password", "Identifiers should fall back to names");
+		assertEquals(s.getText("xpath=//div[@id='nav']//li[1]"), "Home");
+		assertEquals(s.getText("//li[2]/a"), "Shopping cart");
+		assertEquals(s.getAttribute("link=Shopping cart@id"), "cart", "Link text should be normalized");
+		assertEquals(s.getAttribute("link=glob:Miss*@id"), "upper");
+		assertEquals(s.getAttribute("css=div#nav.menu li a@id"), "home");
+		assertEquals(s.getText("css=tr.odd > td[data-price]"), "$1.00");
+		assertEquals(s.getText("css=td[data-price^='1.5']"), "$1.50");
+		assertEquals(s.getText("css=#items th, #items td"), "Item", "Groups should find the first in document order");
+		assertFalse(s.isElementPresent("css=div.menu > li"), "Child combinators should only match children");
+	}
+
+	@Test(description="Unsupported locators are rejected rather than reported missing",
+			expectedExceptions=SeleniumException.class)
+	public void unsupportedLocator() {
+		s.isElementPresent("css=li:first-child");
+	}
+
+	@Test(description="Text and visibility follow the markup")
+	public void textAndVisibility() {
+		assertEquals(s.getText("first"), "First paragraph with a break");
+		assertTrue(s.isVisible("first"));
+		assertFalse(s.isVisible("second"), "Inline display:none should hide an element");
+		assertFalse(s.isVisible("inner"), "Children of hidden elements should be hidden");
+		assertFalse(s.isVisible("token"), "Hidden inputs should not be visible");
+		assertTrue(s.isTextPresent("Shopping cart"));
+		assertTrue(s.isTextPresent("regexp:Pea?r"));
+		assertFalse(s.isTextPresent("not markup"));
+	}
+
+	@Test(description="Form fields can be read and changed")
+	public void forms() {
+		assertEquals(s.getValue("user"), "guest");
+		s.type("user", "admin");
+		assertEquals(s.getValue("user"), "admin");
+		assertEquals(s.getValue("notes"), "Some <notes>");
+		s.type("notes", "Changed");
+		assertEquals(s.getValue("notes"), "Changed");
+
+		assertEquals(s.getValue("remember"), "on");
+		s.click("remember");
+		assertFalse(s.isChecked("remember"), "Clicking a check box should toggle it");
+		s.click("premium");
+		assertTrue(s.isChecked("premium"));
+		assertFalse(s.isChecked("basic"), "Selecting a radio button should clear the others in its group");
+
+		assertEquals(s.getSelectedLabel("country"), "United States");
+		assertEquals(Arrays.asList(s.getSelectOptions("country")), Arrays.asList("Canada", "United States", "Mexico"));
+		s.select("country", "label=Mex*");
+		assertEquals(s.getSelectedValue("country"), "Mexico", "Options without a value should use their text");
+		s.select("country", "value=ca");
+		assertEquals(s.getSelectedLabel("country"), "Canada");
+
+		assertTrue(s.isEditable("user"));
+		assertFalse(s.isEditable("go"), "Disabled fields should not be editable");
+		assertEquals(Arrays.asList(s.getAllButtons()), Arrays.asList("go"));
+	}
+
+	@Test(description="Links are followed to other fixtures, and back")
+	public void navigation() {
+		s.click("cart");
+		assertEquals(s.getLocation(), SITE + FIXTURE, "In-page links should not navigate");
+
+		s.click("link=Home");
+		assertEquals(s.getLocation(), SITE + "/stub/index.html", "Relative links should resolve against the page");
+		assertEquals(s.getTitle(), "TSeNG Test Home");
+
+		s.goBack();
+		assertEquals(s.getTitle(), "Stub & Fixture");
+
+		try {
+			s.click("upper");
+			fail("Links to missing fixtures should fail");
+		} catch(SeleniumException e) {
+			assertTrue(e.getMessage().contains("404"), e.getMessage());
+		}
+		try {
+			s.open("http://www.google.ca");
+			fail("Pages off the site under test should fail");
+		} catch(SeleniumException e) {
+			assertEquals(s.getLocation(), SITE + FIXTURE, "A failed open should leave the page unchanged");
+		}
+	}
+
+	@Test(description="Commands fail as they would in a browser when elements are missing")
+	public void missingElements() {
+		assertFalse(s.isElementPresent("nothing"));
+		try {
+			s.getText("nothing");
+			fail("Reading a missing element should fail");
+		} catch(SeleniumException e) {
+			assertEquals(e.getMessage(), "ERROR: Element nothing not found");
+		}
+		try {
+			s.getAttribute("go@missing");
+			fail("Reading a missing attribute should fail");
+		} catch(SeleniumException e) {
+			assertTrue(e.getMessage().contains("go@missing"), e.getMessage());
+		}
+	}
+
+	@Test(description="Scripts cannot be run without a browser", expectedExceptions=SeleniumException.class)
+	public void noScripts() {
+		s.getEval("1 + 1");
+	}
+
+	@Test(description="UI Object locators are checked against the fixture")
+	public void uiObjectLocators() {
+		UIObject form = new UIObject(null, "//form[@id='login']");
+		UIObject user = new UIObject(form, "//input[@name='user']");
+		UIObject list = new UIObject(null, "css=div#nav");
+		UIObject link = new UIObject(list, "css=li a");
+
+		assertTrue(s.isElementPresent(user.getEffectiveLocator()));
+		assertEquals(s.getText(link.getEffectiveLocator()), "Home");
+		assertFalse(s.isElementPresent(new UIObject(form, "//select[@name='user']").getEffectiveLocator()));
+	}
+
+	@Test(description="A pool of stub sessions starts and resets sessions without a server")
+	public void stubPool() {
+		SeleniumPool pool = StubSelenium.pool(SITE, StubSelenium.parseFixtures("/=./src/test/resources"), "*stub", 1);
+		try {
+			Selenium session = pool.get();
+			session.open("/index.html");
+			assertEquals(pool.proxy().getTitle(), "TSeNG Test Home");
+			assertSame(pool.recycle(false), session, "Resetting should keep the session");
+			assertEquals(session.getLocation(), "about:blank");
+			assertEquals(pool.getResets(), 1);
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
@@ -14,23 +14,36 @@
  */
 package com.blastradius.qa.tseng;
 
+import java.io.File;
 import java.net.UnknownHostException;
 
+import org.mortbay.http.HttpContext;
 import org.mortbay.http.HttpServer;
 import org.mortbay.http.SocketListener;
 
 import static org.testng.Assert.*;
 
+import org.testng.Reporter;
 import org.testng.annotations.AfterSuite;
 import org.testng.annotations.BeforeSuite;
+import org.testng.annotations.Optional;
+import org.testng.annotations.Parameters;
 
 public class TestGlobals {
 	public static HttpServer server;
+	
+	/** Milliseconds taken by the Jetty test server to accept connections */
+	public static long jettyStartupTime = -1;
 	private static final String JETTY_BIND_ADDRESS = "localhost";
 	private static final int JETTY_PORT = 4443;
 	
+	/** Proxy to the real site which records or replays its assets, or null if not enabled */
+	public static AssetCacheHandler assetCache;
+	
+	@Parameters({"jetty.cache.mode", "jetty.cache.origin", "jetty.cache.dir"})
 	@BeforeSuite(description="Initialize a Jetty instance for tests to run against")
-	public void startJetty() throws UnknownHostException {
+	public void startJetty(@Optional("off") String cacheMode, @Optional("") String cacheOrigin,
+			@Optional("target/asset-cache") String cacheDir) throws UnknownHostException {
 		assertNull(server, "Jetty Server already exists. Terminating test.");
 		server = new HttpServer();
 		
@@ -39,27 +52,39 @@ public class TestGlobals {
 		listener.setPort(JETTY_PORT);
 		server.addListener(listener);
 		
+		if(!cacheMode.equalsIgnoreCase("off")) {
+			assertTrue(cacheOrigin.length() > 0, "jetty.cache.origin must give the site to proxy when caching assets");
+			assetCache = new AssetCacheHandler(cacheOrigin, new File(cacheDir),
+					AssetCacheHandler.Mode.valueOf(cacheMode.toUpperCase()));
+			HttpContext context = server.addContext("/");
+			context.addHandler(assetCache);
+		}
+		
+		final long start = System.currentTimeMillis();
+		final long timeout = 30000;
+		
 		try {
 			server.start();
 		} catch(Exception e) {
 			throw new RuntimeException("Jetty Server failed to start", e);
 		}
 		
-		final long start = System.currentTimeMillis();
-		final long timeout = 30000;
-		final long deadline = start + timeout;
+		long remaining = Math.max(0, start + timeout - System.currentTimeMillis());
+		boolean accepting = ServerProbe.awaitPort(JETTY_BIND_ADDRESS, JETTY_PORT, remaining) >= 0;
 		
-		while(System.currentTimeMillis() < deadline && !server.isStarted()) {
-			try {
-				Thread.sleep(timeout);
-			} catch(InterruptedException e) { /* Swallowed */ }
-		}
+		assertTrue(accepting && server.isStarted(), "Jetty test server must start within " + timeout + "ms");
 		
-		assertTrue(server.isStarted(), "Jetty test server must start within " + timeout + "ms");
+		jettyStartupTime = System.currentTimeMillis() - start;
+		Reporter.log("Jetty test server accepted connections after " + jettyStartupTime + "ms");
 	}
 	
 	@AfterSuite(description="Shut down Jetty server if it is running")
 	public void stopJetty() {
+		if(assetCache != null) {
+			Reporter.log("Asset cache (" + assetCache.getMode() + ") served " + assetCache.getHits() + " assets, recorded "
+					+ assetCache.getRecorded() + " and passed " + assetCache.getForwarded() + " requests to the site");
+			assetCache = null;
+		}
 		if(server != null && server.isStarted()) {
 			try {
 				server.stop(false);
@@ -0,0 +1,255 @@
+/* Copyright 2008 Blast Radius
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng.ui;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the throughput of an operation on one or more threads.
+ *
+ * Each measurement runs a number of warm-up rounds, whose results are
+ * discarded, followed by timed rounds. In every round each thread calls
+ * the operation as often as it can until the round's time is up. Where
+ * the JVM can report the bytes allocated by a thread, the allocation per
+ * operation is measured as well.
+ */
+public class BenchmarkRunner {
+	private static final Method ALLOCATED_BYTES = allocatedBytesMethod();
+
+	private final int warmupRounds;
+	private final int rounds;
+	private final long roundMillis;
+
+	/** Combined results of every operation, so that none can be optimized away */
+	private final AtomicLong sink = new AtomicLong();
+
+	/**
+	 * An operation to measure. The result is consumed by the runner so
+	 * that the work producing it cannot be eliminated.
+	 */
+	public interface Operation {
+		/**
+		 * @param thread Index of the calling thread, from 0
+		 * @param iteration Number of earlier calls on this thread in this round
+		 * @return Any result of the operation, or null
+		 */
+		Object run(int thread, long iteration) throws Exception;
+	}
+
+	/**
+	 * Throughput of one measurement
+	 */
+	public static class Result {
+		private final String name;
+		private final int threads;
+		private final long operations;
+		private final long nanos;
+		private final long allocated;
+
+		Result(String name, int threads, long operations, long nanos, long allocated) {
+			this.name = name;
+			this.threads = threads;
+			this.operations = operations;
+			this.nanos = nanos;
+			this.allocated = allocated;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getThreads() {
+			return threads;
+		}
+
+		/**
+		 * Gets the number of operations completed by all threads per second
+		 */
+		public double getOpsPerSecond() {
+			return nanos == 0 ? 0 : operations * 1e9 / nanos;
+		}
+
+		/**
+		 * Gets the average time each thread spent on one operation
+		 */
+		public double getNanosPerOp() {
+			return operations == 0 ? 0 : (double) nanos * threads / operations;
+		}
+
+		/**
+		 * Gets the average number of bytes allocated by one operation
+		 * @return Bytes per operation, or -1 if the JVM cannot report allocation
+		 */
+		public double getBytesPerOp() {
+			return allocated < 0 || operations == 0 ? -1 : (double) allocated / operations;
+		}
+
+		/**
+		 * Gets the result as a line of comma separated values:
+		 * benchmark, threads, operations per second, nanoseconds per
+		 * operation and bytes per operation
+		 */
+		public String toCsv() {
+			return name + "," + threads + "," + Math.round(getOpsPerSecond()) + ","
+				+ Math.round(getNanosPerOp()) + "," + Math.round(getBytesPerOp());
+		}
+
+		public String toString() {
+			double bytes = getBytesPerOp();
+			return name + " (" + threads + (threads == 1 ? " thread" : " threads") + "): "
+				+ Math.round(getOpsPerSecond()) + " ops/s, " + Math.round(getNanosPerOp()) + " ns/op"
+				+ (bytes < 0 ? "" : ", " + Math.round(bytes) + " bytes/op");
+		}
+	}
+
+	/**
+	 * @param warmupRounds Rounds to run before measuring
+	 * @param rounds Rounds to measure
+	 * @param roundMillis Length of each round
+	 */
+	public BenchmarkRunner(int warmupRounds, int rounds, long roundMillis) {
+		this.warmupRounds = warmupRounds;
+		this.rounds = rounds;
+		this.roundMillis = roundMillis;
+	}
+
+	/**
+	 * Measures an operation
+	 * @param name Name to report the result under
+	 * @param threads Number of threads to call the operation on at once
+	 * @param op Operation to measure
+	 * @return Totals over the measured rounds
+	 */
+	public Result run(String name, int threads, Operation op) {
+		for(int i = 0; i < warmupRounds; i++) {
+			round(threads, op);
+		}
+		long operations = 0;
+		long nanos = 0;
+		long allocated = 0;
+		for(int i = 0; i < rounds; i++) {
+			long[] r = round(threads, op);
+			operations += r[0];
+			nanos += r[1];
+			allocated = allocated < 0 || r[2] < 0 ? -1 : allocated + r[2];
+		}
+		return new Result(name, threads, operations, nanos, allocated);
+	}
+
+	/**
+	 * Runs one round on every thread
+	 * @return Operations completed, elapsed nanoseconds and bytes allocated
+	 */
+	private long[] round(int threads, final Operation op) {
+		final CountDownLatch start = new CountDownLatch(1);
+		final long[][] counts = new long[threads][];
+		final Throwable[] failure = new Throwable[1];
+		Thread[] workers = new Thread[threads];
+		for(int t = 0; t < threads; t++) {
+			final int index = t;
+			workers[t] = new Thread("benchmark-" + t) {
+				public void run() {
+					try {
+						start.await();
+						counts[index] = measure(index, op);
+					} catch(Throwable e) {
+						synchronized(failure) {
+							failure[0] = e;
+						}
+					}
+				}
+			};
+			workers[t].start();
+		}
+
+		long began = System.nanoTime();
+		start.countDown();
+		for(Thread worker : workers) {
+			try {
+				worker.join();
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while waiting for benchmark threads", e);
+			}
+		}
+		long elapsed = System.nanoTime() - began;
+		if(failure[0] != null) {
+			throw new RuntimeException("Benchmark operation failed", failure[0]);
+		}
+
+		long operations = 0;
+		long allocated = 0;
+		for(long[] c : counts) {
+			operations += c[0];
+			allocated = allocated < 0 || c[1] < 0 ? -1 : allocated + c[1];
+		}
+		return new long[] { operations, elapsed, allocated };
+	}
+
+	private long[] measure(int thread, Operation op) throws Exception {
+		long deadline = System.nanoTime() + roundMillis * 1000000;
+		long before = allocatedBytes();
+		long i = 0;
+		long hash = 0;
+		do {
+			Object result = op.run(thread, i++);
+			hash += result == null ? 0 : System.identityHashCode(result);
+		} while(System.nanoTime() < deadline);
+		long after = allocatedBytes();
+		sink.addAndGet(hash);
+		return new long[] { i, before < 0 ? -1 : after - before };
+	}
+
+	/**
+	 * Gets the bytes allocated so far by the calling thread
+	 * @return Byte count, or -1 if the JVM cannot report it
+	 */
+	public static long allocatedBytes() {
+		if(ALLOCATED_BYTES == null) {
+			return -1;
+		}
+		try {
+			return ((Long) ALLOCATED_BYTES.invoke(ManagementFactory.getThreadMXBean(),
+					Thread.currentThread().getId())).longValue();
+		} catch(Exception e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Finds the thread allocation counter offered by Sun JVMs since 6u25
+	 */
+	private static Method allocatedBytesMethod() {
+		try {
+			Class<?> type = Class.forName("com.sun.management.ThreadMXBean");
+			Object bean = ManagementFactory.getThreadMXBean();
+			if(!type.isInstance(bean)) {
+				return null;
+			}
+			Method m = type.getMethod("getThreadAllocatedBytes", long.class);
+			Method supported = type.getMethod("isThreadAllocatedMemorySupported");
+			if(!((Boolean) supported.invoke(bean)).booleanValue()) {
+				return null;
+			}
+			type.getMethod("setThreadAllocatedMemoryEnabled", boolean.class).invoke(bean, Boolean.TRUE);
+			return m;
+		} catch(Exception e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,127 @@
+/* Copyright 2008 Blast Radius
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng.ui;
+
+import static org.testng.Assert.*;
+
+import java.util.Arrays;
+
+import org.testng.annotations.AfterMethod;
+
+import org.testng.annotations.Test;
+
+import com.blastradius.qa.tseng.FakeSelenium;
+import com.thoughtworks.selenium.Selenium;
+
+/**
+ * Checks the Java side of the browser-side element cache: the locators
+ * handed to Selenium and the counters read back from the browser.
+ */
+public class ElementCacheUsage {
+	@AfterMethod(alwaysRun=true)
+	public void disable() {
+		ElementCache.setEnabled(false);
+	}
+
+	@Test(description="UI Objects use cache locators only while the cache is enabled")
+	public void cachedLocator() {
+		UIObject page = new UIObject(null, "//div[@id='page']");
+		UIObject link = new UIObject(page, "link=Checkout");
+		page.putChild("checkout", link);
+
+		String scoped = link.getCachedLocator();
+		assertTrue(scoped.startsWith("dom=") && scoped.endsWith("(this, ['//div[@id=\\'page\\']','link=Checkout'])"),
+				"Unmergeable paths should be resolved by a dom= locator without the cache: " + scoped);
+		assertEquals(page.getCachedLocator(), "//div[@id='page']");
+
+		ElementCache.setEnabled(true);
+		assertEquals(link.getCachedLocator(), "tseng=['//div[@id=\\'page\\']','link=Checkout']",
+				"Cache locators should carry the whole compiled locator path");
+
+		ElementCache.setEnabled(false);
+		assertEquals(link.getCachedLocator(), scoped, "Turning the cache off should go back to the dom= locator");
+	}
+
+	@Test(description="Helper scripts install the library once and reuse the cache's copy where there is one")
+	public void scriptReusesLibrary() {
+		String script = BrowserScript.script("tseng.batch([])");
+		assertTrue(script.startsWith("(function(tseng) { return tseng.batch([]); })(selenium.tseng || "), script);
+		assertTrue(script.contains(BrowserScript.LIBRARY));
+		assertTrue(BrowserScript.LIBRARY.contains("return tseng.cache ? tseng.cache.lookupPath(path) : tseng.find(path);"),
+				"Helpers should find elements through the cache where it is installed");
+	}
+
+	@Test(description="Commands against the UI Object last looked up are routed through the cache")
+	public void route() {
+		UIObject page = new UIObject(null, "//div[@id='routePage']");
+		UIObject title = new UIObject(page, "//h1");
+		page.putChild("title", title);
+		UIMap.put("routePage", page);
+
+		FakeSelenium browser = new FakeSelenium("browser").returns("getText", "text");
+		Selenium routed = ElementCache.route(browser.selenium());
+
+		boolean tracking = UISelection.isTracking();
+		UISelection.setTracking(true);
+		try {
+			String effective = UIMap.ui("routePage", "title").getEffectiveLocator();
+			routed.getText(effective);
+			ElementCache.setEnabled(true);
+			routed.getText(effective);
+			routed.getText("//span");
+		} finally {
+			UISelection.setTracking(tracking);
+		}
+
+		assertEquals(browser.getArguments("getText"), Arrays.asList("xpath=//div[@id='routePage']//h1",
+				"tseng=['xpath=//div[@id=\\'routePage\\']//h1']", "//span"),
+				"Only the selected object's locator should be replaced, and only while the cache is enabled");
+	}
+
+	@Test(description="The extension installs the helper library and the locator strategy")
+	public void extension() {
+		String script = ElementCache.extension();
+		assertTrue(script.startsWith(BrowserScript.LIBRARY));
+		assertTrue(script.contains("tseng.cache = {"));
+		assertTrue(script.contains("BrowserBot.prototype.locateElementByTseng"));
+	}
+
+	@Test(description="Counters are read from the browser and collected into totals")
+	public void counters() {
+		FakeSelenium browser = new FakeSelenium("browser");
+		ElementCache.Stats s = ElementCache.stats(browser.returns("getEval", "i9;i3;i1;i2;i4;").selenium());
+		assertEquals(s.getHits(), 9);
+		assertEquals(s.getMisses(), 3);
+		assertEquals(s.getStale(), 1);
+		assertEquals(s.getInvalidations(), 2);
+		assertEquals(s.getSize(), 4);
+		assertEquals(s.getHitRate(), 0.75, 0.0001);
+		assertFalse(browser.getArguments("getEval").get(0).contains("reset()"), "Reading counters should not zero them");
+
+		ElementCache.Stats before = ElementCache.getTotals();
+		ElementCache.collect(browser.returns("getEval", "i9;i3;i1;i2;i4;").selenium());
+		assertTrue(browser.getArguments("getEval").get(1).contains("tseng.cache.reset()"), "Collecting should zero the browser's counters");
+		ElementCache.Stats after = ElementCache.getTotals();
+		assertEquals(after.getHits() - before.getHits(), 9);
+		assertEquals(after.getMisses() - before.getMisses(), 3);
+		assertEquals(after.getSize(), 0);
+	}
+
+	@Test(description="Sessions without the extension have no counters")
+	public void notInstalled() {
+		assertNull(ElementCache.stats(new FakeSelenium("browser").returns("getEval", "").selenium()));
+		assertNull(ElementCache.collect(new FakeSelenium("browser").returns("getEval", "").selenium()));
+	}
+}
@@ -0,0 +1,116 @@
+/* Copyright 2008 Blast Radius
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng.ui;
+
+import static org.testng.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import com.blastradius.qa.tseng.FakeSelenium;
+
+public class LocatorOptimizerUsage {
+	@Test(description="Simple XPaths are translated to equivalent CSS selectors")
+	public void translated() {
+		assertEquals(LocatorOptimizer.toCss("//div[@name='foo']"), "css=div[name=\"foo\"]");
+		assertEquals(LocatorOptimizer.toCss("//span[@class='c1']"), "css=span[class=\"c1\"]",
+				"An exact class comparison must stay exact");
+		assertEquals(LocatorOptimizer.toCss("xpath=//div[@id='a']//ul/li[@data-x]"), "css=div[id=\"a\"] ul > li[data-x]");
+		assertEquals(LocatorOptimizer.toCss("//*[ @id = 'x' and @title='say \"hi\"' ]"), "css=*[id=\"x\"][title=\"say \\\"hi\\\"\"]");
+		assertEquals(LocatorOptimizer.toCss("//a[contains(concat(' ', normalize-space(@class), ' '), ' nav ')]"),
+				"css=a[class~=\"nav\"]");
+	}
+
+	@Test(description="XPaths without a certain CSS equivalent are left alone")
+	public void untranslatable() {
+		for(String xpath : new String[] {
+				"//div[1]", "//div[text()='x']", "//DIV", "/html/body", "//div | //span",
+				"//input[@type='text']", "//div[@id!='a']", "//div[@a='x' or @b='y']",
+				"//a[contains(@class, 'nav')]", "//div/..", "//svg:g", "css=div", "link=Home", "id=main" }) {
+			assertNull(LocatorOptimizer.toCss(xpath), xpath);
+		}
+	}
+
+	@Test(description="Parsing with an optimizer rewrites only where the locator path keeps its meaning")
+	public void parse() throws IOException {
+		File f = File.createTempFile("ui-map-optimize", ".xml");
+		try {
+			Writer out = new OutputStreamWriter(new FileOutputStream(f), "UTF-8");
+			out.write("<ui-map>"
+					+ "<ui name='optimized-page' locator=\"//div[@id='page']\"><components>"
+					+ "<ui name='title' locator='//h1' />"
+					+ "<ui name='deep' locator='//ul//li' />"
+					+ "</components></ui>"
+					+ "<ui name='optimized-legacy' locator='//div[2]'><components>"
+					+ "<ui name='title' locator='//h1' />"
+					+ "</components></ui>"
+					+ "</ui-map>");
+			out.close();
+
+			LocatorOptimizer optimizer = new LocatorOptimizer();
+			UIMapParser.parseFile(f, optimizer);
+
+			assertEquals(UIMap.ui("optimized-page").getLocator(), "css=div[id=\"page\"]");
+			assertEquals(UIMap.ui("optimized-page", "title").getLocator(), "css=h1");
+			assertEquals(UIMap.ui("optimized-page", "title").getEffectiveLocator(), "css=div[id=\"page\"] h1",
+					"Rewritten paths should still merge into one locator");
+			assertEquals(UIMap.ui("optimized-page", "deep").getLocator(), "//ul//li",
+					"Components with several steps should not be rewritten");
+			assertEquals(UIMap.ui("optimized-legacy", "title").getLocator(), "//h1",
+					"Components of XPath objects should not be rewritten");
+
+			List<LocatorOptimizer.Rewrite> rewrites = optimizer.getRewrites();
+			assertEquals(rewrites.size(), 2);
+			assertEquals(rewrites.get(1).getOriginal(), "//h1");
+			assertEquals(Arrays.asList(rewrites.get(1).getOriginalPath()), Arrays.asList("//div[@id='page']", "//h1"));
+		} finally {
+			f.delete();
+		}
+	}
+
+	@Test(description="Verification compares original and rewritten paths in one call",
+			dependsOnMethods="parse")
+	public void verify() throws IOException {
+		File f = File.createTempFile("ui-map-verify", ".xml");
+		try {
+			Writer out = new OutputStreamWriter(new FileOutputStream(f), "UTF-8");
+			out.write("<ui-map><ui name='verified-page' locator=\"//form[@name='q']\"><components>"
+					+ "<ui name='go' locator=\"//input[@name='go']\" /></components></ui></ui-map>");
+			out.close();
+
+			LocatorOptimizer optimizer = new LocatorOptimizer();
+			UIMapParser.parseFileStreaming(f, optimizer);
+
+			FakeSelenium browser = new FakeSelenium("browser");
+			List<LocatorOptimizer.Rewrite> wrong = optimizer.verify(browser.returns("getEval", "tf").selenium());
+			List<String> scripts = browser.getArguments("getEval");
+			assertEquals(scripts.size(), 1);
+			assertTrue(scripts.get(0).contains("tseng.agree([[['//form[@name=\\'q\\']'],['css=form[name=\"q\"]']],"), scripts.get(0));
+			assertTrue(scripts.get(0).contains("[['xpath=//form[@name=\\'q\\']//input[@name=\\'go\\']'],"
+					+ "['css=form[name=\"q\"] input[name=\"go\"]']]]"), scripts.get(0));
+			assertEquals(wrong.size(), 1);
+			assertSame(wrong.get(0).getObject(), UIMap.ui("verified-page", "go"));
+		} finally {
+			f.delete();
+		}
+	}
+}
@@ -0,0 +1,84 @@
+/* Copyright 2008 Blast Radius
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng.ui;
+
+import static org.testng.Assert.*;
+
+import java.io.StringWriter;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+import com.blastradius.qa.tseng.FakeSelenium;
+import com.thoughtworks.selenium.SeleniumException;
+
+/**
+ * Checks that a locator audit covers whole trees in one call and
+ * classifies the match counts returned by the browser.
+ */
+public class UIAuditUsage {
+	private Map<String, UIObject> roots() {
+		UIObject cart = new UIObject(null, "//div[@id='cart']");
+		cart.putChild("total", new UIObject(cart, "//span[@class='total']"));
+		cart.putChild("item", new UIObject(cart, "//li"));
+		Map<String, UIObject> roots = new LinkedHashMap<String, UIObject>();
+		roots.put("cart", cart);
+		roots.put("header", new UIObject(null, "//h1["));
+		return roots;
+	}
+
+	@Test(description="Every element of every tree is counted with a single getEval")
+	public void classifiesMatches() throws Exception {
+		FakeSelenium browser = new FakeSelenium("browser");
+		// Depth-first, children in name order: cart, cart/item, cart/total, header
+		String result = "i1;i120;" + "i3;i40;" + "i0;i15;" + "i-1;i2;";
+		UIAudit audit = UIAudit.check(browser.returns("getEval", result).selenium(), null, roots());
+
+		List<String> scripts = browser.getArguments("getEval");
+		assertEquals(scripts.size(), 1, "The audit should be run with a single getEval");
+		assertTrue(scripts.get(0).contains("tseng.audit([['//div[@id=\\'cart\\']'],['xpath=//div[@id=\\'cart\\']//li']"),
+				"Elements should be sent depth-first by their compiled locator paths");
+
+		List<UIAudit.Entry> entries = audit.getEntries();
+		assertEquals(entries.size(), 4);
+		assertEquals(entries.get(0).getName(), "cart");
+		assertEquals(entries.get(0).getStatus(), "ok");
+		assertEquals(entries.get(0).getMicros(), 120);
+		assertEquals(entries.get(1).getName(), "cart/item");
+		assertTrue(entries.get(1).isAmbiguous());
+		assertEquals(entries.get(1).getMatches(), 3);
+		assertTrue(entries.get(2).isMissing());
+		assertTrue(entries.get(3).isInvalid());
+
+		assertEquals(audit.getMissing().size(), 1);
+		assertEquals(audit.getAmbiguous().size(), 1);
+		assertEquals(audit.getInvalid().size(), 1);
+		assertFalse(audit.isClean());
+		assertTrue(audit.toString().contains("ambiguous: cart/item (//div[@id='cart'] > //li) matched 3"), audit.toString());
+
+		StringWriter csv = new StringWriter();
+		audit.writeCsv(csv);
+		assertTrue(csv.toString().startsWith("page,element,locator,matches,status,micros\n"));
+		assertTrue(csv.toString().contains(",\"cart/total\",\"//div[@id='cart'] > //span[@class='total']\",0,missing,15\n"),
+				csv.toString());
+	}
+
+	@Test(description="Results that do not match the trees are rejected", expectedExceptions=SeleniumException.class)
+	public void shortResult() {
+		UIAudit.check(new FakeSelenium("browser").returns("getEval", "i1;i1;").selenium(), null, roots());
+	}
+}
@@ -0,0 +1,83 @@
+/* Copyright 2008 Blast Radius
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng.ui;
+
+import static org.testng.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import com.blastradius.qa.tseng.FakeSelenium;
+import com.thoughtworks.selenium.SeleniumException;
+
+/**
+ * Checks the Java side of batched reads against a fake Selenium
+ * that returns canned results from getEval.
+ */
+public class UIBatchUsage {
+	@Test(description="Queued reads are sent in one getEval and decoded by type")
+	public void flushDecodesResults() {
+		FakeSelenium browser = new FakeSelenium("browser");
+		UIBatch batch = new UIBatch(browser.returns("getEval", "ts11:hello 'you'ns0:").selenium());
+
+		UIObject page = new UIObject(null, "//div[@id='page']");
+		UIObject title = new UIObject(page, "//h1");
+		UIObject missing = new UIObject(page, "//span[@class='none']");
+
+		UIBatch.Result<Boolean> present = batch.isPresent(title);
+		UIBatch.Result<String> text = batch.text(title);
+		UIBatch.Result<String> attribute = batch.attribute(title, "title");
+		UIBatch.Result<String> value = batch.value(missing);
+		assertEquals(batch.size(), 4);
+		assertFalse(text.isDone(), "Results should not be available before flushing");
+
+		batch.flush();
+
+		List<String> scripts = browser.getArguments("getEval");
+		assertEquals(scripts.size(), 1, "All reads should be performed with a single getEval");
+		assertTrue(scripts.get(0).contains("'xpath=//div[@id=\\'page\\']//h1'"),
+				"Script should resolve elements by their compiled locator path");
+		assertEquals(present.get(), Boolean.TRUE);
+		assertEquals(text.get(), "hello 'you'");
+		assertNull(attribute.get(), "Absent attributes should be read as null");
+		assertEquals(value.get(), "");
+		assertEquals(batch.size(), 0, "Flushing should empty the batch");
+	}
+
+	@Test(description="Reads from missing elements fail when their result is used",
+			expectedExceptions=SeleniumException.class)
+	public void missingElement() {
+		UIBatch batch = new UIBatch(new FakeSelenium("browser").returns("getEval", "x").selenium());
+		UIBatch.Result<String> text = batch.text(new UIObject(null, "//nothing"));
+		batch.flush();
+		text.get();
+	}
+
+	@Test(description="Results cannot be read before the batch is flushed",
+			expectedExceptions=IllegalStateException.class)
+	public void unflushedResult() {
+		UIBatch batch = new UIBatch(new FakeSelenium("browser").returns("getEval", "t").selenium());
+		batch.isVisible(new UIObject(null, "//body")).get();
+	}
+
+	@Test(description="Values are quoted safely for JavaScript")
+	public void quoting() {
+		assertEquals(BrowserScript.quote("a'b\\c\n</script>"), "'a\\'b\\\\c\\n\\u003c/script>'");
+		assertEquals(BrowserScript.array(new String[] { "x", null }), "['x',null]");
+		assertEquals(BrowserScript.decode("i42;s3:a:b"), Arrays.asList(new Object[] { 42, "a:b" }));
+	}
+}
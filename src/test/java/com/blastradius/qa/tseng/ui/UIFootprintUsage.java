@@ -0,0 +1,119 @@
+/* Copyright 2008 Blast Radius
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng.ui;
+
+import static org.testng.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.testng.annotations.Test;
+
+/**
+ * Checks the compact storage of UI Object trees and the estimate of
+ * their footprint.
+ */
+public class UIFootprintUsage {
+	private UIObject form() {
+		UIObject form = new UIObject(null, "//form");
+		for(String name : new String[] { "submit", "email", "name", "cancel" }) {
+			form.putChild(name, new UIObject(form, "//input[@name='" + name + "']"));
+		}
+		return form;
+	}
+
+	@Test(description="Children are kept in name order and replaced by name")
+	public void childTable() {
+		UIObject form = form();
+		Map<String, UIObject> children = form.getChildren();
+		assertEquals(new ArrayList<String>(children.keySet()), Arrays.asList("cancel", "email", "name", "submit"));
+		assertEquals(children.get("email").getLocator(), "//input[@name='email']");
+		assertNull(children.get("phone"));
+
+		UIObject replacement = new UIObject(form, "//input[@id='email']");
+		UIObject previous = form.putChild("email", replacement);
+		assertEquals(previous.getLocator(), "//input[@name='email']", "The replaced child should be returned");
+		assertSame(form.ui("email"), replacement);
+		assertEquals(form.getChildren().size(), 4);
+		assertSame(children.get("email"), previous, "Earlier views of the children should not change");
+	}
+
+	@Test(description="Children cannot be modified through the map", expectedExceptions=UnsupportedOperationException.class)
+	public void unmodifiable() {
+		form().getChildren().clear();
+	}
+
+	@Test(description="Equal names and locators share a single string")
+	public void sharedStrings() {
+		UIObject a = new UIObject(null, new String("//div[@class='shared']"));
+		UIObject b = new UIObject(null, new String("//div[@class='shared']"));
+		assertSame(a.getLocator(), b.getLocator());
+
+		a.putChild(new String("label"), new UIObject(a, "//span"));
+		b.putChild(new String("label"), new UIObject(b, "//span"));
+		assertSame(a.getChildren().keySet().iterator().next(), b.getChildren().keySet().iterator().next());
+	}
+
+	@Test(description="Concurrent first access to a cloned child yields a single copy")
+	public void concurrentMaterialize() throws Exception {
+		final UIObject clone = form().clone(null, "//form[2]");
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<UIObject>> results = new ArrayList<Future<UIObject>>();
+			for(int i = 0; i < 32; i++) {
+				results.add(executor.submit(new Callable<UIObject>() {
+					public UIObject call() {
+						return clone.ui("email");
+					}
+				}));
+			}
+			UIObject first = results.get(0).get();
+			assertSame(first.getParent(), clone);
+			for(Future<UIObject> result : results) {
+				assertSame(result.get(), first);
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test(description="The footprint counts each object, table and string once")
+	public void footprint() {
+		UIObject form = form();
+		UIObject clone = form.clone(null, "//form[2]");
+		clone.ui("email");
+		form.ui("name").getLocatorPath();
+
+		UIFootprint f = UIFootprint.measure(Arrays.asList(form, clone));
+		assertEquals(f.getObjects(), 7, "The form, its four fields, the clone and one copied field");
+		assertEquals(f.getChildTables(), 2);
+		assertEquals(f.getChildSlots(), 5);
+		// Two form locators and four field locators; the copied field shares its locator
+		assertEquals(f.getStrings() - 4, 6, "Names and locators should be counted once");
+		assertEquals(f.getCachedPaths(), 1);
+		assertTrue(f.getChildTableBytes() < f.getHashMapBytes(), f.toString());
+		assertEquals(f.getTotalBytes(), f.getObjectBytes() + f.getChildTableBytes() + f.getStringBytes() + f.getCacheBytes());
+		assertTrue(f.toString().startsWith("UI map footprint: 7 objects"), f.toString());
+
+		assertEquals(UIFootprint.measure(Collections.<UIObject>emptyList()).getTotalBytes(), 0);
+	}
+}
@@ -0,0 +1,148 @@
+/* Copyright 2008 Blast Radius
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng.ui;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Writes synthetic UI map files for benchmarks and load tests.
+ *
+ * The generated map starts with a set of templates, each a small widget
+ * with a few children. These are followed by a number of pages, each a
+ * tree of the given depth and fan-out. Leaves of the page trees are
+ * instances of the templates, at a configurable rate.
+ */
+public class UIMapGenerator {
+	private final String prefix;
+	private final int pages;
+	private final int depth;
+	private final int fanout;
+	private final int templates;
+	private final int templateReuse;
+
+	/**
+	 * @param prefix Prefix for all top-level names, so that several maps may be loaded together
+	 * @param pages Number of top-level page objects
+	 * @param depth Depth of each page tree, not counting the page itself
+	 * @param fanout Number of children of each non-leaf node
+	 * @param templates Number of template widgets to define
+	 * @param templateReuse One in this many leaves is a template instance. 0 disables templates in pages.
+	 */
+	public UIMapGenerator(String prefix, int pages, int depth, int fanout, int templates, int templateReuse) {
+		this.prefix = prefix;
+		this.pages = pages;
+		this.depth = depth;
+		this.fanout = fanout;
+		this.templates = templates;
+		this.templateReuse = templateReuse;
+	}
+
+	/**
+	 * Gets the number of UI Objects that parsing the generated file
+	 * will create, counting every node of every template instance.
+	 *
+	 * @return Total object count
+	 */
+	public long getObjectCount() {
+		long templateSize = 1 + fanout;
+		long total = templates * templateSize;
+		long leaves = 1;
+		for(int level = 0; level < depth; level++) {
+			leaves *= fanout;
+			total += pages * leaves;
+		}
+		total += pages;
+		if(templates > 0 && templateReuse > 0) {
+			long instances = (pages * leaves + templateReuse - 1) / templateReuse;
+			total += instances * (templateSize - 1);
+		}
+		return total;
+	}
+
+	/**
+	 * Gets the name of the given template type
+	 * @param i Template index
+	 * @return Tag name used for instances of the template
+	 */
+	public String templateName(int i) {
+		return prefix + "widget" + i;
+	}
+
+	/**
+	 * Gets the name of the given page
+	 * @param i Page index
+	 * @return Top-level name of the page
+	 */
+	public String pageName(int i) {
+		return prefix + "page" + i;
+	}
+
+	/**
+	 * Writes the map to a file
+	 * @param f Destination file, overwritten if it exists
+	 * @return The file written
+	 */
+	public File write(File f) throws IOException {
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f), "UTF-8"));
+		try {
+			out.write("<ui-map>\n");
+			for(int t = 0; t < templates; t++) {
+				out.write("<ui name=\"" + templateName(t) + "\" locator=\"//div[@class='widget" + t + "']\">");
+				out.write("<description>Generated template</description><components>");
+				for(int c = 0; c < fanout; c++) {
+					out.write("<ui name=\"part" + c + "\" locator=\"//span[@class='part" + c + "']\" />");
+				}
+				out.write("</components></ui>\n");
+			}
+
+			int[] leaf = new int[] { 0 };
+			for(int p = 0; p < pages; p++) {
+				out.write("<ui name=\"" + pageName(p) + "\" locator=\"//body[@id='page" + p + "']\">");
+				writeLevel(out, 1, leaf);
+				out.write("</ui>\n");
+			}
+			out.write("</ui-map>\n");
+		} finally {
+			out.close();
+		}
+		return f;
+	}
+
+	private void writeLevel(Writer out, int level, int[] leaf) throws IOException {
+		out.write("<components>");
+		for(int c = 0; c < fanout; c++) {
+			String name = "n" + level + "_" + c;
+			String locator = "//div[@id='" + name + "']";
+			if(level < depth) {
+				out.write("<ui name=\"" + name + "\" locator=\"" + locator + "\">");
+				writeLevel(out, level + 1, leaf);
+				out.write("</ui>");
+			} else {
+				int index = leaf[0]++;
+				String type = "ui";
+				if(templates > 0 && templateReuse > 0 && index % templateReuse == 0) {
+					type = templateName((index / templateReuse) % templates);
+				}
+				out.write("<" + type + " name=\"" + name + "\" locator=\"" + locator + "\" />");
+			}
+		}
+		out.write("</components>");
+	}
+}
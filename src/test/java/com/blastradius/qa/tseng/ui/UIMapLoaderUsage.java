@@ -0,0 +1,140 @@
+/* Copyright 2008 Blast Radius
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng.ui;
+
+import static org.testng.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+public class UIMapLoaderUsage {
+	private File dir;
+
+	@BeforeClass
+	public void createDirectory() throws IOException {
+		dir = File.createTempFile("ui-maps", "");
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	@AfterClass(alwaysRun=true)
+	public void deleteDirectory() {
+		for(File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	private File write(String name, String content) throws IOException {
+		File f = new File(dir, name);
+		Writer out = new OutputStreamWriter(new FileOutputStream(f), "UTF-8");
+		try {
+			out.write("<ui-map>" + content + "</ui-map>");
+		} finally {
+			out.close();
+		}
+		return f;
+	}
+
+	@Test(description="Types may be used before the file defining them is loaded")
+	public void forwardReferences() throws IOException {
+		File pages = write("loader-pages.xml",
+				"<loader-panel name='loader-page' locator='page-locator'>"
+				+ "<components><loader-button name='close' locator='close-locator' /></components>"
+				+ "</loader-panel>");
+		File widgets = write("loader-widgets.xml",
+				"<ui name='loader-panel' locator='panel-locator'>"
+				+ "<components><loader-button name='ok' locator='ok-locator' /></components>"
+				+ "</ui>"
+				+ "<ui name='loader-button' locator='button-locator'>"
+				+ "<components><ui name='label' locator='label-locator' /></components>"
+				+ "</ui>");
+
+		UIMapLoader.load(pages, widgets);
+
+		assertEquals(UIMap.ui("loader-page").getLocator(), "page-locator");
+		assertEquals(UIMap.ui("loader-page", "ok", "label").getLocator(), "label-locator",
+				"Components of templates should be cloned into their users");
+		assertEquals(UIMap.ui("loader-page", "close", "label").getLocator(), "label-locator");
+		assertSame(UIMap.ui("loader-page", "close").getParent(), UIMap.ui("loader-page"));
+	}
+
+	@Test(description="Every file in a directory is loaded")
+	public void directory() throws IOException {
+		File sub = new File(dir, "loader-directory");
+		sub.mkdirs();
+		try {
+			write("loader-directory/b.xml", "<ui name='loader-dir-base' locator='base' />");
+			write("loader-directory/a.xml", "<loader-dir-base name='loader-dir-user' locator='user' />");
+			UIMapLoader.load(sub);
+			assertEquals(UIMap.ui("loader-dir-user").getLocator(), "user");
+		} finally {
+			for(File f : sub.listFiles()) {
+				f.delete();
+			}
+			sub.delete();
+		}
+	}
+
+	@Test(description="Missing types, cycles and duplicates are reported together, and nothing is registered")
+	public void problemsReportedTogether() throws IOException {
+		File a = write("loader-broken-a.xml",
+				"<loader-cycle-b name='loader-cycle-a' locator='a' />"
+				+ "<loader-nothing name='loader-missing' locator='m' />"
+				+ "<ui name='loader-unnamed-locator' />");
+		File b = write("loader-broken-b.xml",
+				"<ui name='loader-cycle-b' locator='b'>"
+				+ "<components><loader-cycle-a name='inner' locator='i' /></components>"
+				+ "</ui>"
+				+ "<loader-cycle-a name='loader-downstream' locator='d' />"
+				+ "<ui name='loader-missing' locator='again' />"
+				+ "<ui name='loader-fine' locator='f' />");
+
+		try {
+			UIMapLoader.load(a, b);
+			fail("Loading should fail");
+		} catch(RuntimeException e) {
+			String message = e.getMessage();
+			assertTrue(message.startsWith("Failed to load UI map (4 problems)"), message);
+			assertTrue(message.contains("Locator was not specified for ui 'loader-unnamed-locator'"), message);
+			assertTrue(message.contains("'loader-missing' uses type 'loader-nothing', which has not been defined"), message);
+			assertTrue(message.contains("'loader-missing' is already defined in"), message);
+			assertTrue(message.contains("cycle: 'loader-cycle-a' (loader-broken-a.xml) -> 'loader-cycle-b' (loader-broken-b.xml) -> 'loader-cycle-a'"), message);
+			assertFalse(message.contains("'loader-downstream' ("),
+					"Objects depending on a cycle should not be reported as part of it");
+		}
+		assertNull(UIMap.get("loader-fine"), "Nothing should be registered when loading fails");
+	}
+
+	@Test(description="Malformed files are reported alongside other problems")
+	public void malformedFile() throws IOException {
+		File bad = write("loader-malformed.xml", "<ui name='x' locator='y'>");
+		File missing = write("loader-other.xml", "<loader-unknown name='loader-other' locator='o' />");
+		try {
+			UIMapLoader.load(bad, missing);
+			fail("Loading should fail");
+		} catch(RuntimeException e) {
+			assertTrue(e.getMessage().contains(bad.getPath() + " is malformed"), e.getMessage());
+			assertTrue(e.getMessage().contains("'loader-unknown'"), e.getMessage());
+		}
+	}
+}
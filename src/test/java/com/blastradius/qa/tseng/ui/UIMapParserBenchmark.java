@@ -0,0 +1,106 @@
+/* Copyright 2008 Blast Radius
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng.ui;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.testng.Reporter;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Optional;
+import org.testng.annotations.Parameters;
+import org.testng.annotations.Test;
+
+/**
+ * Compares the ways of loading a large generated UI map.
+ * Run through benchmark.xml rather than the main test suite.
+ */
+public class UIMapParserBenchmark {
+	private static final int ROUNDS = 5;
+
+	private File map;
+	private long objects;
+
+	@Parameters({"benchmark.pages", "benchmark.depth", "benchmark.fanout"})
+	@BeforeClass(description="Generate a large UI map")
+	public void generateMap(@Optional("200") String pages, @Optional("3") String depth,
+			@Optional("5") String fanout) throws IOException {
+		UIMapGenerator generator = new UIMapGenerator("bench-", Integer.parseInt(pages),
+				Integer.parseInt(depth), Integer.parseInt(fanout), 10, 4);
+		map = File.createTempFile("ui-map-benchmark", ".xml");
+		map.deleteOnExit();
+		generator.write(map);
+		objects = generator.getObjectCount();
+
+		Reporter.log("Generated " + objects + " UI Objects (" + map.length() + " bytes)");
+	}
+
+	@Test(description="Parse the map through the DOM")
+	public void domParse() {
+		// Warm up before measuring
+		UIMapParser.parseFile(map);
+		report("DOM", measure(false));
+	}
+
+	@Test(description="Parse the map from a stream of SAX events")
+	public void streamingParse() {
+		UIMapParser.parseFileStreaming(map);
+		report("Streaming", measure(true));
+	}
+
+	@Test(description="Load the map from a binary snapshot")
+	public void snapshotLoad() throws IOException {
+		File cacheDir = File.createTempFile("ui-map-benchmark", "");
+		cacheDir.delete();
+		UIMapSnapshot.parseFiles(cacheDir, map);
+
+		long start = System.nanoTime();
+		for(int i = 0; i < ROUNDS; i++) {
+			UIMapSnapshot.parseFiles(cacheDir, map);
+		}
+		report("Snapshot", new long[] { (System.nanoTime() - start) / ROUNDS / 1000000, -1 });
+
+		for(File f : cacheDir.listFiles()) {
+			f.delete();
+		}
+		cacheDir.delete();
+	}
+
+	private long[] measure(boolean streaming) {
+		Runtime runtime = Runtime.getRuntime();
+		long totalTime = 0;
+		long peakHeap = 0;
+
+		for(int i = 0; i < ROUNDS; i++) {
+			System.gc();
+			long baseline = runtime.totalMemory() - runtime.freeMemory();
+			long start = System.nanoTime();
+			if(streaming) {
+				UIMapParser.parseFileStreaming(map);
+			} else {
+				UIMapParser.parseFile(map);
+			}
+			totalTime += System.nanoTime() - start;
+			peakHeap = Math.max(peakHeap, runtime.totalMemory() - runtime.freeMemory() - baseline);
+		}
+		return new long[] { totalTime / ROUNDS / 1000000, peakHeap / 1024 };
+	}
+
+	private void report(String parser, long[] result) {
+		String line = parser + " load: " + result[0] + "ms average, "
+				+ (result[1] < 0 ? "" : result[1] + "KB heap growth, ") + objects + " objects";
+		Reporter.log(line);
+	}
+}
@@ -0,0 +1,170 @@
+/* Copyright 2008 Blast Radius
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng.ui;
+
+import static org.testng.Assert.*;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Loads UI maps through the binary snapshot cache.
+ */
+public class UIMapSnapshotCache {
+	private File cacheDir;
+	private File map;
+
+	@BeforeClass(description="Create an empty cache directory and a private map file")
+	public void createCache() throws IOException {
+		cacheDir = File.createTempFile("ui-map-cache", "");
+		cacheDir.delete();
+		cacheDir.mkdirs();
+		cacheDir.deleteOnExit();
+
+		map = new File(cacheDir, "snapshot-map.xml");
+		map.deleteOnExit();
+		writeMap("snapshot-root-locator");
+	}
+
+	private void writeMap(String rootLocator) throws IOException {
+		FileWriter w = new FileWriter(map);
+		w.write("<ui-map>" +
+				"<ui name=\"snapshot-widget\" locator=\"widget-locator\"><components>" +
+				"<ui name=\"label\" locator=\"label-locator\" /></components></ui>" +
+				"<ui name=\"snapshot-root\" locator=\"" + rootLocator + "\"><components>" +
+				"<snapshot-widget name=\"w1\" locator=\"w1-locator\" />" +
+				"<snapshot-widget name=\"w2\" locator=\"w2-locator\" /></components></ui>" +
+				"</ui-map>");
+		w.close();
+	}
+
+	@Test(description="The first load parses XML and writes a snapshot")
+	public void firstLoadParses() {
+		assertFalse(UIMapSnapshot.parseFiles(cacheDir, map), "Nothing should be cached before the first load");
+		assertEquals(cacheDir.listFiles().length, 2, "A snapshot should have been written next to the map");
+	}
+
+	@Test(description="A second load of unchanged files comes from the snapshot",
+			dependsOnMethods="firstLoadParses")
+	public void secondLoadUsesSnapshot() {
+		UIObject parsed = UIMap.ui("snapshot-root");
+		String expected = UIMapStreaming.describe(parsed);
+
+		assertTrue(UIMapSnapshot.parseFiles(cacheDir, map), "Unchanged files should be loaded from the snapshot");
+
+		UIObject loaded = UIMap.ui("snapshot-root");
+		assertNotSame(loaded, parsed, "Snapshot should register newly-built objects");
+		UIObject w1 = loaded.peekChild("w1");
+		assertSame(w1.getTemplate(), UIMap.ui("snapshot-widget"), "Template instances should be cloned from the loaded template");
+		assertEquals(w1.childTable().size(), 0, "Template children should be shared rather than copied");
+		assertEquals(UIMapStreaming.describe(loaded), expected, "Snapshot should reproduce the parsed tree");
+		assertEquals(UIMap.ui("snapshot-root", "w2", "label").getLocatorPath(),
+				new String[] { "snapshot-root-locator", "w2-locator", "label-locator" },
+				"Template instances should be restored with their full locator paths");
+	}
+
+	@Test(description="Changing a file invalidates its snapshot",
+			dependsOnMethods="secondLoadUsesSnapshot")
+	public void changedFileIsParsed() throws IOException {
+		writeMap("changed-root-locator");
+
+		assertFalse(UIMapSnapshot.parseFiles(cacheDir, map), "Changed files must be parsed again");
+		assertEquals(UIMap.ui("snapshot-root").getLocator(), "changed-root-locator");
+		assertTrue(UIMapSnapshot.parseFiles(cacheDir, map), "The new contents should now be cached");
+	}
+
+	@Test(description="Corrupt snapshots are replaced rather than loaded",
+			dependsOnMethods="changedFileIsParsed")
+	public void corruptSnapshotIsReplaced() throws IOException {
+		File snapshot = new File(cacheDir, "ui-map-" + UIMapSnapshot.hash(map) + ".uimap");
+		FileWriter w = new FileWriter(snapshot);
+		w.write("garbage");
+		w.close();
+
+		assertFalse(UIMapSnapshot.parseFiles(cacheDir, map), "Corrupt snapshot should fall back to parsing");
+		assertTrue(UIMapSnapshot.parseFiles(cacheDir, map), "Corrupt snapshot should have been rewritten");
+	}
+
+	@Test(description="Damaged counts are reported as corruption rather than allocated",
+			dependsOnMethods="corruptSnapshotIsReplaced")
+	public void hugeCountIsCorrupt() throws IOException {
+		File snapshot = new File(cacheDir, "ui-map-" + UIMapSnapshot.hash(map) + ".uimap");
+		int[][] damaged = {
+			{ Integer.MAX_VALUE },
+			{ 1, Integer.MAX_VALUE },
+			{ -1 },
+		};
+		for(int[] counts : damaged) {
+			DataOutputStream out = new DataOutputStream(new FileOutputStream(snapshot));
+			out.writeInt(UIMapSnapshot.MAGIC);
+			out.writeInt(UIMapSnapshot.VERSION);
+			for(int count : counts) {
+				out.writeInt(count);
+			}
+			out.close();
+
+			try {
+				UIMapSnapshot.load(snapshot);
+				fail("A count larger than the file should be rejected");
+			} catch(IOException e) {
+				assertTrue(e.getMessage().endsWith("is truncated or corrupt"), e.getMessage());
+			}
+		}
+
+		assertFalse(UIMapSnapshot.parseFiles(cacheDir, map), "Damaged snapshot should fall back to parsing");
+		assertTrue(UIMapSnapshot.parseFiles(cacheDir, map));
+	}
+
+	private static File write(File dir, String name, String content) throws IOException {
+		File f = new File(dir, name);
+		f.deleteOnExit();
+		FileWriter w = new FileWriter(f);
+		w.write(content);
+		w.close();
+		return f;
+	}
+
+	@Test(description="Snapshots are not loaded once a template from an earlier file has changed")
+	public void changedTemplateIsParsed() throws IOException {
+		File dir = File.createTempFile("ui-map-cache", "");
+		dir.delete();
+		dir.mkdirs();
+		dir.deleteOnExit();
+
+		File base = write(dir, "base-map.xml", "<ui-map><ui name=\"snapshot-base\" locator=\"base-locator\"><components>" +
+				"<ui name=\"label\" locator=\"old-label\" /></components></ui></ui-map>");
+		File page = write(dir, "page-map.xml", "<ui-map><ui name=\"snapshot-page\" locator=\"page-locator\"><components>" +
+				"<snapshot-base name=\"b\" locator=\"b-locator\" /></components></ui></ui-map>");
+
+		UIMapSnapshot.parseFiles(dir, base);
+		assertFalse(UIMapSnapshot.parseFiles(dir, page));
+		assertTrue(UIMapSnapshot.parseFiles(dir, page), "The page should be cached while its template is unchanged");
+
+		write(dir, "base-map.xml", "<ui-map><ui name=\"snapshot-base\" locator=\"base-locator\"><components>" +
+				"<ui name=\"label\" locator=\"new-label\" /></components></ui></ui-map>");
+		UIMapSnapshot.parseFiles(dir, base);
+
+		assertFalse(UIMapSnapshot.parseFiles(dir, page), "A page built from an older template must be parsed again");
+		assertEquals(UIMap.ui("snapshot-page", "b", "label").getLocator(), "new-label");
+		assertTrue(UIMapSnapshot.parseFiles(dir, page), "The page should be cached again with the new template");
+		assertEquals(UIMap.ui("snapshot-page", "b", "label").getLocator(), "new-label");
+	}
+}
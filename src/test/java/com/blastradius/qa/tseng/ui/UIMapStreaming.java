@@ -0,0 +1,91 @@
+/* Copyright 2008 Blast Radius
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng.ui;
+
+import static org.testng.Assert.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.TreeSet;
+
+import org.testng.annotations.Optional;
+import org.testng.annotations.Parameters;
+import org.testng.annotations.Test;
+
+/**
+ * Ensures that the streaming parser builds the same UI map as the
+ * DOM-based parser.
+ */
+public class UIMapStreaming {
+	/**
+	 * Renders a UI Object tree as a string, with children in name order
+	 */
+	static String describe(UIObject o) {
+		StringBuilder out = new StringBuilder();
+		describe(o, out);
+		return out.toString();
+	}
+
+	private static void describe(UIObject o, StringBuilder out) {
+		out.append(o.getLocator()).append('{');
+		for(String name : new TreeSet<String>(o.getChildren().keySet())) {
+			UIObject child = o.getChild(name);
+			assertSame(child.getParent(), o, "Child " + name + " must have its container as parent");
+			out.append(name).append('=');
+			describe(child, out);
+		}
+		out.append('}');
+	}
+
+	@Test(description="Streaming and DOM parsers produce identical trees, ignoring non-component elements")
+	@Parameters("ui-map.prototype-file")
+	public void streamingMatchesDom(@Optional("./src/test/resources/ui-map-prototype.xml") String fileName) {
+		File f = new File(fileName);
+
+		UIMapParser.parseFile(f);
+		UIObject domFoo = UIMap.ui("foo");
+		String dom = describe(domFoo) + describe(UIMap.ui("reused-foo"));
+
+		UIMapParser.parseFileStreaming(f);
+		UIObject streamedFoo = UIMap.ui("foo");
+		String streamed = describe(streamedFoo) + describe(UIMap.ui("reused-foo"));
+
+		assertNotSame(streamedFoo, domFoo, "Streaming parse should register new objects");
+		assertEquals(streamed, dom, "Streaming parse should produce the same tree as the DOM parse");
+	}
+
+	@Test(description="Streaming parser supports templates and nesting from the basic map")
+	public void streamingNesting() {
+		UIMapParser.parseFileStreaming(new File("./src/test/resources/ui-map-basic.xml"));
+
+		UIObject reused = UIMap.ui("simple-root", "child2", "child2_1", "child2_1_1");
+		assertEquals(reused.getLocator(), "child2_1_1-locator");
+		assertEquals(reused.ui("re1").getLocator(), "re1-locator",
+				"Children of a template instance should keep the template's locators");
+		assertSame(reused.getParent(), UIMap.ui("simple-root", "child2", "child2_1"));
+	}
+
+	@Test(description="Streaming parser rejects references to undefined types",
+			expectedExceptions=RuntimeException.class)
+	public void streamingUnknownType() throws Exception {
+		File f = File.createTempFile("ui-map-unknown", ".xml");
+		f.deleteOnExit();
+		FileWriter w = new FileWriter(f);
+		w.write("<ui-map><no-such-type name=\"x\" locator=\"y\" /></ui-map>");
+		w.close();
+
+		UIMapParser.parseFileStreaming(f);
+	}
+}
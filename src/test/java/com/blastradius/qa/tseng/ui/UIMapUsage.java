@@ -17,6 +17,7 @@ package com.blastradius.qa.tseng.ui;
 import static org.testng.Assert.*;
 
 import java.util.Arrays;
+import java.util.Collections;
 
 import org.testng.annotations.Test;
 
@@ -88,6 +89,39 @@ public class UIMapUsage {
 				"Compound Locator should contain all locators of itself and its parents in least-specific to most-specific order");
 	}
 	
+	@Test(description="Collapse an XPath locator chain into a single locator",
+			groups="operations",
+			dependsOnGroups="creation")
+	public void compileXPathLocator() {
+		UIObject link = UIMap.ui("root", "child1", "link");
+		
+		assertEquals(link.getEffectiveLocator(),
+				"xpath=//div[@name='root']//span[@class='c1']//a[@id='c1link']",
+				"XPath segments should be concatenated into one expression");
+		assertEquals(UIMap.ui("root").getEffectiveLocator(), "//div[@name='root']",
+				"A single locator should be returned unchanged");
+	}
+	
+	@Test(description="Only compatible locator segments are merged")
+	public void compileMixedLocators() {
+		UIObject page = new UIObject(null, "css=div.page");
+		UIObject list = new UIObject(page, "css=ul.items");
+		UIObject item = new UIObject(list, "link=Checkout");
+		UIObject label = new UIObject(item, "//span");
+		
+		assertEquals(list.getEffectiveLocator(), "css=div.page ul.items",
+				"CSS segments should be joined with the descendant combinator");
+		assertEquals(label.getCompiledLocatorPath(),
+				new String[] { "css=div.page ul.items", "link=Checkout", "//span" },
+				"Incompatible segments should remain separate steps");
+		assertNull(label.getEffectiveLocator(),
+				"A chain which cannot be fully merged has no effective locator");
+		
+		UIObject union = new UIObject(null, "//a | //b");
+		assertNull(new UIObject(union, "//c").getEffectiveLocator(),
+				"XPath unions must not be merged");
+	}
+	
 	@Test(description="Clone a hierarchy as a root node",
 			groups="operations",
 			dependsOnGroups="creation")
@@ -154,6 +188,97 @@ public class UIMapUsage {
 		}
 	}
 	
+	@Test(description="Children of a clone are stable and parented to the clone",
+			groups="operations",
+			dependsOnGroups="creation")
+	public void clonedChildrenAreStable() {
+		UIObject root = UIMap.ui("root");
+		UIObject clone = root.clone(null, "//div[@name='lazy']");
+		
+		UIObject child = clone.ui("child1");
+		assertSame(clone.ui("child1"), child,
+				"Repeated lookups of a cloned child should return the same object");
+		assertNotSame(child, root.ui("child1"),
+				"Cloned children must not be the template's children");
+		assertSame(child.getParent(), clone,
+				"Cloned children should have the clone as their parent");
+		assertEquals(clone.getChildren().size(), root.getChildren().size(),
+				"Clone should have as many children as its template");
+		assertEquals(child.ui("link").getLocatorPath(),
+				new String[] { "//div[@name='lazy']", "//span[@class='c1']", "//a[@id='c1link']" },
+				"Locator path of a cloned grandchild should start at the clone");
+	}
+	
+	@Test(description="Clones have the children their template had when it was cloned")
+	public void cloneSnapshotsChildren() {
+		UIObject template = new UIObject(null, "//div[@name='template']");
+		UIObject form = new UIObject(template, "//form");
+		template.putChild("form", form);
+		form.putChild("user", new UIObject(form, "//input[@name='user']"));
+		
+		UIObject clone = template.clone(null, "//div[@name='snapshot']");
+		UIObject copy = clone.clone(null, "//div[@name='copy']");
+		UIObject untouched = template.clone(null, "//div[@name='untouched']");
+		template.putChild("footer", new UIObject(template, "//div[@class='footer']"));
+		
+		assertNull(clone.ui("footer"), "Children added to the template after cloning should not be shared");
+		assertNull(copy.ui("footer"), "Clones of clones should not see them either");
+		assertEquals(clone.getChildren().keySet(), Collections.singleton("form"));
+		assertNotNull(template.clone(null, "//div[@name='later']").ui("footer"),
+				"Clones made afterwards should have the new child");
+		
+		assertNotNull(copy.ui("form").ui("user"), "Children the template had should still be shared");
+		form.putChild("password", new UIObject(form, "//input[@name='password']"));
+		assertNull(copy.ui("form").ui("password"), "A copied child should keep the children it was copied with");
+		assertNotNull(untouched.ui("form").ui("password"),
+				"A child is copied as it is when first accessed, so sees grandchildren added until then");
+	}
+	
+	@Test(description="Batched elements are only visible to others once committed")
+	public void batchRegistration() {
+		UIMap.Batch batch = new UIMap.Batch();
+		UIObject first = new UIObject(null, "//div[@name='batch1']");
+		batch.put("batch1", first);
+		
+		assertSame(batch.get("batch1"), first, "Batch should see its own pending elements");
+		assertNull(UIMap.get("batch1"), "Pending elements must not be visible before commit");
+		
+		batch.commit();
+		assertSame(UIMap.get("batch1"), first, "Committed elements should be visible in the UI map");
+		assertTrue(batch.getPending().isEmpty(), "Commit should empty the batch");
+	}
+	
+	@Test(description="Path handles follow re-registration of elements")
+	public void pathHandles() {
+		UIObject parent = new UIObject(null, "//div[@name='handles']");
+		UIObject first = new UIObject(parent, "//span[@class='first']");
+		parent.putChild("target", first);
+		UIMap.put("handles", parent);
+		
+		UIPath handle = UIMap.path("handles", "target");
+		assertSame(handle.get(), first, "Handle should resolve to the registered element");
+		assertSame(handle.get(), first, "Handle should keep resolving to the same element");
+		
+		UIObject second = new UIObject(parent, "//span[@class='second']");
+		parent.putChild("target", second);
+		assertSame(handle.get(), second, "Handle should notice that the child was replaced");
+		
+		assertNull(UIMap.path("handles", "missing", "deeper").get(),
+				"Handle to a nonexistent element should resolve to null");
+	}
+	
+	@Test(description="Cached locator paths cannot be altered by callers",
+			groups="operations",
+			dependsOnGroups="creation")
+	public void cachedLocatorPath() {
+		UIObject link = UIMap.ui("root", "child1", "link");
+		String[] path = link.getLocatorPath();
+		path[0] = "altered";
+		
+		assertEquals(link.getLocatorPath()[0], "//div[@name='root']",
+				"Modifying a returned locator path must not affect later calls");
+	}
+	
 	@Test(description = "Verify that VarArg functionality produces identical results as chaining")
 	public void varArgsChaining() {
 		UIObject o = UIMap.ui("root", "child1", "link");
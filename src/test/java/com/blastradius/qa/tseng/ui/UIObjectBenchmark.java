@@ -0,0 +1,229 @@
+/* Copyright 2008 Blast Radius
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng.ui;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.testng.Reporter;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Optional;
+import org.testng.annotations.Parameters;
+import org.testng.annotations.Test;
+
+/**
+ * Measures the throughput and allocation of the UI map's hot paths over
+ * a generated map, on a single thread and on several at once.
+ * Run through benchmark.xml rather than the main test suite.
+ *
+ * Results are logged, and appended to the file named by the
+ * benchmark.results parameter if there is one, so that runs against
+ * different releases can be compared. Each row names its run
+ * (benchmark.run, or the start time), the version measured
+ * (benchmark.version, or the jar's implementation version) and when the
+ * run started, and gives the shape of the generated map.
+ */
+public class UIObjectBenchmark {
+	/** Number of lookup paths sampled from the map */
+	private static final int SAMPLES = 1000;
+
+	/** Columns of the results file */
+	static final String HEADER = "run,version,timestamp,pages,depth,fanout,templates,template_reuse,objects,"
+		+ "benchmark,threads,ops_per_sec,ns_per_op,bytes_per_op";
+
+	private UIMapGenerator generator;
+	private File map;
+	private int threads;
+	private BenchmarkRunner runner;
+	private String resultsFile;
+	/** Leading columns of every row of results, identifying the run and the map */
+	private String runColumns;
+	private final List<BenchmarkRunner.Result> results = new ArrayList<BenchmarkRunner.Result>();
+
+	private String[][] paths;
+	private UIObject[] objects;
+	private UIObject[] prototypes;
+
+	@Parameters({"benchmark.pages", "benchmark.depth", "benchmark.fanout", "benchmark.templates",
+		"benchmark.templateReuse", "benchmark.threads", "benchmark.rounds", "benchmark.roundMillis",
+		"benchmark.results", "benchmark.run", "benchmark.version"})
+	@BeforeClass(description="Generate and load a large UI map")
+	public void generateMap(@Optional("200") String pages, @Optional("3") String depth,
+			@Optional("5") String fanout, @Optional("10") String templates,
+			@Optional("4") String templateReuse, @Optional("4") String threads,
+			@Optional("5") String rounds, @Optional("1000") String roundMillis,
+			@Optional("") String results, @Optional("") String run, @Optional("") String version) throws IOException {
+		generator = new UIMapGenerator("hot-", Integer.parseInt(pages), Integer.parseInt(depth),
+				Integer.parseInt(fanout), Integer.parseInt(templates), Integer.parseInt(templateReuse));
+		map = File.createTempFile("ui-map-benchmark", ".xml");
+		map.deleteOnExit();
+		generator.write(map);
+		UIMapParser.parseFile(map);
+
+		this.threads = Integer.parseInt(threads);
+		int r = Integer.parseInt(rounds);
+		this.runner = new BenchmarkRunner(Math.max(1, r / 2), r, Long.parseLong(roundMillis));
+		this.resultsFile = results;
+
+		String timestamp = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ", Locale.US).format(new Date());
+		if(version.length() == 0) {
+			String implementation = UIObject.class.getPackage() == null ? null
+					: UIObject.class.getPackage().getImplementationVersion();
+			version = implementation != null ? implementation : "unknown";
+		}
+		this.runColumns = csv(run.length() > 0 ? run : timestamp) + "," + csv(version) + "," + timestamp
+			+ "," + pages + "," + depth + "," + fanout + "," + templates + "," + templateReuse
+			+ "," + generator.getObjectCount();
+
+		// Sample leaf paths with a fixed seed, so that every run looks up the same objects
+		Random random = new Random(42);
+		int d = Integer.parseInt(depth);
+		int f = Integer.parseInt(fanout);
+		paths = new String[SAMPLES][];
+		objects = new UIObject[SAMPLES];
+		for(int i = 0; i < SAMPLES; i++) {
+			String[] path = new String[d + 1];
+			path[0] = generator.pageName(random.nextInt(Integer.parseInt(pages)));
+			for(int level = 1; level <= d; level++) {
+				path[level] = "n" + level + "_" + random.nextInt(f);
+			}
+			paths[i] = path;
+			objects[i] = UIMap.ui(path);
+		}
+
+		int t = Integer.parseInt(templates);
+		prototypes = new UIObject[t > 0 ? t : 1];
+		for(int i = 0; i < prototypes.length; i++) {
+			prototypes[i] = UIMap.get(t > 0 ? generator.templateName(i) : generator.pageName(i));
+		}
+
+		Reporter.log("Generated " + generator.getObjectCount() + " UI Objects (" + map.length() + " bytes)");
+	}
+
+	@Test(description="Look up objects by name path through the UI map")
+	public void lookup() {
+		measure("UIMap.ui", new BenchmarkRunner.Operation() {
+			public Object run(int thread, long i) {
+				return UIMap.ui(paths[index(thread, i)]);
+			}
+		});
+	}
+
+	@Test(description="Get the locator path of objects")
+	public void locatorPath() {
+		measure("UIObject.getLocatorPath", new BenchmarkRunner.Operation() {
+			public Object run(int thread, long i) {
+				return objects[index(thread, i)].getLocatorPath();
+			}
+		});
+	}
+
+	@Test(description="Clone template objects and copy their children")
+	public void cloneObject() {
+		measure("UIObject.clone", new BenchmarkRunner.Operation() {
+			public Object run(int thread, long i) {
+				UIObject clone = prototypes[(int) (i % prototypes.length)].clone(null, "//div[@id='clone']");
+				return clone.getChildren();
+			}
+		});
+	}
+
+	@Test(description="Parse the whole map file")
+	public void parseFile() {
+		measure("UIMapParser.parseFile", new BenchmarkRunner.Operation() {
+			public Object run(int thread, long i) {
+				UIMapParser.parseFile(map);
+				return null;
+			}
+		});
+	}
+
+	@AfterClass(description="Write results for comparison with other runs")
+	public void writeResults() throws IOException {
+		if(resultsFile.length() == 0) {
+			return;
+		}
+		File f = new File(resultsFile);
+		boolean header = !f.exists() || f.length() == 0;
+		if(!header) {
+			BufferedReader in = new BufferedReader(new FileReader(f));
+			try {
+				String columns = in.readLine();
+				if(!HEADER.equals(columns)) {
+					throw new IOException("Results file " + f + " has the columns " + columns
+							+ "; move it aside to start one with " + HEADER);
+				}
+			} finally {
+				in.close();
+			}
+		}
+		PrintWriter out = new PrintWriter(new FileWriter(f, true));
+		try {
+			if(header) {
+				out.println(HEADER);
+			}
+			for(BenchmarkRunner.Result r : results) {
+				out.println(runColumns + "," + r.toCsv());
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Spreads the threads over different samples, so that they do not
+	 * all work on the same object at the same moment
+	 */
+	private int index(int thread, long i) {
+		return (int) ((i + thread * (SAMPLES / 7)) % SAMPLES);
+	}
+
+	/**
+	 * Measures an operation on a single thread, then on the configured
+	 * number of threads
+	 */
+	private void measure(String name, BenchmarkRunner.Operation op) {
+		report(runner.run(name, 1, op));
+		if(threads > 1) {
+			report(runner.run(name, threads, op));
+		}
+	}
+
+	private void report(BenchmarkRunner.Result result) {
+		results.add(result);
+		Reporter.log(result.toString());
+	}
+
+	/**
+	 * Quotes a value for CSV if it contains anything but plain text
+	 */
+	private static String csv(String value) {
+		if(value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+			return value;
+		}
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+}
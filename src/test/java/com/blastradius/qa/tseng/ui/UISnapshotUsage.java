@@ -0,0 +1,76 @@
+/* Copyright 2008 Blast Radius
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng.ui;
+
+import static org.testng.Assert.*;
+
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import com.blastradius.qa.tseng.FakeSelenium;
+import com.thoughtworks.selenium.SeleniumException;
+
+/**
+ * Checks that subtree snapshots are read in one call and mirror the
+ * UI Object tree.
+ */
+public class UISnapshotUsage {
+	private UIObject cart() {
+		UIObject cart = new UIObject(null, "//div[@id='cart']");
+		cart.putChild("total", new UIObject(cart, "//span[@class='total']"));
+		cart.putChild("empty", new UIObject(cart, "//p[@class='empty']"));
+		return cart;
+	}
+
+	@Test(description="A whole subtree is captured with a single getEval")
+	public void captureTree() {
+		FakeSelenium browser = new FakeSelenium("browser");
+		// Nodes are returned depth-first, children in name order: cart, empty, total
+		String result = "tts4:Cartn" + "f" + "tts5:$9.99s4:Sum!";
+		UISnapshot cart = UISnapshot.capture(browser.returns("getEval", result).selenium(), cart(), "title");
+
+		List<String> scripts = browser.getArguments("getEval");
+		assertEquals(scripts.size(), 1, "The snapshot should be read with a single getEval");
+		assertTrue(scripts.get(0).contains("tseng.snapshot("));
+
+		assertTrue(cart.isPresent());
+		assertTrue(cart.isVisible());
+		assertEquals(cart.getText(), "Cart");
+		assertNull(cart.getAttribute("title"));
+		assertEquals(cart.getChildren().size(), 2);
+
+		UISnapshot empty = cart.ui("empty");
+		assertFalse(empty.isPresent());
+		assertFalse(empty.isVisible());
+		assertNull(empty.getText());
+
+		UISnapshot total = cart.ui("total");
+		assertEquals(total.getText(), "$9.99");
+		assertEquals(total.getAttribute("title"), "Sum!");
+		assertSame(total.getSource(), cart.getSource().getChild("total"));
+	}
+
+	@Test(description="Snapshots cannot be modified", expectedExceptions=UnsupportedOperationException.class)
+	public void immutable() {
+		UISnapshot cart = UISnapshot.capture(new FakeSelenium("browser").returns("getEval", "tts0:ftts0:").selenium(), cart());
+		cart.getChildren().clear();
+	}
+
+	@Test(description="Results that do not match the tree are rejected", expectedExceptions=SeleniumException.class)
+	public void shortResult() {
+		UISnapshot.capture(new FakeSelenium("browser").returns("getEval", "tts0:").selenium(), cart());
+	}
+}
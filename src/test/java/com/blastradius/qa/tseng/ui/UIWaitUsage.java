@@ -0,0 +1,123 @@
+/* Copyright 2008 Blast Radius
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.blastradius.qa.tseng.ui;
+
+import static org.testng.Assert.*;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import com.blastradius.qa.tseng.FakeSelenium;
+import com.thoughtworks.selenium.SeleniumException;
+
+/**
+ * Checks waiting on UI Objects against a fake Selenium, and the
+ * client-side polling schedule.
+ */
+public class UIWaitUsage {
+	/**
+	 * Creates a Selenium on which the condition does not hold at first, and
+	 * whose waitForCondition either returns or fails as given
+	 */
+	private static FakeSelenium waiting(RuntimeException failure) {
+		FakeSelenium browser = new FakeSelenium("browser").returns("getEval", "false");
+		return failure == null ? browser.returns("waitForCondition", null) : browser.fails("waitForCondition", failure);
+	}
+	
+	@Test(description="UI Object waits are polled in the browser with a short condition")
+	public void browserSideWait() {
+		FakeSelenium browser = waiting(null);
+		UIObject title = new UIObject(new UIObject(null, "//div[@id='page']"), "//h1");
+		
+		UIWait.untilText(browser.selenium(), title, "Welcome", 5000);
+		
+		assertEquals(browser.getCommands(), Arrays.asList("getEval", "waitForCondition"));
+		String check = "satisfied(['xpath=//div[@id=\\'page\\']//h1'],'text','Welcome')";
+		assertTrue(browser.getArguments("getEval").get(0).startsWith("(function(tseng) { return tseng." + check + "; })"),
+				"The first check should install the helper library");
+		assertEquals(browser.getCalls("waitForCondition").get(0), new String[] { "selenium.tseng." + check, "5000" },
+				"Each poll should only evaluate the condition");
+		assertEquals(UIWait.getWaits(title).getCount(), 1, "The wait should be recorded against the object");
+	}
+	
+	@Test(description="Waits for conditions which already hold take one command")
+	public void alreadySatisfied() {
+		FakeSelenium browser = new FakeSelenium("browser").returns("getEval", "true");
+		UIObject title = new UIObject(null, "//h2");
+		
+		UIWait.untilPresent(browser.selenium(), title, 5000);
+		
+		assertEquals(browser.getCommands(), Arrays.asList("getEval"));
+		assertEquals(UIWait.getWaits(title).getCount(), 1);
+	}
+	
+	@Test(description="Timeouts name the UI Object and are recorded")
+	public void browserSideTimeout() throws Exception {
+		UIObject spinner = new UIObject(null, "css=.spinner");
+		try {
+			UIWait.untilVisible(waiting(new SeleniumException("Timed out after 100ms")).selenium(), spinner, 100);
+			fail("Wait should time out");
+		} catch(SeleniumException e) {
+			assertEquals(e.getMessage(), "Timed out after 100ms waiting for css=.spinner to be visible");
+		}
+		assertEquals(UIWait.getWaits(spinner).getCount(), 1);
+		
+		StringWriter csv = new StringWriter();
+		assertTrue(UIWait.writeCsv(csv));
+		assertTrue(csv.toString().contains("\n\"css=.spinner\",1,"));
+	}
+	
+	@Test(description="Failures other than timeouts are passed on as they are")
+	public void browserSideFailure() {
+		SeleniumException failure = new SeleniumException("ERROR: Current window or frame is closed!");
+		UIObject banner = new UIObject(null, "css=.banner");
+		try {
+			UIWait.untilPresent(waiting(failure).selenium(), banner, 100);
+			fail("Wait should fail");
+		} catch(SeleniumException e) {
+			assertSame(e, failure);
+		}
+		assertEquals(UIWait.getWaits(banner).getCount(), 1);
+	}
+	
+	@Test(description="Client-side polls back off and stop once the condition holds")
+	public void clientSideBackoff() {
+		final List<Long> polls = new ArrayList<Long>();
+		UIWait.until(new UIWait.Condition() {
+			public boolean isSatisfied() {
+				polls.add(System.currentTimeMillis());
+				return polls.size() == 5;
+			}
+		}, 10000, null);
+		
+		assertEquals(polls.size(), 5);
+		long first = polls.get(1) - polls.get(0);
+		long last = polls.get(4) - polls.get(3);
+		assertTrue(last > first, "Polls should become less frequent (" + first + "ms, then " + last + "ms)");
+	}
+	
+	@Test(description="Client-side waits give up at the deadline", expectedExceptions=SeleniumException.class)
+	public void clientSideTimeout() {
+		UIWait.until(new UIWait.Condition() {
+			public boolean isSatisfied() {
+				return false;
+			}
+		}, 50, null);
+	}
+}